@@ -39,9 +39,11 @@ import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.SamPairUtil.PairOrientation;
 import picard.metrics.PerUnitMetricCollector;
+import picard.util.IntHistogram;
 import picard.metrics.SAMRecordAndReference;
 import picard.metrics.SAMRecordAndReferenceMultiLevelCollector;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -137,6 +139,20 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             pairCollector.onComplete();
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<AlignmentSummaryMetrics, Comparable<?>, SAMRecordAndReference> other) {
+            final GroupAlignmentSummaryMetricsPerUnitMetricCollector that = (GroupAlignmentSummaryMetricsPerUnitMetricCollector) other;
+            unpairedCollector.merge(that.unpairedCollector);
+            firstOfPairCollector.merge(that.firstOfPairCollector);
+            secondOfPairCollector.merge(that.secondOfPairCollector);
+            pairCollector.merge(that.pairCollector);
+        }
+
+        @Override
+        public boolean isMergeable() {
+            return true;
+        }
+
         @Override
         public void addMetricsToFile(final MetricsFile<AlignmentSummaryMetrics, Comparable<?>> file) {
             if (firstOfPairCollector.getMetrics().TOTAL_READS > 0) {
@@ -161,7 +177,7 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
          */
         private class IndividualAlignmentSummaryMetricsCollector {
             private long numPositiveStrand = 0;
-            private final Histogram<Integer> readLengthHistogram = new Histogram<Integer>();
+            private final IntHistogram readLengthHistogram = new IntHistogram();
             private AlignmentSummaryMetrics metrics;
             private long chimeras;
             private long chimerasDenominator;
@@ -170,9 +186,9 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
 
             private long nonBisulfiteAlignedBases = 0;
             private long hqNonBisulfiteAlignedBases = 0;
-            private final Histogram<Long> mismatchHistogram = new Histogram<Long>();
-            private final Histogram<Long> hqMismatchHistogram = new Histogram<Long>();
-            private final Histogram<Integer> badCycleHistogram = new Histogram<Integer>();
+            private final IntHistogram mismatchHistogram = new IntHistogram();
+            private final IntHistogram hqMismatchHistogram = new IntHistogram();
+            private final IntHistogram badCycleHistogram = new IntHistogram();
 
             public IndividualAlignmentSummaryMetricsCollector(final AlignmentSummaryMetrics.Category pairingCategory,
                                                               final String sample,
@@ -195,17 +211,44 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                 collectQualityData(record, ref);
             }
 
+            /** Adds the counts of other, which must be for the same category and unit, into this collector */
+            public void merge(final IndividualAlignmentSummaryMetricsCollector other) {
+                final AlignmentSummaryMetrics that = other.metrics;
+                metrics.TOTAL_READS             += that.TOTAL_READS;
+                metrics.PF_READS                += that.PF_READS;
+                metrics.PF_NOISE_READS          += that.PF_NOISE_READS;
+                metrics.PF_READS_ALIGNED        += that.PF_READS_ALIGNED;
+                metrics.PF_HQ_ALIGNED_READS     += that.PF_HQ_ALIGNED_READS;
+                metrics.PF_ALIGNED_BASES        += that.PF_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_BASES     += that.PF_HQ_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_Q20_BASES += that.PF_HQ_ALIGNED_Q20_BASES;
+                metrics.READS_ALIGNED_IN_PAIRS  += that.READS_ALIGNED_IN_PAIRS;
+
+                numPositiveStrand          += other.numPositiveStrand;
+                chimeras                   += other.chimeras;
+                chimerasDenominator        += other.chimerasDenominator;
+                adapterReads               += other.adapterReads;
+                indels                     += other.indels;
+                nonBisulfiteAlignedBases   += other.nonBisulfiteAlignedBases;
+                hqNonBisulfiteAlignedBases += other.hqNonBisulfiteAlignedBases;
+
+                readLengthHistogram.merge(other.readLengthHistogram);
+                mismatchHistogram.merge(other.mismatchHistogram);
+                hqMismatchHistogram.merge(other.hqMismatchHistogram);
+                badCycleHistogram.merge(other.badCycleHistogram);
+            }
+
             public void onComplete() {
                 //summarize read data
                 if (metrics.TOTAL_READS > 0)
                 {
                     metrics.PCT_PF_READS = (double) metrics.PF_READS / (double) metrics.TOTAL_READS;
                     metrics.PCT_ADAPTER = this.adapterReads / (double) metrics.PF_READS;
-                    metrics.MEAN_READ_LENGTH = readLengthHistogram.getMean();
+                    metrics.MEAN_READ_LENGTH = readLengthHistogram.toHistogram().getMean();
 
                     //Calculate BAD_CYCLES
                     metrics.BAD_CYCLES = 0;
-                    for (final Histogram.Bin<Integer> cycleBin : badCycleHistogram.values()) {
+                    for (final Histogram.Bin<Integer> cycleBin : badCycleHistogram.toHistogram().values()) {
                         final double badCyclePercentage = cycleBin.getValue() / metrics.TOTAL_READS;
                         if (badCyclePercentage >= .8) {
                             metrics.BAD_CYCLES++;
@@ -218,9 +261,10 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                         if (metrics.PF_READS_ALIGNED > 0) metrics.STRAND_BALANCE = numPositiveStrand / (double) metrics.PF_READS_ALIGNED;
                         if (this.chimerasDenominator > 0) metrics.PCT_CHIMERAS = this.chimeras / (double) this.chimerasDenominator;
 
-                        if (nonBisulfiteAlignedBases > 0) metrics.PF_MISMATCH_RATE = mismatchHistogram.getSum() / (double) nonBisulfiteAlignedBases;
-                        metrics.PF_HQ_MEDIAN_MISMATCHES = hqMismatchHistogram.getMedian();
-                        if (hqNonBisulfiteAlignedBases > 0) metrics.PF_HQ_ERROR_RATE = hqMismatchHistogram.getSum() / (double) hqNonBisulfiteAlignedBases;
+                        final Histogram<Integer> hqMismatches = hqMismatchHistogram.toHistogram();
+                        if (nonBisulfiteAlignedBases > 0) metrics.PF_MISMATCH_RATE = mismatchHistogram.toHistogram().getSum() / (double) nonBisulfiteAlignedBases;
+                        metrics.PF_HQ_MEDIAN_MISMATCHES = hqMismatches.getMedian();
+                        if (hqNonBisulfiteAlignedBases > 0) metrics.PF_HQ_ERROR_RATE = hqMismatches.getSum() / (double) hqNonBisulfiteAlignedBases;
                         if (metrics.PF_ALIGNED_BASES > 0) metrics.PF_INDEL_RATE = this.indels / (double) metrics.PF_ALIGNED_BASES;
                     }
                 }
@@ -239,8 +283,12 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
 
                     if (record.getReadUnmappedFlag()) {
                         // If the read is unmapped see if it's adapter sequence
-                        final byte[] readBases = record.getReadBases();
-                        if (!(record instanceof BAMRecord)) StringUtil.toUpperCase(readBases);
+                        // Upper-case a copy: the record may be shared with collectors on other threads
+                        byte[] readBases = record.getReadBases();
+                        if (!(record instanceof BAMRecord)) {
+                            readBases = Arrays.copyOf(readBases, readBases.length);
+                            StringUtil.toUpperCase(readBases);
+                        }
 
                         if (adapterUtility.isAdapterSequence(readBases)) {
                             this.adapterReads++;
@@ -294,8 +342,8 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                     final byte[] refBases = reference.getBases();
                     final byte[] qualities  = record.getBaseQualities();
                     final int refLength = refBases.length;
-                    long mismatchCount   = 0;
-                    long hqMismatchCount = 0;
+                    int mismatchCount   = 0;
+                    int hqMismatchCount = 0;
 
                     for (final AlignmentBlock alignmentBlock : record.getAlignmentBlocks()) {
                         final int readIndex = alignmentBlock.getReadStart() - 1;
@@ -37,6 +37,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.Metrics;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.EnumSet;
@@ -141,6 +142,8 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
         final boolean doRefMetrics = REFERENCE_SEQUENCE != null;
         collector = new AlignmentSummaryMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), doRefMetrics,
                 ADAPTER_SEQUENCE, MAX_INSERT_SIZE, EXPECTED_PAIR_ORIENTATIONS, IS_BISULFITE_SEQUENCED);
+        // The reading thread is one of the THREADS
+        collector.setNumThreads(ThreadUtil.resolveThreadCount(THREADS) - 1);
     }
 
     @Override protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
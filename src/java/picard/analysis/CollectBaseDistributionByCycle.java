@@ -132,7 +132,7 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
         if (hist.isEmpty()) {
             log.warn("No valid bases found in input file. No plot will be produced.");
         } else {
-            final int rResult = RExecutor.executeFromClasspath("picard/analysis/baseDistributionByCycle.R",
+            final int rResult = RExecutor.executeFromClasspath(CHART_RENDERER, "picard/analysis/baseDistributionByCycle.R",
                     OUTPUT.getAbsolutePath(),
                     CHART_OUTPUT.getAbsolutePath(),
                     INPUT.getName(),
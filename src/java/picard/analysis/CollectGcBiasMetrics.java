@@ -35,6 +35,7 @@ import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
 import picard.metrics.GcBiasMetrics;
 import picard.util.RExecutor;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.text.NumberFormat;
@@ -163,6 +164,8 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
 
         //Delegate actual collection to GcBiasMetricCollector
         multiCollector = new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE, IS_BISULFITE_SEQUENCED);
+        // The reading thread is one of the THREADS
+        multiCollector.setNumThreads(ThreadUtil.resolveThreadCount(THREADS) - 1);
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -196,7 +199,7 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
 
         final NumberFormat fmt = NumberFormat.getIntegerInstance();
         fmt.setGroupingUsed(true);
-        RExecutor.executeFromClasspath(R_SCRIPT,
+        RExecutor.executeFromClasspath(CHART_RENDERER, R_SCRIPT,
                 OUTPUT.getAbsolutePath(),
                 SUMMARY_OUTPUT.getAbsolutePath(),
                 CHART_OUTPUT.getAbsolutePath(),
@@ -37,6 +37,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
 import picard.util.RExecutor;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.Set;
@@ -142,9 +143,10 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
         //Delegate actual collection to InsertSizeMetricCollector
         multiCollector = new InsertSizeMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(),
                                                         MINIMUM_PCT, HISTOGRAM_WIDTH, DEVIATIONS, INCLUDE_DUPLICATES);
+        // The reading thread is one of the THREADS
+        multiCollector.setNumThreads(ThreadUtil.resolveThreadCount(THREADS) - 1);
     }
 
-    //TODO !!!!!!!  CONCURRENT IT!!!!!!
     @Override protected void acceptRead(final SAMRecord record, final ReferenceSequence ref) {
         multiCollector.acceptRecord(record, ref);
     }
@@ -167,13 +169,13 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
 
             final int rResult;
             if(HISTOGRAM_WIDTH == null) {
-                rResult = RExecutor.executeFromClasspath(
+                rResult = RExecutor.executeFromClasspath(CHART_RENDERER,
                     Histogram_R_SCRIPT,
                     OUTPUT.getAbsolutePath(),
                     Histogram_FILE.getAbsolutePath(),
                     INPUT.getName());
             } else {
-                rResult = RExecutor.executeFromClasspath(
+                rResult = RExecutor.executeFromClasspath(CHART_RENDERER,
                     Histogram_R_SCRIPT,
                     OUTPUT.getAbsolutePath(),
                     Histogram_FILE.getAbsolutePath(),
@@ -24,7 +24,10 @@
 
 package picard.analysis;
 
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import picard.PicardException;
 import picard.analysis.artifacts.CollectSequencingArtifactMetrics;
@@ -33,9 +36,16 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.reference.ReferenceCache;
+import picard.util.RExecutor;
+import picard.util.TabbedTextFileWithHeaderParser;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class that is designed to instantiate and execute multiple metrics programs that extend
@@ -311,9 +321,27 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         }
     }
 
-    @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Input SAM or BAM file.")
+    @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Input SAM or BAM file.", mutex = {"INPUT_MANIFEST"})
     public File INPUT;
 
+    @Option(doc = "Tab separated file with a header line and two columns, INPUT and OUTPUT, giving many input SAM or BAM " +
+            "files and the base name of the output files of each.  All inputs are run with the same PROGRAMs and options " +
+            "in this JVM, CONCURRENT_INPUTS at a time, sharing one copy of the reference.", mutex = {"INPUT", "OUTPUT"})
+    public File INPUT_MANIFEST;
+
+    @Option(doc = "The number of inputs of INPUT_MANIFEST to process at the same time.  Each uses THREADS threads.")
+    public int CONCURRENT_INPUTS = 1;
+
+    @Option(doc = "If INPUT_MANIFEST is given, an optional file to which to write the number of reads and the wall " +
+            "time of each input.", optional = true)
+    public File BATCH_METRICS;
+
+    @Option(doc = "The number of reference bases to keep in memory when INPUT_MANIFEST is given.  Contigs are dropped, " +
+            "least recently used first, once this is exceeded.  The cache is shared by all inputs and by any program " +
+            "run afterwards in the same JVM.  If 0, the inputs only share a cache if an earlier program or the " +
+            "picard.reference.cache_bytes system property enabled one.")
+    public long REFERENCE_CACHE_BYTES = ReferenceCache.DEFAULT_MAX_BYTES;
+
     @Option(doc = "If true (default), then the sort order in the header file will be ignored.",
             shortName = StandardOptionDefinitions.ASSUME_SORTED_SHORT_NAME)
     public boolean ASSUME_SORTED = true;
@@ -321,7 +349,17 @@ public class CollectMultipleMetrics extends CommandLineProgram {
     @Option(doc = "Stop after processing N reads, mainly for debugging.")
     public int STOP_AFTER = 0;
 
-    @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Base name of output files.")
+    @Option(doc = "The number of threads to use. With more than one thread, one thread decodes the input while up to " +
+            "THREADS - 1 threads run the PROGRAMs, each PROGRAM always on a single thread. If THREADS = 0, the number " +
+            "of threads is set to the number of cores available on the machine; if THREADS < 0, it is the number of " +
+            "cores less THREADS.")
+    public int THREADS = 1;
+
+    @Option(doc = "How the PROGRAMs draw their charts: by running their R scripts, or in Java, which needs no R " +
+            "installation and falls back to R for charts it cannot draw.")
+    public RExecutor.ChartRenderer CHART_RENDERER = RExecutor.ChartRenderer.R;
+
+    @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Base name of output files.", mutex = {"INPUT_MANIFEST"})
     public String OUTPUT;
 
     // create the default accumulation level as a variable. We'll use this to init the command-line arg and for validation later.
@@ -354,6 +392,20 @@ public class CollectMultipleMetrics extends CommandLineProgram {
 
     private static final Log log = Log.getInstance(CollectMultipleMetrics.class);
 
+    /** The reads processed and time taken for one input of an INPUT_MANIFEST. */
+    public static class BatchInputMetrics extends MetricBase {
+        /** The input SAM or BAM file. */
+        public String INPUT;
+        /** The base name of the output files. */
+        public String OUTPUT;
+        /** The number of records read from the input. */
+        public long READS;
+        /** The wall time taken to process the input, in seconds, from opening it to writing its last output. */
+        public double WALL_SECONDS;
+        /** READS / WALL_SECONDS. */
+        public double READS_PER_SECOND;
+    }
+
     // Stock main method
     public static void main(final String[] args) {
         new CollectMultipleMetrics().instanceMainWithExit(args);
@@ -364,6 +416,9 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         if (PROGRAM.isEmpty()) {
             return new String[]{"No programs specified with PROGRAM"};
         }
+        if (CONCURRENT_INPUTS < 1) {
+            return new String[]{"CONCURRENT_INPUTS must be at least 1"};
+        }
         programsToRun = new LinkedHashSet<>(PROGRAM);
 
         return super.customCommandLineValidation();
@@ -380,10 +435,19 @@ public class CollectMultipleMetrics extends CommandLineProgram {
 
     @Override
     public int doWork() {
-        if (OUTPUT.endsWith(".")) {
-            OUTPUT = OUTPUT.substring(0, OUTPUT.length() - 1);
+        if (INPUT_MANIFEST != null) {
+            return doWorkBatch();
         }
 
+        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, makePrograms(INPUT, OUTPUT), THREADS);
+
+        return 0;
+    }
+
+    /** Makes an instance of each of the programsToRun for one input. */
+    private List<SinglePassSamProgram> makePrograms(final File input, final String outputBase) {
+        final String outbase = outputBase.endsWith(".") ? outputBase.substring(0, outputBase.length() - 1) : outputBase;
+
         final List<SinglePassSamProgram> programs = new ArrayList<>();
         for (final ProgramInterface program : programsToRun) {
             if (program.needsReferenceSequence() && REFERENCE_SEQUENCE == null) {
@@ -395,19 +459,87 @@ public class CollectMultipleMetrics extends CommandLineProgram {
             }
 
             final String outext = (null != FILE_EXTENSION) ? FILE_EXTENSION : ""; // Add a file extension if desired
-            final SinglePassSamProgram instance = program.makeInstance(OUTPUT, outext, INPUT, REFERENCE_SEQUENCE, METRIC_ACCUMULATION_LEVEL, DB_SNP, INTERVALS);
+            final SinglePassSamProgram instance = program.makeInstance(outbase, outext, input, REFERENCE_SEQUENCE, METRIC_ACCUMULATION_LEVEL, DB_SNP, INTERVALS);
 
             // Generally programs should not be accessing these directly but it might make things smoother
             // to just set them anyway
-            instance.INPUT = INPUT;
+            instance.INPUT = input;
             instance.REFERENCE_SEQUENCE = REFERENCE_SEQUENCE;
+            instance.CHART_RENDERER = CHART_RENDERER;
 
             instance.setDefaultHeaders(getDefaultHeaders());
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        return programs;
+    }
 
+    /**
+     * Runs the programs over every input of the INPUT_MANIFEST, CONCURRENT_INPUTS at a time, with one ReferenceCache
+     * shared by all of them.  Fails on the first input that fails.
+     */
+    private int doWorkBatch() {
+        IOUtil.assertFileIsReadable(INPUT_MANIFEST);
+        if (BATCH_METRICS != null) IOUtil.assertFileIsWritable(BATCH_METRICS);
+
+        final List<File> inputs = new ArrayList<>();
+        final List<String> outputs = new ArrayList<>();
+        final TabbedTextFileWithHeaderParser manifest = new TabbedTextFileWithHeaderParser(INPUT_MANIFEST);
+        if (!manifest.hasColumn("INPUT") || !manifest.hasColumn("OUTPUT")) {
+            throw new PicardException("INPUT_MANIFEST " + INPUT_MANIFEST + " must have INPUT and OUTPUT columns.");
+        }
+        for (final TabbedTextFileWithHeaderParser.Row row : manifest) {
+            final File input = new File(row.getField("INPUT"));
+            IOUtil.assertFileIsReadable(input);
+            inputs.add(input);
+            outputs.add(row.getField("OUTPUT"));
+        }
+        manifest.close();
+
+        if (REFERENCE_CACHE_BYTES > 0) ReferenceCache.setSharedCacheBytes(REFERENCE_CACHE_BYTES);
+        final ReferenceCache referenceCache = (REFERENCE_SEQUENCE == null) ? null : ReferenceCache.getShared(REFERENCE_SEQUENCE);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(CONCURRENT_INPUTS, Math.max(1, inputs.size())));
+        final List<Future<BatchInputMetrics>> results = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); ++i) {
+            final File input = inputs.get(i);
+            final String output = outputs.get(i);
+            results.add(executor.submit(() -> runBatchInput(input, output, referenceCache)));
+        }
+        executor.shutdown();
+
+        final MetricsFile<BatchInputMetrics, Integer> batchMetrics = getMetricsFile();
+        try {
+            for (final Future<BatchInputMetrics> result : results) {
+                batchMetrics.addMetric(result.get());
+            }
+        } catch (final InterruptedException ie) {
+            executor.shutdownNow();
+            throw new PicardException("Interrupted while processing INPUT_MANIFEST.", ie);
+        } catch (final ExecutionException ee) {
+            executor.shutdownNow();
+            final Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new PicardException("Error processing INPUT_MANIFEST.", cause);
+        }
+
+        if (BATCH_METRICS != null) batchMetrics.write(BATCH_METRICS);
         return 0;
     }
+
+    private BatchInputMetrics runBatchInput(final File input, final String output, final ReferenceCache referenceCache) {
+        final long startTime = System.nanoTime();
+        final long reads = SinglePassSamProgram.makeItSo(input, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER,
+                makePrograms(input, output), THREADS, referenceCache);
+
+        final BatchInputMetrics metrics = new BatchInputMetrics();
+        metrics.INPUT = input.getPath();
+        metrics.OUTPUT = output;
+        metrics.READS = reads;
+        metrics.WALL_SECONDS = (System.nanoTime() - startTime) / 1e9;
+        metrics.READS_PER_SECOND = (metrics.WALL_SECONDS > 0) ? reads / metrics.WALL_SECONDS : 0;
+        log.info(String.format("Finished %s: %d reads in %.1f seconds, %.0f reads/second.",
+                input, reads, metrics.WALL_SECONDS, metrics.READS_PER_SECOND));
+        return metrics;
+    }
 }
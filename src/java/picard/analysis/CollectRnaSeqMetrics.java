@@ -42,6 +42,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
 import picard.util.RExecutor;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.HashSet;
@@ -150,6 +151,8 @@ static final String USAGE_DETAILS = "<p>This tool takes a SAM/BAM file containin
         collector = new RnaSeqMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), ribosomalBasesInitialValue,
                 geneOverlapDetector, ribosomalSequenceOverlapDetector, ignoredSequenceIndices, MINIMUM_LENGTH, STRAND_SPECIFICITY, RRNA_FRAGMENT_PERCENTAGE,
                 true);
+        // The reading thread is one of the THREADS
+        collector.setNumThreads(ThreadUtil.resolveThreadCount(THREADS) - 1);
 
         // If we're working with a single library, assign that library's name as a suffix to the plot title
         final List<SAMReadGroupRecord> readGroups = header.getReadGroups();
@@ -178,7 +181,7 @@ static final String USAGE_DETAILS = "<p>This tool takes a SAM/BAM file containin
         }
         // Generate the coverage by position plot
         if (CHART_OUTPUT != null && atLeastOneHistogram) {
-            final int rResult = RExecutor.executeFromClasspath("picard/analysis/rnaSeqCoverage.R",
+            final int rResult = RExecutor.executeFromClasspath(CHART_RENDERER, "picard/analysis/rnaSeqCoverage.R",
                                                                OUTPUT.getAbsolutePath(),
                                                                CHART_OUTPUT.getAbsolutePath(),
                                                                INPUT.getName(),
@@ -24,21 +24,31 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
-import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.QualityUtil;
 import htsjdk.samtools.util.SamLocusIterator;
+import htsjdk.samtools.util.SamRecordIntervalIteratorFactory;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -48,12 +58,23 @@ import picard.filter.CountingDuplicateFilter;
 import picard.filter.CountingFilter;
 import picard.filter.CountingMapQFilter;
 import picard.filter.CountingPairedFilter;
+import picard.reference.ReferenceCache;
 import picard.util.MathUtil;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 import java.util.stream.IntStream;
 
 /**
@@ -126,8 +147,36 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             optional = true, overridable = true)
     public File INTERVALS = null;
 
+    @Option(doc = "The number of threads to use. With more than one thread and an indexed INPUT, the genome (or INTERVALS) " +
+            "is split into regions of at most SHARD_SIZE bases that are processed in parallel; the output is the same as " +
+            "with a single thread. If THREADS = 0, the number of threads is set to the number of cores available on the " +
+            "machine; if THREADS < 0, it is the number of cores less THREADS. Ignored when STOP_AFTER is set.")
+    public int THREADS = 1;
+
+    @Option(doc = "The maximum number of bases processed as one unit of work when THREADS > 1. Consecutive intervals or " +
+            "contigs are grouped into units of up to this many bases, and longer ones are split. " +
+            "If 0, each contig (or interval) is processed as a single unit.")
+    public int SHARD_SIZE = 10000000;
+
+    @Option(doc = "How coverage is computed. LOCUS_ITERATOR builds the pileup of every locus; STREAMING adds the bases of " +
+            "each read into a sliding window of per-locus counts, which produces the same metrics with far less allocation. " +
+            "STOP_AFTER is only supported by LOCUS_ITERATOR.")
+    public CoverageEngine COVERAGE_ENGINE = CoverageEngine.LOCUS_ITERATOR;
+
+    @Option(doc = "If greater than 0, whole contigs of the REFERENCE_SEQUENCE are kept in a cache of this many bases, " +
+            "which the threads of this program and any program run afterwards in the same JVM read from instead of " +
+            "reading the reference themselves. If 0, the cache is only used if an earlier program or the " +
+            "picard.reference.cache_bytes system property enabled it.")
+    public long REFERENCE_CACHE_BYTES = 0;
+
+    /** The ways in which CollectWgsMetrics can compute coverage; see COVERAGE_ENGINE. */
+    public enum CoverageEngine { LOCUS_ITERATOR, STREAMING }
+
     private SAMFileHeader header = null;
 
+    /** Where the shards take their reference bases from, if not from the regions of an indexed reference. */
+    private ReferenceCache shardReferenceCache = null;
+
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
     private static final double LOG_ODDS_THRESHOLD = 3.0;
 
@@ -215,30 +264,43 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             LOCUS_ACCUMULATION_CAP = COVERAGE_CAP;
         }
 
-        // Setup all the inputs
-        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+        if (REFERENCE_CACHE_BYTES > 0) ReferenceCache.setSharedCacheBytes(REFERENCE_CACHE_BYTES);
+
+        final int numThreads = ThreadUtil.resolveThreadCount(THREADS);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final SamLocusIterator iterator = getLocusIterator(in);
-        this.header = in.getFileHeader();
+        if (numThreads > 1 && STOP_AFTER <= 0 && in.hasIndex()) {
+            this.header = in.getFileHeader();
+            CloserUtil.close(in);
+            return doWorkSharded(numThreads);
+        }
+        if (numThreads > 1) {
+            log.warn("Running on a single thread because " + (STOP_AFTER > 0 ? "STOP_AFTER is set." : INPUT + " is not indexed."));
+        }
 
-        final List<SamRecordFilter> filters = new ArrayList<>();
+        final IntFunction<ReferenceSequence> reference = ReferenceCache.contigGetter(REFERENCE_SEQUENCE);
         final CountingFilter dupeFilter = new CountingDuplicateFilter();
         final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
         final CountingPairedFilter pairFilter = new CountingPairedFilter();
-        // The order in which filters are added matters!
-        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
-        filters.add(mapqFilter);
-        filters.add(dupeFilter);
-        if (!COUNT_UNPAIRED) {
-            filters.add(pairFilter);
+
+        if (COVERAGE_ENGINE == CoverageEngine.STREAMING) {
+            if (STOP_AFTER <= 0) {
+                this.header = in.getFileHeader();
+                final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
+                collectStreaming(in, getIntervals(), reference, makeFilters(mapqFilter, dupeFilter, pairFilter), collector);
+
+                final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
+                collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
+                out.write(OUTPUT);
+                return 0;
+            }
+            log.warn("Using the LOCUS_ITERATOR coverage engine because STOP_AFTER is set.");
         }
-        iterator.setSamFilters(filters);
-        iterator.setEmitUncoveredLoci(true);
-        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
-        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
-        iterator.setIncludeNonPfReads(false);
-        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+
+        // Setup all the inputs
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
+        final SamLocusIterator iterator = getLocusIterator(in);
+        this.header = in.getFileHeader();
+        configureLocusIterator(iterator, makeFilters(mapqFilter, dupeFilter, pairFilter));
 
         final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
 
@@ -249,7 +311,7 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         // Loop through all the loci
         while (iterator.hasNext()) {
             final SamLocusIterator.LocusInfo info = iterator.next();
-            final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
+            final ReferenceSequence ref = reference.apply(info.getSequenceIndex());
 
             // Check that the reference is not N
             final byte base = ref.getBases()[info.getPosition() - 1];
@@ -271,6 +333,327 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         return 0;
     }
 
+    /**
+     * Splits the regions to be assessed into shards, collects each shard on its own thread and merges the shard
+     * collectors and filter counts, in genome order, into the collector from getCollector() before writing the metrics.
+     */
+    private int doWorkSharded(final int numThreads) {
+        final List<Shard> shards = makeShards(numThreads);
+        log.info("Processing " + shards.size() + " shards on " + numThreads + " threads.");
+
+        // If the reference is indexed each shard reads just its own region, otherwise the shards of a contig share it
+        final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE);
+        final ReferenceCache sharedCache = ReferenceCache.getShared(REFERENCE_SEQUENCE);
+        shardReferenceCache = (sharedCache != null || refFile.isIndexed()) ? sharedCache : new ReferenceCache(REFERENCE_SEQUENCE);
+        CloserUtil.close(refFile);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        final List<Future<?>> futures = new ArrayList<>(shards.size());
+        try {
+            for (final Shard shard : shards) {
+                futures.add(pool.submit(shard));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error collecting metrics for a region of " + INPUT, e.getCause());
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for metrics collection threads.", ie);
+        } finally {
+            pool.shutdownNow();
+            if (shardReferenceCache != null) shardReferenceCache.close();
+        }
+
+        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingPairedFilter pairFilter = new CountingPairedFilter();
+        for (final Shard shard : shards) {
+            collector.merge(shard.collector);
+            dupeFilter.addCounts(shard.dupeFilter);
+            mapqFilter.addCounts(shard.mapqFilter);
+            pairFilter.addCounts(shard.pairFilter);
+        }
+
+        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
+        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
+        out.write(OUTPUT);
+
+        return 0;
+    }
+
+    /**
+     * Makes the filters applied to reads before they contribute coverage, in the order in which they are applied.
+     * The counting filters may be wrapped, e.g. so that reads overlapping several shards are only counted once.
+     */
+    private List<SamRecordFilter> makeFilters(final SamRecordFilter mapqFilter,
+                                              final SamRecordFilter dupeFilter,
+                                              final SamRecordFilter pairFilter) {
+        final List<SamRecordFilter> filters = new ArrayList<>();
+        // The order in which filters are added matters!
+        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
+        filters.add(mapqFilter);
+        filters.add(dupeFilter);
+        if (!COUNT_UNPAIRED) {
+            filters.add(pairFilter);
+        }
+        return filters;
+    }
+
+    /** Applies the filters and sets the options that do not depend on how the input is split up. */
+    private void configureLocusIterator(final SamLocusIterator iterator, final List<SamRecordFilter> filters) {
+        iterator.setSamFilters(filters);
+        iterator.setEmitUncoveredLoci(true);
+        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
+        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
+        iterator.setIncludeNonPfReads(false);
+        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+    }
+
+    /**
+     * Computes coverage with a StreamingCoverageEngine rather than a SamLocusIterator.  Reads are selected and filtered
+     * exactly as a SamLocusIterator over the same intervals (or the whole genome if intervals is null) would.
+     */
+    private void collectStreaming(final SamReader in,
+                                  final IntervalList intervals,
+                                  final IntFunction<ReferenceSequence> reference,
+                                  final List<SamRecordFilter> filters,
+                                  final WgsMetricsCollector collector) {
+        final SAMSequenceDictionary dictionary = in.getFileHeader().getSequenceDictionary();
+        final List<List<Interval>> regionsByContig = new ArrayList<>(dictionary.size());
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            final List<Interval> regions = new ArrayList<>();
+            if (intervals == null) regions.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+            regionsByContig.add(regions);
+        }
+        if (intervals != null) {
+            for (final Interval interval : intervals.uniqued().getIntervals()) {
+                regionsByContig.get(dictionary.getSequenceIndex(interval.getContig())).add(interval);
+            }
+        }
+
+        final Iterator<SAMRecord> records = (intervals == null) ? in.iterator() :
+                new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, intervals.uniqued().getIntervals(), in.hasIndex());
+        final StreamingCoverageEngine engine = new StreamingCoverageEngine(collector, dictionary.size(),
+                contigIndex -> regionsByContig.get(contigIndex).isEmpty() ? new BitSet() :
+                        assessedLoci(reference.apply(contigIndex), 1, regionsByContig.get(contigIndex)),
+                LOCUS_ACCUMULATION_CAP);
+
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "reads");
+        final FilteringSamIterator filtered = new FilteringSamIterator(records, new AggregateFilter(filters));
+        while (filtered.hasNext()) {
+            final SAMRecord rec = filtered.next();
+            engine.addRecord(rec);
+            progress.record(rec);
+        }
+        engine.finish();
+        CloserUtil.close(filtered);
+    }
+
+    /**
+     * The loci that are assessed on the contig of ref: those within regions at which the reference is not N.
+     * @param refOffset the position of the first base of ref, which may be a subsequence of its contig
+     */
+    private static BitSet assessedLoci(final ReferenceSequence ref, final int refOffset, final List<Interval> regions) {
+        final byte[] bases = ref.getBases();
+        final BitSet loci = new BitSet();
+        for (final Interval region : regions) {
+            for (int position = region.getStart(); position <= region.getEnd(); ++position) {
+                if (bases[position - refOffset] != 'N') loci.set(position);
+            }
+        }
+        return loci;
+    }
+
+    /**
+     * Splits the intervals from getIntervals(), or the whole genome if there are none, into pieces of at most SHARD_SIZE
+     * bases and packs consecutive pieces into shards of at most SHARD_SIZE bases, in genome order, so that many small
+     * intervals or contigs do not each need their own reader and reference.  Shards are kept small enough that there are
+     * several per thread.  Each shard only counts filtered reads on its first contig that start after the end of the
+     * previous shard, so that every read is counted by exactly one shard, as it would be by a single locus iterator.
+     */
+    private List<Shard> makeShards(final int numThreads) {
+        final List<Interval> regions = new ArrayList<>();
+        final IntervalList intervals = getIntervals();
+        if (intervals != null) {
+            regions.addAll(intervals.uniqued().getIntervals());
+        } else {
+            for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+                regions.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+            }
+        }
+
+        long totalBases = 0;
+        for (final Interval region : regions) totalBases += region.length();
+        final long basesPerShard = Math.max(1, Math.min(SHARD_SIZE, (totalBases + 4L * numThreads - 1) / (4L * numThreads)));
+
+        final List<Shard> shards = new ArrayList<>();
+        List<Interval> pending = new ArrayList<>();
+        long pendingBases = 0;
+        Interval previous = null;
+        for (final Interval region : regions) {
+            final int pieceSize = SHARD_SIZE > 0 ? (int) basesPerShard : region.length();
+            for (int start = region.getStart(); start <= region.getEnd(); start += pieceSize) {
+                final Interval piece = new Interval(region.getContig(), start, Math.min(region.getEnd(), start + pieceSize - 1));
+                if (!pending.isEmpty() && (SHARD_SIZE <= 0 || pendingBases + piece.length() > basesPerShard)) {
+                    shards.add(new Shard(pending, previous));
+                    previous = pending.get(pending.size() - 1);
+                    pending = new ArrayList<>();
+                    pendingBases = 0;
+                }
+                pending.add(piece);
+                pendingBases += piece.length();
+            }
+        }
+        if (!pending.isEmpty()) shards.add(new Shard(pending, previous));
+        return shards;
+    }
+
+    /** The regions to restrict the assessment to, or null for the whole genome. */
+    protected IntervalList getIntervals() {
+        return (INTERVALS != null) ? IntervalList.fromFile(INTERVALS) : null;
+    }
+
+    /**
+     * Consecutive regions of the genome that are collected independently of all others, with their own reader,
+     * locus iterator, collector and counting filters.
+     */
+    private class Shard implements Runnable {
+        final List<Interval> regions;
+        final String countFromContig;
+        final int countFrom;
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingPairedFilter pairFilter = new CountingPairedFilter();
+        WgsMetricsCollector collector = null;
+
+        /**
+         * @param regions the regions of this shard, in genome order
+         * @param previous the last region of the previous shard, or null if this is the first shard
+         */
+        Shard(final List<Interval> regions, final Interval previous) {
+            this.regions = regions;
+            this.countFromContig = regions.get(0).getContig();
+            this.countFrom = (previous != null && previous.getContig().equals(countFromContig)) ? previous.getEnd() + 1 : 0;
+        }
+
+        @Override
+        public void run() {
+            collector = makeShardCollector(COVERAGE_CAP);
+            final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+            final SAMFileHeader shardHeader = in.getFileHeader();
+            final IntervalList regionList = new IntervalList(shardHeader);
+            regionList.addall(regions);
+            final int countFromContigIndex = shardHeader.getSequenceIndex(countFromContig);
+            final List<SamRecordFilter> filters = makeFilters(
+                    new FirstShardCountingFilter(mapqFilter, countFromContigIndex, countFrom),
+                    new FirstShardCountingFilter(dupeFilter, countFromContigIndex, countFrom),
+                    new FirstShardCountingFilter(pairFilter, countFromContigIndex, countFrom));
+
+            // Take whole contigs from the cache if there is one, otherwise only load the bases of each region
+            final ReferenceSequenceFile refFile = (shardReferenceCache == null) ?
+                    ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE) : null;
+
+            if (COVERAGE_ENGINE == CoverageEngine.STREAMING) {
+                final Map<Integer, BitSet> lociByContig = new HashMap<>();
+                for (final Interval region : regions) {
+                    final int contigIndex = shardHeader.getSequenceIndex(region.getContig());
+                    final BitSet loci = assessedLoci(referenceOf(region, contigIndex, refFile), refOffsetOf(region),
+                            Collections.singletonList(region));
+                    if (lociByContig.containsKey(contigIndex)) lociByContig.get(contigIndex).or(loci);
+                    else lociByContig.put(contigIndex, loci);
+                }
+                final StreamingCoverageEngine engine = new StreamingCoverageEngine(collector, shardHeader.getSequenceDictionary().size(),
+                        contigIndex -> lociByContig.containsKey(contigIndex) ? lociByContig.get(contigIndex) : new BitSet(),
+                        LOCUS_ACCUMULATION_CAP);
+                final FilteringSamIterator filtered = new FilteringSamIterator(
+                        new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, regionList.getIntervals(), true),
+                        new AggregateFilter(filters));
+                while (filtered.hasNext()) {
+                    engine.addRecord(filtered.next());
+                }
+                engine.finish();
+                filtered.close();
+            } else {
+                final SamLocusIterator iterator = getLocusIterator(in, regionList);
+                configureLocusIterator(iterator, filters);
+
+                // Loci come out region by region, so the reference is only looked up when moving on to the next region
+                int regionIndex = -1;
+                Interval region = null;
+                ReferenceSequence ref = null;
+                int refOffset = 0;
+                while (iterator.hasNext()) {
+                    final SamLocusIterator.LocusInfo info = iterator.next();
+                    while (region == null || !region.getContig().equals(info.getSequenceName()) || info.getPosition() > region.getEnd()) {
+                        region = regions.get(++regionIndex);
+                        ref = referenceOf(region, shardHeader.getSequenceIndex(region.getContig()), refFile);
+                        refOffset = refOffsetOf(region);
+                    }
+
+                    // Check that the reference is not N
+                    final byte base = ref.getBases()[info.getPosition() - refOffset];
+                    if (base == 'N') continue;
+
+                    collector.addInfo(info, ref);
+                }
+                iterator.close();
+            }
+
+            CloserUtil.close(refFile);
+            CloserUtil.close(in);
+            log.debug("Finished " + regions.size() + " regions from " + regions.get(0));
+        }
+
+        /** The bases of region, or of its whole contig if they come from the cache. */
+        private ReferenceSequence referenceOf(final Interval region, final int contigIndex, final ReferenceSequenceFile refFile) {
+            return (shardReferenceCache != null) ? shardReferenceCache.get(contigIndex) :
+                    refFile.getSubsequenceAt(region.getContig(), region.getStart(), region.getEnd());
+        }
+
+        /** The position of the first base returned by referenceOf(region). */
+        private int refOffsetOf(final Interval region) {
+            return (shardReferenceCache != null) ? 1 : region.getStart();
+        }
+    }
+
+    /**
+     * Filters records exactly as the wrapped CountingFilter does, but only counts those on contigs other than
+     * countFromContigIndex or that start at or after countFrom; records starting earlier have already been counted by
+     * the shard in which they start.
+     */
+    private static class FirstShardCountingFilter implements SamRecordFilter {
+        private final CountingFilter filter;
+        private final int countFromContigIndex;
+        private final int countFrom;
+
+        FirstShardCountingFilter(final CountingFilter filter, final int countFromContigIndex, final int countFrom) {
+            this.filter = filter;
+            this.countFromContigIndex = countFromContigIndex;
+            this.countFrom = countFrom;
+        }
+
+        /** Whether record is counted by this shard, rather than by the shard in which it starts. */
+        private boolean counts(final SAMRecord record) {
+            return record.getReferenceIndex() != countFromContigIndex || record.getAlignmentStart() >= countFrom;
+        }
+
+        @Override
+        public boolean filterOut(final SAMRecord record) {
+            return counts(record) ? filter.filterOut(record) : filter.reallyFilterOut(record);
+        }
+
+        @Override
+        public boolean filterOut(final SAMRecord first, final SAMRecord second) {
+            if (counts(first) && counts(second)) return filter.filterOut(first, second);
+            final boolean firstFilteredOut = filterOut(first);
+            final boolean secondFilteredOut = filterOut(second);
+            return firstFilteredOut || secondFilteredOut;
+        }
+    }
+
     protected SAMFileHeader getSamFileHeader() {
         return this.header;
     }
@@ -291,10 +674,27 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         return (INTERVALS != null) ? new SamLocusIterator(in, IntervalList.fromFile(INTERVALS)) : new SamLocusIterator(in);
     }
 
+    /**
+     * The locus iterator over just the given regions of an indexed input, used by each shard when THREADS > 1.
+     * Subclasses that override getLocusIterator(SamReader) should override this to match.
+     */
+    protected SamLocusIterator getLocusIterator(final SamReader in, final IntervalList regions) {
+        return new SamLocusIterator(in, regions, true);
+    }
+
     protected WgsMetricsCollector getCollector(final int coverageCap) {
         return new WgsMetricsCollector(coverageCap);
     }
 
+    /**
+     * A new, empty collector for a single shard when THREADS > 1; the shard collectors are merged into the collector
+     * from getCollector() once every shard is done.  Subclasses whose getCollector() does not return a new collector
+     * each time must override this.
+     */
+    protected WgsMetricsCollector makeShardCollector(final int coverageCap) {
+        return getCollector(coverageCap);
+    }
+
     protected class WgsMetricsCollector {
 
         protected final long[] histogramArray;
@@ -306,37 +706,86 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         private long basesExcludedByCapping = 0;
         protected final int coverageCap;
 
+        // The names of the reads counted at the current locus; reused across loci to avoid allocating at every locus
+        private final ReadNameSet readNames;
+
         public WgsMetricsCollector(final int coverageCap) {
             histogramArray = new long[coverageCap + 1];
             baseQHistogramArray = new long[Byte.MAX_VALUE];
             baseQHetSensHistogram = new long[Byte.MAX_VALUE];
             this.coverageCap = coverageCap;
+            this.readNames = new ReadNameSet(Math.min(coverageCap, 1000)); // grows if pileups are deeper
+        }
+
+        /** Adds the counts of other, which must have the same coverage cap, e.g. because it collected a different region. */
+        public void merge(final WgsMetricsCollector other) {
+            if (other.coverageCap != coverageCap) {
+                throw new PicardException("Cannot merge collectors with different coverage caps.");
+            }
+            for (int i = 0; i < histogramArray.length; ++i) histogramArray[i] += other.histogramArray[i];
+            for (int i = 0; i < baseQHistogramArray.length; ++i) baseQHistogramArray[i] += other.baseQHistogramArray[i];
+            for (int i = 0; i < baseQHetSensHistogram.length; ++i) baseQHetSensHistogram[i] += other.baseQHetSensHistogram[i];
+            basesExcludedByBaseq   += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            basesExcludedByCapping += other.basesExcludedByCapping;
         }
 
         public void addInfo(final SamLocusIterator.LocusInfo info, final ReferenceSequence ref) {
 
             // Figure out the coverage while not counting overlapping reads twice, and excluding various things
-            final HashSet<String> readNames = new HashSet<>(info.getRecordAndPositions().size());
+            readNames.clear();
             int pileupSize = 0;
             int pileupSizeForBaseQHetSens = 0;
             for (final SamLocusIterator.RecordAndOffset recs : info.getRecordAndPositions()) {
-                pileupSizeForBaseQHetSens++;
-                if(pileupSizeForBaseQHetSens <= coverageCap) {
-                    baseQHetSensHistogram[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
-                }
+                final byte quality = recs.getRecord().getBaseQualities()[recs.getOffset()];
+                if (!addPileupBase(++pileupSizeForBaseQHetSens, quality))          continue;
+                if (!readNames.add(recs.getRecord().getReadName()))                 { addOverlappingBase(); continue; }
 
-                if (recs.getBaseQuality() < MINIMUM_BASE_QUALITY)                   { ++basesExcludedByBaseq;   continue; }
-                if (!readNames.add(recs.getRecord().getReadName()))                 { ++basesExcludedByOverlap; continue; }
+                addCoveringBase(++pileupSize, quality);
+            }
 
-                pileupSize++;
-                if (pileupSize <= coverageCap) {
-                    baseQHistogramArray[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
-                }
+            addLocus(readNames.size());
+        }
+
+        // The methods below count a locus piece by piece, in the order in which addInfo() uses them, so that coverage
+        // engines that never build a LocusInfo (see StreamingCoverageEngine) produce the same metrics.
+
+        /**
+         * Counts a base of the pileup at a locus, before any base-level filtering.
+         * @param pileupIndex the 1-based index of the base's read among all the reads in the pileup, in pileup order
+         * @return true if the base passes the base quality filter
+         */
+        protected boolean addPileupBase(final int pileupIndex, final byte quality) {
+            if (pileupIndex <= coverageCap) {
+                baseQHetSensHistogram[quality]++;
+            }
+            if (quality < MINIMUM_BASE_QUALITY) {
+                ++basesExcludedByBaseq;
+                return false;
             }
+            return true;
+        }
+
+        /** Counts a base that passed the base quality filter at a locus already covered by a read of the same name. */
+        protected void addOverlappingBase() {
+            ++basesExcludedByOverlap;
+        }
+
+        /**
+         * Counts a base that contributes coverage.
+         * @param depthIndex the 1-based index of the base among the bases contributing coverage at its locus
+         */
+        protected void addCoveringBase(final int depthIndex, final byte quality) {
+            if (depthIndex <= coverageCap) {
+                baseQHistogramArray[quality]++;
+            }
+        }
 
-            final int depth = Math.min(readNames.size(), coverageCap);
-            if (depth < readNames.size()) basesExcludedByCapping += readNames.size() - coverageCap;
-            histogramArray[depth]++;
+        /** Counts a locus at which depth reads contribute coverage, before capping. */
+        protected void addLocus(final int depth) {
+            final int cappedDepth = Math.min(depth, coverageCap);
+            if (cappedDepth < depth) basesExcludedByCapping += depth - coverageCap;
+            histogramArray[cappedDepth]++;
         }
 
         public void addToMetricsFile(final MetricsFile<WgsMetrics, Integer> file,
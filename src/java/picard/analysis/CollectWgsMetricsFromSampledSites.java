@@ -69,6 +69,11 @@ public class CollectWgsMetricsFromSampledSites extends CollectWgsMetrics {
         return new SamLocusIterator(in, IntervalList.fromFile(INTERVALS));
     }
 
+    @Override
+    protected IntervalList getIntervals() {
+        return IntervalList.fromFile(INTERVALS);
+    }
+
     /**
      * By design we want to count just those bases at the positions we care about, not across the entire read.
      * Therefore, we call filter.getFilteredRecords() so that only the bases in the pileup at a given position
@@ -70,6 +70,10 @@ public class CollectWgsMetricsWithNonZeroCoverage extends CollectWgsMetrics {
     @Option(shortName = "CHART", doc = "A file (with .pdf extension) to write the chart to.")
     public File CHART_OUTPUT;
 
+    @Option(doc = "How to draw any chart the program makes: by running its R script, or in Java, which needs no R " +
+            "installation and falls back to R for charts it cannot draw.")
+    public RExecutor.ChartRenderer CHART_RENDERER = RExecutor.ChartRenderer.R;
+
     private final Log log = Log.getInstance(CollectWgsMetricsWithNonZeroCoverage.class);
 
     // Store this here since we need access to it in the doWork method
@@ -101,7 +105,7 @@ public class CollectWgsMetricsWithNonZeroCoverage extends CollectWgsMetrics {
         if (collector.areHistogramsEmpty()) {
             log.warn("No valid bases found in input file. No plot will be produced.");
         } else {
-            final int rResult = RExecutor.executeFromClasspath("picard/analysis/wgsHistogram.R",
+            final int rResult = RExecutor.executeFromClasspath(CHART_RENDERER, "picard/analysis/wgsHistogram.R",
                     OUTPUT.getAbsolutePath(),
                     CHART_OUTPUT.getAbsolutePath(),
                     INPUT.getName(),
@@ -125,6 +129,11 @@ public class CollectWgsMetricsWithNonZeroCoverage extends CollectWgsMetrics {
         return this.collector;
     }
 
+    @Override
+    protected WgsMetricsCollector makeShardCollector(final int coverageCap) {
+        return new WgsMetricsWithNonZeroCoverageCollector(coverageCap);
+    }
+
     protected class WgsMetricsWithNonZeroCoverageCollector extends WgsMetricsCollector {
         Histogram<Integer> depthHistogram = null;
 
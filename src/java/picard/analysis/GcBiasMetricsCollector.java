@@ -30,7 +30,6 @@ import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.util.QualityUtil;
 import htsjdk.samtools.util.SequenceUtil;
-import htsjdk.samtools.util.StringUtil;
 import picard.metrics.GcBiasMetrics;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
@@ -52,10 +51,11 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     private int[] windowsByGc = new int[BINS];
     private static final int BINS = 101;
 
-    //will hold the relevant gc information per contig
-    private byte [] gc = null;
-    private int referenceIndex = -1;
-    private byte [] refBases = null;
+    //the gc information of the contigs that some thread is still collecting on, shared by those threads
+    private final Map<Integer, ContigGc> contigsInUse = new HashMap<Integer, ContigGc>();
+
+    //the contig that the current thread last looked up, so that contigsInUse is only consulted on contig changes
+    private final ThreadLocal<ContigGc> currentContig = new ThreadLocal<ContigGc>();
 
     public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
                                   final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite) {
@@ -69,7 +69,34 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     /////////////////////////////////////////////////////////////////////////////
     @Override
     protected GcBiasCollectorArgs makeArg(final SAMRecord rec, final ReferenceSequence ref) {
-        return new GcBiasCollectorArgs(rec, ref);
+        return new GcBiasCollectorArgs(rec, ref, rec.getReadUnmappedFlag() ? null : getContigGc(rec.getReferenceIndex(), ref));
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Returns the gc information for the given contig, computing it unless another
+    // thread is already collecting on that contig. makeArg may be called on several
+    // threads, so the information is only kept while some thread is still on the
+    // contig: on one thread that is just the current contig. The reference bases are
+    // not upper-cased as they may be shared, e.g. through a ReferenceCache
+    /////////////////////////////////////////////////////////////////////////////
+    private ContigGc getContigGc(final int referenceIndex, final ReferenceSequence ref) {
+        final ContigGc current = currentContig.get();
+        if (current != null && current.referenceIndex == referenceIndex) return current;
+
+        ContigGc contigGc;
+        synchronized (contigsInUse) {
+            if (current != null && --current.threads == 0) contigsInUse.remove(current.referenceIndex);
+            contigGc = contigsInUse.get(referenceIndex);
+            if (contigGc == null) {
+                final byte[] refBases = ref.getBases();
+                final int lastWindowStart = refBases.length - scanWindowSize;
+                contigGc = new ContigGc(referenceIndex, refBases, GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize));
+                contigsInUse.put(referenceIndex, contigGc);
+            }
+            ++contigGc.threads;
+        }
+        currentContig.set(contigGc);
+        return contigGc;
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -126,15 +153,8 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
             final SAMRecord rec = args.getRec();
             final String type;
             if (!rec.getReadUnmappedFlag()) {
-                if(referenceIndex != rec.getReferenceIndex() || gc == null){
-                    final ReferenceSequence ref = args.getRef();
-                    refBases = ref.getBases();
-                    StringUtil.toUpperCase(refBases);
-                    final int refLength = refBases.length;
-                    final int lastWindowStart = refLength - scanWindowSize;
-                    gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
-                    referenceIndex=rec.getReferenceIndex();
-                }
+                final byte[] gc = args.getContigGc().gc;
+                final byte[] refBases = args.getContigGc().refBases;
 
                 final String group;
                 if (this.readGroup != null) {
@@ -165,6 +185,21 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
 
         public void finish() {}
 
+        /////////////////////////////////////////////////////////////////////////////
+        // Adds the counts of other, a collector for the same unit, into this one
+        /////////////////////////////////////////////////////////////////////////////
+        @Override
+        public void merge(final PerUnitMetricCollector<GcBiasMetrics, Integer, GcBiasCollectorArgs> other) {
+            for (final Map.Entry<String, GcObject> entry : ((PerUnitGcBiasMetricsCollector) other).gcData.entrySet()) {
+                gcData.get(entry.getKey()).merge(entry.getValue());
+            }
+        }
+
+        @Override
+        public boolean isMergeable() {
+            return true;
+        }
+
         /////////////////////////////////////////////////////////////////////////////
         // Sums the values in an int[].
         /////////////////////////////////////////////////////////////////////////////
@@ -314,6 +349,36 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
         long[] basesByGc = new long[BINS];
         long[] errorsByGc = new long[BINS];
         String group = null;
+
+        void merge(final GcObject other) {
+            totalClusters += other.totalClusters;
+            totalAlignedReads += other.totalAlignedReads;
+            for (int i = 0; i < BINS; ++i) {
+                readsByGc[i] += other.readsByGc[i];
+                basesByGc[i] += other.basesByGc[i];
+                errorsByGc[i] += other.errorsByGc[i];
+            }
+            if (group == null) {
+                group = other.group;
+            }
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    //The bases of a contig and the gc of the window starting at each position
+    /////////////////////////////////////////////////////////////////////////////
+    static class ContigGc {
+        final int referenceIndex;
+        final byte[] refBases;
+        final byte[] gc;
+        //the number of threads whose current contig this is, guarded by contigsInUse
+        int threads = 0;
+
+        ContigGc(final int referenceIndex, final byte[] refBases, final byte[] gc) {
+            this.referenceIndex = referenceIndex;
+            this.refBases = refBases;
+            this.gc = gc;
+        }
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -347,10 +412,14 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
 class GcBiasCollectorArgs {
     private final SAMRecord rec;
     private final ReferenceSequence ref;
+    private final GcBiasMetricsCollector.ContigGc contigGc;
     public SAMRecord getRec() {return rec;}
     public ReferenceSequence getRef() {return ref;}
-    public GcBiasCollectorArgs(final SAMRecord rec, final ReferenceSequence ref) {
+    /** The gc information for the contig of a mapped record, null for unmapped records */
+    public GcBiasMetricsCollector.ContigGc getContigGc() {return contigGc;}
+    public GcBiasCollectorArgs(final SAMRecord rec, final ReferenceSequence ref, final GcBiasMetricsCollector.ContigGc contigGc) {
         this.rec = rec;
         this.ref = ref;
+        this.contigGc = contigGc;
     }
 }
@@ -53,7 +53,7 @@ public class GcBiasUtils {
         } else {
             final byte newBase = bases[endIndex - 1];
             if (SequenceUtil.basesEqual(newBase, (byte)'G') || SequenceUtil.basesEqual(newBase, (byte)'C')) ++state.gcCount;
-            else if (newBase == 'N') ++state.nCount;
+            else if (SequenceUtil.basesEqual(newBase, (byte)'N')) ++state.nCount;
 
             if (SequenceUtil.basesEqual(state.priorBase, (byte)'G') || SequenceUtil.basesEqual(state.priorBase, (byte)'C')) --state.gcCount;
             else if (SequenceUtil.basesEqual(state.priorBase, (byte)'N')) --state.nCount;
@@ -205,7 +205,7 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
         }
         else {
             // Now run R to generate a chart
-            final int rResult = RExecutor.executeFromClasspath(
+            final int rResult = RExecutor.executeFromClasspath(CHART_RENDERER,
                     "picard/analysis/meanQualityByCycle.R",
                     OUTPUT.getAbsolutePath(),
                     CHART_OUTPUT.getAbsolutePath(),
@@ -156,7 +156,7 @@ public class QualityScoreDistribution extends SinglePassSamProgram {
         }
         else {
             // Now run R to generate a chart
-            final int rResult = RExecutor.executeFromClasspath(
+            final int rResult = RExecutor.executeFromClasspath(CHART_RENDERER,
                     "picard/analysis/qualityScoreDistribution.R",
                     OUTPUT.getAbsolutePath(),
                     CHART_OUTPUT.getAbsolutePath(),
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+/**
+ * A set of read names for finding the reads of a pileup that share a name, i.e. overlapping mates, without allocating
+ * anything per pileup.  It is an open addressing hash table that stores each name's hashCode() next to it, so names
+ * are only compared with equals() when their hashes collide; String caches its hash, so a read name that is in many
+ * pileups is only hashed once.  clear() only touches the slots that were used, so the table can stay as large as the
+ * deepest pileup seen without making shallow pileups slower.
+ *
+ * Not thread safe.
+ */
+final class ReadNameSet {
+    private String[] names;
+    private int[] hashes;
+    /** The indices of the occupied slots, in insertion order, so that clear() does not need to scan the table. */
+    private int[] usedSlots;
+    private int size = 0;
+    private int mask;
+
+    /** @param expectedSize the number of names expected to be in the set at once; the set grows beyond it if needed */
+    ReadNameSet(final int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /** @return true if name was not already in the set */
+    boolean add(final String name) {
+        final int hash = name.hashCode();
+        int slot = spread(hash) & mask;
+        String existing;
+        while ((existing = names[slot]) != null) {
+            if (hashes[slot] == hash && (existing == name || existing.equals(name))) return false;
+            slot = (slot + 1) & mask;
+        }
+
+        names[slot] = name;
+        hashes[slot] = hash;
+        usedSlots[size++] = slot;
+        // Keep the load factor at or below one half so that probe sequences stay short
+        if (size * 2 > names.length) grow();
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Empties the set, keeping its capacity. */
+    void clear() {
+        for (int i = 0; i < size; ++i) {
+            names[usedSlots[i]] = null;
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        final String[] oldNames = names;
+        final int[] oldHashes = hashes;
+        final int[] oldUsedSlots = usedSlots;
+        final int oldSize = size;
+
+        allocate(oldNames.length * 2);
+        for (int i = 0; i < oldSize; ++i) {
+            final int oldSlot = oldUsedSlots[i];
+            int slot = spread(oldHashes[oldSlot]) & mask;
+            while (names[slot] != null) slot = (slot + 1) & mask;
+            names[slot] = oldNames[oldSlot];
+            hashes[slot] = oldHashes[oldSlot];
+            usedSlots[size++] = slot;
+        }
+    }
+
+    private void allocate(final int tableSize) {
+        names = new String[tableSize];
+        hashes = new int[tableSize];
+        usedSlots = new int[tableSize / 2 + 1];
+        mask = tableSize - 1;
+        size = 0;
+    }
+
+    /** The smallest power of two that holds expectedSize names at a load factor of one half. */
+    private static int tableSizeFor(final int expectedSize) {
+        return Math.max(16, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1);
+    }
+
+    /** Mixes the high bits of a String hash into the low bits used to pick a slot, as HashMap does. */
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
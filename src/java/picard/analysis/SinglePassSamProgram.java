@@ -41,10 +41,23 @@ import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.metrics.ConcurrentCollector;
+import picard.metrics.ConcurrentCollectorExecutor;
+import picard.metrics.SAMRecordAndReference;
+import picard.reference.ReferenceCache;
+import picard.util.RExecutor;
+import picard.util.ThreadUtil;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Super class that is designed to provide some consistent structure between subclasses that
@@ -67,65 +80,22 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     @Option(doc = "Stop after processing N reads, mainly for debugging.")
     public long STOP_AFTER = 0;
 
-    private static final Log log = Log.getInstance(SinglePassSamProgram.class);
-
-    public static final String POISON_PILL_TAG = "PP";
+    @Option(doc = "The number of threads to use. With more than one thread, one thread decodes the input while up to " +
+            "THREADS - 1 threads run the metrics collection. If THREADS = 0, the number of threads is set to the number " +
+            "of cores available on the machine; if THREADS < 0, it is the number of cores less THREADS.")
+    public int THREADS = 1;
 
-    final static SAMRecord POISON_PILL = new SAMRecord(new SAMFileHeader()) {
+    @Option(doc = "If greater than 0, contigs of the REFERENCE_SEQUENCE are kept in a cache of this many bases that is " +
+            "shared by every program run afterwards in the same JVM, e.g. by a pipeline that runs several metrics " +
+            "programs in turn, rather than each program reading the reference again. If 0, the cache is left as it is; " +
+            "it is off unless enabled by an earlier program or the picard.reference.cache_bytes system property.")
+    public long REFERENCE_CACHE_BYTES = 0;
 
-        @Override
-        public int getInferredInsertSize() {
-            return 1;
-        }
-
-        /*
-        if (!record.getReadPairedFlag() ||
-                record.getReadUnmappedFlag() ||
-                record.getMateUnmappedFlag() ||
-                record.getFirstOfPairFlag() ||
-                record.isSecondaryOrSupplementary() ||
-                (record.getDuplicateReadFlag() && !this.includeDuplicates) ||
-                record.getInferredInsertSize() == 0)
-         */
-
-        @Override
-        public boolean getReadPairedFlag() {
-            return true;
-        }
-
-        @Override
-        public boolean getReadUnmappedFlag() {
-            return false;
-        }
-
-        @Override
-        public boolean getMateUnmappedFlag() {
-            return false;
-        }
+    @Option(doc = "How to draw any chart the program makes: by running its R script, or in Java, which needs no R " +
+            "installation and falls back to R for charts it cannot draw. Programs that make no chart ignore it.")
+    public RExecutor.ChartRenderer CHART_RENDERER = RExecutor.ChartRenderer.R;
 
-        @Override
-        public boolean getFirstOfPairFlag() {
-            return false;
-        }
-
-        @Override
-        public boolean isSecondaryOrSupplementary() {
-            return false;
-        }
-
-        @Override
-        public boolean getDuplicateReadFlag() {
-            return false;
-        }
-
-        @Override
-        public Object getAttribute(final String tag) {
-            if (tag.equals(POISON_PILL_TAG)) {
-                return "not null";
-            }
-            return null;
-        }
-    };
+    private static final Log log = Log.getInstance(SinglePassSamProgram.class);
 
     /**
      * Final implementation of doWork() that checks and loads the input and optionally reference
@@ -133,7 +103,8 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
      */
     @Override
     protected final int doWork() {
-        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this));
+        if (REFERENCE_CACHE_BYTES > 0) ReferenceCache.setSharedCacheBytes(REFERENCE_CACHE_BYTES);
+        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this), THREADS);
         return 0;
     }
 
@@ -142,6 +113,45 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                                 final boolean assumeSorted,
                                 final long stopAfter,
                                 final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, 1);
+    }
+
+    /**
+     * Makes a single pass over the input, calling setup() on every program, then acceptRead() for every record and
+     * finally finish().  setup() is always called on the calling thread, in the order the programs are given.  If
+     * more than one thread is requested, records are decoded on the calling thread and handed in batches to worker
+     * threads that call acceptRead(); each program still sees every record in input order from a single thread, and
+     * finish() is only called once all records have been consumed.  When there is more than one program and more
+     * than one thread their finish() methods, which write metrics and usually run an R script for the chart, are
+     * called concurrently on up to that many threads.
+     *
+     * @param threads number of threads to use; 1 runs serially, 0 uses all available cores and a negative value uses
+     *                all available cores less that many
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int threads) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, threads,
+                referenceSequence == null ? null : ReferenceCache.getShared(referenceSequence));
+    }
+
+    /**
+     * As {@link #makeItSo(File, File, boolean, long, Collection, int)}, but if referenceCache is not null the reference
+     * bases are taken from it rather than from a walker over referenceSequence, so that several passes running at the
+     * same time can share the decoded contigs.  The other overloads use the process-wide cache, if it is enabled.
+     *
+     * @return the number of records read
+     */
+    public static long makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int threads,
+                                final ReferenceCache referenceCache) {
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
@@ -153,11 +163,11 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             walker = null;
         } else {
             IOUtil.assertFileIsReadable(referenceSequence);
-            walker = new ReferenceSequenceFileWalker(referenceSequence);
+            walker = (referenceCache == null) ? new ReferenceSequenceFileWalker(referenceSequence) : null;
 
             if (!in.getFileHeader().getSequenceDictionary().isEmpty()) {
                 SequenceUtil.assertSequenceDictionariesEqual(in.getFileHeader().getSequenceDictionary(),
-                        walker.getSequenceDictionary());
+                        walker != null ? walker.getSequenceDictionary() : referenceCache.getSequenceDictionary());
             }
         }
 
@@ -185,45 +195,141 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
 
         final ProgressLogger progress = new ProgressLogger(log);
 
-        for (final SAMRecord rec : in) {
+        final int numThreads = ThreadUtil.resolveThreadCount(threads);
+        final ConcurrentCollectorExecutor<List<SinglePassSamProgram>> dispatcher = (numThreads > 1 && !programs.isEmpty())
+                ? makeDispatcher(new ArrayList<>(programs), numThreads - 1)
+                : null;
+
+        // The contig of the previous record, so that the cache is only consulted when the contig changes
+        ReferenceSequence cachedRef = null;
 
-            final ReferenceSequence ref;
+        try {
+            for (final SAMRecord rec : in) {
 
-            if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                ref = null;
-            } else {
-                ref = walker.get(rec.getReferenceIndex());
+                final ReferenceSequence ref;
+
+                if (referenceSequence == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    ref = null;
+                } else if (walker == null) {
+                    if (cachedRef == null || cachedRef.getContigIndex() != rec.getReferenceIndex()) {
+                        cachedRef = referenceCache.get(rec.getReferenceIndex());
+                    }
+                    ref = cachedRef;
+                } else {
+                    ref = walker.get(rec.getReferenceIndex());
+                }
+
+                if (dispatcher != null) {
+                    dispatcher.acceptRecord(rec, ref);
+                } else {
+                    for (final SinglePassSamProgram program : programs) {
+                        program.acceptRead(rec, ref);
+                    }
+                }
+
+                progress.record(rec);
+
+                // See if we need to terminate early?
+                if (stopAfter > 0 && progress.getCount() >= stopAfter) {
+                    break;
+                }
+
+                // And see if we're into the unmapped reads at the end
+                if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    break;
+                }
             }
 
-            for (final SinglePassSamProgram program : programs) {
+            // Wait for the workers to drain so that finish() below sees every record
+            if (dispatcher != null) dispatcher.finish();
+        } catch (final RuntimeException | Error e) {
+            if (dispatcher != null) dispatcher.abort();
+            throw e;
+        }
+
+        CloserUtil.close(in);
+
+        finishAll(programs, numThreads);
+        return progress.getCount();
+    }
 
-                program.acceptRead(rec, ref);
+    /**
+     * Makes an executor that hands every record to every program on numWorkers worker threads, capped at the number of
+     * programs.  Each worker owns a fixed subset of the programs, so a program only ever sees acceptRead() from its own
+     * worker, in input order, and needs no synchronization.
+     */
+    private static ConcurrentCollectorExecutor<List<SinglePassSamProgram>> makeDispatcher(final List<SinglePassSamProgram> programs,
+                                                                                        final int numWorkers) {
+        final int workerCount = Math.min(numWorkers, programs.size());
+        final List<List<SinglePassSamProgram>> programsByWorker = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; ++i) {
+            programsByWorker.add(new ArrayList<>());
+        }
+        // Assign programs round-robin so that each worker calls its programs in the order they were given
+        for (int i = 0; i < programs.size(); ++i) {
+            programsByWorker.get(i % workerCount).add(programs.get(i));
+        }
+
+        log.info("Dispatching records to " + programs.size() + " program(s) on " + workerCount + " worker thread(s).");
+        final Iterator<List<SinglePassSamProgram>> nextPrograms = programsByWorker.iterator();
+        return new ConcurrentCollectorExecutor<>(new ConcurrentCollector<List<SinglePassSamProgram>>() {
+            @Override
+            public List<SinglePassSamProgram> makePartial() {
+                return nextPrograms.next();
             }
 
-            progress.record(rec);
+            @Override
+            public void acceptBatch(final List<SinglePassSamProgram> workerPrograms, final List<SAMRecordAndReference> batch) {
+                for (final SAMRecordAndReference recAndRef : batch) {
+                    for (final SinglePassSamProgram program : workerPrograms) {
+                        program.acceptRead(recAndRef.getSamRecord(), recAndRef.getReferenceSequence());
+                    }
+                }
+            }
 
-            // See if we need to terminate early?
-            if (stopAfter > 0 && progress.getCount() >= stopAfter) {
-                break;
+            @Override
+            public void mergePartial(final List<SinglePassSamProgram> workerPrograms) {
+                // Nothing to merge: the programs are finished by finishAll()
             }
+        }, workerCount, ConcurrentCollectorExecutor.DEFAULT_BATCH_SIZE, ConcurrentCollectorExecutor.Mode.BROADCAST,
+                ConcurrentCollectorExecutor.DEFAULT_BROADCAST_QUEUE_CAPACITY);
+    }
 
-            // And see if we're into the unmapped reads at the end
-            if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                break;
+    /**
+     * Calls finish() on every program, concurrently on up to numThreads threads if there is more than one program,
+     * and waits for them all.  The first error thrown by a program is rethrown once every finish() has returned.
+     */
+    private static void finishAll(final Collection<SinglePassSamProgram> programs, final int numThreads) {
+        if (programs.size() <= 1 || numThreads <= 1) {
+            for (final SinglePassSamProgram program : programs) {
+                program.finish();
             }
+            return;
         }
 
-        CloserUtil.close(in);
-
-        for (final SinglePassSamProgram program : programs) {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(programs.size(), numThreads));
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (final SinglePassSamProgram program : programs) {
+                futures.add(pool.submit(program::finish));
+            }
 
-            //CONCURRENT
-            if (program instanceof CollectInsertSizeMetrics) {
-                program.acceptRead(POISON_PILL, null);
-                System.out.println("pp");
+            Throwable firstError = null;
+            for (final Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    if (firstError == null) firstError = e.getCause();
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted waiting for programs to finish.", ie);
+                }
             }
 
-            program.finish();
+            if (firstError instanceof Error) throw (Error) firstError;
+            if (firstError instanceof RuntimeException) throw (RuntimeException) firstError;
+            if (firstError != null) throw new PicardException("Error finishing program.", firstError);
+        } finally {
+            pool.shutdownNow();
         }
     }
 
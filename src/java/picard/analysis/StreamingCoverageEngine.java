@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import picard.PicardException;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Computes the same coverage as feeding every locus of a SamLocusIterator to WgsMetricsCollector.addInfo(), without
+ * building a pileup per locus.  Each read adds its aligned bases to a sliding window of per-locus counts as it is
+ * seen, and a locus is counted once no later read can start before it.  Reads of the same name (i.e. overlapping
+ * mates) are detected by remembering, per name, which loci a read of that name already covers; names are forgotten
+ * once the window has passed the end of all their reads.
+ *
+ * Reads must be coordinate sorted and already filtered (secondary, mapping quality, duplicates, etc.) as they would
+ * be by the SamLocusIterator.  Unmapped and non-PF reads are skipped here, as SamLocusIterator does.
+ *
+ * Not thread safe.
+ */
+final class StreamingCoverageEngine {
+    private static final int INITIAL_WINDOW_SIZE = 1 << 12;
+    private static final int MIN_NAMES_BEFORE_SWEEP = 1 << 10;
+
+    private final CollectWgsMetrics.WgsMetricsCollector collector;
+    private final int numContigs;
+    private final IntFunction<BitSet> assessedLociOfContig;
+    private final int locusAccumulationCap;
+
+    private int contigIndex = -1;
+    /** The 1-based positions on the current contig that are counted, i.e. those that addInfo() would be called for. */
+    private BitSet assessedLoci = new BitSet();
+
+    // Circular buffers indexed by (position & windowMask), holding for each position from windowStart to maxEnd
+    // the number of reads with a base aligned to it and the number of those bases that contribute coverage.
+    private int[] records = new int[INITIAL_WINDOW_SIZE];
+    private int[] distinct = new int[INITIAL_WINDOW_SIZE];
+    private int windowMask = INITIAL_WINDOW_SIZE - 1;
+    /** The first position on the current contig that has not been counted yet. */
+    private int windowStart = 1;
+    /** The last position on the current contig covered by any read so far. */
+    private int maxEnd = 0;
+
+    private final Map<String, NameCoverage> names = new HashMap<>();
+    private int sweepNamesAt = MIN_NAMES_BEFORE_SWEEP;
+
+    /**
+     * @param collector the collector to count loci and bases into
+     * @param numContigs the number of contigs in the sequence dictionary
+     * @param assessedLociOfContig gives, for a contig index, the 1-based positions that are counted; called once per
+     *                             contig, in increasing order of contig index
+     * @param locusAccumulationCap as SamLocusIterator.setMaxReadsToAccumulatePerLocus(), 0 for no cap
+     */
+    StreamingCoverageEngine(final CollectWgsMetrics.WgsMetricsCollector collector,
+                            final int numContigs,
+                            final IntFunction<BitSet> assessedLociOfContig,
+                            final int locusAccumulationCap) {
+        this.collector = collector;
+        this.numContigs = numContigs;
+        this.assessedLociOfContig = assessedLociOfContig;
+        this.locusAccumulationCap = locusAccumulationCap;
+    }
+
+    /** Adds the bases of a read, first counting all loci that start before it. */
+    void addRecord(final SAMRecord rec) {
+        if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) return;
+
+        final int recContigIndex = rec.getReferenceIndex();
+        final int start = rec.getAlignmentStart();
+        if (recContigIndex < contigIndex || (recContigIndex == contigIndex && start < windowStart)) {
+            throw new PicardException("Reads must be coordinate sorted, but found " + rec.getReadName() + " at " +
+                    rec.getReferenceName() + ":" + start + " after reads further along.");
+        }
+        if (recContigIndex != contigIndex) moveToContig(recContigIndex);
+        countLociBefore(start);
+
+        // SamLocusIterator stops accumulating reads that start at a locus once it has this many reads
+        if (locusAccumulationCap > 0 && records[start & windowMask] >= locusAccumulationCap) return;
+
+        final int end = rec.getAlignmentEnd();
+        ensureWindowCovers(end);
+        if (end > maxEnd) maxEnd = end;
+
+        final byte[] qualities = rec.getBaseQualities();
+        NameCoverage nameCoverage = null;
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int readStart = block.getReadStart() - 1;
+            final int referenceStart = block.getReferenceStart();
+            for (int i = 0; i < block.getLength(); ++i) {
+                final int position = referenceStart + i;
+                final int index = position & windowMask;
+                final int pileupIndex = ++records[index];
+                if (!assessedLoci.get(position)) continue;
+
+                final byte quality = qualities[readStart + i];
+                if (!collector.addPileupBase(pileupIndex, quality)) continue;
+
+                if (nameCoverage == null) nameCoverage = nameCoverage(rec.getReadName(), start, end);
+                if (!nameCoverage.cover(position)) {
+                    collector.addOverlappingBase();
+                    continue;
+                }
+                collector.addCoveringBase(++distinct[index], quality);
+            }
+        }
+    }
+
+    /** Counts all loci that have not been counted yet, on this and all later contigs. */
+    void finish() {
+        moveToContig(numContigs);
+    }
+
+    /** Counts the remaining loci of the current contig and all loci of the contigs before newContigIndex. */
+    private void moveToContig(final int newContigIndex) {
+        if (contigIndex >= 0) countLociBefore(Integer.MAX_VALUE);
+        for (int i = contigIndex + 1; i < newContigIndex; ++i) {
+            final BitSet loci = assessedLociOfContig.apply(i);
+            for (int position = loci.nextSetBit(0); position >= 0; position = loci.nextSetBit(position + 1)) {
+                collector.addLocus(0);
+            }
+        }
+
+        contigIndex = newContigIndex;
+        assessedLoci = newContigIndex < numContigs ? assessedLociOfContig.apply(newContigIndex) : new BitSet();
+        windowStart = 1;
+        maxEnd = 0;
+        names.clear();
+        sweepNamesAt = MIN_NAMES_BEFORE_SWEEP;
+    }
+
+    /** Counts every locus from windowStart up to, but not including, position and moves the window past them. */
+    private void countLociBefore(final int position) {
+        if (position <= windowStart) return;
+
+        final int lastCovered = Math.min(position - 1, maxEnd);
+        for (int p = windowStart; p <= lastCovered; ++p) {
+            final int index = p & windowMask;
+            if (assessedLoci.get(p)) collector.addLocus(distinct[index]);
+            records[index] = 0;
+            distinct[index] = 0;
+        }
+        // Beyond the reads seen so far nothing is covered, so only the loci that are counted need to be visited
+        for (int p = assessedLoci.nextSetBit(Math.max(windowStart, lastCovered + 1)); p >= 0 && p < position; p = assessedLoci.nextSetBit(p + 1)) {
+            collector.addLocus(0);
+        }
+        windowStart = position;
+    }
+
+    /** Grows the window, keeping the counts in it, until it holds every position from windowStart to end. */
+    private void ensureWindowCovers(final int end) {
+        final int needed = end - windowStart + 1;
+        if (needed <= records.length) return;
+
+        final int size = Integer.highestOneBit(needed - 1) << 1;
+        final int[] newRecords = new int[size];
+        final int[] newDistinct = new int[size];
+        for (int p = windowStart; p <= maxEnd; ++p) {
+            newRecords[p & (size - 1)] = records[p & windowMask];
+            newDistinct[p & (size - 1)] = distinct[p & windowMask];
+        }
+        records = newRecords;
+        distinct = newDistinct;
+        windowMask = size - 1;
+    }
+
+    /** Finds or creates the coverage of a read name, occasionally forgetting names whose reads are all behind us. */
+    private NameCoverage nameCoverage(final String name, final int start, final int end) {
+        NameCoverage coverage = names.get(name);
+        // A read that starts after all earlier reads of its name end cannot overlap them, so start afresh
+        if (coverage == null || start > coverage.end) {
+            if (names.size() >= sweepNamesAt) {
+                final Iterator<NameCoverage> it = names.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().end < windowStart) it.remove();
+                }
+                sweepNamesAt = Math.max(MIN_NAMES_BEFORE_SWEEP, names.size() * 2);
+            }
+            coverage = new NameCoverage(start);
+            names.put(name, coverage);
+        }
+        coverage.end = Math.max(coverage.end, end);
+        return coverage;
+    }
+
+    /** The loci at which a read of one name has contributed coverage. */
+    private static final class NameCoverage {
+        /** Reads arrive in coordinate order, so no read of this name covers anything before the first one's start. */
+        private final int start;
+        private final BitSet covered = new BitSet();
+        private int end = 0;
+
+        private NameCoverage(final int start) {
+            this.start = start;
+        }
+
+        /** @return true if no read of this name had covered position before */
+        private boolean cover(final int position) {
+            final int bit = position - start;
+            if (covered.get(bit)) return false;
+            covered.set(bit);
+            return true;
+        }
+    }
+}
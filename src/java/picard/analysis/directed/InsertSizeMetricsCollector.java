@@ -6,38 +6,16 @@ import htsjdk.samtools.SamPairUtil;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.util.Histogram;
-import htsjdk.samtools.util.RuntimeEOFException;
 import picard.analysis.InsertSizeMetrics;
 import picard.analysis.MetricAccumulationLevel;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
+import picard.util.IntHistogram;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import static picard.analysis.SinglePassSamProgram.POISON_PILL_TAG;
 
 /**
  * Collects InsertSizeMetrics on the specified accumulationLevels using
@@ -59,10 +37,6 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
     // If set to true, then duplicates will also be included in the histogram
     private final boolean includeDuplicates;
 
-    //CONCURRENT //NON CONCURRENT - 32s
-    private static final int THREADS_COUNT = 3;
-
-
     public InsertSizeMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final List<SAMReadGroupRecord> samRgRecords,
                                       final double minimumPct, final Integer histogramWidth, final double deviations,
                                       final boolean includeDuplicates) {
@@ -70,7 +44,7 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
         this.histogramWidth = histogramWidth;
         this.deviations = deviations;
         this.includeDuplicates = includeDuplicates;
-        setup(accumulationLevels, samRgRecords); //ReadGroupCollectors coming from here
+        setup(accumulationLevels, samRgRecords);
     }
 
     // We will pass insertSize and PairOrientation with the DefaultPerRecordCollectorArgs passed to the record collectors
@@ -80,14 +54,7 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
         final int insertSize = Math.abs(samRecord.getInferredInsertSize());
 
         final SamPairUtil.PairOrientation orientation = SamPairUtil.getPairOrientation(samRecord);
-
-
-        //CONCURRENT
-        if (samRecord.getAttribute(POISON_PILL_TAG) != null) {
-            return new InsertSizeCollectorArgs(-1, SamPairUtil.PairOrientation.FR);
-        } else {
-            return new InsertSizeCollectorArgs(insertSize, orientation);
-        }
+        return new InsertSizeCollectorArgs(insertSize, orientation);
     }
 
     /** Make an InsertSizeCollector with the given arguments */
@@ -113,22 +80,16 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
     /** A Collector for individual InsertSizeMetrics for a given SAMPLE or SAMPLE/LIBRARY or SAMPLE/LIBRARY/READ_GROUP (depending on aggregation levels) */
     public class PerUnitInsertSizeMetricsCollector implements PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> {
 
-        final EnumMap<SamPairUtil.PairOrientation, Histogram<Integer>> histograms = new EnumMap<>(SamPairUtil.PairOrientation.class);
+        // Counted into IntHistograms, which are only turned into Histograms when the metrics are computed
+        final EnumMap<SamPairUtil.PairOrientation, IntHistogram> histograms = new EnumMap<>(SamPairUtil.PairOrientation.class);
+        final EnumMap<SamPairUtil.PairOrientation, String> histogramLabels = new EnumMap<>(SamPairUtil.PairOrientation.class);
 
         final String sample;
         final String library;
         final String readGroup;
         private double totalInserts = 0;
-        private boolean isFinishing = false;
-
-        //ADT for concurrent
-        private ConcurrentMap<InsertSizeCollectorArgs, AtomicInteger> tempHistogram = new ConcurrentHashMap<>();
-        private LinkedBlockingQueue<InsertSizeCollectorArgs> queue = new LinkedBlockingQueue<>();
-
-        ExecutorService es = Executors.newFixedThreadPool(THREADS_COUNT);
 
         public PerUnitInsertSizeMetricsCollector(final String sample, final String library, final String readGroup) {
-            //System.out.println("our class");
             this.sample = sample;
             this.library = library;
             this.readGroup = readGroup;
@@ -142,113 +103,46 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
             } else {
                 prefix = "All_Reads.";
             }
-            histograms.put(SamPairUtil.PairOrientation.FR, new Histogram<Integer>("insert_size", prefix + "fr_count"));
-            histograms.put(SamPairUtil.PairOrientation.TANDEM, new Histogram<Integer>("insert_size", prefix + "tandem_count"));
-            histograms.put(SamPairUtil.PairOrientation.RF, new Histogram<Integer>("insert_size", prefix + "rf_count"));
-
-            System.out.println("creating " + this);
-
-//CONCURRENT
-
-
-            for (int i = 0; i < THREADS_COUNT; i++) {
-                es.submit(new Runnable() {
-
-                    @Override
-                    public void run() {
-
-                        //HashMap<InsertSizeCollectorArgs, Integer> insideMap = new HashMap<InsertSizeCollectorArgs, Integer>();
-                        int maxQueueSize = 0;
-                        int sumSize = 0;
-                        int count = 0;
-
-
-                        while (true) {
-                            try {
-                                final InsertSizeCollectorArgs peek = queue.take();
-                                final int size = queue.size();
-                                if (size > maxQueueSize) maxQueueSize = size;
-                                sumSize += size;
-                                count++;
-
-                                if (peek.getInsertSize() == -1) {
-                                    return;
-                                }
-                                System.out.println("put to histogram, size " + tempHistogram.size());
-                                tempHistogram.putIfAbsent(peek, new AtomicInteger(0));
-                                tempHistogram.get(peek).incrementAndGet();
-
-                            } catch (InterruptedException e) {
-                                throw new RuntimeException();
-                            }
-                        }
-                    }
-                });
+            histogramLabels.put(SamPairUtil.PairOrientation.FR, prefix + "fr_count");
+            histogramLabels.put(SamPairUtil.PairOrientation.TANDEM, prefix + "tandem_count");
+            histogramLabels.put(SamPairUtil.PairOrientation.RF, prefix + "rf_count");
+            for (final SamPairUtil.PairOrientation orientation : histogramLabels.keySet()) {
+                histograms.put(orientation, new IntHistogram());
             }
-
-
         }
 
-
-        //TODO CONCURRENT IT  !!!!!!!!!
         public void acceptRecord(final InsertSizeCollectorArgs args) {
+            histograms.get(args.getPairOrientation()).increment(args.getInsertSize());
+        }
 
-            //CONCURRENT
-            if (args.getInsertSize() == -1) {
-                for (int i = 0; i < THREADS_COUNT; i++) {
-                    try {
-                        queue.put(new InsertSizeCollectorArgs(-1, SamPairUtil.PairOrientation.FR));
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                es.shutdown();
-                try {
-                    es.awaitTermination(1, TimeUnit.DAYS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-
-                if (!isFinishing) {
-                    System.out.println("finishing, map size " + tempHistogram.size());
-                    isFinishing = true;
-                }
-
-                for (Map.Entry<InsertSizeCollectorArgs, AtomicInteger> entry : tempHistogram.entrySet()) {
-                    histograms.get(entry.getKey().getPairOrientation()).increment(entry.getKey().getInsertSize(), entry.getValue().get());
-                }
-
-
-            } else {
-                try {
-                    System.out.println("args " + args);
-                    queue.put(args);
-                    System.out.println("queue size " + queue.size());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        @Override
+        public void merge(final PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> other) {
+            for (final Map.Entry<SamPairUtil.PairOrientation, IntHistogram> entry : ((PerUnitInsertSizeMetricsCollector) other).histograms.entrySet()) {
+                histograms.get(entry.getKey()).merge(entry.getValue());
             }
         }
 
-        //Implement this for us
-        public void finish() {
-            System.out.println("================== " + this);
+        @Override
+        public boolean isMergeable() {
+            return true;
         }
 
+        public void finish() { }
+
         public double getTotalInserts() {
             return totalInserts;
         }
 
         public void addMetricsToFile(final MetricsFile<InsertSizeMetrics, Integer> file) {
             // get the number of inserts, and the maximum and minimum keys across, across all orientations
-            for (final Histogram<Integer> h : this.histograms.values()) {
+            for (final IntHistogram h : this.histograms.values()) {
                 totalInserts += h.getCount();
             }
             if (0 == totalInserts) return; // nothing to store
 
-            for (final Map.Entry<SamPairUtil.PairOrientation, Histogram<Integer>> entry : histograms.entrySet()) {
+            for (final Map.Entry<SamPairUtil.PairOrientation, IntHistogram> entry : histograms.entrySet()) {
                 final SamPairUtil.PairOrientation pairOrientation = entry.getKey();
-                final Histogram<Integer> histogram = entry.getValue();
+                final Histogram<Integer> histogram = entry.getValue().toHistogram("insert_size", histogramLabels.get(pairOrientation));
                 final double total = histogram.getCount();
 
                 // Only include a category if it has a sufficient percentage of the data in it
@@ -344,31 +238,4 @@ class InsertSizeCollectorArgs {
         this.insertSize = insertSize;
         this.po = po;
     }
-
-    @Override
-    public boolean equals(final Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        final InsertSizeCollectorArgs that = (InsertSizeCollectorArgs) o;
-
-        if (insertSize != that.insertSize) return false;
-        return po == that.po;
-
-    }
-
-    @Override
-    public int hashCode() {
-        int result = insertSize;
-        result = 31 * result + (po != null ? po.hashCode() : 0);
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return "InsertSizeCollectorArgs{" +
-                "insertSize=" + insertSize +
-                ", po=" + po +
-                '}';
-    }
 }
@@ -262,6 +262,41 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
             }
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<RnaSeqMetrics, Integer, SAMRecord> other) {
+            final PerUnitRnaSeqMetricsCollector that = (PerUnitRnaSeqMetricsCollector) other;
+            metrics.PF_BASES               += that.metrics.PF_BASES;
+            metrics.PF_ALIGNED_BASES       += that.metrics.PF_ALIGNED_BASES;
+            metrics.CODING_BASES           += that.metrics.CODING_BASES;
+            metrics.UTR_BASES              += that.metrics.UTR_BASES;
+            metrics.INTRONIC_BASES         += that.metrics.INTRONIC_BASES;
+            metrics.INTERGENIC_BASES       += that.metrics.INTERGENIC_BASES;
+            metrics.IGNORED_READS          += that.metrics.IGNORED_READS;
+            metrics.CORRECT_STRAND_READS   += that.metrics.CORRECT_STRAND_READS;
+            metrics.INCORRECT_STRAND_READS += that.metrics.INCORRECT_STRAND_READS;
+            // Both collectors started from ribosomalInitialValue, so only add what other has counted on top of it
+            if (that.metrics.RIBOSOMAL_BASES != null) {
+                metrics.RIBOSOMAL_BASES += that.metrics.RIBOSOMAL_BASES - ribosomalInitialValue;
+            }
+
+            for (final Map.Entry<Gene.Transcript, int[]> entry : that.coverageByTranscript.entrySet()) {
+                final int[] coverage = coverageByTranscript.get(entry.getKey());
+                if (coverage == null) {
+                    coverageByTranscript.put(entry.getKey(), entry.getValue());
+                } else {
+                    final int[] otherCoverage = entry.getValue();
+                    for (int i = 0; i < coverage.length; ++i) {
+                        coverage[i] += otherCoverage[i];
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isMergeable() {
+            return true;
+        }
+
         @Override
         public void addMetricsToFile(final MetricsFile<RnaSeqMetrics, Integer> file) {
             // Compute metrics based on coverage of top 1000 genes
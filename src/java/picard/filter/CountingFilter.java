@@ -43,6 +43,12 @@ public abstract class CountingFilter implements SamRecordFilter {
     /** Gets the number of bases that have been filtered out thus far. */
     public long getFilteredBases() { return this.filteredBases; }
 
+    /** Adds the counts of other, e.g. the same filter applied to a different part of the input, to the counts of this filter. */
+    public void addCounts(final CountingFilter other) {
+        this.filteredRecords += other.filteredRecords;
+        this.filteredBases += other.filteredBases;
+    }
+
     @Override
     public final boolean filterOut(final SAMRecord record) {
         final boolean filteredOut = reallyFilterOut(record);
@@ -60,8 +66,11 @@ public abstract class CountingFilter implements SamRecordFilter {
      */
     abstract public boolean reallyFilterOut(final SAMRecord record);
 
+    /** Counts each record of the pair that is filtered out, and filters out the pair if either record is. */
     @Override
     public boolean filterOut(final SAMRecord first, final SAMRecord second) {
-        throw new UnsupportedOperationException();
+        final boolean firstFilteredOut = filterOut(first);
+        final boolean secondFilteredOut = filterOut(second);
+        return firstFilteredOut || secondFilteredOut;
     }
 }
@@ -196,6 +196,18 @@ public class ClusterDataToSamConverter implements
         return sam;
     }
 
+    /** SAMRecords keep nothing of the cluster but its reads' arrays, so the ClusterData itself can be reused. */
+    @Override
+    public boolean copiesClusterData() {
+        return true;
+    }
+
+    /** The SAMRecords are given the reads' base and quality arrays, which must not be refilled. */
+    @Override
+    public boolean keepsReadArrays() {
+        return true;
+    }
+
     /**
      * Creates the SAMRecord for each read in the cluster
      */
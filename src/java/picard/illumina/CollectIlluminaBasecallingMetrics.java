@@ -178,6 +178,7 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
         while (provider.hasNext()) {
             final ClusterData cluster = provider.next();
             addCluster(cluster);
+            provider.release(cluster);
         }
 
         onComplete();
@@ -44,6 +44,7 @@ import picard.illumina.parser.ReadType;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.util.IlluminaUtil;
 import picard.util.TabbedTextFileWithHeaderParser;
+import picard.util.ThreadUtil;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -210,14 +211,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
 
         final BarcodeMetric noMatchMetric = new BarcodeMetric(null, null, IlluminaUtil.barcodeSeqsToString(noMatchBarcode), noMatchBarcode);
 
-        final int numProcessors;
-        if (NUM_PROCESSORS == 0) {
-            numProcessors = Runtime.getRuntime().availableProcessors();
-        } else if (NUM_PROCESSORS < 0) {
-            numProcessors = Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS;
-        } else {
-            numProcessors = NUM_PROCESSORS;
-        }
+        final int numProcessors = ThreadUtil.resolveThreadCount(NUM_PROCESSORS);
 
         LOG.info("Processing with " + numProcessors + " PerTileBarcodeExtractor(s).");
         final ExecutorService pool = Executors.newFixedThreadPool(numProcessors);
@@ -642,6 +636,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                     writer.write("\t" + yOrN + "\t" + match.barcode + "\t" + String.valueOf(match.mismatches) +
                             "\t" + String.valueOf(match.mismatchesToSecondBest));
                     writer.newLine();
+                    provider.release(cluster);
                 }
                 writer.close();
             } catch (final Exception e) {
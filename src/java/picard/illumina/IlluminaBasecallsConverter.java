@@ -34,7 +34,9 @@ import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BclReadAhead;
 import picard.util.FileChannelJDKBugWorkAround;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -52,7 +54,10 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -61,8 +66,8 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Manages the conversion of Illumina basecalls into some output format.  Creates multiple threads to manage reading,
- * sorting and writing efficiently.  Output is written in queryname output.  Optionally demultiplexes indexed reads
- * into separate outputs by barcode.
+ * sorting and writing efficiently.  Output is written in queryname output, or only in tile order if sorting within
+ * tiles is turned off.  Optionally demultiplexes indexed reads into separate outputs by barcode.
  *
  * @param <CLUSTER_OUTPUT_RECORD> The class to which a ClusterData is converted in preparation for writing.
  */
@@ -132,6 +137,10 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     private List<Integer> tiles;
     private final boolean includeNonPfReads;
     private final boolean ignoreUnexpectedBarcodes;
+    // Non-null if compressed BCL files are decompressed on a pool of threads shared by the tiles.
+    private BclReadAhead bclReadAhead = null;
+    // If false, records are written in the order in which they are read rather than sorted within each tile.
+    private boolean sortWithinTiles = true;
 
     private final SortingCollection.Codec<CLUSTER_OUTPUT_RECORD> codecPrototype;
     // Annoying that we need this.
@@ -250,13 +259,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         this.factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, lane, readStructure, bclQualityEvaluationStrategy, getDataTypesFromReadStructure(readStructure, demultiplex));
         this.factory.setApplyEamssFiltering(applyEamssFiltering);
 
-        if (numProcessors == 0) {
-            this.numThreads = Runtime.getRuntime().availableProcessors();
-        } else if (numProcessors < 0) {
-            this.numThreads = Runtime.getRuntime().availableProcessors() + numProcessors;
-        } else {
-            this.numThreads = numProcessors;
-        }
+        this.numThreads = ThreadUtil.resolveThreadCount(numProcessors);
         this.tiles = new ArrayList<Integer>(factory.getAvailableTiles());
         // Since the first non-fixed part of the read name is the tile number, without preceding zeroes,
         // and the output is sorted by read name, process the tiles in this order.
@@ -290,6 +293,34 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         this.converter = converter;
     }
 
+    /**
+     * Decompresses gzipped and BGZF BCL files on a pool of threads shared by all the tiles, reading ahead of each tile's
+     * reader, so that a tile's cycle files are inflated in parallel even when there are fewer tiles than threads.
+     * The read-ahead buffers take at most a tenth of the maximum heap; tiles that would exceed that read serially.
+     * Must be called before doTileProcessing.
+     *
+     * @param bclInflateThreads the number of threads, interpreted as numProcessors is; if this comes to 1, files are
+     *                          decompressed on each tile's own thread, as usual
+     */
+    public void setBclInflateThreads(final int bclInflateThreads) {
+        final int threads = ThreadUtil.resolveThreadCount(bclInflateThreads);
+        if (threads <= 1) return;
+
+        this.bclReadAhead = new BclReadAhead(threads, Runtime.getRuntime().maxMemory() / 10);
+        this.factory.setBclReadAhead(bclReadAhead);
+    }
+
+    /**
+     * If false, each tile's records are written in the order in which they are read rather than sorted by
+     * outputRecordComparator.  No SortingCollections are made, so nothing is spilled to disk, and the earliest tile
+     * that is still being read writes its records as it goes rather than when it is done.  Tiles are still written in
+     * order.  Clusters with identical coordinates are not discarded, because that relies on the sort.
+     * Must be called before doTileProcessing.
+     */
+    public void setSortWithinTiles(final boolean sortWithinTiles) {
+        this.sortWithinTiles = sortWithinTiles;
+    }
+
     /**
      * In case caller needs to get some info from factory.
      */
@@ -312,15 +343,19 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                 tiles.add(new Tile(tileNumber));
             }
 
-            final TileReadAggregator tileReadAggregator = new TileReadAggregator(tiles);
-            tileReadAggregator.submit();
-            try {
-                tileReadAggregator.awaitWorkComplete();
-            } catch (final InterruptedException e) {
-                log.error(e, "Failure encountered in worker thread; attempting to shut down remaining worker threads and terminate ...");
-                throw new PicardException("Failure encountered in worker thread; see log for details.");
-            } finally {
-                tileReadAggregator.shutdown();
+            if (sortWithinTiles) {
+                final TileReadAggregator tileReadAggregator = new TileReadAggregator(tiles);
+                tileReadAggregator.submit();
+                try {
+                    tileReadAggregator.awaitWorkComplete();
+                } catch (final InterruptedException e) {
+                    log.error(e, "Failure encountered in worker thread; attempting to shut down remaining worker threads and terminate ...");
+                    throw new PicardException("Failure encountered in worker thread; see log for details.");
+                } finally {
+                    tileReadAggregator.shutdown();
+                }
+            } else {
+                new TileOrderWriter(tiles).process();
             }
 
             for (final Map.Entry<Byte, Integer> entry : bclQualityEvaluationStrategy.getPoorQualityFrequencies().entrySet()) {
@@ -334,6 +369,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             } catch (final Throwable ex) {
                 log.warn(ex, "Ignoring exception stopping background GC thread.");
             }
+            if (bclReadAhead != null) bclReadAhead.close();
             // Close the writers
             for (final Map.Entry<String, ? extends ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD>> entry : barcodeRecordWriterMap.entrySet()) {
                 final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer = entry.getValue();
@@ -550,6 +586,8 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         public void process() {
             final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(this.tile.getNumber()));
             log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
+            final boolean releaseClusters = converter.copiesClusterData();
+            final boolean reuseArrays = !converter.keepsReadArrays();
 
             while (dataProvider.hasNext()) {
                 final ClusterData cluster = dataProvider.next();
@@ -559,6 +597,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     final String barcode = (demultiplex ? cluster.getMatchedBarcode() : null);
                     this.processingRecord.addRecord(barcode, converter.convertClusterToOutputRecord(cluster));
                 }
+                if (releaseClusters) dataProvider.release(cluster, reuseArrays);
             }
 
             this.handler.completeTile(this.tile);
@@ -887,6 +926,167 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         }
     }
 
+    /**
+     * A record read from a tile, and the barcode whose writer it goes to.
+     */
+    private class BarcodedRecord {
+        private final String barcode;
+        private final CLUSTER_OUTPUT_RECORD record;
+
+        private BarcodedRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
+            this.barcode = barcode;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Reads tiles on numThreads threads and writes their records in the order in which they are read, without sorting
+     * within tiles.  The earliest tile that has not been completely read writes its records straight to the writers;
+     * records from later tiles are held in memory until every tile before them has been written.  At most
+     * maxReadsInRamPerTile records per thread are held, so a reader that gets too far ahead of the earliest tile waits
+     * for it.
+     * <p/>
+     * Tiles are read in order on a fixed pool, so the earliest tile that is not done is always being read and a waiting
+     * reader always makes progress eventually.  All writing happens while holding this object's monitor.
+     */
+    private class TileOrderWriter {
+        /** Number of records a reader converts before handing them over, so that the monitor is not taken per record. */
+        private static final int BATCH_SIZE = 1000;
+
+        private final List<Tile> tiles;
+        /** For each tile after the one being written, the records read so far; null once the tile is being written. */
+        private final List<List<BarcodedRecord>> heldRecords = new ArrayList<List<BarcodedRecord>>();
+        private final boolean[] doneReading;
+        private final long maxHeldRecords;
+        private long heldRecordCount = 0;
+        /** The index of the tile whose records are written as they are read. */
+        private int writingTile = 0;
+
+        public TileOrderWriter(final List<Tile> tiles) {
+            this.tiles = tiles;
+            for (int i = 0; i < tiles.size(); ++i) {
+                heldRecords.add(new ArrayList<BarcodedRecord>());
+            }
+            this.doneReading = new boolean[tiles.size()];
+            this.maxHeldRecords = Math.max(1L, (long) maxReadsInRamPerTile * numThreads);
+        }
+
+        /**
+         * Reads and writes all the tiles, and returns once they have all been written.  The first error thrown by a
+         * reader is rethrown.
+         */
+        public void process() {
+            final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (int i = 0; i < tiles.size(); ++i) {
+                    final int tileIndex = i;
+                    futures.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            readTile(tileIndex);
+                        }
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (final InterruptedException ie) {
+                        throw new PicardException("Interrupted waiting for tiles to be read.", ie);
+                    } catch (final ExecutionException ee) {
+                        final Throwable cause = ee.getCause();
+                        if (cause instanceof Error) throw (Error) cause;
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        throw new PicardException("Error reading tile.", cause);
+                    }
+                }
+            } finally {
+                // Interrupts any reader still waiting for an earlier tile that failed
+                pool.shutdownNow();
+            }
+        }
+
+        private void readTile(final int tileIndex) {
+            final Tile tile = tiles.get(tileIndex);
+            final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(tile.getNumber()));
+            log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
+
+            final boolean releaseClusters = converter.copiesClusterData();
+            final boolean reuseArrays = !converter.keepsReadArrays();
+            List<BarcodedRecord> batch = new ArrayList<BarcodedRecord>(BATCH_SIZE);
+            long recordCount = 0;
+            while (dataProvider.hasNext()) {
+                final ClusterData cluster = dataProvider.next();
+                readProgressLogger.record(null, 0);
+                if (cluster.isPf() || includeNonPfReads) {
+                    final String barcode = (demultiplex ? cluster.getMatchedBarcode() : null);
+                    if (barcodeRecordWriterMap.containsKey(barcode)) {
+                        batch.add(new BarcodedRecord(barcode, converter.convertClusterToOutputRecord(cluster)));
+                    } else if (!ignoreUnexpectedBarcodes) {
+                        throw new PicardException(String.format("Read records with barcode %s, but this barcode was not expected.  (Is it referenced in the parameters file?)", barcode));
+                    }
+                    if (batch.size() == BATCH_SIZE) {
+                        addRecords(tileIndex, batch);
+                        recordCount += batch.size();
+                        batch = new ArrayList<BarcodedRecord>(BATCH_SIZE);
+                    }
+                }
+                if (releaseClusters) dataProvider.release(cluster, reuseArrays);
+            }
+            addRecords(tileIndex, batch);
+            recordCount += batch.size();
+            dataProvider.close();
+
+            log.debug(String.format("Completed reading tile %s; collected %s reads.", tile.getNumber(), recordCount));
+            completeTile(tileIndex);
+        }
+
+        /**
+         * Writes the records if they are from the tile being written, and otherwise holds them, first waiting for
+         * earlier tiles if too many records are already held.
+         */
+        private synchronized void addRecords(final int tileIndex, final List<BarcodedRecord> batch) {
+            try {
+                while (tileIndex != writingTile && heldRecordCount > 0 && heldRecordCount + batch.size() > maxHeldRecords) {
+                    wait();
+                }
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for earlier tiles to be written.", ie);
+            }
+
+            if (tileIndex == writingTile) {
+                write(batch);
+            } else {
+                heldRecords.get(tileIndex).addAll(batch);
+                heldRecordCount += batch.size();
+            }
+        }
+
+        /**
+         * Marks the tile as read and, if it was the tile being written, moves on to the next tile that has not been
+         * completely read, writing the held records of every tile on the way.
+         */
+        private synchronized void completeTile(final int tileIndex) {
+            doneReading[tileIndex] = true;
+            while (writingTile < tiles.size() && doneReading[writingTile]) {
+                ++writingTile;
+                if (writingTile < tiles.size()) {
+                    final List<BarcodedRecord> records = heldRecords.set(writingTile, null);
+                    write(records);
+                    heldRecordCount -= records.size();
+                }
+            }
+            notifyAll();
+        }
+
+        private void write(final List<BarcodedRecord> records) {
+            for (final BarcodedRecord barcodedRecord : records) {
+                barcodeRecordWriterMap.get(barcodedRecord.barcode).write(barcodedRecord.record);
+                writeProgressLogger.record(null, 0);
+            }
+        }
+    }
+
     /**
      * Given a read structure return the data types that need to be parsed for this run
      */
@@ -905,6 +1105,22 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          * Creates the OUTPUT_RECORDs from the cluster
          */
         public OUTPUT_RECORD convertClusterToOutputRecord(final ClusterData cluster);
+
+        /**
+         * Whether the OUTPUT_RECORDs keep no reference to the cluster or its reads, so that the cluster can be released
+         * to the IlluminaDataProvider and reused once it has been converted.
+         */
+        public default boolean copiesClusterData() {
+            return false;
+        }
+
+        /**
+         * Whether the OUTPUT_RECORDs hold on to the reads' base and quality arrays, so that a released cluster must
+         * be given new arrays rather than have the next cluster filled into its own.
+         */
+        public default boolean keepsReadArrays() {
+            return false;
+        }
     }
 
     public static interface ConvertedClusterDataWriter<OUTPUT_RECORD> {
@@ -162,6 +162,12 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
             " be the number available on the machine less NUM_PROCESSORS.")
     public Integer NUM_PROCESSORS = 0;
 
+    @Option(doc = "The number of threads, shared by all tiles, that decompress gzipped and BGZF BCL files ahead of the " +
+            "tile readers, so that one tile's cycles are decompressed in parallel.  Useful when there are fewer tiles " +
+            "than processors.  If 1, each tile decompresses its own files.  0 and negative values are interpreted as " +
+            "for NUM_PROCESSORS.")
+    public int BCL_INFLATE_THREADS = 1;
+
     @Option(doc = "If set, this is the first tile to be processed (used for debugging).  Note that tiles are not processed" +
             " in numerical order.",
             optional = true)
@@ -182,6 +188,12 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
             " run, each SortingCollection gets this value/number of indices.")
     public int MAX_READS_IN_RAM_PER_TILE = 1200000;
 
+    @Option(doc = "If false, each tile's reads are written in the order in which they are read rather than sorted by read " +
+            "name, and tiles are written as soon as all earlier tiles are, so nothing is spilled to disk.  Reads " +
+            "are still grouped by tile, and at most MAX_READS_IN_RAM_PER_TILE reads per processor are held while " +
+            "waiting for earlier tiles.  Unlike sorted output, clusters with identical coordinates are all kept.")
+    public boolean SORT_WITHIN_TILES = true;
+
     @Option(doc="The minimum quality (after transforming 0s to 1s) expected from reads.  If qualities are lower than this value, an error is thrown." +
             "The default of 2 is what the Illumina's spec describes as the minimum, but in practice the value has been observed lower.")
     public int MINIMUM_QUALITY = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY;
@@ -275,6 +287,8 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
                 new FastqRecordsForClusterCodec(readStructure.templates.length(),
                         readStructure.sampleBarcodes.length(), readStructure.molecularBarcode.length()), FastqRecordsForCluster.class, bclQualityEvaluationStrategy,
                 this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS, IGNORE_UNEXPECTED_BARCODES);
+        basecallsConverter.setBclInflateThreads(BCL_INFLATE_THREADS);
+        basecallsConverter.setSortWithinTiles(SORT_WITHIN_TILES);
 
         log.info("READ STRUCTURE IS " + readStructure.toString());
 
@@ -468,6 +482,12 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
             return ret;
         }
 
+        /** FastqRecords hold Strings made from the bases and qualities, so clusters can be reused. */
+        @Override
+        public boolean copiesClusterData() {
+            return true;
+        }
+
         private void makeFastqRecords(final FastqRecord[] recs, final int[] indices,
                                       final ClusterData cluster, final boolean appendReadNumberSuffix) {
             for (short i = 0; i < indices.length; ++i) {
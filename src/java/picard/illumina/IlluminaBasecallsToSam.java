@@ -25,6 +25,7 @@
 package picard.illumina;
 
 import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.BamFileIoUtils;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
@@ -46,9 +47,12 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.ReadType;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.sam.util.ParallelBamWriter;
+import picard.util.BlockCompressorPool;
 import picard.util.IlluminaUtil;
 import picard.util.IlluminaUtil.IlluminaAdapterPair;
 import picard.util.TabbedTextFileWithHeaderParser;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.io.InputStream;
@@ -208,6 +212,18 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             " be the number available on the machine less NUM_PROCESSORS.")
     public Integer NUM_PROCESSORS = 0;
 
+    @Option(doc = "The number of threads, shared by all tiles, that decompress gzipped and BGZF BCL files ahead of the " +
+            "tile readers, so that one tile's cycles are decompressed in parallel.  Useful when there are fewer tiles " +
+            "than processors.  If 1, each tile decompresses its own files.  0 and negative values are interpreted as " +
+            "for NUM_PROCESSORS.")
+    public int BCL_INFLATE_THREADS = 1;
+
+    @Option(doc = "The number of threads, shared by all BAM outputs, that compress their BGZF blocks.  Useful when " +
+            "demultiplexing many barcodes, as otherwise each output is compressed on whichever thread writes to it.  " +
+            "If 1, each output compresses its own blocks.  0 and negative values are interpreted as for " +
+            "NUM_PROCESSORS.  Outputs that are not BAM files are unaffected.")
+    public int COMPRESSION_THREADS = 1;
+
     @Option(doc = "If set, this is the first tile to be processed (used for debugging).  Note that tiles are not processed" +
             " in numerical order.",
             optional = true)
@@ -228,6 +244,12 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             " run, each SortingCollection gets this value/number of indices.")
     public int MAX_READS_IN_RAM_PER_TILE = 1200000;
 
+    @Option(doc = "If false, each tile's reads are written in the order in which they are read rather than sorted by read " +
+            "name, and tiles are written as soon as all earlier tiles are, so nothing is spilled to disk.  The output's header is then marked unsorted.  Reads " +
+            "are still grouped by tile, and at most MAX_READS_IN_RAM_PER_TILE reads per processor are held while " +
+            "waiting for earlier tiles.  Unlike sorted output, clusters with identical coordinates are all kept.")
+    public boolean SORT_WITHIN_TILES = true;
+
     @Option(doc="The minimum quality (after transforming 0s to 1s) expected from reads.  If qualities are lower than this value, an error is thrown." +
             "The default of 2 is what the Illumina's spec describes as the minimum, but in practice the value has been observed lower.")
     public int MINIMUM_QUALITY = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY;
@@ -254,14 +276,37 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
     IlluminaBasecallsConverter<SAMRecordsForCluster> basecallsConverter;
     private static final Log log = Log.getInstance(IlluminaBasecallsToSam.class);
     private BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
+    // Non-null if BAM outputs are compressed on threads shared by all of them.
+    private BlockCompressorPool compressorPool = null;
+    private int blocksInFlightPerWriter;
 
     @Override
     protected int doWork() {
         initialize();
-        basecallsConverter.doTileProcessing();
+        try {
+            basecallsConverter.doTileProcessing();
+        } finally {
+            if (compressorPool != null) compressorPool.close();
+        }
+        logCompressionStatistics();
         return 0;
     }
 
+    /**
+     * Logs, for each output compressed on the shared threads, how much it was compressed and how long that took.
+     */
+    private void logCompressionStatistics() {
+        for (final Map.Entry<String, SAMFileWriterWrapper> entry : barcodeSamWriterMap.entrySet()) {
+            if (!(entry.getValue().writer instanceof ParallelBamWriter)) continue;
+            final ParallelBamWriter writer = (ParallelBamWriter) entry.getValue().writer;
+            log.info(String.format("Barcode %s: compressed %d bytes to %d bytes in %d ms.",
+                    entry.getKey(),
+                    writer.getBlockCompressedStream().getUncompressedBytes(),
+                    writer.getBlockCompressedStream().getCompressedBytes(),
+                    writer.getBlockCompressedStream().getCompressionTimeNanos() / 1000000));
+        }
+    }
+
     /**
      * Prepares loggers, initiates garbage collection thread, parses arguments and initialized variables appropriately/
      */
@@ -276,6 +321,14 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             IOUtil.assertFileIsReadable(LIBRARY_PARAMS);
         }
 
+        final int compressionThreads = ThreadUtil.resolveThreadCount(COMPRESSION_THREADS);
+        if (compressionThreads > 1) {
+            compressorPool = new BlockCompressorPool(compressionThreads);
+            // A single output can keep every thread busy, but many barcodes' outputs are written at once, and blocks
+            // waiting to be written are held per output, so each of those gets only a couple.
+            blocksInFlightPerWriter = OUTPUT != null ? 2 * compressionThreads : 2;
+        }
+
         if (OUTPUT != null) {
             barcodeSamWriterMap.put(null, buildSamFileWriter(OUTPUT, SAMPLE_ALIAS, LIBRARY_NAME, buildSamHeaderParameters(null)));
         } else {
@@ -288,6 +341,8 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
                 barcodeSamWriterMap, true, MAX_READS_IN_RAM_PER_TILE/numOutputRecords, TMP_DIR, NUM_PROCESSORS, FORCE_GC,
                 FIRST_TILE, TILE_LIMIT, new QueryNameComparator(), new Codec(numOutputRecords), SAMRecordsForCluster.class,
                 bclQualityEvaluationStrategy, this.APPLY_EAMSS_FILTER, INCLUDE_NON_PF_READS, IGNORE_UNEXPECTED_BARCODES);
+        basecallsConverter.setBclInflateThreads(BCL_INFLATE_THREADS);
+        basecallsConverter.setSortWithinTiles(SORT_WITHIN_TILES);
 
         log.info("DONE_READING STRUCTURE IS " + readStructure.toString());
 
@@ -455,8 +510,12 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
 
         final SAMFileHeader header = new SAMFileHeader();
 
-        header.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        header.setSortOrder(SORT_WITHIN_TILES ? SAMFileHeader.SortOrder.queryname : SAMFileHeader.SortOrder.unsorted);
         header.addReadGroup(rg);
+        if (compressorPool != null && output.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+            return new SAMFileWriterWrapper(new ParallelBamWriter(header, output, COMPRESSION_LEVEL, compressorPool,
+                    blocksInFlightPerWriter, false, CREATE_MD5_FILE));
+        }
         return new SAMFileWriterWrapper(new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, output));
     }
 
@@ -24,8 +24,8 @@
 package picard.illumina.parser;
 
 
-import htsjdk.samtools.util.CloseableIterator;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BclReadAhead;
 import picard.illumina.parser.readers.BclReader;
 
 import java.io.File;
@@ -49,6 +49,7 @@ class BclParser extends PerTileCycleParser<BclData> {
     private static final Set<IlluminaDataType> SUPPORTED_TYPES = Collections.unmodifiableSet(makeSet(IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores));
 
     protected final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
+    protected final BclReadAhead bclReadAhead;
     private final boolean applyEamssFilter;
 
     public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy) {
@@ -57,8 +58,16 @@ class BclParser extends PerTileCycleParser<BclData> {
     }
 
     public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping, final boolean applyEamssFilter, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy) {
+        this(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, null);
+    }
+
+    /** @param bclReadAhead if not null, the pool on which compressed BCL files are decompressed ahead of the readers */
+    public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping,
+                     final boolean applyEamssFilter, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                     final BclReadAhead bclReadAhead) {
         super(directory, lane, tilesToCycleFiles, outputMapping);
         this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
+        this.bclReadAhead = bclReadAhead;
         this.applyEamssFilter = applyEamssFilter;
         this.initialize();
     }
@@ -263,11 +272,11 @@ class BclParser extends PerTileCycleParser<BclData> {
     }
 
     private class BclDataCycleFileParser implements CycleFilesParser<BclData> {
-        final CloseableIterator<BclData> reader;
+        final BclReader reader;
 
         public BclDataCycleFileParser(final List<File> files) {
             reader = new BclReader(files, outputMapping.getOutputReadLengths(),
-                    bclQualityEvaluationStrategy, false);
+                    bclQualityEvaluationStrategy, false, bclReadAhead);
         }
 
         @Override
@@ -283,6 +292,11 @@ class BclParser extends PerTileCycleParser<BclData> {
             return reader.next();
         }
 
+        @Override
+        public void recycle(final BclData data) {
+            reader.recycle(data);
+        }
+
         @Override
         public boolean hasNext() {
             try {
@@ -54,6 +54,22 @@ public class ClusterData {
         }
     }
 
+    /** Unsets everything but the reads' types, so that this can be filled with another cluster. */
+    void clear() {
+        lane = -1;
+        tile = -1;
+        x = -1;
+        y = -1;
+        pf = null;
+        matchedBarcode = null;
+        for (final ReadData read : reads) {
+            read.setBases(null);
+            read.setQualities(null);
+            read.setRawIntensities(null);
+            read.setNoise(null);
+        }
+    }
+
     public String toString() {
         return "ClusterData(lane: " + lane + "; tile: " + tile + "; x: " + x + "; y: " + y + "; pf: " + pf +
                 "; matchedBarcode: " + matchedBarcode + ")";
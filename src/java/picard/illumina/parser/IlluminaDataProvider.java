@@ -61,6 +61,13 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
     /** Number of reads in each ClusterData */
     private final int numReads;
 
+    /** The cluster most recently returned by next(), and the data each parser returned for it, for release(). */
+    private ClusterData lastCluster = null;
+    private final IlluminaData[] lastParserData;
+
+    /** A released cluster, to be filled by next() instead of allocating one. */
+    private ClusterData spareCluster = null;
+
     /**
      * Create an IlluminaDataProvider given a map of parsersToDataTypes for particular file formats.  Compute once the miscellaneous data for the
      * run that will be passed to each ClusterData.
@@ -89,6 +96,7 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
             dataTypes[i] = new IlluminaDataType[dts.size()];
             dts.toArray(dataTypes[i++]);
         }
+        lastParserData = new IlluminaData[numParsers];
 
         this.outputReadTypes = new ReadType[numReads];
         i = 0;
@@ -121,7 +129,14 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
             throw new NoSuchElementException();
         }
 
-        final ClusterData cluster = new ClusterData(outputReadTypes);
+        final ClusterData cluster;
+        if (spareCluster != null) {
+            cluster = spareCluster;
+            spareCluster = null;
+            cluster.clear();
+        } else {
+            cluster = new ClusterData(outputReadTypes);
+        }
         cluster.setLane(lane);
 
         //IMPORTANT NOTE: This assignment to tile MUST happen BEFORE the loop below because getTileOfNextCluster
@@ -131,6 +146,7 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
 
         for (int i = 0; i < parsers.length; i++) {
             final IlluminaData ilData = parsers[i].next();
+            lastParserData[i] = ilData;
             for (final IlluminaDataType ilDataType : dataTypes[i]) {
                 switch (ilDataType) {
                     case Position:
@@ -159,9 +175,36 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
             }
         }
 
+        lastCluster = cluster;
         return cluster;
     }
 
+    /**
+     * Hands back the cluster most recently returned by next() once the caller is done with it, so that the next
+     * cluster is filled into it, and into its reads' base and quality arrays, rather than into newly allocated ones.
+     * The caller must not keep any reference to the cluster, its reads or their arrays afterwards. Releasing any other
+     * cluster does nothing.
+     */
+    public void release(final ClusterData cluster) {
+        release(cluster, true);
+    }
+
+    /**
+     * As release(cluster), but when reuseArrays is false only the ClusterData and its ReadData are reused: the next
+     * cluster's reads are given newly allocated arrays, so the caller may keep the released reads' base and quality
+     * arrays, though not the cluster or its reads.
+     */
+    @SuppressWarnings("unchecked")
+    public void release(final ClusterData cluster, final boolean reuseArrays) {
+        if (cluster == null || cluster != lastCluster) return;
+        lastCluster = null;
+        for (int i = 0; i < parsers.length; i++) {
+            if (reuseArrays) parsers[i].recycle(lastParserData[i]);
+            lastParserData[i] = null;
+        }
+        spareCluster = cluster;
+    }
+
     /*
      * Methods for that transfer data from the IlluminaData objects to the current cluster
      */
@@ -29,6 +29,7 @@ import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
 import picard.illumina.parser.IlluminaFileUtil.SupportedIlluminaFormat;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BclReadAhead;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -112,6 +113,9 @@ public class IlluminaDataProviderFactory {
     private final OutputMapping outputMapping;
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
 
+    /** If not null, the pool on which compressed BCL files are decompressed ahead of the readers. */
+    private BclReadAhead bclReadAhead = null;
+
     /**
 	 * Create factory with the specified options, one that favors using QSeqs over all other files
 	 *
@@ -207,6 +211,11 @@ public class IlluminaDataProviderFactory {
         this.applyEamssFiltering = applyEamssFiltering;
     }
 
+    /** Sets the pool on which compressed BCL files are decompressed ahead of the readers, or null to read them serially. */
+    public void setBclReadAhead(final BclReadAhead bclReadAhead) {
+        this.bclReadAhead = bclReadAhead;
+    }
+
     /**
      * Call this method to create a ClusterData iterator over all clusters for all tiles in ascending numeric order.
      *
@@ -348,7 +357,8 @@ public class IlluminaDataProviderFactory {
                 final CycleIlluminaFileMap bclFileMap = ((PerTilePerCycleFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.Bcl))
                         .getFiles(requestedTiles, outputMapping.getOutputCycles());
                 bclFileMap.assertValid(requestedTiles, outputMapping.getOutputCycles());
-                parser = new BclParser(basecallDirectory, lane, bclFileMap, outputMapping, this.applyEamssFiltering, bclQualityEvaluationStrategy);
+                parser = new BclParser(basecallDirectory, lane, bclFileMap, outputMapping, this.applyEamssFiltering, bclQualityEvaluationStrategy,
+                        bclReadAhead);
                 break;
             }
 
@@ -377,7 +387,7 @@ public class IlluminaDataProviderFactory {
                 final CycleIlluminaFileMap bclFileMap = util.getFiles(requestedTiles, outputMapping.getOutputCycles());
                 bclFileMap.assertValid(requestedTiles, outputMapping.getOutputCycles());
                 parser = new MultiTileBclParser(basecallDirectory, lane, bclFileMap, outputMapping,
-                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex);
+                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex, bclReadAhead);
                 break;
             }
 
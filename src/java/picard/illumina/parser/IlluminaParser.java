@@ -67,6 +67,13 @@ interface IlluminaParser<DATA_TYPE extends IlluminaData> extends Iterator<DATA_T
      */
     void verifyData(final List<Integer> tiles, final int[] cycles);
 
+    /**
+     * Hands back an object returned by next() that the caller no longer references, so that the parser may fill it
+     * with a later cluster rather than allocating another.  Parsers that do not reuse their objects ignore it.
+     */
+    default void recycle(final DATA_TYPE data) {
+    }
+
     /** The DataTypes that this parser can provide */
     Set<IlluminaDataType> supportedTypes();
 
@@ -25,6 +25,7 @@ package picard.illumina.parser;
 
 import htsjdk.samtools.util.CloseableIterator;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BclReadAhead;
 import picard.illumina.parser.readers.BclReader;
 
 import java.io.File;
@@ -42,7 +43,14 @@ public class MultiTileBclParser extends BclParser {
                               final OutputMapping outputMapping, final boolean applyEamssFilter,
                               final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
                               final TileIndex tileIndex) {
-        super(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy);
+        this(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, tileIndex, null);
+    }
+
+    public MultiTileBclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles,
+                              final OutputMapping outputMapping, final boolean applyEamssFilter,
+                              final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                              final TileIndex tileIndex, final BclReadAhead bclReadAhead) {
+        super(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, bclReadAhead);
         this.tileIndex = tileIndex;
         this.initialize();
     }
@@ -56,7 +64,7 @@ public class MultiTileBclParser extends BclParser {
 
     private CountLimitedIterator makeReader(final List<File> files) {
         if(tileIndex != null) {
-            final BclReader bclReader = BclReader.makeSeekable(files, bclQualityEvaluationStrategy, outputMapping.getOutputReadLengths());
+            final BclReader bclReader = BclReader.makeSeekable(files, bclQualityEvaluationStrategy, outputMapping.getOutputReadLengths(), bclReadAhead);
             final int numClustersInTile = bclReader.seek(files, tileIndex, currentTile);
             return new CountLimitedIterator(bclReader, numClustersInTile);
         }
@@ -147,6 +155,11 @@ public class MultiTileBclParser extends BclParser {
             return reader.next();
         }
 
+        @Override
+        public void recycle(final BclData data) {
+            reader.getUnderlyingIterator().recycle(data);
+        }
+
         @Override
         public boolean hasNext() {
             try {
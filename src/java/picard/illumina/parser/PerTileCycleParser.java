@@ -113,6 +113,10 @@ abstract class PerTileCycleParser<ILLUMINA_DATA extends IlluminaData> implements
         public ILLUMINA_DATA next();
 
         public boolean hasNext();
+
+        /** Hands back an object returned by next() for reuse; ignored unless the parser reuses its objects. */
+        default void recycle(final ILLUMINA_DATA data) {
+        }
     }
 
     /**
@@ -162,6 +166,11 @@ abstract class PerTileCycleParser<ILLUMINA_DATA extends IlluminaData> implements
         return cycleFilesParser.hasNext() || currentTile < tileOrder.last();
     }
 
+    @Override
+    public void recycle(final ILLUMINA_DATA data) {
+        cycleFilesParser.recycle(data);
+    }
+
     /**
      * Returns the tile of the next cluster that will be returned by PerTilePerCycleParser and therefore should be called before
      * next() if you want to know the tile for the data returned by next()
@@ -46,7 +46,7 @@ public class BclQualityEvaluationStrategy {
     }
 
     /** The rule used to revise quality scores, which is: if it's less than 1, make it 1. */
-    private static byte generateRevisedQuality(final byte quality) { return (byte) Math.max(quality, 1); }
+    static byte generateRevisedQuality(final byte quality) { return (byte) Math.max(quality, 1); }
     
     /**
      * Accepts a quality read from a BCL file and (1) returns a 1 if the value was 0 and (2) makes a note of the provided quality if it is
@@ -63,6 +63,17 @@ public class BclQualityEvaluationStrategy {
         return revisedQuality;
     }
 
+    /**
+     * Makes a note of count observations of a quality read from a BCL file, as that many calls to
+     * {@link #reviseAndConditionallyLogQuality(byte)} would.  For readers that count low qualities themselves and
+     * report them in bulk.
+     */
+    public void logQuality(final byte quality, final int count) {
+        if (count > 0 && quality < ILLUMINA_ALLEGED_MINIMUM_QUALITY) {
+            qualityCountMap.get(quality).addAndGet(count);
+        }
+    }
+
     /**
      * Reviews the qualities observed thus far and throws an exception if any are below the minimum quality threshold.
      */
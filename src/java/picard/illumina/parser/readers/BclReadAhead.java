@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.illumina.parser.readers;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of threads, shared by the BclReaders of all tiles, on which compressed cycle files are decompressed ahead of
+ * the readers.  A reader that reads ahead decompresses the next block of clusters from all of its cycle files at once,
+ * one task per cycle, while it hands out the current block, so a single tile can keep many cores busy.
+ *
+ * The buffers of all the readers that read ahead fit in a fixed memory budget; a reader that cannot reserve its
+ * buffers when it starts reads its files on its own thread instead, as if there were no pool.
+ */
+public class BclReadAhead implements Closeable {
+    private static volatile int threadsCreated = 0; // Just used for thread naming.
+
+    private final ExecutorService pool;
+    private final long maxBytes;
+    private long reservedBytes = 0;
+
+    /**
+     * @param threads  number of decompressing threads, at least one
+     * @param maxBytes the most memory that the buffers of all reading-ahead readers may take at once
+     */
+    public BclReadAhead(final int threads, final long maxBytes) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        this.maxBytes = maxBytes;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "BclInflater" + threadsCreated++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** @return true if bytes were reserved from the budget, in which case they must be given back with release() */
+    synchronized boolean reserve(final long bytes) {
+        if (reservedBytes + bytes > maxBytes) return false;
+        reservedBytes += bytes;
+        return true;
+    }
+
+    synchronized void release(final long bytes) {
+        reservedBytes -= bytes;
+    }
+
+    <T> Future<T> submit(final Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Stops the threads once they have finished the reads already started, so that readers waiting on them are not
+     * left hanging; readers must not start reading ahead afterwards.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
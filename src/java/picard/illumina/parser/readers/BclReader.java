@@ -41,7 +41,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -71,12 +74,43 @@ import java.util.zip.GZIPInputStream;
  * 34          T
  * <p/>
  * So the output base/quality will be a (T/34)
+ * <p/>
+ * Clusters are decoded a block at a time: the bytes for CLUSTERS_PER_BLOCK clusters are read from each cycle's file
+ * with one call, decoded through a table of the base and revised quality for each of the 256 byte values, and
+ * transposed into cluster-major buffers that are reused from block to block.  Low qualities are counted locally and
+ * passed to the BclQualityEvaluationStrategy once per block.
+ * <p/>
+ * Given a BclReadAhead, a reader of gzipped or BGZF files decompresses larger blocks on the BclReadAhead's threads,
+ * one task per cycle file, reading the next block while the current one is handed out.
  */
 public class BclReader implements CloseableIterator<BclData> {
     private static final byte BASE_MASK = 0x0003;
     private static final int HEADER_SIZE = 4;
     private static final byte[] BASE_LOOKUP = new byte[]{'A', 'C', 'G', 'T'};
 
+    /** Number of clusters read from each cycle file and decoded at a time. */
+    static final int CLUSTERS_PER_BLOCK = 1024;
+
+    /** Number of clusters read from each cycle file and decoded at a time when reading ahead. */
+    static final int READ_AHEAD_CLUSTERS_PER_BLOCK = 16 * 1024;
+
+    /** Bytes below this have a quality below the Illumina minimum, except 0 which is a no call. */
+    private static final int LOW_QUALITY_BYTE_LIMIT = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY << 2;
+
+    /** The base, and the revised quality, for each byte value that can be read from a BCL file. */
+    private static final byte[] DECODED_BASES = new byte[256];
+    private static final byte[] DECODED_QUALITIES = new byte[256];
+
+    static {
+        //NO CALL, don't confuse with an A call
+        DECODED_BASES[0] = (byte) '.';
+        DECODED_QUALITIES[0] = (byte) 2;
+        for (int readByte = 1; readByte < 256; ++readByte) {
+            DECODED_BASES[readByte] = BASE_LOOKUP[readByte & BASE_MASK];
+            DECODED_QUALITIES[readByte] = BclQualityEvaluationStrategy.generateRevisedQuality((byte) (readByte >>> 2));
+        }
+    }
+
     private final InputStream[] streams;
     private final File[] streamFiles;
     private final int[] outputLengths;
@@ -84,12 +118,44 @@ public class BclReader implements CloseableIterator<BclData> {
 
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private BclData queue = null;
+    /** A BclData handed back by recycle(), to be filled with the next cluster instead of allocating one. */
+    private BclData spare = null;
+
+    /** Null unless the cycle files are compressed and may be read ahead. */
+    private final BclReadAhead readAhead;
+    /** The memory reserved from readAhead, or 0 if this reader is not reading ahead. */
+    private long readAheadBytes = 0;
+    private int clustersPerBlock = CLUSTERS_PER_BLOCK;
+    /** When reading ahead, the arrays that the next block is being read into, and the reads of each cycle. */
+    private byte[][] nextBlockBytes = null;
+    private List<Future<Integer>> nextBlockReads = null;
+
+    /** The undecoded bytes of the current block, one array per cycle. */
+    private byte[][] blockBytes = null;
+    /** The decoded bases and qualities of the current block, all the cycles of one cluster after another. */
+    private byte[] blockBases = null;
+    private byte[] blockQualities = null;
+    /** Number of occurrences in the current block of each quality below the Illumina minimum. */
+    private final int[] lowQualityCounts = new int[BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY];
+    private int clustersInBlock = 0;
+    private int nextClusterInBlock = 0;
 
     public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
+        this(bclsForOneTile, outputLengths, bclQualityEvaluationStrategy, seekable, null);
+    }
+
+    /**
+     * @param readAhead if not null, and the files are gzipped or BGZF, the pool on which they are decompressed ahead
+     *                  of this reader
+     */
+    public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
+                     final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable,
+                     final BclReadAhead readAhead) {
         try {
             this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
             this.outputLengths = outputLengths;
+            boolean compressed = false;
 
             int cycles = 0;
             for (final int outputLength : outputLengths) {
@@ -111,6 +177,7 @@ public class BclReader implements CloseableIterator<BclData> {
                 final String filePath = bclFile.getName();
                 final boolean isGzip = filePath.endsWith(".gz");
                 final boolean isBgzf = filePath.endsWith(".bgzf");
+                compressed |= isGzip || isBgzf;
                 final InputStream stream = open(bclFile, seekable, isGzip, isBgzf);
                 final int read = stream.read(byteBuffer.array());
                 if (read != HEADER_SIZE) {
@@ -125,6 +192,7 @@ public class BclReader implements CloseableIterator<BclData> {
                 this.streamFiles[i] =  bclFile;
                 byteBuffer.clear();
             }
+            this.readAhead = compressed ? readAhead : null;
         } catch (final IOException ioe) {
             throw new RuntimeIOException(ioe);
         }
@@ -180,6 +248,7 @@ public class BclReader implements CloseableIterator<BclData> {
             this.streamFiles = new File[1];
             this.numClustersPerCycle = new int[]{1};
             this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
+            this.readAhead = null;
 
             final ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_SIZE);
             final String filePath = bclFile.getName();
@@ -245,6 +314,11 @@ public class BclReader implements CloseableIterator<BclData> {
     }
 
     public void close() {
+        discardReadAhead();
+        if (readAheadBytes > 0) {
+            readAhead.release(readAheadBytes);
+            readAheadBytes = 0;
+        }
         for (final InputStream stream : this.streams) {
             CloserUtil.close(stream);
         }
@@ -280,55 +354,181 @@ public class BclReader implements CloseableIterator<BclData> {
         return data;
     }
 
+    /**
+     * Hands back a BclData returned by next() that the caller no longer references, so that it is filled with a later
+     * cluster rather than a new one being allocated.  It must have come from this reader, or one with the same output
+     * lengths.
+     */
+    public void recycle(final BclData data) {
+        spare = data;
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
     }
 
     void advance() {
-        int totalCycleCount = 0;
-        final BclData data = new BclData(outputLengths);
+        if (nextClusterInBlock == clustersInBlock && !readBlock()) {
+            queue = null;
+            return;
+        }
+
+        // The cycles of a cluster are contiguous in the block, in read order, so each read is a single copy
+        final BclData data = spare != null ? spare : new BclData(outputLengths);
+        spare = null;
+        int offset = nextClusterInBlock * streams.length;
         for (int read = 0; read < outputLengths.length; read++) {
-            for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
-                try {
+            System.arraycopy(blockBases, offset, data.bases[read], 0, outputLengths[read]);
+            System.arraycopy(blockQualities, offset, data.qualities[read], 0, outputLengths[read]);
+            offset += outputLengths[read];
+        }
+        ++nextClusterInBlock;
+        this.queue = data;
+    }
 
-                    final int readByte;
-                    try {
-                        readByte = this.streams[totalCycleCount].read();
-                    } catch (IOException e) {
-                        // when logging the error, increment cycle by 1, since totalCycleCount is zero-indexed but Illumina directories are 1-indexed.
-                        throw new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
-                                (totalCycleCount+1), this.streamFiles[totalCycleCount].getAbsolutePath()), e);
-                    }
+    /**
+     * Reads and decodes the next block of clusters.  A block ends early at the end of the shortest cycle file, as
+     * reading cluster by cluster would.
+     *
+     * @return false if there are no more clusters
+     */
+    private boolean readBlock() {
+        final int cycles = streams.length;
+        if (blockBytes == null) allocateBlocks();
+
+        int clusters;
+        if (readAheadBytes > 0) {
+            if (nextBlockReads == null) startReadingAhead();
+            clusters = finishReadingAhead();
+            if (clusters > 0) startReadingAhead();
+        } else {
+            clusters = clustersPerBlock;
+            for (int cycle = 0; cycle < cycles && clusters > 0; ++cycle) {
+                clusters = readFully(cycle, blockBytes[cycle], clusters);
+            }
+        }
 
-                    if (readByte == -1) {
-                        queue = null;
-                        return;
-                    }
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            final byte[] bytes = blockBytes[cycle];
+            for (int cluster = 0, i = cycle; cluster < clusters; ++cluster, i += cycles) {
+                final int readByte = bytes[cluster] & 0xFF;
+                blockBases[i] = DECODED_BASES[readByte];
+                blockQualities[i] = DECODED_QUALITIES[readByte];
+                if (readByte < LOW_QUALITY_BYTE_LIMIT && readByte != 0) ++lowQualityCounts[readByte >>> 2];
+            }
+        }
+        for (int quality = 0; quality < lowQualityCounts.length; ++quality) {
+            bclQualityEvaluationStrategy.logQuality((byte) quality, lowQualityCounts[quality]);
+            lowQualityCounts[quality] = 0;
+        }
 
-                    if (readByte == 0) {
-                        //NO CALL, don't confuse with an A call
-                        data.bases[read][cycle] = (byte) '.';
-                        data.qualities[read][cycle] = (byte) 2;
-                    } else {
-                        data.bases[read][cycle] = BASE_LOOKUP[readByte & BASE_MASK];
-                        data.qualities[read][cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
-                    }
-                    totalCycleCount++;
-                } catch (final IOException ioe) {
-                    throw new RuntimeIOException(ioe);
-                }
+        clustersInBlock = clusters;
+        nextClusterInBlock = 0;
+        return clusters > 0;
+    }
+
+    /** Allocates the block buffers, larger ones if this reader can reserve the memory to read ahead. */
+    private void allocateBlocks() {
+        final int cycles = streams.length;
+        // Two blocks of undecoded bytes, and the decoded bases and qualities
+        final long bytesToReadAhead = 4L * cycles * READ_AHEAD_CLUSTERS_PER_BLOCK;
+        if (readAhead != null && readAhead.reserve(bytesToReadAhead)) {
+            readAheadBytes = bytesToReadAhead;
+            clustersPerBlock = READ_AHEAD_CLUSTERS_PER_BLOCK;
+            nextBlockBytes = new byte[cycles][clustersPerBlock];
+        }
+        blockBytes = new byte[cycles][clustersPerBlock];
+        blockBases = new byte[cycles * clustersPerBlock];
+        blockQualities = new byte[cycles * clustersPerBlock];
+    }
 
+    /** Starts reading the next block into nextBlockBytes on the read ahead pool, one task per cycle. */
+    private void startReadingAhead() {
+        nextBlockReads = new ArrayList<Future<Integer>>(streams.length);
+        for (int cycle = 0; cycle < streams.length; ++cycle) {
+            final int c = cycle;
+            final byte[] bytes = nextBlockBytes[cycle];
+            nextBlockReads.add(readAhead.submit(() -> readFully(c, bytes, clustersPerBlock)));
+        }
+    }
+
+    /**
+     * Waits for the reads started by startReadingAhead() and makes what they read the current block.
+     *
+     * @return the number of clusters read from every cycle
+     */
+    private int finishReadingAhead() {
+        int clusters = clustersPerBlock;
+        Throwable error = null;
+        // Wait for every read, even after an error, so that no task is left using a stream
+        for (final Future<Integer> read : nextBlockReads) {
+            try {
+                clusters = Math.min(clusters, read.get());
+            } catch (final InterruptedException ie) {
+                if (error == null) error = ie;
+            } catch (final ExecutionException ee) {
+                if (error == null) error = ee.getCause();
             }
         }
-        this.queue = data;
+        nextBlockReads = null;
+
+        if (error instanceof Error) throw (Error) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error != null) throw new PicardException("Error reading BCL files ahead.", error);
+
+        final byte[][] read = nextBlockBytes;
+        nextBlockBytes = blockBytes;
+        blockBytes = read;
+        return clusters;
+    }
+
+    /** Waits for any reads started by startReadingAhead() and ignores what they read. */
+    private void discardReadAhead() {
+        if (nextBlockReads == null) return;
+        for (final Future<Integer> read : nextBlockReads) {
+            try {
+                read.get();
+            } catch (final InterruptedException | ExecutionException e) {
+                // Nothing that was read is needed
+            }
+        }
+        nextBlockReads = null;
+    }
+
+    /** Reads up to length bytes from the file of a cycle into bytes; returns the number of bytes read. */
+    private int readFully(final int cycle, final byte[] bytes, final int length) {
+        int total = 0;
+        try {
+            while (total < length) {
+                final int read = this.streams[cycle].read(bytes, total, length - total);
+                if (read == -1) break;
+                total += read;
+            }
+        } catch (final IOException e) {
+            // when logging the error, increment cycle by 1, since cycle is zero-indexed but Illumina directories are 1-indexed.
+            throw new RuntimeIOException(new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
+                    (cycle + 1), this.streamFiles[cycle].getAbsolutePath()), e));
+        }
+        return total;
     }
 
     public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final int[] outputLengths) {
-        return new BclReader(files, outputLengths, bclQualityEvaluationStrategy, true);
+        return makeSeekable(files, bclQualityEvaluationStrategy, outputLengths, null);
+    }
+
+    public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                                         final int[] outputLengths, final BclReadAhead readAhead) {
+        return new BclReader(files, outputLengths, bclQualityEvaluationStrategy, true, readAhead);
     }
 
     public int seek(final List<File> files, final TileIndex tileIndex, final int currentTile) {
+        // Anything left of the current block, or read ahead, is from the previous position
+        discardReadAhead();
+        clustersInBlock = 0;
+        nextClusterInBlock = 0;
+        queue = null;
+
         int count = 0;
         int numClustersInTile = 0;
         for (final InputStream inputStream : streams) {
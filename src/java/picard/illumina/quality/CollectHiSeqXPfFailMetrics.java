@@ -39,6 +39,7 @@ import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadData;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.util.ThreadUtil;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -200,14 +201,7 @@ public class CollectHiSeqXPfFailMetrics extends CommandLineProgram {
             IOUtil.assertFileIsWritable(detailedMetricsFileName);
         }
 
-        final int numProcessors;
-        if (NUM_PROCESSORS == 0) {
-            numProcessors = Runtime.getRuntime().availableProcessors();
-        } else if (NUM_PROCESSORS < 0) {
-            numProcessors = Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS;
-        } else {
-            numProcessors = NUM_PROCESSORS;
-        }
+        final int numProcessors = ThreadUtil.resolveThreadCount(NUM_PROCESSORS);
 
         // Create thread-pool submit jobs and what for their completion
         LOG.info("Processing with " + numProcessors + " PerTilePFMetricsExtractor(s).");
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.metrics;
+
+import java.util.List;
+
+/**
+ * Implemented by collectors whose result does not depend on the order in which records are seen, so that
+ * the records can be split over several threads.  Each thread accumulates into its own PARTIAL, which is never
+ * shared, and the partials are merged back into the collector once all records have been seen.  A collector whose
+ * partials each need every record, in order, can instead have every batch broadcast to every thread.
+ *
+ * See {@link ConcurrentCollectorExecutor} for the threading and lifecycle.
+ *
+ * @param <PARTIAL> the per-thread state of the collector
+ */
+public interface ConcurrentCollector<PARTIAL> {
+    /** Creates empty per-thread state. Called once per thread, before any records are accepted. */
+    public PARTIAL makePartial();
+
+    /**
+     * Adds a batch of records to the given per-thread state.  Called concurrently for different partials,
+     * never concurrently for the same one.
+     */
+    public void acceptBatch(final PARTIAL partial, final List<SAMRecordAndReference> batch);
+
+    /** Adds everything accumulated in partial into this collector.  Called on a single thread. */
+    public void mergePartial(final PARTIAL partial);
+}
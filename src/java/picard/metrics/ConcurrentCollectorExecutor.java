@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.metrics;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives a {@link ConcurrentCollector} from a single producing thread.  Records passed to
+ * {@link #acceptRecord(SAMRecord, ReferenceSequence)} are fully decoded on that thread and collected into batches
+ * which are picked up by a fixed number of worker threads, each of which owns one partial created by
+ * {@link ConcurrentCollector#makePartial()}.  With {@link Mode#SPLIT} each batch goes to a single worker; with
+ * {@link Mode#BROADCAST} every worker sees every batch, in input order.  {@link #finish()} waits for the workers and
+ * merges the partials into the collector, in worker order, on the calling thread; after that the collector can be
+ * finished and written as if it had been fed serially.
+ *
+ * The queues of batches are bounded, so a producer that outruns the slowest worker blocks.  The first error thrown by
+ * a worker is rethrown from acceptRecord() or finish().
+ */
+public class ConcurrentCollectorExecutor<PARTIAL> {
+    /** Number of records collected before a batch is handed to the workers. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Number of batches that may be waiting on each worker, in BROADCAST mode, before the producer blocks. */
+    public static final int DEFAULT_BROADCAST_QUEUE_CAPACITY = 16;
+
+    /** How batches are shared among the workers. */
+    public enum Mode {
+        /** Each batch is handled by one worker, for collectors whose result does not depend on the split. */
+        SPLIT,
+        /** Each batch is handled by every worker, in input order, for partials that must see every record. */
+        BROADCAST
+    }
+
+    /** Marks the end of the input on a queue; compared by identity. */
+    private static final List<SAMRecordAndReference> END_OF_INPUT = Collections.emptyList();
+
+    private static volatile int threadsCreated = 0; // Just used for thread naming.
+
+    private final ConcurrentCollector<PARTIAL> collector;
+    private final List<PARTIAL> partials = new ArrayList<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<BlockingQueue<List<SAMRecordAndReference>>> queues = new ArrayList<>();
+    private final AtomicReference<Throwable> ex = new AtomicReference<>(null);
+    private final int batchSize;
+    private List<SAMRecordAndReference> currentBatch;
+    private boolean finished = false;
+
+    public ConcurrentCollectorExecutor(final ConcurrentCollector<PARTIAL> collector, final int numThreads) {
+        this(collector, numThreads, DEFAULT_BATCH_SIZE);
+    }
+
+    public ConcurrentCollectorExecutor(final ConcurrentCollector<PARTIAL> collector, final int numThreads, final int batchSize) {
+        this(collector, numThreads, batchSize, Mode.SPLIT, 2 * numThreads);
+    }
+
+    /**
+     * @param queueCapacity the number of batches that may wait on the shared queue in SPLIT mode, or on each worker's
+     *                      own queue in BROADCAST mode
+     */
+    public ConcurrentCollectorExecutor(final ConcurrentCollector<PARTIAL> collector, final int numThreads, final int batchSize,
+                                       final Mode mode, final int queueCapacity) {
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be at least 1: " + queueCapacity);
+
+        this.collector = collector;
+        this.batchSize = batchSize;
+        this.currentBatch = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < numThreads; ++i) {
+            if (mode == Mode.BROADCAST || i == 0) queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            final PARTIAL partial = collector.makePartial();
+            partials.add(partial);
+            workers.add(new Worker(partial, queues.get(queues.size() - 1)));
+        }
+        for (final Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /** Queues a record (and its reference, which may be null) for the workers. */
+    public void acceptRecord(final SAMRecord rec, final ReferenceSequence ref) {
+        if (finished) throw new IllegalStateException("acceptRecord() called after finish().");
+
+        decode(rec);
+        currentBatch.add(new SAMRecordAndReference(rec, ref));
+        if (currentBatch.size() >= batchSize) {
+            put(currentBatch);
+            currentBatch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /**
+     * SAMRecords decode and cache some fields lazily, which is not safe once a record is read on another thread (or on
+     * several), so force everything to be decoded on the producing thread.
+     */
+    private static void decode(final SAMRecord rec) {
+        rec.getReadName();
+        rec.getCigar();
+        rec.getCigarString();
+        rec.getReadBases();
+        rec.getBaseQualities();
+        rec.getAttributes();
+        rec.getAlignmentEnd();
+        rec.getAlignmentBlocks();
+    }
+
+    /** Waits for all queued records to be processed and merges the per-thread state into the collector. */
+    public void finish() {
+        if (finished) return;
+        finished = true;
+
+        if (!currentBatch.isEmpty()) put(currentBatch);
+        currentBatch = null;
+        for (final Worker worker : workers) {
+            offer(worker.queue, END_OF_INPUT);
+        }
+
+        for (final Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (final InterruptedException ie) {
+                abort();
+                throw new PicardException("Interrupted waiting for collector threads.", ie);
+            }
+        }
+        checkAndRethrow();
+
+        for (final PARTIAL partial : partials) {
+            collector.mergePartial(partial);
+        }
+        partials.clear();
+    }
+
+    /** Stops all workers without merging their state. */
+    public void abort() {
+        finished = true;
+        for (final Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+    }
+
+    private void put(final List<SAMRecordAndReference> batch) {
+        for (final BlockingQueue<List<SAMRecordAndReference>> queue : queues) {
+            offer(queue, batch);
+        }
+    }
+
+    private void offer(final BlockingQueue<List<SAMRecordAndReference>> queue, final List<SAMRecordAndReference> batch) {
+        try {
+            checkAndRethrow();
+            // Keep offering rather than blocking in put() so that an error in a worker is noticed
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                checkAndRethrow();
+            }
+        } catch (final InterruptedException ie) {
+            abort();
+            throw new PicardException("Interrupted queueing records for collector threads.", ie);
+        }
+    }
+
+    /**
+     * Checks to see if an exception has been raised in a worker thread and if so rethrows it as an Error
+     * or RuntimeException as appropriate.
+     */
+    private void checkAndRethrow() {
+        final Throwable t = this.ex.get();
+        if (t != null) {
+            abort();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            else throw new PicardException("Error in collector thread.", t);
+        }
+    }
+
+    /** Feeds batches from its queue into a single partial until the end of the input. */
+    private class Worker implements Runnable {
+        private final PARTIAL partial;
+        private final BlockingQueue<List<SAMRecordAndReference>> queue;
+        private final Thread thread;
+
+        Worker(final PARTIAL partial, final BlockingQueue<List<SAMRecordAndReference>> queue) {
+            this.partial = partial;
+            this.queue = queue;
+            this.thread = new Thread(this, "ConcurrentCollectorWorker" + threadsCreated++);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final List<SAMRecordAndReference> batch = queue.take();
+                    if (batch == END_OF_INPUT || ex.get() != null) return;
+                    collector.acceptBatch(partial, batch);
+                }
+            } catch (final Throwable t) {
+                ex.compareAndSet(null, t);
+            }
+        }
+    }
+}
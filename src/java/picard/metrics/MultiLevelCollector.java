@@ -31,15 +31,12 @@ import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import picard.PicardException;
 import picard.analysis.MetricAccumulationLevel;
-import picard.analysis.directed.InsertSizeMetricsCollector;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * MultiLevelCollector handles accumulating Metrics at different MetricAccumulationLevels(ALL_READS, SAMPLE, LIBRARY, READ_GROUP).
@@ -63,6 +60,12 @@ import java.util.concurrent.Executors;
  * this class as the ARGTYPE of both the PerUnitMetricCollector and MultiLevelCollector.  You can then do these calculations in the makeArg
  * method and they will only be done once per record.
  *
+ * If every PerUnitMetricCollector supports {@link PerUnitMetricCollector#merge(PerUnitMetricCollector)}, records can be
+ * collected on several threads by calling setNumThreads() before the first record is accepted.  Each thread then feeds
+ * its own copy of the Distributors and PerUnitMetricCollectors, and the copies are merged into this collector's own
+ * PerUnitMetricCollectors when finish() is called.  makeArg() is then called on those threads, so it must not modify
+ * shared state.
+ *
  * @param <METRIC_TYPE> The type of metrics being collected
  * @param <Histogram_KEY> If there is are Histograms related to metrics of type <BEAN> then <HKEY> is the key value to these Histograms
  * @param <ARGTYPE> The type of argument passed to individual PerUnitMetricCollector (see SAMRecordMultilevelCollector and PerUnitMetricCollector)
@@ -77,6 +80,13 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
     //these will be listed in the order in which their children would be added to a metric file
     private List<Distributor> outputOrderedDistributors;
 
+    //Kept so that per-thread copies of the Distributors can be made when collecting in parallel
+    private Set<MetricAccumulationLevel> accumulationLevels;
+    private List<SAMReadGroupRecord> samRgRecords;
+
+    //Non-null when collecting in parallel, in which case records are handed to per-thread copies of the Distributors
+    private ConcurrentCollectorExecutor<List<Distributor>> executor;
+
     //Convert the current SAMRecord and the ReferenceSequence for that record into an ARGTYPE object
     //see accept record for use
     protected abstract ARGTYPE makeArg(final SAMRecord samRec, final ReferenceSequence refSeq);
@@ -137,8 +147,6 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
                     collectors.put(key, makeCollector(rg));
                 }
             }
-            System.out.println("rgRecs size " + rgRecs.size());
-            System.out.println("collectors size " + collectors.size());
         }
 
         /** Call finish on each PerUnitMetricCollector in this Aggregate Collector */
@@ -150,14 +158,6 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
 
         /** Call acceptRecord(args) on the record collector identified by getKey */
         public void acceptRecord(final ARGTYPE args, final SAMReadGroupRecord rg) {
-
-            if (rg == null) {
-                for (PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector : collectors.values()) {
-                    collector.acceptRecord(args);
-                }
-                return;
-            }
-
             String key = UNKNOWN;
             if(rg != null) {
                 final String computedKey = getKey(rg);
@@ -173,10 +173,39 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
                 collector = makeUnknownCollector();
                 collectors.put(key, collector);
             }
-            System.out.println("collectors accept record " + collector);
             collector.acceptRecord(args);
         }
 
+        /**
+         * Merge each collector of other, a copy of this Distributor, into the collector for the same key in this
+         * Distributor.  Collectors for unknown units that other has seen but this Distributor has not are created first.
+         */
+        public void mergeFrom(final Distributor other) {
+            for (final Map.Entry<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>> entry : other.collectors.entrySet()) {
+                PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(entry.getKey());
+                if (collector == null) {
+                    if (!UNKNOWN.equals(entry.getKey())) {
+                        throw new PicardException("Could not find collector for " + entry.getKey());
+                    }
+                    collector = makeUnknownCollector();
+                    collectors.put(entry.getKey(), collector);
+                }
+                collector.merge(entry.getValue());
+            }
+        }
+
+        /** The collector for ALL_READS if this is the ALL_READS Distributor, otherwise null */
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getAllReadsCollector() {
+            return null;
+        }
+
+        /** Throw if any of the collectors in this Distributor does not support merging */
+        public void assertMergeable() {
+            for (final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector : collectors.values()) {
+                assertIsMergeable(collector);
+            }
+        }
+
         /** Add all records to the MetricsFile passed in, this will happen in the order they were
          * found in the input ReadGroup records */
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
@@ -190,10 +219,12 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
      * since there should only ever be one PerUnitMetricCollector for ALL_READS.
      */
     private class AllReadsDistributor extends Distributor {
+        //Held here rather than only in allReadCollector since per-thread copies of this Distributor have their own
+        private final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector;
 
         public AllReadsDistributor(final List<SAMReadGroupRecord> rgRecs) {
             super(new ArrayList<SAMReadGroupRecord>());
-            makeCollector(null);
+            collector = makeCollector(null);
         }
 
         @Override
@@ -202,14 +233,27 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
         }
 
         public void acceptRecord(final ARGTYPE args, final SAMReadGroupRecord rg) {
-            //System.out.println("allReadCollector's class: " + allReadCollector.getClass());
-            allReadCollector.acceptRecord(args);
+            collector.acceptRecord(args);
+        }
+
+        @Override
+        public void mergeFrom(final Distributor other) {
+            collector.merge(other.getAllReadsCollector());
+        }
+
+        @Override
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getAllReadsCollector() {
+            return collector;
+        }
+
+        @Override
+        public void assertMergeable() {
+            assertIsMergeable(collector);
         }
 
         @Override
         protected PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> makeCollector(final SAMReadGroupRecord rg) {
-            allReadCollector = makeAllReadCollector();
-            return allReadCollector;
+            return makeAllReadCollector();
         }
 
         @Override
@@ -219,12 +263,12 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
 
         @Override
         public void finish() {
-            allReadCollector.finish();
+            collector.finish();
         }
 
         @Override
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
-            allReadCollector.addMetricsToFile(file);
+            collector.addMetricsToFile(file);
         }
     }
 
@@ -285,7 +329,6 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
 
         @Override
         protected PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> makeCollector(SAMReadGroupRecord rg) {
-            System.out.println("creating per unit collector");
             return makeReadGroupCollector(rg);
         }
 
@@ -302,40 +345,99 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
      *                     readGroups found in the records depending on the accumulationLevels provided
      */
     protected void setup(final Set<MetricAccumulationLevel> accumulationLevels, final List<SAMReadGroupRecord> samRgRecords) {
-        outputOrderedDistributors = new ArrayList<Distributor>(4);
+        this.accumulationLevels = accumulationLevels;
+        this.samRgRecords = samRgRecords;
+        outputOrderedDistributors = makeDistributors();
+        for (final Distributor distributor : outputOrderedDistributors) {
+            if (distributor.getAllReadsCollector() != null) {
+                allReadCollector = distributor.getAllReadsCollector();
+            }
+        }
+    }
+
+    /** Create a new, empty set of Distributors (and so PerUnitMetricCollectors) for the levels given to setup() */
+    private List<Distributor> makeDistributors() {
+        final List<Distributor> distributors = new ArrayList<Distributor>(4);
         if(accumulationLevels.contains(MetricAccumulationLevel.ALL_READS)) {
-            outputOrderedDistributors.add(new AllReadsDistributor(samRgRecords));
+            distributors.add(new AllReadsDistributor(samRgRecords));
         }
         if (accumulationLevels.contains(MetricAccumulationLevel.SAMPLE)) {
-            outputOrderedDistributors.add(new SampleDistributor(samRgRecords));
+            distributors.add(new SampleDistributor(samRgRecords));
         }
 
         if(accumulationLevels.contains(MetricAccumulationLevel.LIBRARY)) {
-            outputOrderedDistributors.add(new LibraryDistributor(samRgRecords));
+            distributors.add(new LibraryDistributor(samRgRecords));
         }
 
         if(accumulationLevels.contains(MetricAccumulationLevel.READ_GROUP)) {
-            outputOrderedDistributors.add(new ReadGroupCollector(samRgRecords));
+            distributors.add(new ReadGroupCollector(samRgRecords));
         }
+        return distributors;
     }
 
     /**
-     * Construct a argument of ARGTYPE using the given SAMRecord and ReferenceSequence then pass
-     * this value to all collectors that should include this record
+     * Collect records on numThreads threads, each feeding its own copy of the PerUnitMetricCollectors, which are merged
+     * into this collector's PerUnitMetricCollectors in finish().  Must be called after setup() and before the first
+     * record is accepted.  Values below 2 leave collection on the calling thread.
+     * @throws PicardException if any of the PerUnitMetricCollectors cannot be merged
      */
+    public void setNumThreads(final int numThreads) {
+        if (outputOrderedDistributors == null) {
+            throw new IllegalStateException("setNumThreads() called before setup().");
+        }
+        if (numThreads < 2) {
+            return;
+        }
+        for (final Distributor distributor : outputOrderedDistributors) {
+            distributor.assertMergeable();
+        }
 
+        executor = new ConcurrentCollectorExecutor<List<Distributor>>(new ConcurrentCollector<List<Distributor>>() {
+            @Override
+            public List<Distributor> makePartial() {
+                return makeDistributors();
+            }
 
-    public void acceptRecord(final SAMRecord record, final ReferenceSequence refSeq) {
+            @Override
+            public void acceptBatch(final List<Distributor> distributors, final List<SAMRecordAndReference> batch) {
+                for (final SAMRecordAndReference recAndRef : batch) {
+                    final SAMRecord record = recAndRef.getSamRecord();
+                    final ARGTYPE arg = makeArg(record, recAndRef.getReferenceSequence());
+                    for (final Distributor distributor : distributors) {
+                        distributor.acceptRecord(arg, record.getReadGroup());
+                    }
+                }
+            }
+
+            @Override
+            public void mergePartial(final List<Distributor> distributors) {
+                for (int i = 0; i < outputOrderedDistributors.size(); ++i) {
+                    outputOrderedDistributors.get(i).mergeFrom(distributors.get(i));
+                }
+            }
+        }, numThreads);
+    }
 
+    private void assertIsMergeable(final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector) {
+        if (!collector.isMergeable()) {
+            throw new PicardException(collector.getClass().getSimpleName() + " does not support collecting on multiple threads.");
+        }
+    }
+
+    /**
+     * Construct a argument of ARGTYPE using the given SAMRecord and ReferenceSequence then pass
+     * this value to all collectors that should include this record
+     */
+    public void acceptRecord(final SAMRecord record, final ReferenceSequence refSeq) {
+        if (executor != null) {
+            executor.acceptRecord(record, refSeq);
+            return;
+        }
 
         final ARGTYPE arg = makeArg(record, refSeq);
-        System.out.println("collectors count " + outputOrderedDistributors.size());
 
         for(final Distributor collector : outputOrderedDistributors) {
-
-            final SAMReadGroupRecord readGroup = record.getReadGroup();
-
-            collector.acceptRecord(arg, readGroup);
+            collector.acceptRecord(arg, record.getReadGroup());
         }
     }
 
@@ -343,6 +445,10 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
      * Call finish on all PerUnitMetricCollectors
      */
     public void finish() {
+        if (executor != null) {
+            executor.finish();
+            executor = null;
+        }
         for(final Distributor collector : outputOrderedDistributors) {
             collector.finish();
         }
@@ -57,5 +57,19 @@ public interface PerUnitMetricCollector<BEAN extends MetricBase, HKEY extends Co
      * @param file MetricsFile to which all metrics created by this collector should be added
      */
     public void addMetricsToFile(final MetricsFile<BEAN, HKEY> file);
+
+    /**
+     * Add everything collected by other, a collector for the same unit that has seen a disjoint set of records, into
+     * this collector, as if this collector had seen those records itself.  Called before finish() on either collector.
+     * Only needs to be implemented by collectors that return true from isMergeable().
+     */
+    public default void merge(final PerUnitMetricCollector<BEAN, HKEY, ARGTYPE> other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support merge().");
+    }
+
+    /** @return true if merge() is implemented, so that records may be collected on several threads */
+    public default boolean isMergeable() {
+        return false;
+    }
 }
 
@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.reference;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
+
+/**
+ * A thread safe cache of whole contigs of a reference, for use in place of a ReferenceSequenceFileWalker when several
+ * readers of the same reference (e.g. several inputs processed at once, or the shards of one input) may ask for
+ * contigs in any order.
+ *
+ * Contigs are loaded on first use and kept, least recently used first, until the bases held exceed a byte budget; the
+ * contig most recently loaded is never evicted, so one contig larger than the budget can still be used.  A contig is
+ * only loaded once however many threads ask for it at the same time.  If the reference is indexed contigs are read
+ * directly, otherwise the reference is read sequentially and reopened when an earlier contig is needed.
+ *
+ * The ReferenceSequences returned are shared, so their bases must not be modified.
+ *
+ * A process-wide cache per reference file, used by the tools that would otherwise each walk the reference on their own,
+ * is enabled by the REFERENCE_CACHE_BYTES option of those tools, which calls {@link #setSharedCacheBytes(long)} with
+ * the number of bases to keep per reference, or by setting the system property picard.reference.cache_bytes (see
+ * {@link #getShared(File)} and {@link #contigGetter(File)}).  It is off by default.
+ */
+public class ReferenceCache {
+    /** The default number of bases to keep, about the size of the three largest human chromosomes. */
+    public static final long DEFAULT_MAX_BYTES = 750L * 1000 * 1000;
+
+    /** The number of bases each process-wide cache keeps, or 0 if there are no process-wide caches. */
+    private static volatile long sharedCacheBytes = Long.getLong("picard.reference.cache_bytes", 0);
+
+    private static final Log log = Log.getInstance(ReferenceCache.class);
+
+    private static final Map<File, ReferenceCache> sharedCaches = new HashMap<>();
+
+    private final File referenceFile;
+    private final ReferenceSequenceFile reference;
+    private long maxBytes;
+
+    /** Loaded and loading contigs by contig index, in access order. */
+    private final LinkedHashMap<Integer, FutureTask<ReferenceSequence>> contigs = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesCached = 0;
+    /** For unindexed references, the index of the contig that nextSequence() will return. */
+    private int nextSequentialContig = 0;
+
+    public ReferenceCache(final File referenceFile) {
+        this(referenceFile, DEFAULT_MAX_BYTES);
+    }
+
+    /** @param maxBytes the number of bases to keep once loaded; at least one contig is always kept */
+    public ReferenceCache(final File referenceFile, final long maxBytes) {
+        IOUtil.assertFileIsReadable(referenceFile);
+        this.referenceFile = referenceFile;
+        // Names are truncated at whitespace, as by ReferenceSequenceFileWalker
+        this.reference = ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceFile, true);
+        this.maxBytes = maxBytes;
+    }
+
+    /** The number of bases each process-wide cache keeps, or 0 if process-wide caching is disabled. */
+    public static long getSharedCacheBytes() {
+        return sharedCacheBytes;
+    }
+
+    /**
+     * Sets the number of bases each process-wide cache keeps, for the rest of the life of the JVM.  Caches that already
+     * exist drop contigs, least recently used first, until they are within the new budget.
+     * @param bytes the number of bases to keep per reference, or 0 to stop using process-wide caches
+     */
+    public static void setSharedCacheBytes(final long bytes) {
+        synchronized (sharedCaches) {
+            sharedCacheBytes = Math.max(0, bytes);
+            for (final ReferenceCache cache : sharedCaches.values()) {
+                cache.setMaxBytes(sharedCacheBytes);
+            }
+        }
+    }
+
+    /**
+     * Gets the process-wide cache of a reference, creating it on first use.
+     * @return null if process-wide caching is disabled, i.e. getSharedCacheBytes() is 0
+     */
+    public static ReferenceCache getShared(final File referenceFile) {
+        final File key = referenceFile.getAbsoluteFile();
+        synchronized (sharedCaches) {
+            if (sharedCacheBytes <= 0) return null;
+            ReferenceCache cache = sharedCaches.get(key);
+            if (cache == null) {
+                cache = new ReferenceCache(key, sharedCacheBytes);
+                sharedCaches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Makes a function that gets whole contigs of a reference by index: from the process-wide cache if it is enabled,
+     * otherwise from a new ReferenceSequenceFileWalker, in which case contigs must be asked for in increasing order.
+     * The function is meant for a single thread, and only looks the contig up again when asked for a different one.
+     */
+    public static IntFunction<ReferenceSequence> contigGetter(final File referenceFile) {
+        final ReferenceCache shared = getShared(referenceFile);
+        if (shared != null) return new CurrentContigGetter(shared);
+        return new ReferenceSequenceFileWalker(referenceFile)::get;
+    }
+
+    public File getReferenceFile() {
+        return referenceFile;
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return reference.getSequenceDictionary();
+    }
+
+    /** Gets a whole contig by its index in the reference, loading it if it is not cached. */
+    public ReferenceSequence get(final int contigIndex) {
+        final FutureTask<ReferenceSequence> task;
+        final boolean load;
+        synchronized (this) {
+            final FutureTask<ReferenceSequence> cached = contigs.get(contigIndex);
+            load = (cached == null);
+            task = load ? new FutureTask<>(() -> load(contigIndex)) : cached;
+            if (load) contigs.put(contigIndex, task);
+        }
+
+        if (load) {
+            task.run();
+            final ReferenceSequence loaded = result(contigIndex, task);
+            synchronized (this) {
+                bytesCached += loaded.length();
+                evict(contigIndex);
+            }
+            return loaded;
+        }
+        return result(contigIndex, task);
+    }
+
+    private synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(-1);
+    }
+
+    /** Evicts least recently used contigs until the budget is met, sparing the given contig and those still loading. */
+    private void evict(final int spare) {
+        final Iterator<Map.Entry<Integer, FutureTask<ReferenceSequence>>> it = contigs.entrySet().iterator();
+        while (bytesCached > maxBytes && it.hasNext()) {
+            final Map.Entry<Integer, FutureTask<ReferenceSequence>> entry = it.next();
+            if (entry.getKey() == spare || !entry.getValue().isDone()) continue;
+            bytesCached -= loadedLength(entry.getValue());
+            it.remove();
+        }
+    }
+
+    /** The number of bases held by a finished load, 0 if it failed. */
+    private static long loadedLength(final FutureTask<ReferenceSequence> task) {
+        try {
+            return task.get().length();
+        } catch (final InterruptedException | ExecutionException e) {
+            return 0;
+        }
+    }
+
+    private ReferenceSequence load(final int contigIndex) {
+        synchronized (reference) {
+            final SAMSequenceDictionary dictionary = reference.getSequenceDictionary();
+            if (reference.isIndexed() && dictionary != null) {
+                if (contigIndex < 0 || contigIndex >= dictionary.size()) {
+                    throw new PicardException("Reference " + referenceFile + " has no contig with index " + contigIndex);
+                }
+                return reference.getSequence(dictionary.getSequence(contigIndex).getSequenceName());
+            }
+
+            if (contigIndex < nextSequentialContig) {
+                log.debug("Rereading " + referenceFile + " from the start for contig " + contigIndex);
+                reference.reset();
+                nextSequentialContig = 0;
+            }
+            ReferenceSequence sequence;
+            do {
+                sequence = reference.nextSequence();
+                if (sequence == null) {
+                    throw new PicardException("Reference " + referenceFile + " has no contig with index " + contigIndex);
+                }
+                ++nextSequentialContig;
+            } while (sequence.getContigIndex() != contigIndex);
+            return sequence;
+        }
+    }
+
+    /** Gets the result of a load, removing it from the cache if it failed so that a later get() can retry. */
+    private ReferenceSequence result(final int contigIndex, final FutureTask<ReferenceSequence> task) {
+        try {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    final ReferenceSequence sequence = task.get();
+                    if (interrupted) Thread.currentThread().interrupt();
+                    return sequence;
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException e) {
+            synchronized (this) {
+                contigs.remove(contigIndex, task);
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new PicardException("Error loading contig " + contigIndex + " of " + referenceFile, cause);
+        }
+    }
+
+    /** Drops all cached contigs and closes the reference.  Process-wide caches are never closed. */
+    public synchronized void close() {
+        synchronized (sharedCaches) {
+            if (sharedCaches.get(referenceFile.getAbsoluteFile()) == this) return;
+        }
+        contigs.clear();
+        bytesCached = 0;
+        CloserUtil.close(reference);
+    }
+
+    /** Gets contigs from a cache, keeping the last one so that the cache is only consulted when the contig changes. */
+    private static class CurrentContigGetter implements IntFunction<ReferenceSequence> {
+        private final ReferenceCache cache;
+        private ReferenceSequence current = null;
+
+        CurrentContigGetter(final ReferenceCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public ReferenceSequence apply(final int contigIndex) {
+            if (current == null || current.getContigIndex() != contigIndex) current = cache.get(contigIndex);
+            return current;
+        }
+    }
+}
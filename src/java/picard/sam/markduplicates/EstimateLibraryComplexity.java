@@ -46,8 +46,11 @@ import picard.cmdline.programgroups.Metrics;
 import picard.sam.DuplicationMetrics;
 import picard.sam.markduplicates.util.AbstractOpticalDuplicateFinderCommandLineProgram;
 import picard.sam.markduplicates.util.OpticalDuplicateFinder;
+import picard.sam.markduplicates.util.PairingKey;
+import picard.sam.markduplicates.util.TwoBitSequence;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.PhysicalLocationShort;
+import picard.util.ThreadUtil;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -56,11 +59,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.pow;
 
@@ -164,6 +174,16 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             "size calculation, for example, adapter dimers.", optional = true)
     public int MIN_GROUP_COUNT = 2;
 
+    @Option(doc = "Groups that are this many times over the mean expected group size are split by the MIN_IDENTICAL_BASES " +
+            "bases that follow the first MIN_IDENTICAL_BASES of each read, and only read pairs that are also identical " +
+            "there are compared.  This is much faster for very large groups, which MAX_GROUP_RATIO then applies to " +
+            "after splitting, but misses duplicates with a difference in those bases.  0 never splits groups.")
+    public int SPLIT_GROUP_RATIO = 0;
+
+    @Option(doc = "Number of threads used to compare the reads within groups.  1 compares them on the main thread; 0 uses " +
+            "all available cores and a negative value uses all available cores less that many.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(EstimateLibraryComplexity.class);
 
     @Override
@@ -175,6 +195,9 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         if (MIN_IDENTICAL_BASES <= 0) {
             errorMsgs.add("MIN_IDENTICAL_BASES must be greater than 0");
         }
+        if (SPLIT_GROUP_RATIO < 0) {
+            errorMsgs.add("SPLIT_GROUP_RATIO must not be negative");
+        }
         return errorMsgs.isEmpty() ? super.customCommandLineValidation() : errorMsgs.toArray(new String[errorMsgs.size()]);
     }
 
@@ -429,7 +452,7 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         // Loop through the input files and pick out the read sequences etc.
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         for (final File f : INPUT) {
-            final Map<String, PairedReadSequence> pendingByName = new HashMap<String, PairedReadSequence>();
+            final Map<PairingKey, PairedReadSequence> pendingByKey = new HashMap<PairingKey, PairedReadSequence>();
             final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(f);
             readGroups.addAll(in.getFileHeader().getReadGroups());
 
@@ -440,7 +463,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 }
                 if (rec.isSecondaryOrSupplementary()) continue;
 
-                PairedReadSequence prs = pendingByName.remove(rec.getReadName());
+                final PairingKey key = PairingKey.of(rec);
+                PairedReadSequence prs = pendingByKey.remove(key);
                 if (prs == null) {
                     // Make a new paired read object and add RG and physical location information to it
                     prs = useBarcodes ? new PairedReadSequenceWithBarcodes() : new PairedReadSequence();
@@ -449,7 +473,7 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                         if (rg != null) prs.setReadGroup((short) readGroups.indexOf(rg));
                     }
 
-                    pendingByName.put(rec.getReadName(), prs);
+                    pendingByKey.put(key, prs);
                 }
 
                 // Read passes quality check if both ends meet the mean quality criteria
@@ -498,72 +522,43 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         int groupsProcessed = 0;
         long lastLogTime = System.currentTimeMillis();
         final int meanGroupSize = (int) (Math.max(1, (progress.getCount() / 2) / (int) pow(4, MIN_IDENTICAL_BASES * 2)));
+        final GroupComparer comparer = new GroupComparer(ThreadUtil.resolveThreadCount(THREADS), readGroups, useBarcodes,
+                duplicationHistosByLibrary, opticalHistosByLibrary);
+
+        try {
+            while (iterator.hasNext()) {
+                // Get the next group, and split it further if it is very large
+                final List<PairedReadSequence> group = getNextGroup(iterator);
+                final List<List<PairedReadSequence>> groups;
+                if (SPLIT_GROUP_RATIO > 0 && group.size() > meanGroupSize * SPLIT_GROUP_RATIO) {
+                    groups = splitBySecondPrefix(group);
+                } else {
+                    groups = new ArrayList<List<PairedReadSequence>>(1);
+                    groups.add(group);
+                }
 
-        while (iterator.hasNext()) {
-            // Get the next group and split it apart by library
-            final List<PairedReadSequence> group = getNextGroup(iterator);
-
-            if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
-                final PairedReadSequence prs = group.get(0);
-                log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
-                        "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
-                        StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES) +
-                        " / " +
-                        StringUtil.bytesToString(prs.read2, 0, MIN_IDENTICAL_BASES));
-            } else {
-                final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
-
-                // Now process the reads by library
-                for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
-                    final String library = entry.getKey();
-                    final List<PairedReadSequence> seqs = entry.getValue();
-
-                    Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
-                    Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
-                    if (duplicationHisto == null) {
-                        duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
-                        opticalHisto = new Histogram<Integer>("duplication_group_count", "optical_duplicates");
-                        duplicationHistosByLibrary.put(library, duplicationHisto);
-                        opticalHistosByLibrary.put(library, opticalHisto);
-                    }
-
-                    // Figure out if any reads within this group are duplicates of one another
-                    for (int i = 0; i < seqs.size(); ++i) {
-                        final PairedReadSequence lhs = seqs.get(i);
-                        if (lhs == null) continue;
-                        final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
-
-                        for (int j = i + 1; j < seqs.size(); ++j) {
-                            final PairedReadSequence rhs = seqs.get(j);
-                            if (rhs == null) continue;
-
-                            if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
-                                dupes.add(rhs);
-                                seqs.set(j, null);
-                            }
-                        }
-
-                        if (!dupes.isEmpty()) {
-                            dupes.add(lhs);
-                            final int duplicateCount = dupes.size();
-                            duplicationHisto.increment(duplicateCount);
-
-                            final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
-                            for (final boolean b : flags) {
-                                if (b) opticalHisto.increment(duplicateCount);
-                            }
-                        } else {
-                            duplicationHisto.increment(1);
+                for (final List<PairedReadSequence> g : groups) {
+                    if (g.size() > meanGroupSize * MAX_GROUP_RATIO) {
+                        final PairedReadSequence prs = g.get(0);
+                        log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
+                                "Mean=" + meanGroupSize + ", Actual=" + g.size() + ". Prefixes: " +
+                                StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES) +
+                                " / " +
+                                StringUtil.bytesToString(prs.read2, 0, MIN_IDENTICAL_BASES));
+                    } else {
+                        comparer.add(g);
+
+                        ++groupsProcessed;
+                        if (lastLogTime < System.currentTimeMillis() - 60000) {
+                            log.info("Processed " + groupsProcessed + " groups.");
+                            lastLogTime = System.currentTimeMillis();
                         }
                     }
                 }
-
-                ++groupsProcessed;
-                if (lastLogTime < System.currentTimeMillis() - 60000) {
-                    log.info("Processed " + groupsProcessed + " groups.");
-                    lastLogTime = System.currentTimeMillis();
-                }
             }
+            comparer.finish();
+        } finally {
+            comparer.close();
         }
 
         iterator.close();
@@ -601,9 +596,13 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
 
     /**
      * Checks to see if two reads pairs have sequence that are the same, give or take a few
-     * errors/diffs as dictated by the maxDiffRate.
+     * errors/diffs as dictated by the maxDiffRate.  The packed reads, from TwoBitSequence.pack(), may be null, in which
+     * case the bases are compared one by one.
      */
-    private boolean matches(final PairedReadSequence lhs, final PairedReadSequence rhs, final double maxDiffRate, final boolean useBarcodes) {
+    private boolean matches(final PairedReadSequence lhs, final PairedReadSequence rhs,
+                            final long[] lhsPacked1, final long[] lhsPacked2,
+                            final long[] rhsPacked1, final long[] rhsPacked2,
+                            final double maxDiffRate, final boolean useBarcodes) {
         final int maxReadLength = (MAX_READ_LENGTH <= 0) ? Integer.MAX_VALUE : MAX_READ_LENGTH;
         final int read1Length = Math.min(Math.min(lhs.read1.length, rhs.read1.length), maxReadLength);
         final int read2Length = Math.min(Math.min(lhs.read2.length, rhs.read2.length), maxReadLength);
@@ -620,8 +619,15 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             }
         }
 
-        // The loop can start from MIN_IDENTICAL_BASES because we've already confirmed that
+        // The comparison can start from MIN_IDENTICAL_BASES because we've already confirmed that
         // at least those first few bases are identical when sorting.
+        if (lhsPacked1 != null && lhsPacked2 != null && rhsPacked1 != null && rhsPacked2 != null) {
+            errors = TwoBitSequence.countMismatches(lhsPacked1, rhsPacked1, MIN_IDENTICAL_BASES, read1Length, maxErrors);
+            if (errors > maxErrors) return false;
+            errors += TwoBitSequence.countMismatches(lhsPacked2, rhsPacked2, MIN_IDENTICAL_BASES, read2Length, maxErrors - errors);
+            return errors <= maxErrors;
+        }
+
         for (int i = MIN_IDENTICAL_BASES; i < read1Length; ++i) {
             if (lhs.read1[i] != rhs.read1[i] && ++errors > maxErrors) {
                 return false;
@@ -660,6 +666,195 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         return group;
     }
 
+    /**
+     * Splits a group of read pairs, which share the first MIN_IDENTICAL_BASES of both reads, by the next
+     * MIN_IDENTICAL_BASES of both reads (or as many of them as the reads have).  Read pairs keep their order within
+     * each of the smaller groups.
+     */
+    List<List<PairedReadSequence>> splitBySecondPrefix(final List<PairedReadSequence> group) {
+        final Map<String, List<PairedReadSequence>> groupsByPrefix = new LinkedHashMap<String, List<PairedReadSequence>>();
+        for (final PairedReadSequence prs : group) {
+            final String prefix = secondPrefix(prs.read1) + " / " + secondPrefix(prs.read2);
+            List<PairedReadSequence> smallerGroup = groupsByPrefix.get(prefix);
+            if (smallerGroup == null) {
+                smallerGroup = new ArrayList<PairedReadSequence>();
+                groupsByPrefix.put(prefix, smallerGroup);
+            }
+            smallerGroup.add(prs);
+        }
+        return new ArrayList<List<PairedReadSequence>>(groupsByPrefix.values());
+    }
+
+    private String secondPrefix(final byte[] bases) {
+        final int end = Math.min(bases.length, 2 * MIN_IDENTICAL_BASES);
+        return StringUtil.bytesToString(bases, MIN_IDENTICAL_BASES, Math.max(0, end - MIN_IDENTICAL_BASES));
+    }
+
+    /**
+     * Finds the duplicates within groups of read pairs and adds them to the per-library histograms.  With more than one
+     * thread, groups are gathered into batches that are compared on a work-stealing pool, since group sizes vary a
+     * lot, and the results of each batch are added to the histograms on the calling thread, in the order the batches
+     * were queued.  The number of batches in flight is bounded so that the reader does not get far ahead.
+     */
+    private final class GroupComparer {
+        /** Number of read pairs gathered before a batch of groups is queued for the pool. */
+        private static final int BATCH_SIZE = 10000;
+
+        private final List<SAMReadGroupRecord> readGroups;
+        private final boolean useBarcodes;
+        private final Map<String, Histogram<Integer>> duplicationHistosByLibrary;
+        private final Map<String, Histogram<Integer>> opticalHistosByLibrary;
+        private final ForkJoinPool pool;
+        private final int maxBatchesInFlight;
+        private final Deque<Future<List<DuplicateSetCount>>> inFlight = new ArrayDeque<Future<List<DuplicateSetCount>>>();
+        private List<List<PairedReadSequence>> batch = new ArrayList<List<PairedReadSequence>>();
+        private int pairsInBatch = 0;
+
+        GroupComparer(final int numThreads, final List<SAMReadGroupRecord> readGroups, final boolean useBarcodes,
+                      final Map<String, Histogram<Integer>> duplicationHistosByLibrary,
+                      final Map<String, Histogram<Integer>> opticalHistosByLibrary) {
+            this.readGroups = readGroups;
+            this.useBarcodes = useBarcodes;
+            this.duplicationHistosByLibrary = duplicationHistosByLibrary;
+            this.opticalHistosByLibrary = opticalHistosByLibrary;
+            this.pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+            this.maxBatchesInFlight = 4 * numThreads;
+        }
+
+        /** Finds the duplicates within a group.  The group must not be modified afterwards. */
+        void add(final List<PairedReadSequence> group) {
+            if (pool == null) {
+                addToHistograms(compareGroup(group, new ArrayList<DuplicateSetCount>()));
+                return;
+            }
+
+            batch.add(group);
+            pairsInBatch += group.size();
+            if (pairsInBatch >= BATCH_SIZE) queueBatch();
+        }
+
+        /** Waits for all queued groups to be compared and adds their duplicates to the histograms. */
+        void finish() {
+            if (pool == null) return;
+            if (!batch.isEmpty()) queueBatch();
+            while (!inFlight.isEmpty()) addToHistograms(waitFor(inFlight.removeFirst()));
+        }
+
+        /** Stops the pool; any batches still queued are abandoned. */
+        void close() {
+            if (pool != null) pool.shutdownNow();
+        }
+
+        private void queueBatch() {
+            final List<List<PairedReadSequence>> groups = batch;
+            batch = new ArrayList<List<PairedReadSequence>>();
+            pairsInBatch = 0;
+
+            if (inFlight.size() >= maxBatchesInFlight) addToHistograms(waitFor(inFlight.removeFirst()));
+            inFlight.addLast(pool.submit(new Callable<List<DuplicateSetCount>>() {
+                @Override
+                public List<DuplicateSetCount> call() {
+                    final List<DuplicateSetCount> counts = new ArrayList<DuplicateSetCount>();
+                    for (final List<PairedReadSequence> group : groups) compareGroup(group, counts);
+                    return counts;
+                }
+            }));
+        }
+
+        private List<DuplicateSetCount> waitFor(final Future<List<DuplicateSetCount>> future) {
+            try {
+                return future.get();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for read pairs to be compared.", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new PicardException("Error comparing read pairs.", cause);
+            }
+        }
+
+        private void addToHistograms(final List<DuplicateSetCount> counts) {
+            for (final DuplicateSetCount count : counts) {
+                Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(count.library);
+                Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(count.library);
+                if (duplicationHisto == null) {
+                    duplicationHisto = new Histogram<Integer>("duplication_group_count", count.library);
+                    opticalHisto = new Histogram<Integer>("duplication_group_count", "optical_duplicates");
+                    duplicationHistosByLibrary.put(count.library, duplicationHisto);
+                    opticalHistosByLibrary.put(count.library, opticalHisto);
+                }
+                duplicationHisto.increment(count.size);
+                if (count.opticalDuplicates > 0) opticalHisto.increment(count.size, count.opticalDuplicates);
+            }
+        }
+
+        /**
+         * Compares every read pair of a group with the others, library by library, and adds a count for each set of
+         * duplicates found, including sets of one, to counts.  Safe to call on several threads at once.
+         */
+        private List<DuplicateSetCount> compareGroup(final List<PairedReadSequence> group, final List<DuplicateSetCount> counts) {
+            final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
+
+            for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
+                final String library = entry.getKey();
+                final List<PairedReadSequence> seqs = entry.getValue();
+
+                // Pack the reads once, since each is compared with every other read in the library's group
+                final long[][] packed1 = new long[seqs.size()][];
+                final long[][] packed2 = new long[seqs.size()][];
+                if (seqs.size() > 1) {
+                    for (int i = 0; i < seqs.size(); ++i) {
+                        packed1[i] = TwoBitSequence.pack(seqs.get(i).read1);
+                        packed2[i] = TwoBitSequence.pack(seqs.get(i).read2);
+                    }
+                }
+
+                // Figure out if any reads within this group are duplicates of one another
+                for (int i = 0; i < seqs.size(); ++i) {
+                    final PairedReadSequence lhs = seqs.get(i);
+                    if (lhs == null) continue;
+                    final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
+
+                    for (int j = i + 1; j < seqs.size(); ++j) {
+                        final PairedReadSequence rhs = seqs.get(j);
+                        if (rhs == null) continue;
+
+                        if (matches(lhs, rhs, packed1[i], packed2[i], packed1[j], packed2[j], MAX_DIFF_RATE, useBarcodes)) {
+                            dupes.add(rhs);
+                            seqs.set(j, null);
+                        }
+                    }
+
+                    if (!dupes.isEmpty()) {
+                        dupes.add(lhs);
+                        int opticalDuplicates = 0;
+                        for (final boolean b : opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs)) {
+                            if (b) ++opticalDuplicates;
+                        }
+                        counts.add(new DuplicateSetCount(library, dupes.size(), opticalDuplicates));
+                    } else {
+                        counts.add(new DuplicateSetCount(library, 1, 0));
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+
+    /** The size of a set of duplicate read pairs in a library, and how many of them are optical duplicates. */
+    private static final class DuplicateSetCount {
+        final String library;
+        final int size;
+        final int opticalDuplicates;
+
+        DuplicateSetCount(final String library, final int size, final int opticalDuplicates) {
+            this.library = library;
+            this.size = size;
+            this.opticalDuplicates = opticalDuplicates;
+        }
+    }
+
     /**
      * Takes a list of PairedReadSequence objects and splits them into lists by library.
      */
@@ -29,27 +29,44 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.sam.DuplicationMetrics;
-import htsjdk.samtools.ReservedTagConstants;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
-import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ColumnarReadEndsStore;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.OpticalDuplicateFinder;
 import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.PairingKey;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.sam.markduplicates.util.SpillingReadEndsForMarkDuplicatesMap;
+import picard.sam.util.ParallelBamWriter;
+import picard.sam.util.SamRecordSpool;
+import picard.util.AsyncIterator;
+import picard.util.ThreadUtil;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -145,13 +162,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     public int MAX_SEQUENCES_FOR_DISK_READ_ENDS_MAP = 50000;
 
     @Option(shortName = "MAX_FILE_HANDLES",
-            doc = "Maximum number of file handles to keep open when spilling read ends to disk. " +
-                    "Set this number a little lower than the per-process maximum number of file that may be open. " +
-                    "This number can be found by executing the 'ulimit -n' command on a Unix system.")
+            doc = "This option is obsolete. Read ends waiting for their mates are spilled to a few compressed files, " +
+                    "only one of which is open at a time.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
+    @Option(doc = "The fraction of the maximum heap that read ends waiting for their mates may take before those whose " +
+            "mates are on other reference sequences are spilled to disk.")
+    public double READ_ENDS_MAP_SIZE_RATIO = 0.25;
+
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
-            "some of the sorting collections.  If you are running out of memory, try reducing this number.")
+            "some of the sorting collections.  The read ends being sorted are held outside the Java heap, and this " +
+            "fraction of -XX:MaxDirectMemorySize (by default the maximum heap) is used for them.  If you are running " +
+            "out of memory, try reducing this number.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
 
     @Option(doc = "Barcode SAM tag (ex. BC for 10X Genomics)", optional = true)
@@ -171,11 +193,31 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
+    @Option(doc = "Number of threads used to resolve duplicate sets, including optical duplicate detection, and to " +
+            "write the output: when more than 1, input records are read ahead on another thread and BAM output is " +
+            "compressed on this many threads. 1 does all of this on one thread; 0 uses all available cores and a " +
+            "negative value uses all available cores less that many.")
+    public int THREADS = 1;
+
+    @Option(doc = "If true and the input is queryname sorted, the input is only read once: records are kept in a " +
+            "temporary file, in input order, while the read ends are built, and that file is read back to write the " +
+            "output.  This needs about as much temporary space as the input.")
+    public boolean SPOOL_QUERYNAME_INPUT = false;
+
+    @Option(doc = "If true and the input is a single indexed, coordinate sorted BAM, read ends are built from each " +
+            "reference sequence separately, on THREADS threads, and the ends of pairs whose mates are on different " +
+            "reference sequences are matched up once all have been read.  The output is the same as without it.")
+    public boolean SHARD_BY_REFERENCE = false;
+
+    private ColumnarReadEndsStore pairSort;
+    private ColumnarReadEndsStore fragSort;
     private SortingLongCollection duplicateIndexes;
     private SortingLongCollection opticalDuplicateIndexes;
 
+    private boolean readEndsShardedByReference = false;
+    private SamRecordSpool spool = null; // holds the records for the second pass when the input is read only once
+    private SAMFileHeader spoolHeader = null;
+
     private int numDuplicateIndices = 0;
     static private final long NO_SUCH_INDEX = Long.MAX_VALUE; // needs to be large so that that >= test fails for query-sorted traversal
 
@@ -206,7 +248,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * Main work method.  Reads the BAM file once and collects sorted information about
      * the 5' ends of both ends of each read (or just one end in the case of pairs).
      * Then makes a pass through those determining duplicates before re-reading the
-     * input file and writing it out with duplication flags set correctly.
+     * input file and writing it out with duplication flags set correctly.  With SPOOL_QUERYNAME_INPUT,
+     * queryname sorted input is read once and the spooled copy of it is what is re-read.
      */
     protected int doWork() {
         IOUtil.assertInputsAreValid(INPUT);
@@ -229,7 +272,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             log.info("Found " + (this.libraryIdGenerator.getNumberOfOpticalDuplicateClusters()) + " optical duplicate clusters.");
         }
 
-        final SamHeaderAndIterator headerAndIterator = openInputs();
+        final SamHeaderAndIterator headerAndIterator = (this.spool != null)
+                ? new SamHeaderAndIterator(this.spoolHeader, this.spool.iterator())
+                : openInputs();
         final SAMFileHeader header = headerAndIterator.header;
         final SAMFileHeader.SortOrder sortOrder = header.getSortOrder();
 
@@ -248,9 +293,17 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
-                true,
-                OUTPUT);
+        // With more than one thread, records are read ahead and decoded on another thread while this one sets
+        // their flags, and BAM output is compressed by a pool of threads.
+        final int numThreads = ThreadUtil.resolveThreadCount(THREADS);
+        final SAMFileWriter out;
+        if (numThreads > 1 && OUTPUT.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+            out = new ParallelBamWriter(outputHeader, OUTPUT, COMPRESSION_LEVEL, numThreads, CREATE_INDEX, CREATE_MD5_FILE);
+        } else {
+            out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
+                    true,
+                    OUTPUT);
+        }
 
         // Now copy over the file while marking all the necessary indexes as duplicates
         long recordInFileIndex = 0;
@@ -258,7 +311,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         long nextDuplicateIndex = (this.duplicateIndexes.hasNext() ? this.duplicateIndexes.next() : NO_SUCH_INDEX);
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+        final CloseableIterator<SAMRecord> iterator = (numThreads > 1)
+                ? new AsyncIterator<>(headerAndIterator.iterator, AsyncIterator.DEFAULT_QUEUE_SIZE, "MarkDuplicatesReader")
+                : headerAndIterator.iterator;
         String duplicateQueryName = null;
         String opticalDuplicateQueryName = null;
 
@@ -371,6 +426,11 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      */
     long numOpticalDuplicates() { return ((long) this.libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().getSumOfValues()); } // cast as long due to returning a double
 
+    /**
+     * package-visible for testing
+     */
+    boolean readEndsShardedByReference() { return this.readEndsShardedByReference; }
+
     /** Print out some quick JVM memory stats. */
     private void reportMemoryStats(final String stage) {
         System.gc();
@@ -385,43 +445,19 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * duplication, caching to disk as necessary to sort them.
      */
     private void buildSortedReadEndLists(final boolean useBarcodes) {
-        final int sizeInBytes;
-        if (useBarcodes) {
-            sizeInBytes = ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf();
-        } else {
-            sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
-        }
-        MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
-        log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
-
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
-        if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-        } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesCodec();
+        if (SHARD_BY_REFERENCE && new ReferenceShardedReadEndsBuilder(useBarcodes).build()) {
+            this.readEndsShardedByReference = true;
+            return;
         }
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        createReadEndStores(useBarcodes);
+        final ReadEndsForMarkDuplicatesCodec diskCodec = newReadEndsCodec(useBarcodes);
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        final SpillingReadEndsForMarkDuplicatesMap tmp = new SpillingReadEndsForMarkDuplicatesMap(
+                Math.max(1, (long) (Runtime.getRuntime().maxMemory() * READ_ENDS_MAP_SIZE_RATIO)), diskCodec, TMP_DIR);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -430,10 +466,17 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             this.libraryIdGenerator = new LibraryIdGenerator(header);
         }
 
+        if (SPOOL_QUERYNAME_INPUT && assumedSortOrder == SAMFileHeader.SortOrder.queryname) {
+            log.info("Spooling records to a temporary file so that the input is only read once.");
+            this.spool = new SamRecordSpool(header, TMP_DIR.get(0), ThreadUtil.resolveThreadCount(THREADS));
+            this.spoolHeader = header;
+        }
+
         String duplicateQueryName = null;
         long duplicateIndex = NO_SUCH_INDEX;
         while (iterator.hasNext()) {
             final SAMRecord rec = iterator.next();
+            if (this.spool != null) this.spool.add(rec);
 
             // This doesn't have anything to do with building sorted ReadEnd lists, but it can be done in the same pass
             // over the input
@@ -465,7 +508,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 this.fragSort.add(fragmentEnd);
 
                 if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
-                    final String key = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName();
+                    final PairingKey key = PairingKey.of(rec);
                     ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), key);
 
                     // See if we've already seen the first end or not
@@ -475,51 +518,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                         pairedEnds = fragmentEnd.clone();
                         tmp.put(pairedEnds.read2ReferenceIndex, key, pairedEnds);
                     } else {
-                        final int matesRefIndex = fragmentEnd.read1ReferenceIndex;
-                        final int matesCoordinate = fragmentEnd.read1Coordinate;
-
-                        // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
-                        // before updating the orientation later.
-                        if (rec.getFirstOfPairFlag()) {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(), pairedEnds.orientation == ReadEnds.R);
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = getReadOneBarcodeValue(rec);
-                        } else {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, rec.getReadNegativeStrandFlag());
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = getReadTwoBarcodeValue(rec);
-                        }
-
-                        // If the other read is actually later, simply add the other read's data as read2, else flip the reads
-                        if (matesRefIndex > pairedEnds.read1ReferenceIndex ||
-                                (matesRefIndex == pairedEnds.read1ReferenceIndex && matesCoordinate >= pairedEnds.read1Coordinate)) {
-                            pairedEnds.read2ReferenceIndex = matesRefIndex;
-                            pairedEnds.read2Coordinate = matesCoordinate;
-                            pairedEnds.read2IndexInFile = indexForRead;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R,
-                                    rec.getReadNegativeStrandFlag());
-
-                            // if the two read ends are in the same position, pointing in opposite directions,
-                            // the orientation is undefined and the procedure above
-                            // will depend on the order of the reads in the file.
-                            // To avoid this, we set it explicitly (to FR):
-                            if (pairedEnds.read2ReferenceIndex == pairedEnds.read1ReferenceIndex &&
-                                    pairedEnds.read2Coordinate == pairedEnds.read1Coordinate &&
-                                    pairedEnds.orientation == ReadEnds.RF) {
-                                pairedEnds.orientation = ReadEnds.FR;
-                            }
-                        } else {
-                            pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
-                            pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
-                            pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
-                            pairedEnds.read1ReferenceIndex = matesRefIndex;
-                            pairedEnds.read1Coordinate = matesCoordinate;
-                            pairedEnds.read1IndexInFile = indexForRead;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(),
-                                    pairedEnds.orientation == ReadEnds.R);
-                        }
-
-                        pairedEnds.score += DuplicateScoringStrategy.computeDuplicateScore(rec, this.DUPLICATE_SCORING_STRATEGY);
+                        addSecondEnd(pairedEnds, fragmentEnd, rec.getFirstOfPairFlag(), useBarcodes);
                         this.pairSort.add(pairedEnds);
                     }
                 }
@@ -533,6 +532,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
+        log.info(String.format("Spilled %d read ends waiting for their mates to %d files (%d bytes); %d ms writing, %d ms reading.",
+                tmp.getTotalRecordsSpilled(), tmp.getSpillFilesWritten(), tmp.getTotalBytesSpilled(),
+                tmp.getSpillWriteMillis(), tmp.getSpillReadMillis()));
         iterator.close();
 
         // Tell these collections to free up memory if possible.
@@ -540,8 +542,99 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         this.fragSort.doneAdding();
     }
 
+    /** Creates the stores that sort the fragment and pair read ends, sized to the direct memory and the heap. */
+    private void createReadEndStores(final boolean useBarcodes) {
+        final int sizeInBytes;
+        if (useBarcodes) {
+            sizeInBytes = ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf();
+        } else {
+            sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
+        }
+        MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
+        // The columns are held in direct memory, and only the arrays that sort them on the heap
+        final int maxInMemory = ColumnarReadEndsStore.maxRecordsInRam(useBarcodes,
+                (long) (ColumnarReadEndsStore.maxDirectMemory() * SORTING_COLLECTION_SIZE_RATIO),
+                (long) (Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO));
+        log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
+
+        this.pairSort = new ColumnarReadEndsStore(newReadEndsCodec(useBarcodes), useBarcodes, maxInMemory, TMP_DIR);
+        this.fragSort = new ColumnarReadEndsStore(newReadEndsCodec(useBarcodes), useBarcodes, maxInMemory, TMP_DIR);
+    }
+
+    private static ReadEndsForMarkDuplicatesCodec newReadEndsCodec(final boolean useBarcodes) {
+        return useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodesCodec() : new ReadEndsForMarkDuplicatesCodec();
+    }
+
+    /**
+     * Completes the read ends of a pair, built from whichever end came first in the file, with the end that came
+     * second.  Everything needed from the second end's record is in its fragment read ends: its position, strand,
+     * index, score and barcode.
+     *
+     * @param pairedEnds  the read ends built from the first end, which are updated
+     * @param fragmentEnd the fragment read ends built from the second end
+     * @param firstOfPair whether the second end is the first of its pair
+     */
+    private void addSecondEnd(final ReadEndsForMarkDuplicates pairedEnds, final ReadEndsForMarkDuplicates fragmentEnd,
+                              final boolean firstOfPair, final boolean useBarcodes) {
+        final int matesRefIndex = fragmentEnd.read1ReferenceIndex;
+        final int matesCoordinate = fragmentEnd.read1Coordinate;
+        final long indexForRead = fragmentEnd.read1IndexInFile;
+        final boolean negativeStrand = fragmentEnd.orientation == ReadEnds.R;
+
+        // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
+        // before updating the orientation later.
+        if (firstOfPair) {
+            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(negativeStrand, pairedEnds.orientation == ReadEnds.R);
+            if (useBarcodes)
+                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = ((ReadEndsForMarkDuplicatesWithBarcodes) fragmentEnd).readOneBarcode;
+        } else {
+            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, negativeStrand);
+            if (useBarcodes)
+                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = ((ReadEndsForMarkDuplicatesWithBarcodes) fragmentEnd).readTwoBarcode;
+        }
+
+        // If the other read is actually later, simply add the other read's data as read2, else flip the reads
+        if (matesRefIndex > pairedEnds.read1ReferenceIndex ||
+                (matesRefIndex == pairedEnds.read1ReferenceIndex && matesCoordinate >= pairedEnds.read1Coordinate)) {
+            pairedEnds.read2ReferenceIndex = matesRefIndex;
+            pairedEnds.read2Coordinate = matesCoordinate;
+            pairedEnds.read2IndexInFile = indexForRead;
+            pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, negativeStrand);
+
+            // if the two read ends are in the same position, pointing in opposite directions,
+            // the orientation is undefined and the procedure above
+            // will depend on the order of the reads in the file.
+            // To avoid this, we set it explicitly (to FR):
+            if (pairedEnds.read2ReferenceIndex == pairedEnds.read1ReferenceIndex &&
+                    pairedEnds.read2Coordinate == pairedEnds.read1Coordinate &&
+                    pairedEnds.orientation == ReadEnds.RF) {
+                pairedEnds.orientation = ReadEnds.FR;
+            }
+        } else {
+            pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
+            pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
+            pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
+            pairedEnds.read1ReferenceIndex = matesRefIndex;
+            pairedEnds.read1Coordinate = matesCoordinate;
+            pairedEnds.read1IndexInFile = indexForRead;
+            pairedEnds.orientation = ReadEnds.getOrientationByte(negativeStrand, pairedEnds.orientation == ReadEnds.R);
+        }
+
+        // The fragment's score is that of the second end's record alone
+        pairedEnds.score += fragmentEnd.score;
+    }
+
     /** Builds a read ends object that represents a single read. */
     private ReadEndsForMarkDuplicates buildReadEnds(final SAMFileHeader header, final long index, final SAMRecord rec, final boolean useBarcodes) {
+        return buildReadEnds(header, index, rec, useBarcodes, this.opticalDuplicateFinder);
+    }
+
+    /**
+     * Builds a read ends object that represents a single read, parsing its read name with the given finder, which
+     * must not be used by any other thread at the same time.
+     */
+    private ReadEndsForMarkDuplicates buildReadEnds(final SAMFileHeader header, final long index, final SAMRecord rec,
+                                                    final boolean useBarcodes, final OpticalDuplicateFinder finder) {
         final ReadEndsForMarkDuplicates ends;
 
         if (useBarcodes) {
@@ -564,7 +657,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         ends.libraryId = libraryIdGenerator.getLibraryId(rec);
 
         // Fill in the location information for optical duplicates
-        if (this.opticalDuplicateFinder.addLocationInformation(rec.getReadName(), ends)) {
+        if (finder.addLocationInformation(rec.getReadName(), ends)) {
             // calculate the RG number (nth in list)
             ends.readGroup = 0;
             final String rg = (String) rec.getAttribute("RG");
@@ -591,9 +684,312 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return ends;
     }
 
+    /**
+     * Builds the read ends of a single indexed, coordinate sorted BAM on several threads, one reference sequence at a
+     * time.  The records of each reference sequence are numbered from the number of records on the reference sequences
+     * before it, taken from the index, so the read ends are exactly those that a single pass over the input would
+     * build.  Pairs with both ends on the same reference sequence are completed as they are read.  The first ends of
+     * pairs whose mates are on later reference sequences go into a SpillingReadEndsForMarkDuplicatesMap keyed by the
+     * mate's reference sequence, as in the single pass, so they are held within READ_ENDS_MAP_SIZE_RATIO of the heap.
+     * The second ends of those pairs are written to a temporary file for each thread.  Once all reference sequences
+     * have been read, the second ends are read back in reference sequence order and each is completed with the first
+     * end of its pair.
+     */
+    private final class ReferenceShardedReadEndsBuilder {
+        /** Number of fragment ends built by a shard before they are added to the shared stores. */
+        private static final int BATCH_SIZE = 10000;
+
+        private final boolean useBarcodes;
+        /** First ends of pairs whose mates are on later reference sequences, from all shards; guarded by itself. */
+        private SpillingReadEndsForMarkDuplicatesMap firstEndsAcross;
+        private final List<SecondEndsFile> secondEndsFiles = new ArrayList<>();
+
+        ReferenceShardedReadEndsBuilder(final boolean useBarcodes) {
+            this.useBarcodes = useBarcodes;
+        }
+
+        /**
+         * Builds and sorts the read ends if the input can be sharded.
+         *
+         * @return false, leaving nothing built, if the input must be read in a single pass instead
+         */
+        boolean build() {
+            if (INPUT.size() != 1 || ASSUME_SORTED || ASSUME_SORT_ORDER != null || !INPUT.get(0).endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+                log.warn("Reading the input in a single pass because SHARD_BY_REFERENCE needs a single BAM whose header says it is coordinate sorted.");
+                return false;
+            }
+
+            final SamReader reader = openReader();
+            final SAMFileHeader header = reader.getFileHeader();
+            if (!reader.hasIndex() || header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                CloserUtil.close(reader);
+                log.warn("Reading the input in a single pass because SHARD_BY_REFERENCE needs an indexed, coordinate sorted BAM.");
+                return false;
+            }
+
+            // Number each shard's records from the records on the reference sequences before it
+            final BAMIndex index = reader.indexing().getIndex();
+            final List<Shard> shards = new ArrayList<>();
+            long firstIndex = 0;
+            for (int referenceIndex = 0; referenceIndex < header.getSequenceDictionary().size(); ++referenceIndex) {
+                final BAMIndexMetaData metaData = index.getMetaData(referenceIndex);
+                final long records = (metaData == null) ? 0 : metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+                shards.add(new Shard(referenceIndex, firstIndex, records));
+                firstIndex += records;
+            }
+
+            // The single pass stops at the first record with no coordinate, having already gathered its PG ID
+            final String firstUnplacedPgId;
+            final boolean hasUnplacedRecords;
+            try (final SAMRecordIterator unplaced = reader.queryUnmapped()) {
+                hasUnplacedRecords = unplaced.hasNext();
+                firstUnplacedPgId = hasUnplacedRecords ? unplaced.next().getStringAttribute(SAMTag.PG.name()) : null;
+            }
+            CloserUtil.close(reader);
+
+            if (null == libraryIdGenerator) libraryIdGenerator = new LibraryIdGenerator(header);
+            libraryIdGenerator.assignAllLibraryIds();
+            createReadEndStores(useBarcodes);
+
+            // Start with the largest shards so that a large one is not left running on its own at the end
+            final List<Shard> bySize = new ArrayList<>(shards);
+            bySize.sort((lhs, rhs) -> Long.compare(rhs.expectedRecords, lhs.expectedRecords));
+            final int numThreads = Math.min(ThreadUtil.resolveThreadCount(THREADS), shards.size());
+            log.info("Building read ends from " + shards.size() + " reference sequences on " + numThreads + " threads.");
+            firstEndsAcross = new SpillingReadEndsForMarkDuplicatesMap(
+                    Math.max(1, (long) (Runtime.getRuntime().maxMemory() * READ_ENDS_MAP_SIZE_RATIO)), newReadEndsCodec(useBarcodes), TMP_DIR);
+            try {
+                runShards(bySize, numThreads);
+
+                for (final Shard shard : shards) {
+                    if (shard.recordsRead != shard.expectedRecords) {
+                        log.warn("Reading the input in a single pass because the index of " + INPUT.get(0) + " says there are " +
+                                shard.expectedRecords + " records on " + header.getSequence(shard.referenceIndex).getSequenceName() +
+                                " but " + shard.recordsRead + " were read.");
+                        pairSort.cleanup();
+                        fragSort.cleanup();
+                        return false;
+                    }
+                }
+
+                // Complete the pairs whose ends are on different reference sequences, in the order of the single pass
+                for (final Shard shard : shards) {
+                    if (shard.numSecondEnds > 0) shard.secondEndsFile.completePairs(shard);
+                }
+            } finally {
+                for (final SecondEndsFile file : secondEndsFiles) file.delete();
+            }
+            log.info(String.format("Spilled %d read ends waiting for mates on other reference sequences to %d files (%d bytes); %d ms writing, %d ms reading.",
+                    firstEndsAcross.getTotalRecordsSpilled(), firstEndsAcross.getSpillFilesWritten(), firstEndsAcross.getTotalBytesSpilled(),
+                    firstEndsAcross.getSpillWriteMillis(), firstEndsAcross.getSpillReadMillis()));
+
+            long unmatched = firstEndsAcross.size();
+            for (final Shard shard : shards) {
+                unmatched += shard.unmatched;
+                if (PROGRAM_RECORD_ID != null) pgIdsSeen.addAll(shard.pgIds);
+            }
+            if (PROGRAM_RECORD_ID != null && hasUnplacedRecords) pgIdsSeen.add(firstUnplacedPgId);
+            log.info("Read " + firstIndex + " records. " + unmatched + " pairs never matched.");
+
+            // Tell these collections to free up memory if possible.
+            pairSort.doneAdding();
+            fragSort.doneAdding();
+            return true;
+        }
+
+        /** Reads the shards on a pool of threads, each of which takes the next unread shard when it is done with one. */
+        private void runShards(final List<Shard> shards, final int numThreads) {
+            final AtomicInteger nextShard = new AtomicInteger(0);
+            final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            final List<Future<?>> futures = new ArrayList<>(numThreads);
+            try {
+                for (int i = 0; i < numThreads; ++i) {
+                    final SecondEndsFile secondEnds = new SecondEndsFile(TMP_DIR.get(i % TMP_DIR.size()));
+                    secondEndsFiles.add(secondEnds);
+                    futures.add(pool.submit(() -> {
+                        final SamReader reader = openReader();
+                        final OpticalDuplicateFinder finder = new OpticalDuplicateFinder(READ_NAME_REGEX, OPTICAL_DUPLICATE_PIXEL_DISTANCE, log);
+                        try {
+                            for (int shard = nextShard.getAndIncrement(); shard < shards.size(); shard = nextShard.getAndIncrement()) {
+                                shards.get(shard).read(reader, finder, secondEnds);
+                            }
+                        } finally {
+                            secondEnds.doneWriting();
+                            CloserUtil.close(reader);
+                        }
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new PicardException("Error building read ends from " + INPUT.get(0), e.getCause());
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for read end threads.", ie);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private SamReader openReader() {
+            return SamReaderFactory.makeDefault()
+                    .enable(SamReaderFactory.Option.EAGERLY_DECODE)
+                    .open(SamInputResource.of(INPUT.get(0)));
+        }
+
+        /** Adds a shard's read ends to the stores, which are shared by all shards. */
+        private synchronized void addToStores(final List<ReadEndsForMarkDuplicates> fragmentEnds, final List<ReadEndsForMarkDuplicates> pairedEnds) {
+            for (final ReadEndsForMarkDuplicates end : fragmentEnds) fragSort.add(end);
+            for (final ReadEndsForMarkDuplicates end : pairedEnds) pairSort.add(end);
+            fragmentEnds.clear();
+            pairedEnds.clear();
+        }
+
+        /** The records on one reference sequence, and what is left of them for the pairs across reference sequences. */
+        private final class Shard {
+            final int referenceIndex;
+            final long firstIndex;
+            final long expectedRecords;
+            long recordsRead = 0;
+            long unmatched = 0;
+            final Set<String> pgIds = new HashSet<>();
+            /** Where the fragment ends of reads whose mates are on earlier reference sequences were written. */
+            SecondEndsFile secondEndsFile = null;
+            long secondEndsFilePointer = 0;
+            int numSecondEnds = 0;
+
+            Shard(final int referenceIndex, final long firstIndex, final long expectedRecords) {
+                this.referenceIndex = referenceIndex;
+                this.firstIndex = firstIndex;
+                this.expectedRecords = expectedRecords;
+            }
+
+            void read(final SamReader reader, final OpticalDuplicateFinder finder, final SecondEndsFile secondEnds) {
+                final SAMFileHeader header = reader.getFileHeader();
+                this.secondEndsFile = secondEnds;
+                this.secondEndsFilePointer = secondEnds.getFilePointer();
+                final Map<PairingKey, ReadEndsForMarkDuplicates> pending = new HashMap<>();
+                final List<ReadEndsForMarkDuplicates> fragmentEnds = new ArrayList<>(BATCH_SIZE);
+                final List<ReadEndsForMarkDuplicates> pairedEnds = new ArrayList<>();
+                long index = firstIndex;
+
+                try (final SAMRecordIterator iterator = reader.query(header.getSequence(referenceIndex).getSequenceName(), 0, 0, false)) {
+                    while (iterator.hasNext()) {
+                        final SAMRecord rec = iterator.next();
+                        if (PROGRAM_RECORD_ID != null) pgIds.add(rec.getStringAttribute(SAMTag.PG.name()));
+
+                        if (!rec.getReadUnmappedFlag() && !rec.isSecondaryOrSupplementary()) {
+                            final ReadEndsForMarkDuplicates fragmentEnd = buildReadEnds(header, index, rec, useBarcodes, finder);
+                            fragmentEnds.add(fragmentEnd);
+
+                            if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
+                                final PairingKey key = PairingKey.of(rec);
+                                final int matesRefIndex = rec.getMateReferenceIndex();
+                                if (matesRefIndex < referenceIndex) {
+                                    secondEnds.write(key, fragmentEnd, rec.getFirstOfPairFlag());
+                                    ++numSecondEnds;
+                                } else if (matesRefIndex > referenceIndex) {
+                                    final ReadEndsForMarkDuplicates firstEnd = fragmentEnd.clone();
+                                    synchronized (firstEndsAcross) {
+                                        firstEndsAcross.put(matesRefIndex, key, firstEnd);
+                                    }
+                                } else {
+                                    final ReadEndsForMarkDuplicates firstEnd = pending.remove(key);
+                                    if (firstEnd == null) {
+                                        pending.put(key, fragmentEnd.clone());
+                                    } else {
+                                        addSecondEnd(firstEnd, fragmentEnd, rec.getFirstOfPairFlag(), useBarcodes);
+                                        pairedEnds.add(firstEnd);
+                                    }
+                                }
+                            }
+                            if (fragmentEnds.size() >= BATCH_SIZE) addToStores(fragmentEnds, pairedEnds);
+                        }
+                        ++index;
+                    }
+                }
+                addToStores(fragmentEnds, pairedEnds);
+
+                this.recordsRead = index - firstIndex;
+                this.unmatched = pending.size();
+                log.debug("Read " + recordsRead + " records on " + header.getSequence(referenceIndex).getSequenceName());
+            }
+        }
+
+        /**
+         * The fragment ends of reads whose mates are on earlier reference sequences, with their keys, for the shards
+         * read by one thread.  Each shard's ends are written one after another, so they are read back with one seek.
+         */
+        private final class SecondEndsFile {
+            final File file;
+            final ReadEndsForMarkDuplicatesCodec codec = newReadEndsCodec(useBarcodes);
+            final BlockCompressedOutputStream out;
+            private boolean closed = false;
+
+            SecondEndsFile(final File dir) {
+                try {
+                    file = File.createTempFile("secondEnds.", ".bgz", dir);
+                    file.deleteOnExit();
+                } catch (final IOException ioe) {
+                    throw new PicardException("Error creating temporary file in " + dir, ioe);
+                }
+                out = new BlockCompressedOutputStream(file, SpillingReadEndsForMarkDuplicatesMap.SPILL_COMPRESSION_LEVEL);
+                codec.setOutputStream(out);
+            }
+
+            long getFilePointer() {
+                return out.getFilePointer();
+            }
+
+            void write(final PairingKey key, final ReadEndsForMarkDuplicates fragmentEnd, final boolean firstOfPair) {
+                try {
+                    key.write(codec.getOutputStream());
+                    codec.getOutputStream().writeBoolean(firstOfPair);
+                    codec.encode(fragmentEnd);
+                } catch (final IOException ioe) {
+                    throw new PicardException("Error writing read ends to " + file, ioe);
+                }
+            }
+
+            void doneWriting() {
+                if (closed) return;
+                closed = true;
+                CloserUtil.close(out);
+            }
+
+            /** Reads back the shard's second ends and completes each pair whose first end is waiting for it. */
+            void completePairs(final Shard shard) {
+                try (final BlockCompressedInputStream in = new BlockCompressedInputStream(file)) {
+                    in.seek(shard.secondEndsFilePointer);
+                    codec.setInputStream(in);
+                    final DataInputStream dataIn = codec.getInputStream();
+                    for (int i = 0; i < shard.numSecondEnds; ++i) {
+                        final PairingKey key = PairingKey.read(dataIn);
+                        final boolean firstOfPair = dataIn.readBoolean();
+                        final ReadEndsForMarkDuplicates fragmentEnd = codec.decode();
+                        if (fragmentEnd == null) throw new PicardException("Unexpected end of " + file);
+                        final ReadEndsForMarkDuplicates pairedEnds = firstEndsAcross.remove(shard.referenceIndex, key);
+                        if (pairedEnds == null) continue;
+                        addSecondEnd(pairedEnds, fragmentEnd, firstOfPair, useBarcodes);
+                        pairSort.add(pairedEnds);
+                    }
+                } catch (final IOException ioe) {
+                    throw new PicardException("Error reading read ends from " + file, ioe);
+                }
+            }
+
+            void delete() {
+                doneWriting();
+                file.delete();
+            }
+        }
+    }
+
     /**
      * Goes through the accumulated ReadEndsForMarkDuplicates objects and determines which of them are
-     * to be marked as duplicates.
+     * to be marked as duplicates.  The sorted read ends are grouped into duplicate sets on this thread; if more than
+     * one thread is requested the sets are resolved, including optical duplicate detection, by a pool of workers.
      *
      * @return an array with an ordered list of indexes into the source file
      */
@@ -608,53 +1004,64 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
         this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
 
-        ReadEndsForMarkDuplicates firstOfNextChunk = null;
-        final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+        final DuplicateSetResolver resolver = new DuplicateSetResolver(ThreadUtil.resolveThreadCount(THREADS));
+        try {
+            ReadEndsForMarkDuplicates firstOfNextChunk = null;
+            List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
 
-        // First just do the pairs
-        log.info("Traversing read pair information and detecting duplicates.");
-        for (final ReadEndsForMarkDuplicates next : this.pairSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
-                nextChunk.add(next);
-            } else {
-                if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
+            // First just do the pairs
+            log.info("Traversing read pair information and detecting duplicates.");
+            for (final ReadEndsForMarkDuplicates next : this.pairSort) {
+                if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
+                    nextChunk.add(next);
+                } else {
+                    if (nextChunk.size() > 1) {
+                        resolver.resolve(nextChunk, true, true);
+                        nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+                    }
+                    nextChunk.clear();
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
                 }
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
             }
-        }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
-        this.pairSort.cleanup();
-        this.pairSort = null;
-
-        // Now deal with the fragments
-        log.info("Traversing fragment information and detecting duplicates.");
-        boolean containsPairs = false;
-        boolean containsFrags = false;
-
-        firstOfNextChunk = null;
-
-        for (final ReadEndsForMarkDuplicates next : this.fragSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
-                nextChunk.add(next);
-                containsPairs = containsPairs || next.isPaired();
-                containsFrags = containsFrags || !next.isPaired();
-            } else {
-                if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
+            if (nextChunk.size() > 1) resolver.resolve(nextChunk, true, true);
+            this.pairSort.cleanup();
+            this.pairSort = null;
+
+            // Now deal with the fragments
+            log.info("Traversing fragment information and detecting duplicates.");
+            boolean containsPairs = false;
+            boolean containsFrags = false;
+
+            firstOfNextChunk = null;
+            nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+
+            for (final ReadEndsForMarkDuplicates next : this.fragSort) {
+                if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
+                    nextChunk.add(next);
+                    containsPairs = containsPairs || next.isPaired();
+                    containsFrags = containsFrags || !next.isPaired();
+                } else {
+                    if (nextChunk.size() > 1 && containsFrags) {
+                        resolver.resolve(nextChunk, false, containsPairs);
+                        nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+                    }
+                    nextChunk.clear();
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
+                    containsPairs = next.isPaired();
+                    containsFrags = !next.isPaired();
                 }
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
-                containsPairs = next.isPaired();
-                containsFrags = !next.isPaired();
             }
+            resolver.resolve(nextChunk, false, containsPairs);
+            this.fragSort.cleanup();
+            this.fragSort = null;
+
+            resolver.finish();
+        } catch (final RuntimeException | Error e) {
+            resolver.abort();
+            throw e;
         }
-        markDuplicateFragments(nextChunk, containsPairs);
-        this.fragSort.cleanup();
-        this.fragSort = null;
 
         log.info("Sorting list of duplicate records.");
         this.duplicateIndexes.doneAddingStartIteration();
@@ -686,18 +1093,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return areComparable;
     }
 
-    private void addIndexAsDuplicate(final long bamIndex) {
-        this.duplicateIndexes.add(bamIndex);
-        ++this.numDuplicateIndices;
-    }
-
     /**
      * Takes a list of ReadEndsForMarkDuplicates objects and removes from it all objects that should
      * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param duplicates receives the indexes of the duplicates
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final DuplicateIndexBuffer duplicates) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -710,20 +1113,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, duplicates.opticalDuplicatesByLibraryId);
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
+                duplicates.addDuplicate(end.read1IndexInFile);
 
                 // in query-sorted case, these will be the same.
                 // TODO: also in coordinate sorted, when one read is unmapped
-                if(end.read2IndexInFile != end.read1IndexInFile) addIndexAsDuplicate(end.read2IndexInFile);
+                if(end.read2IndexInFile != end.read1IndexInFile) duplicates.addDuplicate(end.read2IndexInFile);
 
                 if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                    duplicates.addOpticalDuplicate(end.read1IndexInFile);
+                    duplicates.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
@@ -735,11 +1138,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param duplicates receives the indexes of the duplicates
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final DuplicateIndexBuffer duplicates) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) duplicates.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -753,8 +1157,212 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    duplicates.addDuplicate(end.read1IndexInFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the duplicate and optical duplicate indexes found by one thread, and the optical duplicate counts, so
+     * that threads do not contend for the shared collections.  Full buffers are sorted and added to the shared
+     * SortingLongCollections under a lock.
+     */
+    private final class DuplicateIndexBuffer {
+        private static final int CAPACITY = 1 << 16;
+
+        private final long[] duplicates = new long[CAPACITY];
+        private final long[] opticalDuplicates = new long[CAPACITY];
+        private int numDuplicates = 0;
+        private int numOpticalDuplicates = 0;
+        Histogram<Short> opticalDuplicatesByLibraryId = new Histogram<Short>();
+
+        void addDuplicate(final long bamIndex) {
+            if (numDuplicates == CAPACITY) flushDuplicates();
+            duplicates[numDuplicates++] = bamIndex;
+        }
+
+        void addOpticalDuplicate(final long bamIndex) {
+            if (numOpticalDuplicates == CAPACITY) flushOpticalDuplicates();
+            opticalDuplicates[numOpticalDuplicates++] = bamIndex;
+        }
+
+        private void flushDuplicates() {
+            Arrays.sort(duplicates, 0, numDuplicates);
+            synchronized (MarkDuplicates.this) {
+                for (int i = 0; i < numDuplicates; ++i) {
+                    duplicateIndexes.add(duplicates[i]);
+                }
+                numDuplicateIndices += numDuplicates;
+            }
+            numDuplicates = 0;
+        }
+
+        private void flushOpticalDuplicates() {
+            Arrays.sort(opticalDuplicates, 0, numOpticalDuplicates);
+            synchronized (MarkDuplicates.this) {
+                for (int i = 0; i < numOpticalDuplicates; ++i) {
+                    opticalDuplicateIndexes.add(opticalDuplicates[i]);
+                }
+            }
+            numOpticalDuplicates = 0;
+        }
+
+        /** Adds everything still buffered, and the optical duplicate counts, to the shared state. */
+        void flush() {
+            flushDuplicates();
+            if (numOpticalDuplicates > 0) flushOpticalDuplicates();
+            synchronized (MarkDuplicates.this) {
+                libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().addHistogram(opticalDuplicatesByLibraryId);
+            }
+            opticalDuplicatesByLibraryId = new Histogram<Short>();
+        }
+    }
+
+    /** A set of read ends that are duplicates of one another, waiting to be resolved. */
+    private static final class DuplicateSet {
+        final List<ReadEndsForMarkDuplicates> ends;
+        final boolean pairs;
+        final boolean containsPairs;
+
+        DuplicateSet(final List<ReadEndsForMarkDuplicates> ends, final boolean pairs, final boolean containsPairs) {
+            this.ends = ends;
+            this.pairs = pairs;
+            this.containsPairs = containsPairs;
+        }
+    }
+
+    /**
+     * Resolves duplicate sets, on the calling thread or on a pool of worker threads.  Sets are handed to the workers
+     * in batches through a bounded queue, so the grouping thread blocks if it gets too far ahead.  Each worker owns a
+     * DuplicateIndexBuffer, and the first error thrown by a worker is rethrown from resolve() or finish().
+     */
+    private final class DuplicateSetResolver {
+        /** Number of read ends gathered before a batch of sets is queued for the workers. */
+        private static final int BATCH_SIZE = 1000;
+
+        /** Marks the end of the sets on the queue; compared by identity. */
+        private final List<DuplicateSet> endOfSets = Collections.emptyList();
+
+        private final DuplicateIndexBuffer serialBuffer;
+        private final List<Thread> workers = new ArrayList<>();
+        private final BlockingQueue<List<DuplicateSet>> queue;
+        private final AtomicReference<Throwable> ex = new AtomicReference<>(null);
+        private List<DuplicateSet> batch = new ArrayList<>();
+        private int endsInBatch = 0;
+
+        DuplicateSetResolver(final int numThreads) {
+            if (numThreads <= 1) {
+                serialBuffer = new DuplicateIndexBuffer();
+                queue = null;
+                return;
+            }
+
+            serialBuffer = null;
+            queue = new ArrayBlockingQueue<>(2 * numThreads);
+            for (int i = 0; i < numThreads; ++i) {
+                final Thread worker = new Thread(this::work, "DuplicateSetResolver" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+            for (final Thread worker : workers) {
+                worker.start();
+            }
+        }
+
+        /**
+         * Resolves a set of read ends that are duplicates of one another.  The list must not be modified afterwards.
+         *
+         * @param pairs true for sets of pairs, false for sets of fragments
+         * @param containsPairs for sets of fragments, whether any of the fragments is part of a pair
+         */
+        void resolve(final List<ReadEndsForMarkDuplicates> ends, final boolean pairs, final boolean containsPairs) {
+            final DuplicateSet set = new DuplicateSet(ends, pairs, containsPairs);
+            if (serialBuffer != null) {
+                resolve(set, serialBuffer);
+                return;
+            }
+
+            batch.add(set);
+            endsInBatch += ends.size();
+            if (endsInBatch >= BATCH_SIZE) {
+                put(batch);
+                batch = new ArrayList<>();
+                endsInBatch = 0;
+            }
+        }
+
+        private void resolve(final DuplicateSet set, final DuplicateIndexBuffer buffer) {
+            if (set.pairs) markDuplicatePairs(set.ends, buffer);
+            else markDuplicateFragments(set.ends, set.containsPairs, buffer);
+        }
+
+        /** Waits for all sets to be resolved and adds the workers' results to the shared collections. */
+        void finish() {
+            if (serialBuffer != null) {
+                serialBuffer.flush();
+                return;
+            }
+
+            if (!batch.isEmpty()) put(batch);
+            batch = null;
+            for (int i = 0; i < workers.size(); ++i) {
+                put(endOfSets);
+            }
+            for (final Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (final InterruptedException ie) {
+                    abort();
+                    throw new PicardException("Interrupted waiting for duplicate set threads.", ie);
+                }
+            }
+            checkAndRethrow();
+        }
+
+        /** Stops all workers. */
+        void abort() {
+            for (final Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+
+        private void put(final List<DuplicateSet> sets) {
+            try {
+                checkAndRethrow();
+                // Keep offering rather than blocking in put() so that an error in a worker is noticed
+                while (!queue.offer(sets, 1, TimeUnit.SECONDS)) {
+                    checkAndRethrow();
+                }
+            } catch (final InterruptedException ie) {
+                abort();
+                throw new PicardException("Interrupted queueing duplicate sets.", ie);
+            }
+        }
+
+        private void checkAndRethrow() {
+            final Throwable t = this.ex.get();
+            if (t != null) {
+                abort();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                else throw new PicardException("Error in duplicate set thread.", t);
+            }
+        }
+
+        private void work() {
+            final DuplicateIndexBuffer buffer = new DuplicateIndexBuffer();
+            try {
+                while (true) {
+                    final List<DuplicateSet> sets = queue.take();
+                    if (sets == endOfSets || ex.get() != null) break;
+                    for (final DuplicateSet set : sets) {
+                        resolve(set, buffer);
+                    }
                 }
+                if (ex.get() == null) buffer.flush();
+            } catch (final Throwable t) {
+                ex.compareAndSet(null, t);
             }
         }
     }
@@ -35,6 +35,7 @@ import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
+import picard.sam.markduplicates.util.PhysicalLocationForMateCigarSet;
 
 
 import java.util.*;
@@ -99,6 +100,11 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
     @Option(doc = "The block size for use in the coordinate-sorted record buffer.", optional = true)
     public int BLOCK_SIZE = 100000;
 
+    @Option(doc = "The fraction of the maximum heap that the physical locations of duplicates, kept for optical duplicate " +
+            "detection, may take before those of the oldest positions are spilled to disk.  Only very deep coverage, " +
+            "such as that of amplicon panels, needs this much.")
+    public double LOCATIONS_SIZE_RATIO = 0.1;
+
     /** Warnings that will only be emitted once */
     private boolean warnedNullProgramRecords = false;
     private boolean warnedMissingProgramRecords = false;
@@ -150,7 +156,8 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
                 this.SKIP_PAIRS_WITH_NO_MATE_CIGAR,
                 this.MAX_RECORDS_IN_RAM,
                 this.BLOCK_SIZE,
-                this.TMP_DIR);
+                this.TMP_DIR,
+                Math.max(1, (long) (Runtime.getRuntime().maxMemory() * LOCATIONS_SIZE_RATIO) / PhysicalLocationForMateCigarSet.BYTES_PER_LOCATION));
 
         // progress logger!
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
@@ -180,6 +187,9 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
         log.info("Processed " + progress.getCount() + " records");
         log.info("Found " + iterator.getNumRecordsWithNoMateCigar() + " records with no mate cigar optional tag.");
         log.info("Marking " + iterator.getNumDuplicates() + " records as duplicates.");
+        log.info("At most " + iterator.getMarkQueue().getMaxSize() + " records were waiting to be marked; " +
+                iterator.getMarkQueue().getNumLocationsSpilled() + " optical duplicate locations were spilled to disk in " +
+                iterator.getMarkQueue().getNumLocationSpills() + " spills to " + iterator.getMarkQueue().getNumLocationSpillFiles() + " files.");
         log.info("Found " + ((long) opticalDupesByLibraryId.getSumOfValues()) + " optical duplicate clusters."); // cast as long due to returning a double
 
         // Write out the metrics
@@ -123,6 +123,25 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
                                                final int maxRecordsInRam,
                                                final int blockSize,
                                                final List<File> tmpDirs) throws PicardException {
+        this(header, iterator, opticalDuplicateFinder, duplicateScoringStrategy, toMarkQueueMinimumDistance, removeDuplicates,
+                skipPairsWithNoMateCigar, maxRecordsInRam, blockSize, tmpDirs, Long.MAX_VALUE);
+    }
+
+    /**
+     * As above, but spills the physical locations kept for optical duplicate detection to disk, those of the oldest
+     * positions first, when more than maxLocationsInRam are in memory.
+     */
+    public MarkDuplicatesWithMateCigarIterator(final SAMFileHeader header,
+                                               final CloseableIterator<SAMRecord> iterator,
+                                               final OpticalDuplicateFinder opticalDuplicateFinder,
+                                               final ScoringStrategy duplicateScoringStrategy,
+                                               final int toMarkQueueMinimumDistance,
+                                               final boolean removeDuplicates,
+                                               final boolean skipPairsWithNoMateCigar,
+                                               final int maxRecordsInRam,
+                                               final int blockSize,
+                                               final List<File> tmpDirs,
+                                               final long maxLocationsInRam) throws PicardException {
         if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
             throw new PicardException(getClass().getName() + " expects the input to be in coordinate sort order.");
         }
@@ -134,7 +153,7 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
         this.removeDuplicates = removeDuplicates;
         this.skipPairsWithNoMateCigar = skipPairsWithNoMateCigar;
         this.opticalDuplicateFinder = opticalDuplicateFinder;
-        toMarkQueue = new MarkQueue(duplicateScoringStrategy);
+        toMarkQueue = new MarkQueue(duplicateScoringStrategy, maxLocationsInRam, tmpDirs);
         libraryIdGenerator = new LibraryIdGenerator(header);
 
         // Check for supported scoring strategies
@@ -166,7 +185,10 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
                 "; totalMemory: " + runtime.totalMemory() +
                 "; maxMemory: " + runtime.maxMemory() +
                 "; output buffer size: " + outputBuffer.size() +
-                "; duplicate queue size: " + toMarkQueue.size()
+                "; duplicate queue size: " + toMarkQueue.size() +
+                " (at most " + toMarkQueue.getMaxSize() + ")" +
+                "; optical duplicate locations in memory: " + toMarkQueue.getNumLocationsInRam() +
+                "; spilled: " + toMarkQueue.getNumLocationsSpilled() + " in " + toMarkQueue.getNumLocationSpills() + " spills"
         );
     }
 
@@ -476,6 +498,7 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
         // close the input and output
         backingIterator.close();
         outputBuffer.close();
+        toMarkQueue.close();
         isClosed = true;
     }
 
@@ -507,6 +530,11 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
         return toMarkQueue.getNumDuplicates();
     }
 
+    public MarkQueue getMarkQueue() {
+        enforceClosed();
+        return toMarkQueue;
+    }
+
     public LibraryIdGenerator getLibraryIdGenerator() {
         enforceClosed();
         return libraryIdGenerator;
@@ -593,12 +621,14 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
 
             // track optical duplicates using only those reads that are the first end...
             if (toMarkQueue.shouldBeInLocations(next) && next.getRecord().getFirstOfPairFlag()) {
-                final Set<ReadEnds> locations = toMarkQueue.getLocations(next);
+                final List<ReadEnds> locations = toMarkQueue.getLocations(next);
 
                 if (!locations.isEmpty()) {
-                    AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(new ArrayList<ReadEnds>(locations), null,
+                    AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(locations, null,
                             opticalDuplicateFinder, libraryIdGenerator);
                 }
+            } else if (toMarkQueue.shouldBeInLocations(next)) {
+                toMarkQueue.discardLocations(next);
             }
             // NB: we could try to greedily return a record if one is available here.  Instead we continue processing the mark queue */
         }
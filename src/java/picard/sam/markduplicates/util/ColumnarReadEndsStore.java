@@ -0,0 +1,615 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sorts ReadEndsForMarkDuplicates for MarkDuplicates without keeping an object per read end.  Read ends passed to
+ * {@link #add(ReadEndsForMarkDuplicates)} are copied into one column per field, held in direct (off-heap) buffers,
+ * so the object can be discarded straight away and the garbage collector never has to trace the stored read ends.
+ * When the columns are full they are sorted, by a parallel merge sort of an int permutation, and spilled to a
+ * temporary file with the given codec; iteration merges the spilled runs and whatever is still in memory, first
+ * merging groups of runs if there are more than {@link #MAX_RUNS_PER_MERGE}.
+ *
+ * Read ends are ordered as by MarkDuplicates.ReadEndsMDComparator: library, barcodes (if any), read1 reference and
+ * coordinate, orientation, read2 reference and coordinate, and then the indexes in the file.
+ *
+ * Like SortingCollection, {@link #doneAdding()} must be called before iterating, iteration may be done only once,
+ * and {@link #cleanup()} deletes the temporary files.  Not thread safe.
+ */
+public class ColumnarReadEndsStore implements Iterable<ReadEndsForMarkDuplicates> {
+    /** Bytes of direct (off-heap) column storage per read end. */
+    public static final int DIRECT_BYTES_PER_RECORD = (6 * 2) + (2 * 1) + (4 * 4) + (2 * 8);
+    /** Bytes of direct column storage per read end when barcodes are stored. */
+    public static final int DIRECT_BYTES_PER_BARCODED_RECORD = DIRECT_BYTES_PER_RECORD + (3 * 4);
+    /** Bytes of heap per read end, for the sort permutation and the scratch array of the merge sort. */
+    public static final int HEAP_BYTES_PER_RECORD = 4 + 4;
+    /** Bytes per read end of the widest column, which may be held twice while the columns grow. */
+    private static final int WIDEST_COLUMN_BYTES = 8;
+
+    /** The most read ends held in memory at once, so that the widest column fits in a single buffer. */
+    public static final int MAX_RECORDS_IN_RAM = Integer.MAX_VALUE / 8;
+
+    /** The most runs read at once; if more are spilled, groups of them are first merged into longer runs. */
+    public static final int MAX_RUNS_PER_MERGE = 512;
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /** Ranges shorter than this are sorted on the current thread. */
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 13;
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    /** Frees direct buffers explicitly where the JVM allows it, otherwise leaves them to the garbage collector. */
+    private static final Consumer<ByteBuffer> BUFFER_FREER = makeBufferFreer();
+
+    private final ReadEndsForMarkDuplicatesCodec codec;
+    private final boolean useBarcodes;
+    private final int maxRecordsInRam;
+    private final List<File> tmpDirs;
+    private final List<File> runs = new ArrayList<>();
+
+    private int capacity = 0;
+    private int size = 0;
+    private ShortBuffer score, libraryId, readGroup, tile, x, y;
+    private ByteBuffer orientation, orientationForOpticalDuplicates;
+    private IntBuffer read1ReferenceIndex, read1Coordinate, read2ReferenceIndex, read2Coordinate;
+    private LongBuffer read1IndexInFile, read2IndexInFile;
+    private IntBuffer barcode, readOneBarcode, readTwoBarcode;
+    private int[] order;
+    /** The direct buffers behind the current columns, by column, so that they can be freed as soon as they are replaced. */
+    private final Map<Buffer, ByteBuffer> columnBuffers = new IdentityHashMap<>();
+
+    private boolean doneAdding = false;
+    private boolean iterated = false;
+
+    /**
+     * @param codec           writes and reads the spilled runs; {@link ReadEndsForMarkDuplicatesWithBarcodesCodec} if
+     *                        useBarcodes is true
+     * @param useBarcodes     whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes, whose barcodes are
+     *                        stored and compared
+     * @param maxRecordsInRam number of read ends held in memory before a sorted run is spilled to disk; at most
+     *                        {@link #MAX_RECORDS_IN_RAM} are held whatever is asked for
+     * @param tmpDirs         directories for the spilled runs, used in turn
+     */
+    public ColumnarReadEndsStore(final ReadEndsForMarkDuplicatesCodec codec, final boolean useBarcodes,
+                                 final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        if (maxRecordsInRam < 1) throw new IllegalArgumentException("maxRecordsInRam must be at least 1: " + maxRecordsInRam);
+        if (tmpDirs.isEmpty()) throw new IllegalArgumentException("At least one temporary directory is needed.");
+        this.codec = codec;
+        this.useBarcodes = useBarcodes;
+        this.maxRecordsInRam = Math.min(maxRecordsInRam, MAX_RECORDS_IN_RAM);
+        this.tmpDirs = new ArrayList<>(tmpDirs);
+    }
+
+    /**
+     * The number of read ends to hold in memory so that neither the direct buffers, including while they grow, nor
+     * the heap arrays used to sort them exceed the given budgets.
+     * @param directBytes the direct memory the columns may take, e.g. a fraction of {@link #maxDirectMemory()}
+     * @param heapBytes   the heap the sort permutation may take
+     */
+    public static int maxRecordsInRam(final boolean useBarcodes, final long directBytes, final long heapBytes) {
+        final int directBytesPerRecord = (useBarcodes ? DIRECT_BYTES_PER_BARCODED_RECORD : DIRECT_BYTES_PER_RECORD) + WIDEST_COLUMN_BYTES;
+        final long records = Math.min(directBytes / directBytesPerRecord, heapBytes / HEAP_BYTES_PER_RECORD);
+        return (int) Math.max(1, Math.min(records, MAX_RECORDS_IN_RAM));
+    }
+
+    /** The most direct memory the JVM will allocate: -XX:MaxDirectMemorySize if set, otherwise the maximum heap. */
+    public static long maxDirectMemory() {
+        try {
+            final HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            final long maxDirectMemory = Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+            if (maxDirectMemory > 0) return maxDirectMemory;
+        } catch (final RuntimeException | LinkageError e) {
+            // Not a HotSpot JVM; assume the default limit
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /** Copies the fields of a read end into the store; the read end is not retained. */
+    public void add(final ReadEndsForMarkDuplicates end) {
+        if (doneAdding) throw new IllegalStateException("add() called after doneAdding().");
+        if (size == maxRecordsInRam) spill();
+        if (size == capacity) grow();
+
+        final int i = size++;
+        score.put(i, end.score);
+        libraryId.put(i, end.libraryId);
+        readGroup.put(i, end.readGroup);
+        tile.put(i, end.tile);
+        x.put(i, (short) end.x);
+        y.put(i, (short) end.y);
+        orientation.put(i, end.orientation);
+        orientationForOpticalDuplicates.put(i, end.orientationForOpticalDuplicates);
+        read1ReferenceIndex.put(i, end.read1ReferenceIndex);
+        read1Coordinate.put(i, end.read1Coordinate);
+        read2ReferenceIndex.put(i, end.read2ReferenceIndex);
+        read2Coordinate.put(i, end.read2Coordinate);
+        read1IndexInFile.put(i, end.read1IndexInFile);
+        read2IndexInFile.put(i, end.read2IndexInFile);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes endWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) end;
+            barcode.put(i, endWithBarcodes.barcode);
+            readOneBarcode.put(i, endWithBarcodes.readOneBarcode);
+            readTwoBarcode.put(i, endWithBarcodes.readTwoBarcode);
+        }
+    }
+
+    /** @return the number of sorted runs spilled to disk so far */
+    public int getNumberOfSpilledRuns() {
+        return runs.size();
+    }
+
+    /** Sorts whatever is still in memory.  No more read ends may be added. */
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+        sortInMemory();
+    }
+
+    /** @return the read ends in sorted order, as new objects */
+    @Override
+    public Iterator<ReadEndsForMarkDuplicates> iterator() {
+        if (!doneAdding) throw new IllegalStateException("iterator() called before doneAdding().");
+        if (iterated) throw new IllegalStateException("iterator() may only be called once.");
+        iterated = true;
+
+        final int maxRuns = (size > 0) ? MAX_RUNS_PER_MERGE - 1 : MAX_RUNS_PER_MERGE;
+        while (runs.size() > maxRuns) {
+            mergeRuns(Math.min(MAX_RUNS_PER_MERGE, runs.size() - maxRuns + 1));
+        }
+
+        final List<Iterator<ReadEndsForMarkDuplicates>> sources = new ArrayList<>(runs.size() + 1);
+        for (final File run : runs) sources.add(new RunIterator(run));
+        if (size > 0) sources.add(new InMemoryIterator());
+        return sources.size() == 1 ? sources.get(0) : new MergingIterator(sources);
+    }
+
+    /** Deletes the spilled runs and frees the columns.  The store may not be iterated over afterwards. */
+    public void cleanup() {
+        for (final File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        releaseColumns();
+    }
+
+    /** Moves each column into a larger buffer, freeing the old one before the next column is moved. */
+    private void grow() {
+        final int newCapacity = (int) Math.min(maxRecordsInRam, Math.max(INITIAL_CAPACITY, 2L * capacity));
+
+        score = copy(score, newCapacity);
+        libraryId = copy(libraryId, newCapacity);
+        readGroup = copy(readGroup, newCapacity);
+        tile = copy(tile, newCapacity);
+        x = copy(x, newCapacity);
+        y = copy(y, newCapacity);
+        orientation = copy(orientation, newCapacity);
+        orientationForOpticalDuplicates = copy(orientationForOpticalDuplicates, newCapacity);
+        read1ReferenceIndex = copy(read1ReferenceIndex, newCapacity);
+        read1Coordinate = copy(read1Coordinate, newCapacity);
+        read2ReferenceIndex = copy(read2ReferenceIndex, newCapacity);
+        read2Coordinate = copy(read2Coordinate, newCapacity);
+        read1IndexInFile = copy(read1IndexInFile, newCapacity);
+        read2IndexInFile = copy(read2IndexInFile, newCapacity);
+        if (useBarcodes) {
+            barcode = copy(barcode, newCapacity);
+            readOneBarcode = copy(readOneBarcode, newCapacity);
+            readTwoBarcode = copy(readTwoBarcode, newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /** Allocates the direct buffer of a new column whose view is made by asView. */
+    private <T extends Buffer> T allocate(final long bytes, final Function<ByteBuffer, T> asView) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        final T view = asView.apply(buffer);
+        columnBuffers.put(view, buffer);
+        return view;
+    }
+
+    /** Frees the direct buffer behind a column now, rather than whenever it is collected. */
+    private void free(final Buffer column) {
+        final ByteBuffer buffer = columnBuffers.remove(column);
+        if (buffer != null) BUFFER_FREER.accept(buffer);
+    }
+
+    private ShortBuffer copy(final ShortBuffer old, final int newCapacity) {
+        final ShortBuffer copy = allocate(2L * newCapacity, ByteBuffer::asShortBuffer);
+        if (old != null) copy.put((ShortBuffer) old.duplicate().position(0).limit(size));
+        free(old);
+        return copy;
+    }
+
+    private ByteBuffer copy(final ByteBuffer old, final int newCapacity) {
+        final ByteBuffer copy = allocate(newCapacity, buffer -> buffer);
+        if (old != null) copy.put((ByteBuffer) old.duplicate().position(0).limit(size));
+        free(old);
+        return copy;
+    }
+
+    private IntBuffer copy(final IntBuffer old, final int newCapacity) {
+        final IntBuffer copy = allocate(4L * newCapacity, ByteBuffer::asIntBuffer);
+        if (old != null) copy.put((IntBuffer) old.duplicate().position(0).limit(size));
+        free(old);
+        return copy;
+    }
+
+    private LongBuffer copy(final LongBuffer old, final int newCapacity) {
+        final LongBuffer copy = allocate(8L * newCapacity, ByteBuffer::asLongBuffer);
+        if (old != null) copy.put((LongBuffer) old.duplicate().position(0).limit(size));
+        free(old);
+        return copy;
+    }
+
+    private void releaseColumns() {
+        for (final ByteBuffer buffer : columnBuffers.values()) {
+            BUFFER_FREER.accept(buffer);
+        }
+        columnBuffers.clear();
+        score = libraryId = readGroup = tile = x = y = null;
+        orientation = orientationForOpticalDuplicates = null;
+        read1ReferenceIndex = read1Coordinate = read2ReferenceIndex = read2Coordinate = null;
+        read1IndexInFile = read2IndexInFile = null;
+        barcode = readOneBarcode = readTwoBarcode = null;
+        order = null;
+        capacity = 0;
+        size = 0;
+    }
+
+    private static Consumer<ByteBuffer> makeBufferFreer() {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> invokeQuietly(invokeCleaner, unsafe, buffer);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Try the Java 8 way
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                final Object bufferCleaner = invokeQuietly(cleaner, buffer);
+                if (bufferCleaner != null) invokeQuietly(clean, bufferCleaner);
+            };
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return buffer -> { };
+        }
+    }
+
+    private static Object invokeQuietly(final Method method, final Object target, final Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Sorts the in-memory read ends and writes them to a new run file, emptying the columns for reuse. */
+    private void spill() {
+        sortInMemory();
+        runs.add(writeRun(tmpDirs.get(runs.size() % tmpDirs.size()), new InMemoryIterator()));
+        size = 0;
+    }
+
+    /** Replaces the first numRuns runs with a single run holding all of their read ends. */
+    private void mergeRuns(final int numRuns) {
+        final List<File> merging = new ArrayList<>(runs.subList(0, numRuns));
+        final List<Iterator<ReadEndsForMarkDuplicates>> sources = new ArrayList<>(numRuns);
+        for (final File run : merging) sources.add(new RunIterator(run));
+
+        final File dir = tmpDirs.get(runs.size() % tmpDirs.size());
+        final File merged = writeRun(dir, new MergingIterator(sources));
+        for (final File run : merging) {
+            run.delete();
+        }
+        runs.subList(0, numRuns).clear();
+        runs.add(merged);
+    }
+
+    /** Writes read ends to a new temporary file in dir. */
+    private File writeRun(final File dir, final Iterator<ReadEndsForMarkDuplicates> ends) {
+        try {
+            final File run = File.createTempFile("columnarReadEnds.", ".tmp", dir);
+            run.deleteOnExit();
+            try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE)) {
+                final ReadEndsForMarkDuplicatesCodec runCodec = (ReadEndsForMarkDuplicatesCodec) codec.clone();
+                runCodec.setOutputStream(out);
+                while (ends.hasNext()) {
+                    runCodec.encode(ends.next());
+                }
+                runCodec.getOutputStream().flush();
+            }
+            return run;
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception spilling read ends to " + dir, ioe);
+        }
+    }
+
+    private void sortInMemory() {
+        if (order == null || order.length < size) order = new int[capacity];
+        for (int i = 0; i < size; ++i) order[i] = i;
+        if (size > 1) {
+            final int[] scratch = new int[size];
+            final SortTask task = new SortTask(order, scratch, 0, size);
+            if (size < PARALLEL_SORT_THRESHOLD) task.compute();
+            else ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /** Compares the stored read ends i and j in the order described in the class documentation. */
+    private int compare(final int i, final int j) {
+        int cmp = Short.compare(libraryId.get(i), libraryId.get(j));
+        if (useBarcodes) {
+            if (cmp == 0) cmp = Integer.compare(barcode.get(i), barcode.get(j));
+            if (cmp == 0) cmp = Integer.compare(readOneBarcode.get(i), readOneBarcode.get(j));
+            if (cmp == 0) cmp = Integer.compare(readTwoBarcode.get(i), readTwoBarcode.get(j));
+        }
+        if (cmp == 0) cmp = Integer.compare(read1ReferenceIndex.get(i), read1ReferenceIndex.get(j));
+        if (cmp == 0) cmp = Integer.compare(read1Coordinate.get(i), read1Coordinate.get(j));
+        if (cmp == 0) cmp = Byte.compare(orientation.get(i), orientation.get(j));
+        if (cmp == 0) cmp = Integer.compare(read2ReferenceIndex.get(i), read2ReferenceIndex.get(j));
+        if (cmp == 0) cmp = Integer.compare(read2Coordinate.get(i), read2Coordinate.get(j));
+        if (cmp == 0) cmp = Long.compare(read1IndexInFile.get(i), read1IndexInFile.get(j));
+        if (cmp == 0) cmp = Long.compare(read2IndexInFile.get(i), read2IndexInFile.get(j));
+        return cmp;
+    }
+
+    /** Compares two read ends in the same order as {@link #compare(int, int)} compares stored ones. */
+    private int compare(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs) {
+        int cmp = Short.compare(lhs.libraryId, rhs.libraryId);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes lhsWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) lhs;
+            final ReadEndsForMarkDuplicatesWithBarcodes rhsWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) rhs;
+            if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.barcode, rhsWithBarcodes.barcode);
+            if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.readOneBarcode, rhsWithBarcodes.readOneBarcode);
+            if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.readTwoBarcode, rhsWithBarcodes.readTwoBarcode);
+        }
+        if (cmp == 0) cmp = Integer.compare(lhs.read1ReferenceIndex, rhs.read1ReferenceIndex);
+        if (cmp == 0) cmp = Integer.compare(lhs.read1Coordinate, rhs.read1Coordinate);
+        if (cmp == 0) cmp = Byte.compare(lhs.orientation, rhs.orientation);
+        if (cmp == 0) cmp = Integer.compare(lhs.read2ReferenceIndex, rhs.read2ReferenceIndex);
+        if (cmp == 0) cmp = Integer.compare(lhs.read2Coordinate, rhs.read2Coordinate);
+        if (cmp == 0) cmp = Long.compare(lhs.read1IndexInFile, rhs.read1IndexInFile);
+        if (cmp == 0) cmp = Long.compare(lhs.read2IndexInFile, rhs.read2IndexInFile);
+        return cmp;
+    }
+
+    /** Creates a new read end object from the stored read end i. */
+    private ReadEndsForMarkDuplicates materialize(final int i) {
+        final ReadEndsForMarkDuplicates end;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes endWithBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            endWithBarcodes.barcode = barcode.get(i);
+            endWithBarcodes.readOneBarcode = readOneBarcode.get(i);
+            endWithBarcodes.readTwoBarcode = readTwoBarcode.get(i);
+            end = endWithBarcodes;
+        } else {
+            end = new ReadEndsForMarkDuplicates();
+        }
+        end.score = score.get(i);
+        end.libraryId = libraryId.get(i);
+        end.readGroup = readGroup.get(i);
+        end.tile = tile.get(i);
+        end.x = x.get(i);
+        end.y = y.get(i);
+        end.orientation = orientation.get(i);
+        end.orientationForOpticalDuplicates = orientationForOpticalDuplicates.get(i);
+        end.read1ReferenceIndex = read1ReferenceIndex.get(i);
+        end.read1Coordinate = read1Coordinate.get(i);
+        end.read2ReferenceIndex = read2ReferenceIndex.get(i);
+        end.read2Coordinate = read2Coordinate.get(i);
+        end.read1IndexInFile = read1IndexInFile.get(i);
+        end.read2IndexInFile = read2IndexInFile.get(i);
+        return end;
+    }
+
+    /** A stable merge sort of a range of the permutation, forking for large ranges. */
+    private class SortTask extends RecursiveAction {
+        private final int[] a, scratch;
+        private final int from, to;
+
+        SortTask(final int[] a, final int[] scratch, final int from, final int to) {
+            this.a = a;
+            this.scratch = scratch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= INSERTION_SORT_THRESHOLD) {
+                for (int i = from + 1; i < to; ++i) {
+                    final int value = a[i];
+                    int j = i - 1;
+                    while (j >= from && compare(a[j], value) > 0) {
+                        a[j + 1] = a[j];
+                        --j;
+                    }
+                    a[j + 1] = value;
+                }
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+            final SortTask left = new SortTask(a, scratch, from, mid);
+            final SortTask right = new SortTask(a, scratch, mid, to);
+            if (to - from >= PARALLEL_SORT_THRESHOLD) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+
+            // Already in order, which is common as the input is mostly sorted by read1 coordinate
+            if (compare(a[mid - 1], a[mid]) <= 0) return;
+
+            System.arraycopy(a, from, scratch, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                a[k++] = (compare(scratch[j], scratch[i]) < 0) ? scratch[j++] : scratch[i++];
+            }
+            while (i < mid) a[k++] = scratch[i++];
+            while (j < to) a[k++] = scratch[j++];
+        }
+    }
+
+    /** Iterates over the in-memory read ends in sorted order. */
+    private class InMemoryIterator implements Iterator<ReadEndsForMarkDuplicates> {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return materialize(order[next++]);
+        }
+    }
+
+    /** Reads back a spilled run, closing the file at its end. */
+    private class RunIterator implements Iterator<ReadEndsForMarkDuplicates> {
+        private final InputStream in;
+        private final ReadEndsForMarkDuplicatesCodec runCodec;
+        private ReadEndsForMarkDuplicates next;
+
+        RunIterator(final File run) {
+            try {
+                this.in = new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE);
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception opening spilled read ends " + run, ioe);
+            }
+            this.runCodec = (ReadEndsForMarkDuplicatesCodec) codec.clone();
+            this.runCodec.setInputStream(in);
+            advance();
+        }
+
+        private void advance() {
+            next = runCodec.decode();
+            if (next == null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (next == null) throw new NoSuchElementException();
+            final ReadEndsForMarkDuplicates result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /** Merges several sorted sources; ties go to the earlier source so that the merge is stable. */
+    private class MergingIterator implements Iterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Head> queue;
+
+        MergingIterator(final List<Iterator<ReadEndsForMarkDuplicates>> sources) {
+            queue = new PriorityQueue<>(Math.max(1, sources.size()), (lhs, rhs) -> {
+                final int cmp = compare(lhs.next, rhs.next);
+                return cmp != 0 ? cmp : Integer.compare(lhs.sourceIndex, rhs.sourceIndex);
+            });
+            for (int i = 0; i < sources.size(); ++i) {
+                final Iterator<ReadEndsForMarkDuplicates> source = sources.get(i);
+                if (source.hasNext()) queue.add(new Head(source, i));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            final Head head = queue.poll();
+            if (head == null) throw new NoSuchElementException();
+            final ReadEndsForMarkDuplicates result = head.next;
+            if (head.source.hasNext()) {
+                head.next = head.source.next();
+                queue.add(head);
+            }
+            return result;
+        }
+    }
+
+    private static class Head {
+        final Iterator<ReadEndsForMarkDuplicates> source;
+        final int sourceIndex;
+        ReadEndsForMarkDuplicates next;
+
+        Head(final Iterator<ReadEndsForMarkDuplicates> source, final int sourceIndex) {
+            this.source = source;
+            this.sourceIndex = sourceIndex;
+            this.next = source.next();
+        }
+    }
+}
@@ -51,17 +51,17 @@ import java.util.*;
  * @author alecw@broadinstitute.org
  */
 public class DiskBasedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
-    private final CoordinateSortedPairInfoMap<String, ReadEndsForMarkDuplicates> pairInfoMap;
+    private final CoordinateSortedPairInfoMap<PairingKey, ReadEndsForMarkDuplicates> pairInfoMap;
 
     public DiskBasedReadEndsForMarkDuplicatesMap(int maxOpenFiles, final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec) {
-        pairInfoMap = new CoordinateSortedPairInfoMap<String, ReadEndsForMarkDuplicates>(maxOpenFiles, new Codec(readEndsForMarkDuplicatesCodec));
+        pairInfoMap = new CoordinateSortedPairInfoMap<PairingKey, ReadEndsForMarkDuplicates>(maxOpenFiles, new Codec(readEndsForMarkDuplicatesCodec));
     }
 
-    public ReadEndsForMarkDuplicates remove(int mateSequenceIndex, String key) {
+    public ReadEndsForMarkDuplicates remove(int mateSequenceIndex, PairingKey key) {
         return pairInfoMap.remove(mateSequenceIndex, key);
     }
 
-    public void put(int mateSequenceIndex, String key, ReadEndsForMarkDuplicates readEnds) {
+    public void put(int mateSequenceIndex, PairingKey key, ReadEndsForMarkDuplicates readEnds) {
         pairInfoMap.put(mateSequenceIndex, key, readEnds);
     }
 
@@ -73,7 +73,7 @@ public class DiskBasedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDup
         return pairInfoMap.sizeInRam();
     }
 
-    private static class Codec implements CoordinateSortedPairInfoMap.Codec<String, ReadEndsForMarkDuplicates> {
+    private static class Codec implements CoordinateSortedPairInfoMap.Codec<PairingKey, ReadEndsForMarkDuplicates> {
         private final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec;
 
         public Codec(final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec) {
@@ -88,19 +88,20 @@ public class DiskBasedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDup
             readEndsForMarkDuplicatesCodec.setOutputStream(os);
         }
 
-        public Map.Entry<String, ReadEndsForMarkDuplicates> decode() {
+        public Map.Entry<PairingKey, ReadEndsForMarkDuplicates> decode() {
             try {
-                final String key = readEndsForMarkDuplicatesCodec.getInputStream().readUTF();
+                final DataInputStream in = readEndsForMarkDuplicatesCodec.getInputStream();
+                final PairingKey key = PairingKey.read(in);
                 final ReadEndsForMarkDuplicates record = readEndsForMarkDuplicatesCodec.decode();
-                return new AbstractMap.SimpleEntry<java.lang.String, ReadEndsForMarkDuplicates>(key, record);
+                return new AbstractMap.SimpleEntry<PairingKey, ReadEndsForMarkDuplicates>(key, record);
             } catch (IOException e) {
                 throw new PicardException("Error loading ReadEndsForMarkDuplicatesMap from disk", e);
             }
         }
 
-        public void encode(final String key, final ReadEndsForMarkDuplicates readEnds) {
+        public void encode(final PairingKey key, final ReadEndsForMarkDuplicates readEnds) {
             try {
-                readEndsForMarkDuplicatesCodec.getOutputStream().writeUTF(key);
+                key.write(readEndsForMarkDuplicatesCodec.getOutputStream());
                 readEndsForMarkDuplicatesCodec.encode(readEnds);
             } catch (IOException e) {
                 throw new PicardException("Error spilling ReadEndsForMarkDuplicatesMap to disk.", e);
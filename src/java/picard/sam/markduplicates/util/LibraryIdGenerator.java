@@ -107,6 +107,23 @@ public class LibraryIdGenerator {
         return libraryId;
     }
 
+    /**
+     * Assigns IDs to the libraries of all the read groups in the header, and to the library of records with no read
+     * group or library, so that getLibraryId() only reads the map of IDs and can be called from several threads.
+     */
+    public void assignAllLibraryIds() {
+        for (final SAMReadGroupRecord readGroup : header.getReadGroups()) {
+            assignLibraryId(getReadGroupLibraryName(readGroup));
+        }
+        assignLibraryId(UNKNOWN_LIBRARY);
+    }
+
+    private void assignLibraryId(final String library) {
+        if (!this.libraryIds.containsKey(library)) {
+            this.libraryIds.put(library, this.nextLibraryId++);
+        }
+    }
+
     public DuplicationMetrics getMetricsByLibrary(final String library) {
         return this.metricsByLibrary.get(library);
     }
@@ -33,8 +33,10 @@ import picard.PicardException;
 import picard.sam.DuplicationMetrics;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Set;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -44,6 +46,11 @@ import java.util.TreeSet;
  * This stores a current nonDuplicateReadEndsSet of read ends that need to be duplicate marked.  It only stores internally the "best" read end for a given
  * possible duplicate location, preferring to perform duplicate marking as read ends come in, rather than wait for all "comparable"
  * read ends to arrive.  This reduces the memory footprint of this data structure.
+ * <p/>
+ * The physical locations kept for optical duplicate detection grow with the depth of coverage rather than with the
+ * number of distinct read ends, so they are limited: once more than a given number are in memory, those of the oldest
+ * positions in the queue, which are no longer growing and will be polled first, are spilled to disk until half of the
+ * limit is in use.  All of them are spilled to append-only files shared by the whole queue, which close() deletes.
  */
 public class MarkQueue {
 
@@ -125,8 +132,36 @@ public class MarkQueue {
     /** temporary so we do not need to create many objects */
     private ReadEndsForMateCigar tmpReadEnds = null;
 
+    /** The most physical locations for optical duplicate detection held in memory before some are spilled. */
+    private final long maxLocationsInRam;
+    /** Where the locations are spilled, created on the first spill. */
+    private PhysicalLocationForMateCigarSet.SpillFiles spillFiles = null;
+    private final List<File> tmpDirs;
+    /** The last read end whose locations were looked at for spilling, from which the next spill carries on. */
+    private ReadEndsForMateCigar spillResumePoint = null;
+    private long numLocationsInRam = 0;
+    private long numLocationsSpilled = 0;
+    private int numLocationSpills = 0;
+    private int maxSize = 0;
+
     public MarkQueue(final ScoringStrategy duplicateScoringStrategy) {
+        this(duplicateScoringStrategy, Long.MAX_VALUE, Collections.<File>emptyList());
+    }
+
+    /**
+     * @param maxLocationsInRam the number of physical locations for optical duplicate detection held in memory before
+     *                          those of the oldest positions are spilled to disk
+     * @param tmpDirs           the directories to spill them to, used in turn as the spill files fill up; may only be
+     *                          empty if nothing is spilled
+     */
+    public MarkQueue(final ScoringStrategy duplicateScoringStrategy, final long maxLocationsInRam, final List<File> tmpDirs) {
+        if (maxLocationsInRam < 1) throw new IllegalArgumentException("maxLocationsInRam must be at least 1: " + maxLocationsInRam);
+        if (maxLocationsInRam != Long.MAX_VALUE && tmpDirs.isEmpty()) {
+            throw new IllegalArgumentException("At least one temporary directory is needed to spill locations.");
+        }
         comparator = new ReadEndsMCComparator(duplicateScoringStrategy);
+        this.maxLocationsInRam = maxLocationsInRam;
+        this.tmpDirs = tmpDirs;
     }
 
     /** Returns the number of duplicates detected */
@@ -141,6 +176,26 @@ public class MarkQueue {
         return this.nonDuplicateReadEndsSet.isEmpty();
     }
 
+    /** The largest number of records that have been in this queue at once. */
+    public int getMaxSize() { return this.maxSize; }
+
+    /** The number of physical locations for optical duplicate detection currently held in memory. */
+    public long getNumLocationsInRam() { return this.numLocationsInRam; }
+
+    /** The number of physical locations for optical duplicate detection spilled to disk so far. */
+    public long getNumLocationsSpilled() { return this.numLocationsSpilled; }
+
+    /** The number of times the locations of a position have been spilled to disk so far. */
+    public int getNumLocationSpills() { return this.numLocationSpills; }
+
+    /** The number of files the locations have been spilled to so far. */
+    public int getNumLocationSpillFiles() { return null == this.spillFiles ? 0 : this.spillFiles.getFilesCreated(); }
+
+    /** Deletes the files the locations were spilled to.  The queue should not be used afterwards. */
+    public void close() {
+        if (null != this.spillFiles) this.spillFiles.close();
+    }
+
     /** Sets the minimum genomic distance such that we can be assured that all duplicates have been considered. */
     public void setToMarkQueueMinimumDistance(final int toMarkQueueMinimumDistance) {
         this.toMarkQueueMinimumDistance = toMarkQueueMinimumDistance;
@@ -155,12 +210,17 @@ public class MarkQueue {
     }
 
     /** Returns the nonDuplicateReadEndsSet of read ends that should be considered for tracking optical duplicates. */
-    public Set<ReadEnds> getLocations(final ReadEndsForMateCigar current) {
+    public List<ReadEnds> getLocations(final ReadEndsForMateCigar current) {
         // NB: only needed for pairs!!!
         if (!shouldBeInLocations(current)) throw new PicardException("Not implemented");
-        final Set<ReadEnds> locationSet = current.getReadEndSetForOpticalDuplicates();
-        if (null == locationSet) throw new PicardException("Locations was empty: unexpected error");
-        return locationSet;
+        if (null == current.getLocationSet()) throw new PicardException("Locations was empty: unexpected error");
+        return current.getReadEndSetForOpticalDuplicates();
+    }
+
+    /** Drops the locations for optical duplicate detection of a polled read end that will not be tracked. */
+    public void discardLocations(final ReadEndsForMateCigar current) {
+        final PhysicalLocationForMateCigarSet locationSet = current.removeLocationSet();
+        if (null != locationSet) locationSet.discard();
     }
 
     /** Returns the first element in this queue */
@@ -195,6 +255,9 @@ public class MarkQueue {
 
         final ReadEndsForMateCigar current = this.nonDuplicateReadEndsSet.pollFirst();
 
+        // Its locations are no longer counted against the queue's limit
+        if (null != current.getLocationSet()) this.numLocationsInRam -= current.getLocationSet().getNumInRam();
+
         // If we are a paired read end, we need to make sure we remove unpaired (if we are not also unpaired), as
         // well as fragments from the nonDuplicateReadEndsSet, as they should all be duplicates.
         if (current.isPaired()) {
@@ -298,7 +361,9 @@ public class MarkQueue {
                     // Swap "current" and "other" in the locations
                     if (shouldBeInLocations(other)) {
                         locationSet = current.removeLocationSet();
+                        final int locationsInRam = locationSet.getNumInRam();
                         locationSet.replace(current, other); // swap "current" and "other"
+                        this.numLocationsInRam += locationSet.getNumInRam() - locationsInRam;
                         other.setLocationSet(locationSet);
                         addToLocationSet = false;
                     }
@@ -358,8 +423,12 @@ public class MarkQueue {
         final SAMRecord record = other.getRecord();
         if (record.getReadPairedFlag() && !record.getReadUnmappedFlag() && !record.getMateUnmappedFlag() && addToLocationSet) {
             if (null == locationSet) throw new PicardException("location nonDuplicateReadEndsSet was null: " + record.getSAMString());
+            final int locationsInRam = locationSet.getNumInRam();
             locationSet.add(other);
+            this.numLocationsInRam += locationSet.getNumInRam() - locationsInRam;
+            if (this.numLocationsInRam > this.maxLocationsInRam) spillLocations();
         }
+        this.maxSize = Math.max(this.maxSize, size());
 
         // if we have a duplicate, update it for duplicate tracking and update the metrics
         if (null != duplicate) {
@@ -368,4 +437,28 @@ public class MarkQueue {
             updateDuplicationMetrics(duplicate, metrics);
         }
     }
+
+    /**
+     * Spills the locations of the oldest positions in the queue until at most half of the limit is in memory.  Each
+     * spill carries on from where the last one stopped, as the positions before it have little or nothing left in
+     * memory, and only goes back to the start of the queue if that is not enough.
+     */
+    private void spillLocations() {
+        if (null == this.spillFiles) this.spillFiles = new PhysicalLocationForMateCigarSet.SpillFiles(this.tmpDirs);
+        if (null != this.spillResumePoint) spillLocations(this.nonDuplicateReadEndsSet.tailSet(this.spillResumePoint, false));
+        if (this.numLocationsInRam > this.maxLocationsInRam / 2) spillLocations(this.nonDuplicateReadEndsSet);
+    }
+
+    private void spillLocations(final Iterable<ReadEndsForMateCigar> ends) {
+        for (final ReadEndsForMateCigar end : ends) {
+            if (this.numLocationsInRam <= this.maxLocationsInRam / 2) break;
+            this.spillResumePoint = end;
+            final PhysicalLocationForMateCigarSet locationSet = end.getLocationSet();
+            if (null == locationSet || 0 == locationSet.getNumInRam()) continue;
+
+            this.numLocationsInRam -= locationSet.getNumInRam();
+            this.numLocationsSpilled += locationSet.spill(this.spillFiles);
+            this.numLocationSpills++;
+        }
+    }
 }
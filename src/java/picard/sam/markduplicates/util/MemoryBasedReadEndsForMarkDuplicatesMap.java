@@ -29,35 +29,35 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
- * Map from String to ReadEnds object.  Memory-based implementation.  Used for MarkDuplicates.
+ * Map from PairingKey to ReadEnds object.  Memory-based implementation.  Used for MarkDuplicates.
  *
  * @author alecw@broadinstitute.org
  */
 class MemoryBasedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
 
     /**
-     * Index of this list is sequence index.  Value is map from String {read group id:read name} to ReadEnds.
+     * Index of this list is sequence index.  Value is map from the PairingKey of {read group id, read name} to ReadEnds.
      * When a ReadEnds is put into this container, it is stored according to the sequenceIndex of the mate
      */
-    private final List<Map<String, ReadEndsForMarkDuplicates>> mapPerSequence = new ArrayList<Map<String, ReadEndsForMarkDuplicates>>();
+    private final List<Map<PairingKey, ReadEndsForMarkDuplicates>> mapPerSequence = new ArrayList<Map<PairingKey, ReadEndsForMarkDuplicates>>();
 
-    public ReadEndsForMarkDuplicates remove(int mateSequenceIndex, String key) {
+    public ReadEndsForMarkDuplicates remove(int mateSequenceIndex, PairingKey key) {
         if (mateSequenceIndex >= mapPerSequence.size()) {
             return null;
         }
         return mapPerSequence.get(mateSequenceIndex).remove(key);
     }
 
-    public void put(int mateSequenceIndex, String key, ReadEndsForMarkDuplicates readEnds) {
+    public void put(int mateSequenceIndex, PairingKey key, ReadEndsForMarkDuplicates readEnds) {
         while (mateSequenceIndex >= mapPerSequence.size()) {
-            mapPerSequence.add(new HashMap<String, ReadEndsForMarkDuplicates>());
+            mapPerSequence.add(new HashMap<PairingKey, ReadEndsForMarkDuplicates>());
         }
         mapPerSequence.get(mateSequenceIndex).put(key, readEnds);
     }
 
     public int size() {
         int total = 0;
-        for (Map<String, ReadEndsForMarkDuplicates> map : mapPerSequence) {
+        for (Map<PairingKey, ReadEndsForMarkDuplicates> map : mapPerSequence) {
             total += map.size();
         }
         return total;
@@ -29,7 +29,9 @@ import htsjdk.samtools.util.ProgressLogger;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains methods for finding optical/co-localized/sequencing duplicates.
@@ -43,6 +45,7 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     public static final int DEFAULT_OPTICAL_DUPLICATE_DISTANCE = 100;
     public static final int DEFAULT_BIG_DUPLICATE_SET_SIZE = 1000;
+    public static final int DEFAULT_SPATIAL_INDEX_THRESHOLD = 64;
 
     /**
      * Sets the size of a set that is big enough to log progress about.
@@ -56,6 +59,20 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     private int bigDuplicateSetSize = DEFAULT_BIG_DUPLICATE_SET_SIZE;
 
+    /**
+     * Sets the size of a set at and above which locations are bucketed into a grid of cells the size of the optical
+     * duplicate pixel distance, so that each location is only compared to those in neighbouring cells rather than to
+     * every other location.  Both ways give identical results.
+     * Defaults to {@value OpticalDuplicateFinder#DEFAULT_SPATIAL_INDEX_THRESHOLD}
+     *
+     * @param spatialIndexThreshold the smallest set to compare using the grid, or Integer.MAX_VALUE to never use it
+     */
+    public void setSpatialIndexThreshold(final int spatialIndexThreshold) {
+        this.spatialIndexThreshold = spatialIndexThreshold;
+    }
+
+    private int spatialIndexThreshold = DEFAULT_SPATIAL_INDEX_THRESHOLD;
+
     /**
      * Uses the default duplicate distance {@value OpticalDuplicateFinder#DEFAULT_OPTICAL_DUPLICATE_DISTANCE} and the default read name regex
      * {@link ReadNameParser#DEFAULT_READ_NAME_REGEX}.
@@ -134,6 +151,11 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         }
         if (logProgress) log.debug("Done with comparing to keeper, now the rest.");
 
+        if (length >= spatialIndexThreshold) {
+            compareNeighbours(list, actualKeeper, opticalDuplicateFlags, distance, logProgress ? progressLoggerForRest : null);
+            return opticalDuplicateFlags;
+        }
+
         // Now go through and do each pairwise comparison not involving the actualKeeper
         for (int i = 0; i < length; ++i) {
             final PhysicalLocation lhs = list.get(i);
@@ -160,6 +182,70 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         return opticalDuplicateFlags;
     }
 
+    /**
+     * Does the same comparisons, in the same order, as the pairwise loop in findOpticalDuplicates() but skips pairs
+     * that cannot be close enough.  Locations are chained into cells of a grid keyed on (read group, tile, x / distance,
+     * y / distance); any location within the distance of another is in the same or an adjacent cell.
+     *
+     * The outcome of the pairwise loop does not depend on the order of j for a given i: every close rhs ends up
+     * flagged, and lhs is flagged if any close rhs was flagged before lhs was reached, since rhs is only changed when
+     * it is itself visited.  It does depend on visiting i in list order and only comparing to j > i, which is why
+     * each cell's chain runs from the highest index down and is cut off at i.
+     */
+    private void compareNeighbours(final List<? extends PhysicalLocation> list, final PhysicalLocation actualKeeper,
+                                   final boolean[] opticalDuplicateFlags, final int distance,
+                                   final ProgressLogger progressLogger) {
+        final int length = list.size();
+        final int cellSize = Math.max(1, distance);
+        // For each location, the index of the previous location in the same cell, or -1
+        final int[] previousInCell = new int[length];
+        final Map<Integer, Map<Long, Integer>> cellsByTile = new HashMap<>();
+
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation loc = list.get(i);
+            previousInCell[i] = -1;
+            if (loc == actualKeeper || !loc.hasLocation()) continue; // never close enough to anything here
+
+            final Map<Long, Integer> cells = cellsByTile.computeIfAbsent(tileKey(loc), k -> new HashMap<>());
+            final Integer previous = cells.put(cellKey(Math.floorDiv(loc.getX(), cellSize), Math.floorDiv(loc.getY(), cellSize)), i);
+            if (previous != null) previousInCell[i] = previous;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation lhs = list.get(i);
+            if (lhs == actualKeeper || !lhs.hasLocation()) continue;
+
+            // logging here for the same reason as in findOpticalDuplicates()
+            if (progressLogger != null) progressLogger.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
+
+            final Map<Long, Integer> cells = cellsByTile.get(tileKey(lhs));
+            final int cellX = Math.floorDiv(lhs.getX(), cellSize);
+            final int cellY = Math.floorDiv(lhs.getY(), cellSize);
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dy = -1; dy <= 1; ++dy) {
+                    final Integer last = cells.get(cellKey(cellX + dx, cellY + dy));
+                    if (last == null) continue;
+
+                    for (int j = last; j > i; j = previousInCell[j]) {
+                        if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) continue;
+                        if (closeEnough(lhs, list.get(j), distance)) {
+                            final int index = opticalDuplicateFlags[j] ? i : j;
+                            opticalDuplicateFlags[index] = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int tileKey(final PhysicalLocation loc) {
+        return (loc.getReadGroup() << 16) | (loc.getTile() & 0xFFFF);
+    }
+
+    private static long cellKey(final int cellX, final int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
     private PhysicalLocation keeperOrNull(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
         if (keeper != null && keeper.hasLocation()) {
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.ReservedTagConstants;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Identifies the two ends of a pair without building a String for each record.  The key holds a 128-bit hash of the
+ * read group ID and read name together with the ID and name themselves, which are the record's own Strings rather
+ * than copies.  Keys with different hashes are told apart without looking at the names; keys whose hashes match are
+ * only equal if the read group IDs and names match too, so a collision can never pair the wrong reads.
+ *
+ * Keys are what the ReadEndsForMarkDuplicatesMap implementations store, and are written and read back by
+ * {@link #write(DataOutputStream)} and {@link #read(DataInputStream)}.
+ */
+public final class PairingKey {
+    private final long high;
+    private final long low;
+    // May be null
+    private final String readGroupId;
+    private final String readName;
+
+    PairingKey(final long high, final long low, final String readGroupId, final String readName) {
+        this.high = high;
+        this.low = low;
+        this.readGroupId = readGroupId;
+        this.readName = readName;
+    }
+
+    /** @return the key for the record's read group ID and read name */
+    public static PairingKey of(final SAMRecord rec) {
+        // The header's copy of the ID is shared by all the keys of a read group, whereas each record has its own
+        final SAMReadGroupRecord readGroup = rec.getReadGroup();
+        if (readGroup != null) return of(readGroup.getId(), rec.getReadName());
+        final Object readGroupId = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID);
+        return of(readGroupId == null ? null : readGroupId.toString(), rec.getReadName());
+    }
+
+    /** @return the key for the given read group ID, which may be null, and read name */
+    public static PairingKey of(final String readGroupId, final String readName) {
+        // Two independent 64-bit lanes: FNV-1a, and a multiply-rotate hash with a different constant
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x9e3779b97f4a7c15L;
+        if (readGroupId != null) {
+            for (int i = 0; i < readGroupId.length(); ++i) {
+                final char c = readGroupId.charAt(i);
+                h1 = (h1 ^ c) * 0x100000001b3L;
+                h2 = Long.rotateLeft(h2 ^ c, 23) * 0xc6a4a7935bd1e995L;
+            }
+        }
+        // Separates the read group from the name with a value no char can take, different for a missing read group
+        final int separator = readGroupId == null ? 0x10000 : 0x10001;
+        h1 = (h1 ^ separator) * 0x100000001b3L;
+        h2 = Long.rotateLeft(h2 ^ separator, 23) * 0xc6a4a7935bd1e995L;
+        for (int i = 0; i < readName.length(); ++i) {
+            final char c = readName.charAt(i);
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = Long.rotateLeft(h2 ^ c, 23) * 0xc6a4a7935bd1e995L;
+        }
+        return new PairingKey(mix(h1 ^ readName.length()), mix(h2), readGroupId, readName);
+    }
+
+    /** Reads a key written by {@link #write(DataOutputStream)}. */
+    public static PairingKey read(final DataInputStream in) throws IOException {
+        final long high = in.readLong();
+        final long low = in.readLong();
+        final String readGroupId = in.readBoolean() ? in.readUTF() : null;
+        return new PairingKey(high, low, readGroupId, in.readUTF());
+    }
+
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeLong(high);
+        out.writeLong(low);
+        out.writeBoolean(readGroupId != null);
+        if (readGroupId != null) out.writeUTF(readGroupId);
+        out.writeUTF(readName);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public String getReadGroupId() {
+        return readGroupId;
+    }
+
+    public String getReadName() {
+        return readName;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PairingKey)) return false;
+        final PairingKey that = (PairingKey) o;
+        return high == that.high && low == that.low &&
+                readName.equals(that.readName) && Objects.equals(readGroupId, that.readGroupId);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x %s:%s", high, low, readGroupId, readName);
+    }
+
+    /** The MurmurHash3 64-bit finalizer, so that every bit of the key depends on every character. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
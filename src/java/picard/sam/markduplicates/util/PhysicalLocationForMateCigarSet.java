@@ -24,54 +24,385 @@
 
 package picard.sam.markduplicates.util;
 
+import htsjdk.samtools.util.CloserUtil;
 import picard.PicardException;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This stores records that are comparable for detecting optical duplicates.
+ *
+ * Only what optical duplicate detection needs of each end is kept: its physical location, library and orientation for
+ * optical duplicates, packed into primitive arrays.  Keeping the ends themselves would keep their records in memory for
+ * as long as the set, which for a deep pileup can be a very large number of records.  An end whose physical location
+ * is already in the set is ignored.
+ *
+ * The entries may be spilled to {@link SpillFiles} shared by many sets, after which the set keeps accepting ends;
+ * getReadEnds() reads the spilled entries back.  Ends are only compared with the entries in memory as they are added,
+ * so an end at the same physical location as a spilled entry is only dropped when the set is read back.  Once a set
+ * has spilled, each removal is also recorded as a tombstone, which is spilled ahead of the entries in memory and
+ * applied in turn on reading back.  Removed entries are spilled too, so that one added again keeps its place, and
+ * the set read back is the same, in the same order, as if nothing had been spilled.
  */
 public class PhysicalLocationForMateCigarSet {
-    /**
-     * We want to return a set of ReadEnds but want to compare based on physical location, hence we store two sets.
-     */
-    private final Set<ReadEnds> readEnds = new HashSet<ReadEnds>();
-    private final Set<PhysicalLocationForMateCigar> physicalLocations = new HashSet<PhysicalLocationForMateCigar>();
+    /** Approximate bytes of heap per entry in memory, including the hash table. */
+    public static final int BYTES_PER_LOCATION = 8 + 2 + 1 + 8;
+
+    private static final int INITIAL_CAPACITY = 4;
+    /** Marks an entry that has been removed, in place of its orientation, in memory; and a tombstone when spilled. */
+    private static final byte REMOVED = Byte.MIN_VALUE;
+    /** Marks a spilled entry that had been removed, which keeps its place in case it is added again. */
+    private static final byte REMOVED_ENTRY = Byte.MIN_VALUE + 1;
+
+    /** Read group, tile, x and y of each entry, as four shorts. */
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private short[] libraryIds = new short[INITIAL_CAPACITY];
+    private byte[] orientations = new byte[INITIAL_CAPACITY];
+    private int numInRam = 0;
+    private int numRemoved = 0;
+    /** Open addressing table of entry index + 1, or 0 for an empty slot. */
+    private int[] slots = new int[2 * INITIAL_CAPACITY];
+
+    /** Locations and libraries removed since the last spill, once anything has been spilled. */
+    private long[] tombstoneLocations = new long[0];
+    private short[] tombstoneLibraryIds = new short[0];
+    private int numTombstones = 0;
+
+    private SpillFiles spillFiles = null;
+    private final List<SpillFiles.Segment> segments = new ArrayList<>();
+    private int numSpilled = 0;
 
     public PhysicalLocationForMateCigarSet() {}
 
     /** Adds the end to this set, if not already added based on physical location */
     public void add(final ReadEndsForMateCigar end) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(end);
-        if (!physicalLocations.contains(location)) {
-            readEnds.add(end);
-            physicalLocations.add(new PhysicalLocationForMateCigar(location));
+        add(packLocation(end), end.getLibraryId(), end.orientationForOpticalDuplicates);
+    }
+
+    private void add(final long location, final short libraryId, final byte orientation) {
+        final int slot = findSlot(location, libraryId);
+        final int entry = slots[slot] - 1;
+        if (entry >= 0) {
+            if (orientations[entry] == REMOVED) { // put it back where it was
+                orientations[entry] = orientation;
+                --numRemoved;
+            }
+            return;
         }
+
+        if (numInRam == locations.length) {
+            grow();
+            add(location, libraryId, orientation);
+            return;
+        }
+        locations[numInRam] = location;
+        libraryIds[numInRam] = libraryId;
+        orientations[numInRam] = orientation;
+        slots[slot] = ++numInRam;
     }
 
-    /** The number of records in this set */
-    public int size() { return physicalLocations.size(); }
+    /** The number of records in this set, which may count a physical location twice once entries have been spilled */
+    public int size() { return numInRam - numRemoved + numSpilled; }
 
-    /** Removes the end from this set, if present */
+    /**
+     * The number of entries held in memory, including removed ones and tombstones, which take memory until the set is
+     * spilled
+     */
+    public int getNumInRam() { return numInRam + numTombstones; }
+
+    /** Removes the end from this set */
     public void remove(final ReadEndsForMateCigar end) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(end);
-        if (physicalLocations.contains(location)) {
-            readEnds.remove(end);
-            physicalLocations.remove(location);
+        remove(packLocation(end), end.getLibraryId());
+    }
+
+    private void remove(final long location, final short libraryId) {
+        final int entry = slots[findSlot(location, libraryId)] - 1;
+        if (entry >= 0 && orientations[entry] != REMOVED) {
+            orientations[entry] = REMOVED;
+            ++numRemoved;
+        }
+        // The location may also be among the spilled entries
+        if (!segments.isEmpty()) {
+            if (numTombstones == tombstoneLocations.length) {
+                tombstoneLocations = Arrays.copyOf(tombstoneLocations, Math.max(INITIAL_CAPACITY, 2 * numTombstones));
+                tombstoneLibraryIds = Arrays.copyOf(tombstoneLibraryIds, tombstoneLocations.length);
+            }
+            tombstoneLocations[numTombstones] = location;
+            tombstoneLibraryIds[numTombstones] = libraryId;
+            ++numTombstones;
         }
     }
 
-    /** Gets the set of read ends */
-    public Set<ReadEnds> getReadEnds() { return this.readEnds; }
+    /**
+     * Gets the ends in this set, as new read ends that have only the fields needed for optical duplicate detection.
+     * Any spilled entries are read back and released; the set should not be used afterwards.
+     */
+    public List<ReadEnds> getReadEnds() {
+        final PhysicalLocationForMateCigarSet all;
+        if (segments.isEmpty()) {
+            all = this;
+        } else {
+            // Replay the spilled entries and tombstones, then those in memory, into a new set that is never spilled
+            all = new PhysicalLocationForMateCigarSet();
+            for (final SpillFiles.Segment segment : segments) {
+                DataInputStream in = null;
+                try {
+                    in = spillFiles.open(segment);
+                    for (int i = 0; i < segment.count; ++i) {
+                        final long location = in.readLong();
+                        final short libraryId = in.readShort();
+                        final byte orientation = in.readByte();
+                        if (orientation != REMOVED) all.add(location, libraryId, orientation);
+                        if (orientation == REMOVED || orientation == REMOVED_ENTRY) all.remove(location, libraryId);
+                    }
+                } catch (final IOException ioe) {
+                    throw new PicardException("Error reading optical duplicate locations from " + segment.file, ioe);
+                } finally {
+                    CloserUtil.close(in);
+                }
+            }
+            for (int i = 0; i < numTombstones; ++i) all.remove(tombstoneLocations[i], tombstoneLibraryIds[i]);
+            for (int i = 0; i < numInRam; ++i) {
+                if (orientations[i] != REMOVED) all.add(locations[i], libraryIds[i], orientations[i]);
+            }
+            discard();
+        }
+
+        final List<ReadEnds> readEnds = new ArrayList<>(all.numInRam - all.numRemoved);
+        for (int i = 0; i < all.numInRam; ++i) {
+            if (all.orientations[i] == REMOVED) continue;
+            final ReadEnds end = new Location();
+            end.setReadGroup((short) (all.locations[i] >>> 48));
+            end.setTile((short) (all.locations[i] >>> 32));
+            end.setX((short) (all.locations[i] >>> 16));
+            end.setY((short) all.locations[i]);
+            end.setLibraryId(all.libraryIds[i]);
+            end.orientationForOpticalDuplicates = all.orientations[i];
+            readEnds.add(end);
+        }
+        return readEnds;
+    }
 
     /** Replaces a given end with the other end.  This ensures that that current is in this set */
     public void replace(final ReadEndsForMateCigar current, final ReadEndsForMateCigar other) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(current);
-        if (!physicalLocations.contains(location)) {
+        final int entry = slots[findSlot(packLocation(current), current.getLibraryId())] - 1;
+        if ((entry < 0 || orientations[entry] == REMOVED) && segments.isEmpty()) {
             throw new PicardException("Trying to replace something not in the set");
         }
         this.remove(current);
         this.add(other);
     }
+
+    /**
+     * Appends the tombstones and entries in memory to the spill files, and frees them.
+     *
+     * @return the number of entries written, not counting tombstones and removed entries
+     */
+    public int spill(final SpillFiles files) {
+        if (spillFiles != null && spillFiles != files) throw new IllegalArgumentException("A set must always spill to the same files.");
+        final int toSpill = numInRam - numRemoved;
+        if (numInRam + numTombstones > 0) {
+            spillFiles = files;
+            final SpillFiles.Segment segment = files.beginSegment();
+            try {
+                final DataOutputStream out = files.getOutputStream();
+                // Tombstones first: they only apply to entries spilled earlier, never to those in memory
+                for (int i = 0; i < numTombstones; ++i) {
+                    out.writeLong(tombstoneLocations[i]);
+                    out.writeShort(tombstoneLibraryIds[i]);
+                    out.writeByte(REMOVED);
+                }
+                for (int i = 0; i < numInRam; ++i) {
+                    out.writeLong(locations[i]);
+                    out.writeShort(libraryIds[i]);
+                    out.writeByte(orientations[i] == REMOVED ? REMOVED_ENTRY : orientations[i]);
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error spilling optical duplicate locations to " + segment.file, ioe);
+            }
+            segment.count = numTombstones + numInRam;
+            segments.add(segment);
+            numSpilled += toSpill;
+        }
+
+        locations = new long[INITIAL_CAPACITY];
+        libraryIds = new short[INITIAL_CAPACITY];
+        orientations = new byte[INITIAL_CAPACITY];
+        slots = new int[2 * INITIAL_CAPACITY];
+        numInRam = 0;
+        numRemoved = 0;
+        tombstoneLocations = new long[0];
+        tombstoneLibraryIds = new short[0];
+        numTombstones = 0;
+        return toSpill;
+    }
+
+    /** Releases any spilled entries, for a set whose ends will not be looked at. */
+    public void discard() {
+        for (final SpillFiles.Segment segment : segments) spillFiles.release(segment);
+        segments.clear();
+    }
+
+    /** The slot holding the entry at this location, or the empty slot where it would go. */
+    private int findSlot(final long location, final short libraryId) {
+        final int mask = slots.length - 1;
+        int slot = hash(location, libraryId) & mask;
+        int entry;
+        while ((entry = slots[slot] - 1) >= 0) {
+            if (locations[entry] == location && libraryIds[entry] == libraryId) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final int capacity = 2 * locations.length;
+        locations = Arrays.copyOf(locations, capacity);
+        libraryIds = Arrays.copyOf(libraryIds, capacity);
+        orientations = Arrays.copyOf(orientations, capacity);
+
+        // Keep the load factor at or below one half
+        slots = new int[2 * capacity];
+        final int mask = slots.length - 1;
+        for (int i = 0; i < numInRam; ++i) {
+            int slot = hash(locations[i], libraryIds[i]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = i + 1;
+        }
+    }
+
+    /** Packs the read group, tile, x and y of an end, which are all held as shorts, into a long. */
+    private static long packLocation(final ReadEnds end) {
+        return ((long) (end.getReadGroup() & 0xFFFF) << 48) | ((long) (end.getTile() & 0xFFFF) << 32) |
+                ((long) (end.getX() & 0xFFFF) << 16) | (end.getY() & 0xFFFF);
+    }
+
+    private static int hash(final long location, final short libraryId) {
+        long h = (location ^ (location >>> 29) ^ libraryId) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** The physical location of an end read back from the set. */
+    private static final class Location extends ReadEnds {}
+
+    /**
+     * Append-only temporary files that many sets spill to, each spill adding a segment to the file being written.
+     * A new file is started in the next temporary directory once the current one passes {@link #MAX_FILE_BYTES}, and
+     * a finished file is deleted as soon as all of its segments have been read back or discarded; close() deletes
+     * whatever is left.  So only a few files are made, however many sets spill.  Not thread safe.
+     */
+    public static final class SpillFiles implements Closeable {
+        /** Size past which a new file is started, so that the space of segments read back is given back. */
+        static final long MAX_FILE_BYTES = 128L << 20;
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final List<File> tmpDirs;
+        /** The segments of each file not yet read back or discarded. */
+        private final Map<File, Integer> liveSegments = new HashMap<>();
+        private File current = null;
+        private DataOutputStream out = null;
+        private int filesCreated = 0;
+
+        /** @param tmpDirs the directories to create the files in, used in turn */
+        public SpillFiles(final List<File> tmpDirs) {
+            if (tmpDirs.isEmpty()) throw new IllegalArgumentException("At least one temporary directory is needed.");
+            this.tmpDirs = tmpDirs;
+        }
+
+        /** @return the number of files created so far */
+        public int getFilesCreated() { return filesCreated; }
+
+        /** Starts a segment at the end of the current file, which the caller writes to getOutputStream(). */
+        Segment beginSegment() {
+            if (current == null || out.size() >= MAX_FILE_BYTES) startFile();
+            liveSegments.merge(current, 1, Integer::sum);
+            return new Segment(current, out.size());
+        }
+
+        DataOutputStream getOutputStream() { return out; }
+
+        /** @return a stream positioned at the start of the segment */
+        DataInputStream open(final Segment segment) throws IOException {
+            if (segment.file == current) out.flush();
+            final FileInputStream in = new FileInputStream(segment.file);
+            in.getChannel().position(segment.offset);
+            return new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        }
+
+        /** Marks a segment as no longer needed, deleting its file if that was the last one in a finished file. */
+        void release(final Segment segment) {
+            // Nothing to do once the files have all been deleted by close()
+            if (!liveSegments.containsKey(segment.file)) return;
+            final int remaining = liveSegments.merge(segment.file, -1, Integer::sum);
+            if (remaining == 0 && segment.file != current) {
+                liveSegments.remove(segment.file);
+                segment.file.delete();
+            }
+        }
+
+        private void startFile() {
+            if (current != null) {
+                closeCurrent();
+                if (liveSegments.get(current) == 0) {
+                    liveSegments.remove(current);
+                    current.delete();
+                }
+            }
+            final File dir = tmpDirs.get(filesCreated % tmpDirs.size());
+            try {
+                current = File.createTempFile("opticalDuplicateLocations.", ".tmp", dir);
+                current.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(current), BUFFER_SIZE));
+            } catch (final IOException ioe) {
+                throw new PicardException("Error creating a file for optical duplicate locations in " + dir, ioe);
+            }
+            liveSegments.put(current, 0);
+            ++filesCreated;
+        }
+
+        private void closeCurrent() {
+            try {
+                out.close();
+            } catch (final IOException ioe) {
+                throw new PicardException("Error writing optical duplicate locations to " + current, ioe);
+            }
+        }
+
+        /** Deletes all the files, whether or not their segments have been read back. */
+        @Override
+        public void close() {
+            if (current != null) {
+                CloserUtil.close(out);
+                current = null;
+            }
+            for (final File file : liveSegments.keySet()) file.delete();
+            liveSegments.clear();
+        }
+
+        /** Where one spill of one set was written. */
+        static final class Segment {
+            final File file;
+            final long offset;
+            /** Records in the segment, tombstones included. */
+            int count;
+
+            Segment(final File file, final long offset) {
+                this.file = file;
+                this.offset = offset;
+            }
+        }
+    }
 }
@@ -33,10 +33,10 @@ public interface ReadEndsForMarkDuplicatesMap {
      * the object returned may not be the same object that was put into the map
      *
      * @param mateSequenceIndex must agree with the value used when the object was put into the map
-     * @param key               typically, concatenation of read group ID and read name
+     * @param key               the pairing key of the read, from its read group ID and read name
      * @return null if the key is not found, otherwise the object removed.
      */
-    ReadEndsForMarkDuplicates remove(int mateSequenceIndex, String key);
+    ReadEndsForMarkDuplicates remove(int mateSequenceIndex, PairingKey key);
 
     /**
      * Store the element in the map with the given key.  It is assumed that the element
@@ -44,10 +44,10 @@ public interface ReadEndsForMarkDuplicatesMap {
      *
      * @param mateSequenceIndex use to optimize storage & retrieval.  The same value must be used when trying
      *                          to remove this element.  It is not valid to store the same key with two different mateSequenceIndexes.
-     * @param key               typically, concatenation of read group ID and read name
+     * @param key               the pairing key of the read, from its read group ID and read name
      * @param readEnds          the object to be stored
      */
-    void put(int mateSequenceIndex, String key, ReadEndsForMarkDuplicates readEnds);
+    void put(int mateSequenceIndex, PairingKey key, ReadEndsForMarkDuplicates readEnds);
 
     /**
      * @return number of elements stored in map
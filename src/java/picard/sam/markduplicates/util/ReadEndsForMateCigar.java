@@ -32,7 +32,6 @@ import htsjdk.samtools.util.SamRecordWithOrdinal;
 import picard.PicardException;
 
 import java.util.List;
-import java.util.Set;
 
 /**
  * A class to store individual records for MarkDuplicatesWithMateCigar.  This aids in comparing records to determine which need to
@@ -143,11 +142,11 @@ public class ReadEndsForMateCigar extends ReadEnds {
     public boolean isPaired() { return this.getRecord().getReadPairedFlag(); }
 
     /** Gets the read ends for optical duplicate tracking */
-    public Set<ReadEnds> getReadEndSetForOpticalDuplicates() {
+    public List<ReadEnds> getReadEndSetForOpticalDuplicates() {
         if (null == this.locationSet) throw new PicardException("Already called getReadEndSetForOpticalDuplicates");
-        final Set<ReadEnds> locationSet = this.locationSet.getReadEnds();
+        final List<ReadEnds> locations = this.locationSet.getReadEnds();
         this.locationSet = null;
-        return locationSet;
+        return locations;
     }
 
     public PhysicalLocationForMateCigarSet getLocationSet() {
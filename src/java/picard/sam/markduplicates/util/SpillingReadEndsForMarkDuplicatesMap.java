@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReadEndsForMarkDuplicatesMap whose memory use is bounded by an estimate of the bytes held rather than by the
+ * number of reference sequences, and which spills to a few block-compressed files rather than one file per sequence.
+ *
+ * Read ends are held in an open addressing table keyed on 64 bits of their PairingKey; the whole key, read name
+ * included, is kept next to each read end so that remove() can tell keys that share a slot hash apart.  When the estimated size of
+ * the table passes the budget, every read end whose mate is on a sequence other than the current one (the one
+ * for which remove() was most recently called) is written to a new spill file, grouped by mate sequence, with
+ * BGZF compression at level {@link #SPILL_COMPRESSION_LEVEL}.  Calling remove() for a new sequence reads that
+ * sequence's groups back from each spill file with a single seek; a spill file is deleted once all of its groups
+ * have been read.  The read ends for the current sequence are never spilled, so if they alone exceed the budget
+ * the table grows past it, as the disk-based map does.
+ *
+ * The number of read ends, bytes and files spilled and the time spent writing and reading them are available for
+ * reporting.  Not thread safe.
+ */
+public class SpillingReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
+    /** Spill files favour speed over size; most of the saving comes from the first level of compression. */
+    public static final int SPILL_COMPRESSION_LEVEL = 1;
+
+    /**
+     * Estimated heap bytes per entry on top of the read end: the Entry object, the key, a share of the table and the
+     * fixed part of the read name String; each character of the name adds up to two more.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 152;
+
+    private final ReadEndsForMarkDuplicatesCodec codec;
+    private final int readEndsSizeOf;
+    private final long maxBytesInRam;
+    private final List<File> tmpDirs;
+
+    private Entry[] slots = new Entry[1024];
+    private int mask = slots.length - 1;
+    private int slotsUsed = 0;
+    private int entriesInRam = 0;
+    private long bytesInRam = 0;
+    private long spillThreshold;
+    private int currentSequence = -1;
+
+    /** The spilled groups of read ends, by mate sequence index. */
+    private final Map<Integer, List<Segment>> spilledSegments = new HashMap<>();
+    private int entriesSpilled = 0;
+
+    private long totalRecordsSpilled = 0;
+    private long totalBytesSpilled = 0;
+    private int spillFilesWritten = 0;
+    private long spillWriteNanos = 0;
+    private long spillReadNanos = 0;
+
+    /**
+     * @param maxBytesInRam the estimated heap bytes the held read ends may take before some are spilled
+     * @param codec         the codec used to spill read ends; must match the type of read ends put into the map
+     * @param tmpDirs       directories for the spill files, used in turn
+     */
+    public SpillingReadEndsForMarkDuplicatesMap(final long maxBytesInRam, final ReadEndsForMarkDuplicatesCodec codec,
+                                                final Collection<File> tmpDirs) {
+        if (maxBytesInRam < 1) throw new IllegalArgumentException("maxBytesInRam must be positive: " + maxBytesInRam);
+        if (tmpDirs.isEmpty()) throw new IllegalArgumentException("At least one temporary directory is needed.");
+        this.maxBytesInRam = maxBytesInRam;
+        this.spillThreshold = maxBytesInRam;
+        this.codec = codec;
+        this.readEndsSizeOf = codec instanceof ReadEndsForMarkDuplicatesWithBarcodesCodec ?
+                ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf() : ReadEndsForMarkDuplicates.getSizeOf();
+        this.tmpDirs = new ArrayList<>(tmpDirs);
+    }
+
+    @Override
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final PairingKey key) {
+        if (mateSequenceIndex != currentSequence) {
+            currentSequence = mateSequenceIndex;
+            spillThreshold = maxBytesInRam;
+            readSpilled(mateSequenceIndex);
+        }
+
+        final int slot = findSlot(hash(key));
+        Entry previous = null;
+        for (Entry entry = slots[slot]; entry != null; previous = entry, entry = entry.next) {
+            if (entry.key.equals(key)) {
+                if (previous != null) previous.next = entry.next;
+                else if (entry.next != null) slots[slot] = entry.next;
+                else deleteSlot(slot);
+                --entriesInRam;
+                bytesInRam -= bytesFor(entry);
+                return entry.readEnds;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(final int mateSequenceIndex, final PairingKey key, final ReadEndsForMarkDuplicates readEnds) {
+        insert(new Entry(mateSequenceIndex, key, readEnds));
+        if (bytesInRam > spillThreshold) {
+            spill();
+            // If the current sequence alone is over budget, let it grow a while before looking for more to spill
+            spillThreshold = Math.max(maxBytesInRam, bytesInRam + maxBytesInRam / 2);
+        }
+    }
+
+    @Override
+    public int size() {
+        return entriesInRam + entriesSpilled;
+    }
+
+    @Override
+    public int sizeInRam() {
+        return entriesInRam;
+    }
+
+    /** @return the number of read ends written to spill files, counting any read end spilled more than once */
+    public long getTotalRecordsSpilled() {
+        return totalRecordsSpilled;
+    }
+
+    /** @return the compressed size of all spill files written */
+    public long getTotalBytesSpilled() {
+        return totalBytesSpilled;
+    }
+
+    public int getSpillFilesWritten() {
+        return spillFilesWritten;
+    }
+
+    public long getSpillWriteMillis() {
+        return spillWriteNanos / 1000000;
+    }
+
+    public long getSpillReadMillis() {
+        return spillReadNanos / 1000000;
+    }
+
+    /** The hash by which keys are looked up; package-private so that tests can force collisions. */
+    long hash(final PairingKey key) {
+        return key.getLow();
+    }
+
+    /** Writes every held read end whose mate is not on the current sequence to a new spill file. */
+    private void spill() {
+        final List<Entry> toSpill = new ArrayList<>();
+        final List<Entry> toKeep = new ArrayList<>();
+        for (final Entry head : slots) {
+            for (Entry entry = head; entry != null; entry = entry.next) {
+                (entry.sequenceIndex == currentSequence ? toKeep : toSpill).add(entry);
+            }
+        }
+        if (toSpill.isEmpty()) return;
+
+        final long startTime = System.nanoTime();
+        toSpill.sort(Comparator.comparingInt(e -> e.sequenceIndex));
+        final SpillFile spillFile = new SpillFile(tmpDirs.get(spillFilesWritten % tmpDirs.size()));
+        try (final BlockCompressedOutputStream out = new BlockCompressedOutputStream(spillFile.file, SPILL_COMPRESSION_LEVEL)) {
+            codec.setOutputStream(out);
+            final DataOutputStream dataOut = codec.getOutputStream();
+            int start = 0;
+            while (start < toSpill.size()) {
+                final int sequenceIndex = toSpill.get(start).sequenceIndex;
+                int end = start;
+                final long filePointer = out.getFilePointer();
+                while (end < toSpill.size() && toSpill.get(end).sequenceIndex == sequenceIndex) {
+                    final Entry entry = toSpill.get(end++);
+                    entry.key.write(dataOut);
+                    codec.encode(entry.readEnds);
+                }
+                spilledSegments.computeIfAbsent(sequenceIndex, k -> new ArrayList<>())
+                        .add(new Segment(spillFile, filePointer, end - start));
+                ++spillFile.unreadSegments;
+                start = end;
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error spilling read ends to " + spillFile.file, ioe);
+        }
+
+        entriesSpilled += toSpill.size();
+        totalRecordsSpilled += toSpill.size();
+        totalBytesSpilled += spillFile.file.length();
+        ++spillFilesWritten;
+
+        // Rebuild the table from what is left rather than removing entries one by one
+        slots = new Entry[tableSizeFor(toKeep.size())];
+        mask = slots.length - 1;
+        slotsUsed = 0;
+        entriesInRam = 0;
+        bytesInRam = 0;
+        for (final Entry entry : toKeep) {
+            entry.next = null;
+            insert(entry);
+        }
+        spillWriteNanos += System.nanoTime() - startTime;
+    }
+
+    /** Reads every spilled group of read ends whose mates are on the given sequence back into the table. */
+    private void readSpilled(final int sequenceIndex) {
+        final List<Segment> segments = spilledSegments.remove(sequenceIndex);
+        if (segments == null) return;
+
+        final long startTime = System.nanoTime();
+        for (final Segment segment : segments) {
+            try (final BlockCompressedInputStream in = new BlockCompressedInputStream(segment.spillFile.file)) {
+                in.seek(segment.filePointer);
+                codec.setInputStream(in);
+                final DataInputStream dataIn = codec.getInputStream();
+                for (int i = 0; i < segment.count; ++i) {
+                    final PairingKey key = PairingKey.read(dataIn);
+                    final ReadEndsForMarkDuplicates readEnds = codec.decode();
+                    if (readEnds == null) throw new PicardException("Unexpected end of spill file " + segment.spillFile.file);
+                    insert(new Entry(sequenceIndex, key, readEnds));
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error reading spilled read ends from " + segment.spillFile.file, ioe);
+            }
+            entriesSpilled -= segment.count;
+            if (--segment.spillFile.unreadSegments == 0) segment.spillFile.file.delete();
+        }
+        spillReadNanos += System.nanoTime() - startTime;
+    }
+
+    private void insert(final Entry entry) {
+        entry.hash = hash(entry.key);
+        final int slot = findSlot(entry.hash);
+        if (slots[slot] == null) {
+            slots[slot] = entry;
+            // Keep the load factor at or below one half so that probe sequences stay short
+            if (++slotsUsed * 2 > slots.length) grow();
+        } else {
+            // The same slot hash, and perhaps the same key; remove() compares the whole key
+            entry.next = slots[slot];
+            slots[slot] = entry;
+        }
+        ++entriesInRam;
+        bytesInRam += bytesFor(entry);
+    }
+
+    /** @return the slot holding the chain for the given hash, or the empty slot where it would go */
+    private int findSlot(final long hash) {
+        int slot = (int) hash & mask;
+        while (slots[slot] != null && slots[slot].hash != hash) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /** Empties a slot, moving later entries of its probe sequence back so that none of them becomes unreachable. */
+    private void deleteSlot(int hole) {
+        slots[hole] = null;
+        --slotsUsed;
+        for (int slot = (hole + 1) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+            final int home = (int) slots[slot].hash & mask;
+            // Move the entry if its home is not cyclically within (hole, slot]
+            final boolean reachable = hole <= slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (!reachable) {
+                slots[hole] = slots[slot];
+                slots[slot] = null;
+                hole = slot;
+            }
+        }
+    }
+
+    private void grow() {
+        final Entry[] oldSlots = slots;
+        slots = new Entry[oldSlots.length * 2];
+        mask = slots.length - 1;
+        for (final Entry head : oldSlots) {
+            if (head != null) slots[findSlot(head.hash)] = head;
+        }
+    }
+
+    private long bytesFor(final Entry entry) {
+        return readEndsSizeOf + ENTRY_OVERHEAD_BYTES + 2 * entry.key.getReadName().length();
+    }
+
+    private static int tableSizeFor(final int entries) {
+        return Math.max(1024, Integer.highestOneBit(Math.max(1, entries) * 2 - 1) << 1);
+    }
+
+    /** A read end and its key.  Entries whose keys share a slot hash are chained through next. */
+    private static class Entry {
+        final int sequenceIndex;
+        final PairingKey key;
+        final ReadEndsForMarkDuplicates readEnds;
+        long hash;
+        Entry next;
+
+        Entry(final int sequenceIndex, final PairingKey key, final ReadEndsForMarkDuplicates readEnds) {
+            this.sequenceIndex = sequenceIndex;
+            this.key = key;
+            this.readEnds = readEnds;
+        }
+    }
+
+    private static class SpillFile {
+        final File file;
+        int unreadSegments = 0;
+
+        SpillFile(final File dir) {
+            try {
+                file = File.createTempFile("readEndsMap.", ".bgz", dir);
+                file.deleteOnExit();
+            } catch (final IOException ioe) {
+                throw new PicardException("Error creating spill file in " + dir, ioe);
+            }
+        }
+    }
+
+    /** The read ends for one mate sequence within a spill file. */
+    private static class Segment {
+        final SpillFile spillFile;
+        final long filePointer;
+        final int count;
+
+        Segment(final SpillFile spillFile, final long filePointer, final int count) {
+            this.spillFile = spillFile;
+            this.filePointer = filePointer;
+            this.count = count;
+        }
+    }
+}
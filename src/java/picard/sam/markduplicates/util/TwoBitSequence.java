@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import java.util.Arrays;
+
+/**
+ * Read bases packed two bits to a base, 32 bases to a long, so that the mismatches between two reads can be counted
+ * a word at a time with a population count rather than a base at a time.  Only the upper case bases A, C, G and T
+ * can be packed; callers compare reads with any other base (N, IUPAC codes, lower case) byte by byte instead, so that
+ * packing never changes which bases are considered to match.
+ */
+public final class TwoBitSequence {
+    /** Selects the low bit of each two bit base. */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    /** The two bit code of each byte value, or -1 for bytes that are not A, C, G or T. */
+    private static final byte[] CODES = new byte[256];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = 0;
+        CODES['C'] = 1;
+        CODES['G'] = 2;
+        CODES['T'] = 3;
+    }
+
+    private TwoBitSequence() {}
+
+    /**
+     * @return the bases packed so that base i is in bits 2 * (i % 32) of word i / 32, or null if any of the bases is
+     * not A, C, G or T
+     */
+    public static long[] pack(final byte[] bases) {
+        final long[] packed = new long[(bases.length + 31) >>> 5];
+        for (int i = 0; i < bases.length; ++i) {
+            final int code = CODES[bases[i] & 0xFF];
+            if (code < 0) return null;
+            packed[i >>> 5] |= ((long) code) << ((i & 31) << 1);
+        }
+        return packed;
+    }
+
+    /**
+     * Counts the positions in [start, end) at which two packed sequences differ, stopping once the count exceeds
+     * maxMismatches.
+     *
+     * @return the number of mismatches, or some number greater than maxMismatches if there are more than that many
+     */
+    public static int countMismatches(final long[] lhs, final long[] rhs, final int start, final int end, final int maxMismatches) {
+        if (start >= end) return 0;
+
+        final int firstWord = start >>> 5;
+        final int lastWord = (end - 1) >>> 5;
+        int mismatches = 0;
+        for (int word = firstWord; word <= lastWord; ++word) {
+            long diff = lhs[word] ^ rhs[word];
+            if (word == firstWord) diff &= -1L << ((start & 31) << 1);
+            if (word == lastWord) {
+                final int usedBits = (((end - 1) & 31) + 1) << 1;
+                if (usedBits < 64) diff &= (1L << usedBits) - 1;
+            }
+            // A base differs if either of its two bits does
+            mismatches += Long.bitCount((diff | (diff >>> 1)) & LOW_BITS);
+            if (mismatches > maxMismatches) return mismatches;
+        }
+        return mismatches;
+    }
+}
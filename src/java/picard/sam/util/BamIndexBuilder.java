@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinningIndexBuilder;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.LinearIndex;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import picard.PicardException;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds a BAM index from coordinate sorted records and the virtual file pointers of their start and end, and writes
+ * it in the same form as htsjdk's BAMIndexer.  BAMIndexer takes each record's location from its file source, which
+ * only a SAMFileReader can set, so it cannot index records as they are written.
+ */
+class BamIndexBuilder {
+    private static final byte[] BAM_INDEX_MAGIC = "BAI\1".getBytes(StandardCharsets.US_ASCII);
+
+    private final SAMSequenceDictionary dictionary;
+    private final BinaryCodec codec;
+    private int currentReference = 0;
+    private BinningIndexBuilder binningIndexBuilder = null;
+
+    // The metadata kept for each reference, as by BAMIndexMetaData
+    private long firstOffset;
+    private long lastOffset;
+    private int alignedRecords;
+    private int unalignedRecords;
+    private long noCoordinateRecords = 0;
+
+    BamIndexBuilder(final File indexFile, final SAMFileHeader header) {
+        this.dictionary = header.getSequenceDictionary();
+        this.codec = new BinaryCodec(indexFile, true);
+        codec.writeBytes(BAM_INDEX_MAGIC);
+        codec.writeInt(dictionary.size());
+        if (!dictionary.isEmpty()) startReference();
+    }
+
+    /**
+     * Adds a record, which must come after all those already added in coordinate order.
+     * @param startPointer the virtual file pointer of the start of the record
+     * @param endPointer the virtual file pointer just past the end of the record
+     */
+    void processAlignment(final SAMRecord rec, final long startPointer, final long endPointer) {
+        final int reference = rec.getReferenceIndex();
+        if (reference != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX && reference != currentReference) {
+            advanceToReference(reference);
+        }
+
+        if (rec.getAlignmentStart() == SAMRecord.NO_ALIGNMENT_START) {
+            ++noCoordinateRecords;
+            return;
+        }
+        if (reference != currentReference) {
+            throw new PicardException("Unexpected reference " + reference + " when constructing index for " + currentReference +
+                    " for record " + rec);
+        }
+
+        if (rec.getReadUnmappedFlag()) ++unalignedRecords;
+        else ++alignedRecords;
+        if (firstOffset == -1 || BlockCompressedFilePointerUtil.compare(startPointer, firstOffset) < 1) firstOffset = startPointer;
+        if (BlockCompressedFilePointerUtil.compare(lastOffset, endPointer) < 1) lastOffset = endPointer;
+
+        final Chunk chunk = new Chunk(startPointer, endPointer);
+        binningIndexBuilder.processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
+            @Override
+            public int getStart() {
+                return rec.getAlignmentStart();
+            }
+
+            @Override
+            public int getEnd() {
+                return rec.getAlignmentEnd();
+            }
+
+            /** As SAMRecord.computeIndexingBin(), which is not public; a valid record's stored bin is the same. */
+            @Override
+            public Integer getIndexingBin() {
+                final int start = rec.getAlignmentStart() - 1;
+                final int end = rec.getAlignmentEnd();
+                // Treat a record with no alignment end, e.g. an unmapped read placed by its mate, as covering one base
+                return GenomicIndexUtil.regionToBin(start, end <= 0 ? start + 1 : end);
+            }
+
+            @Override
+            public Chunk getChunk() {
+                return chunk;
+            }
+        });
+    }
+
+    /** Writes the remaining references and closes the index file. */
+    void finish() {
+        advanceToReference(dictionary.size());
+        codec.writeLong(noCoordinateRecords);
+        codec.close();
+    }
+
+    private void startReference() {
+        binningIndexBuilder = new BinningIndexBuilder(currentReference, dictionary.getSequence(currentReference).getSequenceLength());
+        firstOffset = -1;
+        lastOffset = 0;
+        alignedRecords = 0;
+        unalignedRecords = 0;
+    }
+
+    private void advanceToReference(final int nextReference) {
+        while (currentReference < nextReference) {
+            writeReference(binningIndexBuilder.generateIndexContent());
+            if (++currentReference < dictionary.size()) startReference();
+        }
+    }
+
+    private void writeReference(final BinningIndexContent content) {
+        final BinningIndexContent.BinList bins = (content == null) ? null : content.getBins();
+        if (bins == null || bins.numberOfNonNullBins == 0) {
+            // No bins and no linear index
+            codec.writeInt(0);
+            codec.writeInt(0);
+            return;
+        }
+
+        // The bins, then the metadata in a pseudo-bin
+        codec.writeInt(bins.numberOfNonNullBins + 1);
+        for (final Bin bin : bins) {
+            if (bin.getBinNumber() == GenomicIndexUtil.MAX_BINS) continue;
+            codec.writeInt(bin.getBinNumber());
+            if (bin.getChunkList() == null) {
+                codec.writeInt(0);
+                continue;
+            }
+            codec.writeInt(bin.getChunkList().size());
+            for (final Chunk chunk : bin.getChunkList()) {
+                codec.writeLong(chunk.getChunkStart());
+                codec.writeLong(chunk.getChunkEnd());
+            }
+        }
+        codec.writeInt(GenomicIndexUtil.MAX_BINS);
+        codec.writeInt(2);
+        codec.writeLong(firstOffset);
+        codec.writeLong(lastOffset);
+        codec.writeLong(alignedRecords);
+        codec.writeLong(unalignedRecords);
+
+        final LinearIndex linearIndex = content.getLinearIndex();
+        final long[] entries = (linearIndex == null) ? null : linearIndex.getIndexEntries();
+        final int indexStart = (entries == null) ? 0 : linearIndex.getIndexStart();
+        codec.writeInt((entries == null) ? indexStart : entries.length + indexStart);
+        if (entries == null) return;
+        for (int i = 0; i < indexStart; ++i) codec.writeLong(0);
+        for (final long entry : entries) codec.writeLong(entry);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import picard.PicardException;
+import picard.util.BlockCompressorPool;
+import picard.util.ParallelBlockCompressedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Function;
+
+/**
+ * Writes a BAM file whose BGZF blocks are compressed on several threads by a
+ * {@link ParallelBlockCompressedOutputStream}.  Records are encoded on the calling thread, in the order they are
+ * added, so the output is the same as that of the htsjdk BAM writer for presorted records apart from the block
+ * boundaries.
+ *
+ * If an index is requested it is built while writing, as BAMFileWriter does, by a {@link BamIndexBuilder}.  A record's block address is only known
+ * once the blocks holding it have been compressed and written, so each record waits with its start and end positions
+ * in the uncompressed data until then, and is handed to the indexer in order.
+ */
+public class ParallelBamWriter implements SAMFileWriter {
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private final SAMFileHeader header;
+    private final File output;
+    private final ParallelBlockCompressedOutputStream out;
+    private final BAMRecordCodec codec;
+    // null if no index is being built
+    private final BamIndexBuilder indexer;
+    // Records whose blocks have not all been written, waiting to be indexed
+    private final Deque<PendingRecord> pendingRecords = new ArrayDeque<>();
+    private ProgressLoggerInterface progressLogger = null;
+    private boolean closed = false;
+
+    /**
+     * @param header           the header to write; records must be added in its sort order
+     * @param output           the BAM file to write
+     * @param compressionLevel the deflate level, 0 to 9
+     * @param threads          number of compressing threads
+     * @param createIndex      whether to index the file, if it is coordinate sorted
+     * @param createMd5File    whether to write the MD5 digest of the file alongside it
+     */
+    public ParallelBamWriter(final SAMFileHeader header, final File output, final int compressionLevel, final int threads,
+                             final boolean createIndex, final boolean createMd5File) {
+        this(header, output, createIndex, createMd5File,
+                fileOut -> new ParallelBlockCompressedOutputStream(fileOut, compressionLevel, threads));
+    }
+
+    /**
+     * @param header            the header to write; records must be added in its sort order
+     * @param output            the BAM file to write
+     * @param compressionLevel  the deflate level, 0 to 9
+     * @param pool              the threads to compress on, which may be shared with other writers
+     * @param maxBlocksInFlight the number of this file's blocks that may be compressed or waiting to be written at once
+     * @param createIndex       whether to index the file, if it is coordinate sorted
+     * @param createMd5File     whether to write the MD5 digest of the file alongside it
+     */
+    public ParallelBamWriter(final SAMFileHeader header, final File output, final int compressionLevel,
+                             final BlockCompressorPool pool, final int maxBlocksInFlight,
+                             final boolean createIndex, final boolean createMd5File) {
+        this(header, output, createIndex, createMd5File,
+                fileOut -> new ParallelBlockCompressedOutputStream(fileOut, compressionLevel, pool, maxBlocksInFlight));
+    }
+
+    private ParallelBamWriter(final SAMFileHeader header, final File output, final boolean createIndex, final boolean createMd5File,
+                              final Function<OutputStream, ParallelBlockCompressedOutputStream> blockCompressedStreamFactory) {
+        IOUtil.assertFileIsWritable(output);
+        this.header = header;
+        this.output = output;
+
+        try {
+            OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(output), OUTPUT_BUFFER_SIZE);
+            if (createMd5File) fileOut = new Md5CalculatingOutputStream(fileOut, new File(output.getAbsolutePath() + ".md5"));
+            this.out = blockCompressedStreamFactory.apply(fileOut);
+            if (createIndex && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
+                out.trackBlockAddresses();
+                this.indexer = new BamIndexBuilder(new File(output.getParentFile(), IOUtil.basename(output) + BAMIndex.BAMIndexSuffix), header);
+            } else {
+                this.indexer = null;
+            }
+            writeHeader();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error opening " + output + " for writing.", ioe);
+        }
+
+        this.codec = new BAMRecordCodec(header);
+        this.codec.setOutputStream(out);
+    }
+
+    /** Writes the magic number, the header text and the sequence dictionary. */
+    private void writeHeader() throws IOException {
+        final StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+        final byte[] text = headerText.toString().getBytes(StandardCharsets.UTF_8);
+
+        out.write(BAM_MAGIC);
+        writeInt(text.length);
+        out.write(text);
+        writeInt(header.getSequenceDictionary().size());
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            final byte[] name = sequence.getSequenceName().getBytes(StandardCharsets.US_ASCII);
+            writeInt(name.length + 1);
+            out.write(name);
+            out.write(0);
+            writeInt(sequence.getSequenceLength());
+        }
+    }
+
+    private void writeInt(final int value) throws IOException {
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+
+    @Override
+    public void addAlignment(final SAMRecord alignment) {
+        if (indexer != null) {
+            final long start = out.getPosition();
+            codec.encode(alignment);
+            pendingRecords.addLast(new PendingRecord(alignment, start, out.getPosition()));
+            indexWrittenRecords();
+        } else {
+            codec.encode(alignment);
+        }
+        if (progressLogger != null) progressLogger.record(alignment);
+    }
+
+    /** Indexes the waiting records, in order, up to the first whose blocks have not all been written. */
+    private void indexWrittenRecords() {
+        while (!pendingRecords.isEmpty()) {
+            final PendingRecord pending = pendingRecords.peekFirst();
+            if (pending.startPointer < 0) pending.startPointer = out.getVirtualFilePointer(pending.start);
+            if (pending.startPointer < 0) return;
+            final long endPointer = out.getVirtualFilePointer(pending.end);
+            if (endPointer < 0) return;
+
+            pendingRecords.removeFirst();
+            indexer.processAlignment(pending.record, pending.startPointer, endPointer);
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    /** @return the underlying stream, e.g. for its compression statistics */
+    public ParallelBlockCompressedOutputStream getBlockCompressedStream() {
+        return out;
+    }
+
+    @Override
+    public void setProgressLogger(final ProgressLoggerInterface progress) {
+        this.progressLogger = progress;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (indexer != null) {
+                out.flush();
+                indexWrittenRecords();
+            }
+            out.close();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing " + output, ioe);
+        }
+        if (indexer != null) indexer.finish();
+    }
+
+    private static class PendingRecord {
+        private final SAMRecord record;
+        // Positions in the uncompressed data
+        private final long start;
+        private final long end;
+        private long startPointer = -1;
+
+        private PendingRecord(final SAMRecord record, final long start, final long end) {
+            this.record = record;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import picard.PicardException;
+import picard.util.ParallelBlockCompressedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps records in a temporary BGZF file, in the order they are added, so that a program which needs to see its
+ * input twice can read and decode it only once.  Records are written with BAMRecordCodec, which copies the
+ * undecoded bytes of a record read from a BAM file that has not been changed rather than encoding it again, and the
+ * file is compressed at level {@link #COMPRESSION_LEVEL}, on several threads if asked.
+ *
+ * Records are added, then read back once with {@link #iterator()}; the file is deleted when that iterator is
+ * closed, or by {@link #cleanup()}.
+ */
+public class SamRecordSpool {
+    /** The spool is read straight back, so it favours speed over size. */
+    public static final int COMPRESSION_LEVEL = 1;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private final SAMFileHeader header;
+    private final File file;
+    private final BAMRecordCodec codec;
+    private OutputStream out;
+    private long recordsAdded = 0;
+    private boolean iterated = false;
+
+    /**
+     * @param header  the header of the records, used to encode and decode them
+     * @param tmpDir  the directory for the spool file
+     * @param threads the number of threads compressing the spool; 1 compresses on the calling thread
+     */
+    public SamRecordSpool(final SAMFileHeader header, final File tmpDir, final int threads) {
+        this.header = header;
+        try {
+            this.file = File.createTempFile("samRecordSpool.", ".bgz", tmpDir);
+            this.file.deleteOnExit();
+            this.out = threads > 1
+                    ? new ParallelBlockCompressedOutputStream(new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE), COMPRESSION_LEVEL, threads)
+                    : new BlockCompressedOutputStream(file, COMPRESSION_LEVEL);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error creating record spool in " + tmpDir, ioe);
+        }
+        this.codec = new BAMRecordCodec(header);
+        this.codec.setOutputStream(out, file.getPath());
+    }
+
+    public void add(final SAMRecord rec) {
+        if (out == null) throw new IllegalStateException("add() called after iterator().");
+        codec.encode(rec);
+        ++recordsAdded;
+    }
+
+    public long getRecordsAdded() {
+        return recordsAdded;
+    }
+
+    /** @return the size of the spool file; only complete once iterator() has been called */
+    public long getBytesWritten() {
+        return file.length();
+    }
+
+    /** Finishes writing and returns the records in the order they were added.  May only be called once. */
+    public CloseableIterator<SAMRecord> iterator() {
+        if (iterated) throw new IllegalStateException("iterator() may only be called once.");
+        iterated = true;
+        closeOutput();
+
+        final BlockCompressedInputStream in;
+        try {
+            in = new BlockCompressedInputStream(file);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error opening record spool " + file, ioe);
+        }
+        final BAMRecordCodec readCodec = new BAMRecordCodec(header);
+        readCodec.setInputStream(in, file.getPath());
+
+        return new CloseableIterator<SAMRecord>() {
+            private SAMRecord next = readCodec.decode();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SAMRecord next() {
+                if (next == null) throw new NoSuchElementException();
+                final SAMRecord rec = next;
+                next = readCodec.decode();
+                return rec;
+            }
+
+            @Override
+            public void close() {
+                next = null;
+                CloserUtil.close(in);
+                cleanup();
+            }
+        };
+    }
+
+    /** Closes and deletes the spool file. */
+    public void cleanup() {
+        closeOutput();
+        file.delete();
+    }
+
+    private void closeOutput() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error closing record spool " + file, ioe);
+        } finally {
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.Histogram;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A histogram of int keys to long counts, for collectors that increment a histogram once per read or per base.
+ * Keys from 0 up to a limit are counted in a long[] that grows as larger keys are seen; negative keys and keys beyond
+ * the limit (e.g. the insert sizes of chimeric pairs) are counted in a sorted map, so that a few outliers cannot
+ * make the array huge.  Nothing is allocated per increment for keys in the array.
+ *
+ * Collectors count into an IntHistogram and call {@link #toHistogram(String, String)} when they compute their metrics
+ * or write their MetricsFile.  Histograms filled on different threads can be combined with {@link #merge(IntHistogram)}.
+ *
+ * Not thread safe.
+ */
+public final class IntHistogram {
+    /** The default largest key, plus one, that is counted in the array. */
+    public static final int DEFAULT_DENSE_LIMIT = 1 << 16;
+
+    private final int denseLimit;
+    private long[] dense = new long[16];
+    private final TreeMap<Integer, long[]> sparse = new TreeMap<>();
+    private long count = 0;
+
+    public IntHistogram() {
+        this(DEFAULT_DENSE_LIMIT);
+    }
+
+    /** @param denseLimit keys from 0 to denseLimit - 1 are counted in an array, others in a map */
+    public IntHistogram(final int denseLimit) {
+        if (denseLimit < 1) throw new IllegalArgumentException("denseLimit must be positive: " + denseLimit);
+        this.denseLimit = denseLimit;
+    }
+
+    public void increment(final int key) {
+        increment(key, 1);
+    }
+
+    public void increment(final int key, final long by) {
+        if (key >= 0 && key < denseLimit) {
+            if (key >= dense.length) dense = Arrays.copyOf(dense, Math.min(denseLimit, Math.max(key + 1, dense.length * 2)));
+            dense[key] += by;
+        } else {
+            final long[] value = sparse.get(key);
+            if (value == null) sparse.put(key, new long[] {by});
+            else value[0] += by;
+        }
+        count += by;
+    }
+
+    /** @return the count of key, 0 if it has never been incremented */
+    public long get(final int key) {
+        if (key >= 0 && key < denseLimit) return key < dense.length ? dense[key] : 0;
+        final long[] value = sparse.get(key);
+        return value == null ? 0 : value[0];
+    }
+
+    /** @return the sum of the counts of all keys */
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /** Adds the counts of other into this histogram. */
+    public void merge(final IntHistogram other) {
+        if (other.dense.length > dense.length && denseLimit >= other.dense.length) {
+            dense = Arrays.copyOf(dense, other.dense.length);
+        }
+        for (int key = 0; key < other.dense.length; ++key) {
+            if (other.dense[key] != 0) increment(key, other.dense[key]);
+        }
+        for (final Map.Entry<Integer, long[]> entry : other.sparse.entrySet()) {
+            increment(entry.getKey(), entry.getValue()[0]);
+        }
+    }
+
+    /** Makes an htsjdk Histogram with a bin for each key that has a non-zero count. */
+    public Histogram<Integer> toHistogram(final String binLabel, final String valueLabel) {
+        final Histogram<Integer> histogram = new Histogram<>(binLabel, valueLabel);
+        addTo(histogram);
+        return histogram;
+    }
+
+    /** Makes an htsjdk Histogram with a bin for each key that has a non-zero count, and default labels. */
+    public Histogram<Integer> toHistogram() {
+        final Histogram<Integer> histogram = new Histogram<>();
+        addTo(histogram);
+        return histogram;
+    }
+
+    private void addTo(final Histogram<Integer> histogram) {
+        for (final Map.Entry<Integer, long[]> entry : sparse.headMap(0).entrySet()) {
+            if (entry.getValue()[0] != 0) histogram.increment(entry.getKey(), entry.getValue()[0]);
+        }
+        for (int key = 0; key < dense.length; ++key) {
+            if (dense[key] != 0) histogram.increment(key, dense[key]);
+        }
+        for (final Map.Entry<Integer, long[]> entry : sparse.tailMap(0).entrySet()) {
+            if (entry.getValue()[0] != 0) histogram.increment(entry.getKey(), entry.getValue()[0]);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Draws simple line charts of the metrics files written by the metrics programs, in place of the R scripts that
+ * RExecutor would run for them, so that charts can be made where R is not installed.  The charts are plainer than
+ * the R ones: every series of the chart's table is drawn as a line against its first (or named) column.  A table
+ * with several units, e.g. a GC bias table collected at several accumulation levels, has each unit drawn as its own
+ * lines on the same chart, where R would draw a page per unit.
+ *
+ * Only the scripts registered here can be rendered; see {@link #canRender(String)}.  The chart is written as a PDF
+ * unless the chart file name ends in .png.  Called through RExecutor when the chart renderer is
+ * {@link RExecutor.ChartRenderer#JAVA}.
+ */
+public class JavaChartRenderer {
+
+    /** Which table of the metrics file a chart is drawn from. */
+    private enum Table { METRICS, HISTOGRAM }
+
+    /** How to draw the chart for one R script from that script's arguments. */
+    private static final class ChartSpec {
+        final String title;
+        final String xLabel;
+        final String yLabel;
+        final Table table;
+        /** The column to use as x, or null for the first column. */
+        final String xColumn;
+        /** The columns to draw, or null for all columns but x. */
+        final List<String> yColumns;
+        final int metricsArg;
+        final int chartArg;
+        /** The argument naming the input, or -1 if there is none. */
+        final int inputNameArg;
+        /** The argument giving the largest x to draw, or -1 if there is none. */
+        final int xMaxArg;
+
+        ChartSpec(final String title, final String xLabel, final String yLabel, final Table table, final String xColumn,
+                  final List<String> yColumns, final int metricsArg, final int chartArg, final int inputNameArg, final int xMaxArg) {
+            this.title = title;
+            this.xLabel = xLabel;
+            this.yLabel = yLabel;
+            this.table = table;
+            this.xColumn = xColumn;
+            this.yColumns = yColumns;
+            this.metricsArg = metricsArg;
+            this.chartArg = chartArg;
+            this.inputNameArg = inputNameArg;
+            this.xMaxArg = xMaxArg;
+        }
+    }
+
+    private static final Map<String, ChartSpec> SPECS = new HashMap<>();
+
+    static {
+        SPECS.put("picard/analysis/qualityScoreDistribution.R", new ChartSpec("Quality Score Distribution", "Quality Score",
+                "Observations", Table.HISTOGRAM, null, null, 0, 1, 2, -1));
+        SPECS.put("picard/analysis/meanQualityByCycle.R", new ChartSpec("Quality by Cycle", "Cycle",
+                "Mean Quality", Table.HISTOGRAM, null, null, 0, 1, 2, -1));
+        SPECS.put("picard/analysis/insertSizeHistogram.R", new ChartSpec("Insert Size Histogram", "Insert Size",
+                "Count", Table.HISTOGRAM, null, null, 0, 1, 2, 3));
+        SPECS.put("picard/analysis/rnaSeqCoverage.R", new ChartSpec("RNA-Seq Coverage vs. Transcript Position",
+                "Normalized Distance Along Transcript", "Normalized Coverage", Table.HISTOGRAM, null, null, 0, 1, 2, -1));
+        SPECS.put("picard/analysis/wgsHistogram.R", new ChartSpec("WGS Base Coverage", "Coverage",
+                "Bases", Table.HISTOGRAM, null, null, 0, 1, 2, -1));
+        SPECS.put("picard/analysis/baseDistributionByCycle.R", new ChartSpec("Base Distribution by Cycle", "Cycle",
+                "Base Percentage", Table.METRICS, "CYCLE", Arrays.asList("PCT_A", "PCT_C", "PCT_G", "PCT_T", "PCT_N"), 0, 1, 2, -1));
+        SPECS.put("picard/analysis/gcBias.R", new ChartSpec("GC Bias Plot", "GC% of windows",
+                "Normalized coverage", Table.METRICS, "GC", Arrays.asList("NORMALIZED_COVERAGE"), 0, 2, -1, -1));
+    }
+
+    /** The columns that identify the unit of a row of a multi-level metrics table, from least to most specific. */
+    private static final List<String> UNIT_COLUMNS = Arrays.asList("ACCUMULATION_LEVEL", "SAMPLE", "LIBRARY", "READ_GROUP");
+
+    private static final Color[] SERIES_COLORS = {
+            new Color(0, 0, 255), new Color(255, 0, 0), new Color(0, 160, 0), new Color(255, 140, 0),
+            new Color(128, 0, 128), new Color(0, 160, 160), new Color(128, 128, 128)
+    };
+
+    // The page layout, in points from the bottom left, the size of R's default 7 inch PDF
+    private static final double PAGE_SIZE = 504;
+    private static final double LEFT = 70, RIGHT = 484, BOTTOM = 60, TOP = 434;
+
+    /** @return true if the chart made by the given classpath R script can be drawn by this class */
+    public static boolean canRender(final String rScriptName) {
+        return SPECS.containsKey(rScriptName);
+    }
+
+    /** Draws the chart that the given R script would draw, from the same arguments. */
+    public static void render(final String rScriptName, final String... arguments) {
+        final ChartSpec spec = SPECS.get(rScriptName);
+        if (spec == null) throw new IllegalArgumentException("No Java chart for R script " + rScriptName);
+
+        final File metricsFile = new File(arguments[spec.metricsArg]);
+        final File chartFile = new File(arguments[spec.chartArg]);
+        IOUtil.assertFileIsReadable(metricsFile);
+        IOUtil.assertFileIsWritable(chartFile);
+
+        final List<String[]> table = readTable(metricsFile, spec.table);
+        if (table.isEmpty()) throw new PicardException("No " + spec.table + " table to chart in " + metricsFile);
+
+        final String title = spec.title + "\nin file " +
+                (spec.inputNameArg >= 0 && arguments.length > spec.inputNameArg ? arguments[spec.inputNameArg] : metricsFile.getName());
+        final double xMax = (spec.xMaxArg >= 0 && arguments.length > spec.xMaxArg) ? parse(arguments[spec.xMaxArg]) : Double.NaN;
+        final Chart chart = new Chart(title, spec.xLabel, spec.yLabel, table, spec.xColumn, spec.yColumns, xMax);
+
+        try (final OutputStream out = new FileOutputStream(chartFile)) {
+            if (chartFile.getName().toLowerCase(Locale.US).endsWith(".png")) {
+                final PngCanvas canvas = new PngCanvas();
+                chart.draw(canvas);
+                canvas.write(out);
+            } else {
+                final PdfCanvas canvas = new PdfCanvas();
+                chart.draw(canvas);
+                canvas.write(out);
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Error writing chart " + chartFile, e);
+        }
+    }
+
+    /**
+     * Reads the header line and rows of the first METRICS or HISTOGRAM section of a metrics file.
+     * @return the header followed by the rows; empty if there is no such section
+     */
+    static List<String[]> readTable(final File metricsFile, final Table table) {
+        final String marker = (table == Table.METRICS) ? "## METRICS CLASS" : "## HISTOGRAM";
+        final List<String[]> lines = new ArrayList<>();
+        try (final BufferedReader reader = IOUtil.openFileForBufferedReading(metricsFile)) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.startsWith(marker)) { }
+            while ((line = reader.readLine()) != null && !line.trim().isEmpty()) {
+                lines.add(line.split("\t", -1));
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Error reading " + metricsFile, e);
+        }
+        return lines;
+    }
+
+    private static double parse(final String value) {
+        try {
+            return value.isEmpty() || value.equals("?") ? Double.NaN : Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** The series of a table and their layout on the page. */
+    private static final class Chart {
+        final String title, xLabel, yLabel;
+        final List<String> names = new ArrayList<>();
+        final List<double[]> xs = new ArrayList<>();
+        final List<double[]> ys = new ArrayList<>();
+        double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+        double yMin = 0, yMax = Double.NEGATIVE_INFINITY;
+
+        Chart(final String title, final String xLabel, final String yLabel, final List<String[]> table,
+              final String xColumn, final List<String> yColumns, final double xLimit) {
+            this.title = title;
+            this.xLabel = xLabel;
+            this.yLabel = yLabel;
+
+            final List<String> header = Arrays.asList(table.get(0));
+            final int xIndex = (xColumn == null) ? 0 : header.indexOf(xColumn);
+            if (xIndex < 0) throw new PicardException("No column " + xColumn + " to chart.");
+
+            final List<List<String[]>> units = splitUnits(header, table, xIndex);
+            for (int u = 0; u < units.size(); ++u) {
+                final List<String[]> unit = units.get(u);
+                final String unitName = (units.size() > 1) ? unitName(header, unit.get(0), u) : null;
+                for (int column = 0; column < header.size(); ++column) {
+                    if (column == xIndex || UNIT_COLUMNS.contains(header.get(column)) ||
+                            (yColumns != null && !yColumns.contains(header.get(column)))) continue;
+                    final double[] x = new double[unit.size()];
+                    final double[] y = new double[unit.size()];
+                    int n = 0;
+                    for (final String[] fields : unit) {
+                        x[n] = parse(fields[xIndex]);
+                        y[n] = column < fields.length ? parse(fields[column]) : Double.NaN;
+                        if (Double.isNaN(x[n]) || Double.isNaN(y[n]) || x[n] > xLimit) continue;
+                        xMin = Math.min(xMin, x[n]);
+                        xMax = Math.max(xMax, x[n]);
+                        yMin = Math.min(yMin, y[n]);
+                        yMax = Math.max(yMax, y[n]);
+                        ++n;
+                    }
+                    if (unitName == null) names.add(header.get(column));
+                    else if (yColumns != null && yColumns.size() == 1) names.add(unitName);
+                    else names.add(unitName + " " + header.get(column));
+                    xs.add(Arrays.copyOf(x, n));
+                    ys.add(Arrays.copyOf(y, n));
+                }
+            }
+            if (xMin > xMax) { xMin = 0; xMax = 1; }
+            if (yMin >= yMax) yMax = yMin + 1;
+            if (xMin == xMax) xMax = xMin + 1;
+        }
+
+        /**
+         * Splits the rows of a table into its units, e.g. the accumulation levels of a GC bias detail table.  A new
+         * unit starts where the unit columns change or, for tables without them, where x stops increasing.
+         */
+        private static List<List<String[]>> splitUnits(final List<String> header, final List<String[]> table, final int xIndex) {
+            final List<Integer> unitIndexes = new ArrayList<>();
+            for (final String column : UNIT_COLUMNS) {
+                if (header.contains(column)) unitIndexes.add(header.indexOf(column));
+            }
+
+            final List<List<String[]>> units = new ArrayList<>();
+            List<String[]> unit = null;
+            String previousKey = null;
+            double previousX = Double.NEGATIVE_INFINITY;
+            for (final String[] fields : table.subList(1, table.size())) {
+                final StringBuilder key = new StringBuilder();
+                for (final int i : unitIndexes) key.append(i < fields.length ? fields[i] : "").append('\t');
+                final double x = parse(fields[xIndex]);
+                final boolean newUnit = unitIndexes.isEmpty() ? x <= previousX : !key.toString().equals(previousKey);
+                if (unit == null || newUnit) {
+                    unit = new ArrayList<>();
+                    units.add(unit);
+                }
+                unit.add(fields);
+                previousKey = key.toString();
+                if (!Double.isNaN(x)) previousX = x;
+            }
+            return units;
+        }
+
+        /** @return the most specific of the unit's read group, library, sample and accumulation level, if any */
+        private static String unitName(final List<String> header, final String[] firstRow, final int unitIndex) {
+            for (int i = UNIT_COLUMNS.size() - 1; i >= 0; --i) {
+                final int column = header.indexOf(UNIT_COLUMNS.get(i));
+                if (column >= 0 && column < firstRow.length && !firstRow[column].isEmpty()) return firstRow[column];
+            }
+            return "Unit " + (unitIndex + 1);
+        }
+
+        double pageX(final double x) { return LEFT + (x - xMin) / (xMax - xMin) * (RIGHT - LEFT); }
+        double pageY(final double y) { return BOTTOM + (y - yMin) / (yMax - yMin) * (TOP - BOTTOM); }
+
+        void draw(final Canvas canvas) {
+            final String[] titleLines = title.split("\n");
+            for (int i = 0; i < titleLines.length; ++i) {
+                canvas.text(titleLines[i], PAGE_SIZE / 2, PAGE_SIZE - 30 - 16 * i, 13, true, false);
+            }
+            canvas.text(xLabel, (LEFT + RIGHT) / 2, 15, 11, true, false);
+            canvas.text(yLabel, 18, (BOTTOM + TOP) / 2, 11, true, true);
+
+            canvas.setColor(Color.BLACK, 1);
+            canvas.polyline(new double[] {LEFT, RIGHT, RIGHT, LEFT, LEFT}, new double[] {BOTTOM, BOTTOM, TOP, TOP, BOTTOM});
+            for (final double tick : ticks(xMin, xMax)) {
+                canvas.polyline(new double[] {pageX(tick), pageX(tick)}, new double[] {BOTTOM, BOTTOM - 5});
+                canvas.text(format(tick), pageX(tick), BOTTOM - 18, 9, true, false);
+            }
+            for (final double tick : ticks(yMin, yMax)) {
+                canvas.polyline(new double[] {LEFT, LEFT - 5}, new double[] {pageY(tick), pageY(tick)});
+                canvas.text(format(tick), LEFT - 8, pageY(tick) - 3, 9, false, false);
+            }
+
+            for (int i = 0; i < names.size(); ++i) {
+                final double[] x = xs.get(i);
+                final double[] y = ys.get(i);
+                final double[] px = new double[x.length];
+                final double[] py = new double[y.length];
+                for (int j = 0; j < x.length; ++j) {
+                    px[j] = pageX(x[j]);
+                    py[j] = pageY(y[j]);
+                }
+                canvas.setColor(SERIES_COLORS[i % SERIES_COLORS.length], 1.5);
+                canvas.polyline(px, py);
+                final double legendY = TOP - 15 - 12 * i;
+                if (names.size() > 1 && legendY > BOTTOM) {
+                    canvas.polyline(new double[] {RIGHT - 150, RIGHT - 130}, new double[] {legendY + 3, legendY + 3});
+                    canvas.text(names.get(i), RIGHT - 125, legendY, 9, false, false);
+                }
+            }
+        }
+
+        /** About five round numbers between min and max. */
+        private static List<Double> ticks(final double min, final double max) {
+            final double rough = (max - min) / 5;
+            final double magnitude = Math.pow(10, Math.floor(Math.log10(rough)));
+            final double residual = rough / magnitude;
+            final double step = magnitude * (residual > 5 ? 10 : residual > 2 ? 5 : residual > 1 ? 2 : 1);
+            final List<Double> ticks = new ArrayList<>();
+            for (double tick = Math.ceil(min / step) * step; tick <= max + step * 1e-9; tick += step) {
+                ticks.add(tick);
+            }
+            return ticks;
+        }
+
+        private static String format(final double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.format(Locale.US, "%d", (long) value);
+            return String.format(Locale.US, "%.3g", value);
+        }
+    }
+
+    /** Drawing operations, in points from the bottom left of the page. */
+    private interface Canvas {
+        void setColor(Color color, double lineWidth);
+        void polyline(double[] xs, double[] ys);
+        /** Draws text with its baseline at y, centered on x or, if not centered, ending at x (for vertical text, centered on y). */
+        void text(String text, double x, double y, double size, boolean centered, boolean vertical);
+    }
+
+    /** Writes a single page PDF with the standard Helvetica font, which needs nothing embedded. */
+    private static final class PdfCanvas implements Canvas {
+        private final StringBuilder content = new StringBuilder();
+
+        @Override
+        public void setColor(final Color color, final double lineWidth) {
+            content.append(String.format(Locale.US, "%.3f %.3f %.3f RG %.3f %.3f %.3f rg %.2f w\n",
+                    color.getRed() / 255.0, color.getGreen() / 255.0, color.getBlue() / 255.0,
+                    color.getRed() / 255.0, color.getGreen() / 255.0, color.getBlue() / 255.0, lineWidth));
+        }
+
+        @Override
+        public void polyline(final double[] xs, final double[] ys) {
+            if (xs.length == 0) return;
+            content.append(String.format(Locale.US, "%.2f %.2f m\n", xs[0], ys[0]));
+            for (int i = 1; i < xs.length; ++i) {
+                content.append(String.format(Locale.US, "%.2f %.2f l\n", xs[i], ys[i]));
+            }
+            content.append("S\n");
+        }
+
+        @Override
+        public void text(final String text, final double x, final double y, final double size, final boolean centered, final boolean vertical) {
+            // Helvetica averages about half an em per character, which is close enough to place labels
+            final double width = text.length() * size * 0.5;
+            final double offset = centered ? width / 2 : width;
+            final StringBuilder escaped = new StringBuilder();
+            for (final char c : text.toCharArray()) {
+                if (c == '(' || c == ')' || c == '\\') escaped.append('\\');
+                escaped.append(c < 128 ? c : '?');
+            }
+            final String matrix = vertical ? String.format(Locale.US, "0 1 -1 0 %.2f %.2f", x, y - offset)
+                                           : String.format(Locale.US, "1 0 0 1 %.2f %.2f", x - offset, y);
+            content.append(String.format(Locale.US, "0 g BT /F1 %.1f Tf %s Tm (%s) Tj ET\n", size, matrix, escaped));
+        }
+
+        void write(final OutputStream out) throws IOException {
+            final byte[] stream = content.toString().getBytes(StandardCharsets.US_ASCII);
+            final String[] objects = {
+                    "<< /Type /Catalog /Pages 2 0 R >>",
+                    "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                    "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + (int) PAGE_SIZE + " " + (int) PAGE_SIZE + "] " +
+                            "/Contents 4 0 R /Resources << /Font << /F1 5 0 R >> >> >>",
+                    null, // the content stream
+                    "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"
+            };
+
+            final ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+            final long[] offsets = new long[objects.length];
+            pdf.write("%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < objects.length; ++i) {
+                offsets[i] = pdf.size();
+                pdf.write(((i + 1) + " 0 obj\n").getBytes(StandardCharsets.US_ASCII));
+                if (objects[i] != null) {
+                    pdf.write(objects[i].getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    pdf.write(("<< /Length " + stream.length + " >>\nstream\n").getBytes(StandardCharsets.US_ASCII));
+                    pdf.write(stream);
+                    pdf.write("\nendstream".getBytes(StandardCharsets.US_ASCII));
+                }
+                pdf.write("\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            final long xref = pdf.size();
+            final StringBuilder trailer = new StringBuilder();
+            trailer.append("xref\n0 ").append(objects.length + 1).append("\n0000000000 65535 f \n");
+            for (final long offset : offsets) {
+                trailer.append(String.format(Locale.US, "%010d 00000 n \n", offset));
+            }
+            trailer.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                    .append(xref).append("\n%%EOF\n");
+            pdf.write(trailer.toString().getBytes(StandardCharsets.US_ASCII));
+            pdf.writeTo(out);
+        }
+    }
+
+    /** Draws into an image with Java2D, flipping y so that the origin is at the bottom left. */
+    private static final class PngCanvas implements Canvas {
+        private static final double SCALE = 2; // 144 dpi
+        private final BufferedImage image = new BufferedImage((int) (PAGE_SIZE * SCALE), (int) (PAGE_SIZE * SCALE), BufferedImage.TYPE_INT_RGB);
+        private final Graphics2D graphics = image.createGraphics();
+
+        PngCanvas() {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        }
+
+        @Override
+        public void setColor(final Color color, final double lineWidth) {
+            graphics.setColor(color);
+            graphics.setStroke(new BasicStroke((float) (lineWidth * SCALE)));
+        }
+
+        @Override
+        public void polyline(final double[] xs, final double[] ys) {
+            if (xs.length == 0) return;
+            if (xs.length == 1) {
+                graphics.draw(new Line2D.Double(x(xs[0]), y(ys[0]), x(xs[0]), y(ys[0])));
+                return;
+            }
+            final Path2D.Double path = new Path2D.Double();
+            path.moveTo(x(xs[0]), y(ys[0]));
+            for (int i = 1; i < xs.length; ++i) path.lineTo(x(xs[i]), y(ys[i]));
+            graphics.draw(path);
+        }
+
+        @Override
+        public void text(final String text, final double x, final double y, final double size, final boolean centered, final boolean vertical) {
+            final Color color = graphics.getColor();
+            graphics.setColor(Color.BLACK);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, (int) Math.round(size * SCALE)));
+            final double width = graphics.getFontMetrics().stringWidth(text);
+            final double offset = centered ? width / 2 : width;
+            final AffineTransform saved = graphics.getTransform();
+            if (vertical) {
+                graphics.rotate(-Math.PI / 2, x(x), y(y));
+                graphics.drawString(text, (float) (x(x) - offset), (float) y(y));
+            } else {
+                graphics.drawString(text, (float) (x(x) - offset), (float) y(y));
+            }
+            graphics.setTransform(saved);
+            graphics.setColor(color);
+        }
+
+        private double x(final double x) { return x * SCALE; }
+        private double y(final double y) { return (PAGE_SIZE - y) * SCALE; }
+
+        void write(final OutputStream out) throws IOException {
+            graphics.dispose();
+            ImageIO.write(image, "png", out);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import picard.PicardException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, the block compressed format of BAM files, compressing blocks on a pool of threads.  Bytes are gathered
+ * into blocks of {@link BlockCompressedStreamConstants#DEFAULT_UNCOMPRESSED_BLOCK_SIZE} on the writing thread, each
+ * full block is deflated by a worker, and the compressed blocks are written to the underlying stream in order, so the
+ * output can be read by BlockCompressedInputStream like that of BlockCompressedOutputStream.  close() writes the
+ * empty terminator block.
+ *
+ * The workers are either a pool of the stream's own or a {@link BlockCompressorPool} shared with other streams.  Only
+ * a limited number of blocks, by default two per thread, are compressed or waiting to be written at once, so a writer
+ * that outruns the workers blocks.  Not thread safe: a single thread must do all the writing.
+ *
+ * If {@link #trackBlockAddresses()} is called before anything is written, positions in the uncompressed data can be
+ * turned into BGZF virtual file pointers, as a BAM indexer needs, once the blocks holding them have been written.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final BlockCompressorPool pool;
+    // Whether the pool was created by, and so is closed with, this stream.
+    private final boolean ownsPool;
+    private final int maxBlocksInFlight;
+    private final Deque<BlockInFlight> blocksInFlight = new ArrayDeque<>();
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int bufferSize = 0;
+    private boolean closed = false;
+    private long uncompressedBytes = 0;
+    private long compressedBytes = 0;
+    // The uncompressed bytes in the blocks written to out so far
+    private long writtenUncompressedBytes = 0;
+    // Written blocks that may still hold positions asked for by getVirtualFilePointer(), or null if not tracking
+    private Deque<WrittenBlock> writtenBlocks = null;
+    private final AtomicLong compressionNanos = new AtomicLong(0);
+
+    /**
+     * @param out              the stream to which the compressed blocks are written; closed by close()
+     * @param compressionLevel the deflate level, 0 to 9
+     * @param threads          number of compressing threads, at least one
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel, final int threads) {
+        this(out, compressionLevel, new BlockCompressorPool(threads), 2 * threads, true);
+    }
+
+    /**
+     * @param out               the stream to which the compressed blocks are written; closed by close()
+     * @param compressionLevel  the deflate level, 0 to 9
+     * @param pool              the threads to compress on, which may be shared with other streams; not closed by close()
+     * @param maxBlocksInFlight the number of this stream's blocks that may be compressed or waiting to be written at once
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel,
+                                               final BlockCompressorPool pool, final int maxBlocksInFlight) {
+        this(out, compressionLevel, pool, maxBlocksInFlight, false);
+    }
+
+    private ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel,
+                                                final BlockCompressorPool pool, final int maxBlocksInFlight,
+                                                final boolean ownsPool) {
+        if (maxBlocksInFlight < 1) throw new IllegalArgumentException("maxBlocksInFlight must be at least 1: " + maxBlocksInFlight);
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.pool = pool;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.ownsPool = ownsPool;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        assertOpen();
+        buffer[bufferSize++] = (byte) b;
+        if (bufferSize == buffer.length) submitBlock();
+    }
+
+    @Override
+    public void write(final byte[] bytes, int offset, int length) throws IOException {
+        assertOpen();
+        while (length > 0) {
+            final int n = Math.min(length, buffer.length - bufferSize);
+            System.arraycopy(bytes, offset, buffer, bufferSize, n);
+            bufferSize += n;
+            offset += n;
+            length -= n;
+            if (bufferSize == buffer.length) submitBlock();
+        }
+    }
+
+    /** Compresses whatever is buffered, even if it does not fill a block, and writes out every compressed block. */
+    @Override
+    public void flush() throws IOException {
+        assertOpen();
+        if (bufferSize > 0) submitBlock();
+        while (!blocksInFlight.isEmpty()) writeOldestBlock();
+        out.flush();
+    }
+
+    /** Writes out everything, then the terminator block, and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            out.close();
+        } finally {
+            closed = true;
+            if (ownsPool) pool.close();
+        }
+    }
+
+    /** @return the number of bytes handed to the compressors so far, not counting the terminator block */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /** @return the number of compressed bytes written so far, not counting the terminator block */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /** @return the position in the uncompressed data at which the next byte written will land */
+    public long getPosition() {
+        return uncompressedBytes + bufferSize;
+    }
+
+    /**
+     * Keeps the address of each block written from now on, so that {@link #getVirtualFilePointer(long)} can be used.
+     * Must be called before anything is written.
+     */
+    public void trackBlockAddresses() {
+        if (getPosition() > 0) throw new IllegalStateException("Block addresses must be tracked from the start of the stream.");
+        if (writtenBlocks == null) writtenBlocks = new ArrayDeque<>();
+    }
+
+    /**
+     * Maps a position in the uncompressed data to a BGZF virtual file pointer.  Positions must be asked for in
+     * increasing order, as the blocks before the last position asked for are forgotten.
+     *
+     * @param position a position as returned by {@link #getPosition()}
+     * @return the virtual file pointer, or -1 if the block holding the position has not been written yet
+     */
+    public long getVirtualFilePointer(final long position) {
+        if (writtenBlocks == null) throw new IllegalStateException("Block addresses are not being tracked.");
+        if (position > writtenUncompressedBytes) return -1;
+        if (position == writtenUncompressedBytes) {
+            // The start of the next block to be written, which is where BlockCompressedOutputStream puts it too
+            writtenBlocks.clear();
+            return compressedBytes << 16;
+        }
+        while (writtenBlocks.peekFirst().uncompressedEnd <= position) writtenBlocks.removeFirst();
+        final WrittenBlock block = writtenBlocks.peekFirst();
+        return (block.address << 16) | (position - block.uncompressedStart);
+    }
+
+    /** @return the time spent compressing this stream's blocks so far, summed over the compressing threads */
+    public long getCompressionTimeNanos() {
+        return compressionNanos.get();
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+    }
+
+    /** Hands the buffered bytes to a worker and writes any blocks that are ready, in order. */
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int length = bufferSize;
+        blocksInFlight.addLast(new BlockInFlight(pool.submit(() -> {
+            final long start = System.nanoTime();
+            final byte[] compressed = compress(block, length, compressionLevel);
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            return compressed;
+        }), length));
+        uncompressedBytes += length;
+        buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        bufferSize = 0;
+
+        while (blocksInFlight.size() >= maxBlocksInFlight || (!blocksInFlight.isEmpty() && blocksInFlight.peekFirst().compressed.isDone())) {
+            writeOldestBlock();
+        }
+    }
+
+    private void writeOldestBlock() throws IOException {
+        final BlockInFlight block = blocksInFlight.removeFirst();
+        final byte[] compressed;
+        try {
+            compressed = block.compressed.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for block compression.", ie);
+        } catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new PicardException("Error compressing block.", cause);
+        }
+        out.write(compressed);
+        if (writtenBlocks != null) {
+            writtenBlocks.addLast(new WrittenBlock(compressedBytes, writtenUncompressedBytes, writtenUncompressedBytes + block.uncompressedLength));
+        }
+        compressedBytes += compressed.length;
+        writtenUncompressedBytes += block.uncompressedLength;
+    }
+
+    /** @return a complete BGZF block holding the first length bytes of data */
+    static byte[] compress(final byte[] data, final int length, final int compressionLevel) {
+        final BlockDeflater deflater = DEFLATERS.get();
+        final byte[] deflated = deflater.deflated;
+        int deflatedLength = deflater.deflate(data, length, compressionLevel);
+        if (deflatedLength < 0) {
+            // Incompressible data can grow; stored blocks of a full buffer always fit
+            deflatedLength = deflater.deflate(data, length, Deflater.NO_COMPRESSION);
+            if (deflatedLength < 0) throw new IllegalStateException("Block does not fit even without compression.");
+        }
+
+        final CRC32 crc = deflater.crc;
+        crc.reset();
+        crc.update(data, 0, length);
+
+        final int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        final int blockLength = headerLength + deflatedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        final byte[] block = new byte[blockLength];
+        final byte[] header = {
+                31, (byte) 139, 8, 4,   // gzip magic, deflate, FEXTRA
+                0, 0, 0, 0, 0, (byte) 255, // mtime, extra flags, unknown OS
+                6, 0,                   // length of the extra field
+                'B', 'C', 2, 0,         // BGZF subfield holding the block length less one
+                (byte) (blockLength - 1), (byte) ((blockLength - 1) >> 8)
+        };
+        System.arraycopy(header, 0, block, 0, headerLength);
+        System.arraycopy(deflated, 0, block, headerLength, deflatedLength);
+        writeInt(block, headerLength + deflatedLength, (int) crc.getValue());
+        writeInt(block, headerLength + deflatedLength + 4, length);
+        return block;
+    }
+
+    /**
+     * The Deflaters and scratch space of one compressing thread, kept for the life of the thread rather than created
+     * for every block.
+     */
+    private static class BlockDeflater {
+        // Indexed by compression level + 1, as Deflater.DEFAULT_COMPRESSION is -1
+        private final Deflater[] deflaters = new Deflater[Deflater.BEST_COMPRESSION + 2];
+        private final byte[] deflated = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
+                BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH];
+        private final CRC32 crc = new CRC32();
+
+        /** @return the number of bytes deflated into this.deflated, or -1 if they did not fit */
+        private int deflate(final byte[] data, final int length, final int compressionLevel) {
+            Deflater deflater = deflaters[compressionLevel + 1];
+            if (deflater == null) {
+                deflater = new Deflater(compressionLevel, true);
+                deflaters[compressionLevel + 1] = deflater;
+            } else {
+                deflater.reset();
+            }
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            final int deflatedLength = deflater.deflate(deflated, 0, deflated.length);
+            return deflater.finished() ? deflatedLength : -1;
+        }
+    }
+
+    private static final ThreadLocal<BlockDeflater> DEFLATERS = ThreadLocal.withInitial(BlockDeflater::new);
+
+    private static class BlockInFlight {
+        private final Future<byte[]> compressed;
+        private final int uncompressedLength;
+
+        private BlockInFlight(final Future<byte[]> compressed, final int uncompressedLength) {
+            this.compressed = compressed;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    private static class WrittenBlock {
+        private final long address;
+        private final long uncompressedStart;
+        private final long uncompressedEnd;
+
+        private WrittenBlock(final long address, final long uncompressedStart, final long uncompressedEnd) {
+            this.address = address;
+            this.uncompressedStart = uncompressedStart;
+            this.uncompressedEnd = uncompressedEnd;
+        }
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -38,13 +38,24 @@ import java.util.Arrays;
 
 /**
  * Util class for executing R scripts.
+ *
+ * When asked for the {@link ChartRenderer#JAVA} renderer, classpath scripts whose charts {@link JavaChartRenderer}
+ * can draw are not run; the chart is drawn in Java instead, so that R need not be installed.
  * 
  * @author Doug Voet (dvoet at broadinstitute dot org)
  */
 public class RExecutor {
     private static final Log LOG = Log.getInstance(RExecutor.class);
     private static final String R_EXE = "Rscript";
-    
+
+    /** How the charts of classpath R scripts are drawn. */
+    public enum ChartRenderer {
+        /** Run the R script. */
+        R,
+        /** Draw the chart in Java if {@link JavaChartRenderer} can, otherwise run the R script. */
+        JAVA
+    }
+
     /**
      * Executes the given R script that is stored in a file on the classpath. The script file
      * is read from the classpath and written to a temp file then executed by a call to Rscript.
@@ -55,9 +66,28 @@ public class RExecutor {
      * @return the return code of the R process
      */
     public static int executeFromClasspath(final String rScriptName, final String... arguments) {
-        final File scriptFile = writeScriptFile(rScriptName);
-        final int returnCode = executeFromFile(scriptFile, arguments);
-        htsjdk.samtools.util.IOUtil.deleteFiles(scriptFile);
+        return executeFromClasspath(ChartRenderer.R, rScriptName, arguments);
+    }
+
+    /**
+     * As {@link #executeFromClasspath(String, String...)}, but with the JAVA renderer the chart is drawn in Java
+     * when JavaChartRenderer knows the script.
+     *
+     * @return the return code of the R process, or 0 if the chart was drawn in Java
+     */
+    public static int executeFromClasspath(final ChartRenderer renderer, final String rScriptName, final String... arguments) {
+        final long startTime = System.currentTimeMillis();
+        final int returnCode;
+        if (renderer == ChartRenderer.JAVA && JavaChartRenderer.canRender(rScriptName)) {
+            JavaChartRenderer.render(rScriptName, arguments);
+            returnCode = 0;
+        } else {
+            final File scriptFile = writeScriptFile(rScriptName);
+            returnCode = executeFromFile(scriptFile, arguments);
+            htsjdk.samtools.util.IOUtil.deleteFiles(scriptFile);
+        }
+        LOG.info(String.format("Chart %s took %d ms (return code %d)", rScriptName,
+                System.currentTimeMillis() - startTime, returnCode));
         return returnCode;
     }
 
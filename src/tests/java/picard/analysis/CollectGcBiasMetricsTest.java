@@ -18,7 +18,10 @@ import picard.sam.SortSam;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -257,13 +260,41 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
         return sortedSam;
     }
 
+    /////////////////////////////////////////////////////////////////////////////
+    // Draws the chart of every accumulation level in Java, without R.
+    /////////////////////////////////////////////////////////////////////////////
+    @Test
+    public void runGcBiasJavaChartTest() throws IOException {
+        final File outfile = File.createTempFile("test", ".gc_bias.summary_metrics");
+        final File detailsOutfile = File.createTempFile("test", ".gc_bias.detail_metrics");
+        final File pdf = File.createTempFile("test", ".pdf");
+        outfile.deleteOnExit();
+        detailsOutfile.deleteOnExit();
+        pdf.deleteOnExit();
+
+        runGcBias(tempSamFileChrM_O, outfile, detailsOutfile, pdf, "CHART_RENDERER=JAVA");
+
+        final String chart = new String(Files.readAllBytes(pdf.toPath()), StandardCharsets.US_ASCII);
+        Assert.assertTrue(chart.startsWith("%PDF-"));
+        // The legend names every accumulation level
+        Assert.assertTrue(chart.contains("(All Reads)"));
+        for (final String unit : new String[]{sample1, sample2, readGroupId1, readGroupId2, readGroupId3}) {
+            Assert.assertTrue(chart.contains("(" + unit + ")"), unit);
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     // Runs CollectGcBias with input Sam file and outputs details and summary files for truth assertion.
     /////////////////////////////////////////////////////////////////////////////
     public void runGcBias (final File input, final File outfile, final File detailsOutfile) throws IOException {
-        final String referenceFile = "testdata/picard/metrics/chrMNO.reference.fasta";
         final File pdf = File.createTempFile("test", ".pdf");
         pdf.deleteOnExit();
+        runGcBias(input, outfile, detailsOutfile, pdf);
+    }
+
+    public void runGcBias (final File input, final File outfile, final File detailsOutfile, final File pdf,
+                           final String... extraArgs) throws IOException {
+        final String referenceFile = "testdata/picard/metrics/chrMNO.reference.fasta";
 
         final int windowSize = 100;
         final double minGenFraction = 1.0E-5;
@@ -284,7 +315,9 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
                 "LEVEL=READ_GROUP",
                 "ASSUME_SORTED=" + assumeSorted
         };
-        Assert.assertEquals(runPicardCommandLine(args), 0);
+        final String[] allArgs = Arrays.copyOf(args, args.length + extraArgs.length);
+        System.arraycopy(extraArgs, 0, allArgs, args.length, extraArgs.length);
+        Assert.assertEquals(runPicardCommandLine(allArgs), 0);
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -1,6 +1,5 @@
 package picard.analysis;
 
-import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -10,9 +9,6 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 
-import static org.testng.Assert.fail;
-import static picard.analysis.SinglePassSamProgram.POISON_PILL;
-import static picard.analysis.SinglePassSamProgram.POISON_PILL_TAG;
 
 /**
  * Created by student on 6/30/16.
@@ -104,22 +100,6 @@ public class CollectInsertSizeMetricsTestOUR  extends CommandLineProgramTest {
         System.out.print(finalValue + "\t");
     }
 
-    @Test
-    public void testPoisonPill() throws Exception {
-        SAMRecord record = POISON_PILL;
-
-        if (!record.getReadPairedFlag() ||
-                record.getReadUnmappedFlag() ||
-                record.getMateUnmappedFlag() ||
-                record.getFirstOfPairFlag() ||
-                record.isSecondaryOrSupplementary() ||
-                (record.getDuplicateReadFlag()) ||
-                record.getInferredInsertSize() == 0 && record.getAttribute(POISON_PILL_TAG) == null) {
-            fail();
-        }
-        System.out.println(record.getAttribute(POISON_PILL_TAG));
-    }
-
     @Test
     public void testBigBamFromTheNet() throws IOException {
 
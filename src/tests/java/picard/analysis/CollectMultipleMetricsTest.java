@@ -11,6 +11,7 @@ import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
@@ -20,6 +21,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -38,8 +43,13 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
     }
 
 
-    @Test
-    public void testAlignmentSummaryViaMultipleMetrics() throws IOException {
+    @DataProvider(name = "threadCounts")
+    public Object[][] threadCounts() {
+        return new Object[][] {{1}, {2}, {4}};
+    }
+
+    @Test(dataProvider = "threadCounts")
+    public void testAlignmentSummaryViaMultipleMetrics(final int threads) throws IOException {
         final File input = new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam");
         final File reference = new File(TEST_DATA_DIR, "summary_alignment_stats_test.fasta");
         final File outfile   = File.createTempFile("alignmentMetrics", "");
@@ -51,7 +61,8 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
                 "METRIC_ACCUMULATION_LEVEL="+MetricAccumulationLevel.ALL_READS.name(),
                 "PROGRAM=null",
                 "PROGRAM="+CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
-                "PROGRAM="+CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name()
+                "PROGRAM="+CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name(),
+                "THREADS=" + threads
         };
         Assert.assertEquals(runPicardCommandLine(args), 0);
 
@@ -101,6 +112,70 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @Test(dataProvider = "threadCounts")
+    public void testBatchMatchesSingleInputs(final int concurrentInputs) throws IOException {
+        final File[] inputs = {
+                new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam"),
+                new File(TEST_DATA_DIR, "insert_size_metrics_test.sam"),
+                new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam")
+        };
+        final File reference = new File(TEST_DATA_DIR, "summary_alignment_stats_test.fasta");
+        final String[] commonArgs = {
+                "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                "PROGRAM=null",
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name()
+        };
+
+        final File manifest = File.createTempFile("manifest", ".txt");
+        manifest.deleteOnExit();
+        final File batchMetrics = File.createTempFile("batch", ".batch_metrics");
+        batchMetrics.deleteOnExit();
+        final File[] singleOutputs = new File[inputs.length];
+        final File[] batchOutputs = new File[inputs.length];
+        try (final PrintWriter writer = new PrintWriter(manifest)) {
+            writer.println("INPUT\tOUTPUT");
+            for (int i = 0; i < inputs.length; ++i) {
+                singleOutputs[i] = File.createTempFile("single", "");
+                batchOutputs[i] = File.createTempFile("batch", "");
+                singleOutputs[i].deleteOnExit();
+                batchOutputs[i].deleteOnExit();
+                writer.println(inputs[i].getAbsolutePath() + "\t" + batchOutputs[i].getAbsolutePath());
+
+                final List<String> args = new ArrayList<>(Arrays.asList(commonArgs));
+                args.add("INPUT=" + inputs[i].getAbsolutePath());
+                args.add("OUTPUT=" + singleOutputs[i].getAbsolutePath());
+                Assert.assertEquals(runPicardCommandLine(args), 0);
+            }
+        }
+
+        final List<String> args = new ArrayList<>(Arrays.asList(commonArgs));
+        args.add("INPUT_MANIFEST=" + manifest.getAbsolutePath());
+        args.add("CONCURRENT_INPUTS=" + concurrentInputs);
+        args.add("BATCH_METRICS=" + batchMetrics.getAbsolutePath());
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        for (int i = 0; i < inputs.length; ++i) {
+            for (final String extension : new String[] {".alignment_summary_metrics", ".insert_size_metrics"}) {
+                final MetricsFile<?, ?> expected = new MetricsFile<>();
+                expected.read(new FileReader(singleOutputs[i] + extension));
+                final MetricsFile<?, ?> actual = new MetricsFile<>();
+                actual.read(new FileReader(batchOutputs[i] + extension));
+                Assert.assertEquals(actual.getMetrics(), expected.getMetrics(), inputs[i] + extension);
+            }
+            new File(singleOutputs[i] + ".insert_size_histogram.pdf").deleteOnExit();
+            new File(batchOutputs[i] + ".insert_size_histogram.pdf").deleteOnExit();
+        }
+
+        final MetricsFile<CollectMultipleMetrics.BatchInputMetrics, Comparable<?>> batch = new MetricsFile<>();
+        batch.read(new FileReader(batchMetrics));
+        Assert.assertEquals(batch.getMetrics().size(), inputs.length);
+        for (int i = 0; i < inputs.length; ++i) {
+            Assert.assertEquals(batch.getMetrics().get(i).INPUT, inputs[i].getAbsolutePath());
+            Assert.assertTrue(batch.getMetrics().get(i).READS > 0);
+        }
+    }
+
     @Test
     public void testInsertSize() throws IOException {
         final File input = new File(TEST_DATA_DIR, "insert_size_metrics_test.sam");
@@ -7,7 +7,11 @@ import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -17,7 +21,12 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
 
 /**
  * Tests for methods in CollectWgsMetrics
@@ -162,16 +171,135 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         final String[] args = new String[]{
                 "INPUT=" + tempSamFileUnsorted.getAbsolutePath(),
                 "OUTPUT=" + tempSamFile.getAbsolutePath(),
-                "SORT_ORDER=coordinate"
+                "SORT_ORDER=coordinate",
+                "CREATE_INDEX=true"
         };
 
         sorter.instanceMain(args);
+        new File(tempSamFile.getAbsolutePath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
 
         //create output files for tests
         outfile = File.createTempFile("testWgsMetrics", ".txt");
         outfile.deleteOnExit();
     }
 
+    @DataProvider(name = "shardedDataProvider")
+    public Object[][] shardedDataProvider() {
+        return new Object[][] {
+                {2, 100},
+                {3, 1000},
+                {4, 0}
+        };
+    }
+
+    @Test(dataProvider = "shardedDataProvider")
+    public void testShardedMatchesSerial(final int threads, final int shardSize) throws IOException {
+        final String referenceFile = "testdata/picard/quality/chrM.reference.fasta";
+        final File serialOut = File.createTempFile("testWgsMetrics.serial", ".txt");
+        final File shardedOut = File.createTempFile("testWgsMetrics.sharded", ".txt");
+        serialOut.deleteOnExit();
+        shardedOut.deleteOnExit();
+
+        final String[] args = new String[] {
+                "INPUT="  + tempSamFile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + referenceFile,
+                "INCLUDE_BQ_HISTOGRAM=true",
+                "SAMPLE_SIZE=1000"
+        };
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + serialOut.getAbsolutePath())), 0);
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + shardedOut.getAbsolutePath(),
+                "THREADS=" + threads, "SHARD_SIZE=" + shardSize)), 0);
+
+        // Everything but the header (which holds the command line and date) must be identical
+        Assert.assertEquals(readNonHeaderLines(shardedOut), readNonHeaderLines(serialOut));
+    }
+
+    @DataProvider(name = "shardedIntervalsDataProvider")
+    public Object[][] shardedIntervalsDataProvider() {
+        return new Object[][] {
+                {"LOCUS_ITERATOR", 500},
+                {"STREAMING", 500},
+                {"LOCUS_ITERATOR", 0}
+        };
+    }
+
+    /** Many small intervals, and one longer than SHARD_SIZE, are grouped into shards without changing the output. */
+    @Test(dataProvider = "shardedIntervalsDataProvider")
+    public void testShardedIntervalsMatchSerial(final String coverageEngine, final int shardSize) throws IOException {
+        final String referenceFile = "testdata/picard/quality/chrM.reference.fasta";
+        final File intervalsFile = File.createTempFile("testWgsMetrics", ".interval_list");
+        final File serialOut = File.createTempFile("testWgsMetrics.serial", ".txt");
+        final File shardedOut = File.createTempFile("testWgsMetrics.sharded", ".txt");
+        intervalsFile.deleteOnExit();
+        serialOut.deleteOnExit();
+        shardedOut.deleteOnExit();
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(tempSamFile);
+        final IntervalList intervals = new IntervalList(reader.getFileHeader());
+        reader.close();
+        for (int start = 1; start < 12000; start += 150) {
+            intervals.add(new Interval("chrM", start, start + 70));
+        }
+        intervals.add(new Interval("chrM", 12100, 15000));
+        intervals.write(intervalsFile);
+
+        final String[] args = new String[] {
+                "INPUT="  + tempSamFile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + referenceFile,
+                "INTERVALS=" + intervalsFile.getAbsolutePath(),
+                "INCLUDE_BQ_HISTOGRAM=true",
+                "SAMPLE_SIZE=1000"
+        };
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + serialOut.getAbsolutePath())), 0);
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + shardedOut.getAbsolutePath(),
+                "COVERAGE_ENGINE=" + coverageEngine, "THREADS=3", "SHARD_SIZE=" + shardSize)), 0);
+
+        Assert.assertEquals(readNonHeaderLines(shardedOut), readNonHeaderLines(serialOut));
+    }
+
+    @DataProvider(name = "streamingDataProvider")
+    public Object[][] streamingDataProvider() {
+        return new Object[][] {
+                {1, 0},
+                {3, 100},
+                {1, 5}
+        };
+    }
+
+    @Test(dataProvider = "streamingDataProvider")
+    public void testStreamingMatchesLocusIterator(final int threads, final int coverageCap) throws IOException {
+        final String referenceFile = "testdata/picard/quality/chrM.reference.fasta";
+        final File locusIteratorOut = File.createTempFile("testWgsMetrics.locusIterator", ".txt");
+        final File streamingOut = File.createTempFile("testWgsMetrics.streaming", ".txt");
+        locusIteratorOut.deleteOnExit();
+        streamingOut.deleteOnExit();
+
+        final List<String> argList = new ArrayList<>(Arrays.asList(
+                "INPUT="  + tempSamFile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + referenceFile,
+                "INCLUDE_BQ_HISTOGRAM=true",
+                "SAMPLE_SIZE=1000"));
+        if (coverageCap > 0) argList.add("COVERAGE_CAP=" + coverageCap);
+        final String[] args = argList.toArray(new String[argList.size()]);
+
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + locusIteratorOut.getAbsolutePath())), 0);
+        Assert.assertEquals(runPicardCommandLine(appendArgs(args, "OUTPUT=" + streamingOut.getAbsolutePath(),
+                "COVERAGE_ENGINE=STREAMING", "THREADS=" + threads, "SHARD_SIZE=1000")), 0);
+
+        Assert.assertEquals(readNonHeaderLines(streamingOut), readNonHeaderLines(locusIteratorOut));
+    }
+
+    private static String[] appendArgs(final String[] args, final String... more) {
+        final String[] all = new String[args.length + more.length];
+        System.arraycopy(args, 0, all, 0, args.length);
+        System.arraycopy(more, 0, all, args.length, more.length);
+        return all;
+    }
+
+    private static List<String> readNonHeaderLines(final File metricsFile) throws IOException {
+        return Files.readAllLines(metricsFile.toPath()).stream().filter(line -> !line.startsWith("#")).collect(Collectors.toList());
+    }
+
     @Test
     public void testLargeIntervals() throws IOException {
         final File input = new File(TEST_DIR, "forMetrics.sam");
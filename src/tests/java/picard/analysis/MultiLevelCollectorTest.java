@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static htsjdk.samtools.util.CollectionUtil.makeSet;
 
@@ -65,10 +66,10 @@ public class MultiLevelCollectorTest {
         //The number of times records were accepted by a RecordCountPerUnitCollectors (note since the same
         //samRecord might be aggregated by multiple PerUnit collectors, this may be greater than the number of
         //records in the file
-        private int numProcessed = 0;
+        private final AtomicInteger numProcessed = new AtomicInteger(0);
 
         public int getNumProcessed() {
-            return numProcessed;
+            return numProcessed.get();
         }
 
         private final Map<String, TotalNumberMetric> unitsToMetrics = new HashMap<String, TotalNumberMetric>();
@@ -95,12 +96,13 @@ public class MultiLevelCollectorTest {
                 metric.SAMPLE     = sample;
                 metric.LIBRARY    = library;
                 metric.READ_GROUP = readGroup;
-                unitsToMetrics.put(noneOrStr(sample) + "_" + noneOrStr(library) + "_" + noneOrStr(readGroup), metric);
+                // Per-thread copies are made after the collectors that are reported, so must not replace them
+                unitsToMetrics.putIfAbsent(noneOrStr(sample) + "_" + noneOrStr(library) + "_" + noneOrStr(readGroup), metric);
             }
 
             @Override
             public void acceptRecord(final TestArg args) {
-                numProcessed += 1;
+                numProcessed.incrementAndGet();
                 metric.TALLY += 1;
                 if(metric.SAMPLE != null) {
                     Assert.assertEquals(metric.SAMPLE, args.samRecord.getReadGroup().getSample());
@@ -119,6 +121,16 @@ public class MultiLevelCollectorTest {
                 metric.FINISHED = true;
             }
 
+            @Override
+            public void merge(final PerUnitMetricCollector<TotalNumberMetric, Integer, TestArg> other) {
+                metric.TALLY += ((RecordCountPerUnitCollector) other).metric.TALLY;
+            }
+
+            @Override
+            public boolean isMergeable() {
+                return true;
+            }
+
             @Override
             public void addMetricsToFile(final MetricsFile<TotalNumberMetric, Integer> totalNumberMetricIntegerMetricsFile) {
                 totalNumberMetricIntegerMetricsFile.addMetric(metric);
@@ -155,19 +167,22 @@ public class MultiLevelCollectorTest {
     @DataProvider(name = "variedAccumulationLevels")
     public Object [][] variedAccumulationLevels() {
         return new Object[][] {
-            {makeSet(MetricAccumulationLevel.ALL_READS)},
-            {makeSet(MetricAccumulationLevel.ALL_READS,    MetricAccumulationLevel.SAMPLE)},
-            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY)},
-            {makeSet(MetricAccumulationLevel.READ_GROUP,   MetricAccumulationLevel.LIBRARY)},
-            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP)},
-            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP, MetricAccumulationLevel.ALL_READS)},
+            {makeSet(MetricAccumulationLevel.ALL_READS), 1},
+            {makeSet(MetricAccumulationLevel.ALL_READS,    MetricAccumulationLevel.SAMPLE), 1},
+            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY), 1},
+            {makeSet(MetricAccumulationLevel.READ_GROUP,   MetricAccumulationLevel.LIBRARY), 1},
+            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP), 1},
+            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP, MetricAccumulationLevel.ALL_READS), 1},
+            {makeSet(MetricAccumulationLevel.ALL_READS), 3},
+            {makeSet(MetricAccumulationLevel.SAMPLE,       MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP, MetricAccumulationLevel.ALL_READS), 3},
         };
     }
 
     @Test(dataProvider = "variedAccumulationLevels")
-    public void multilevelCollectorTest(final Set<MetricAccumulationLevel> accumulationLevels) {
+    public void multilevelCollectorTest(final Set<MetricAccumulationLevel> accumulationLevels, final int numThreads) {
         final SamReader in = SamReaderFactory.makeDefault().open(TESTFILE);
         final RecordCountMultiLevelCollector collector = new RecordCountMultiLevelCollector(accumulationLevels, in.getFileHeader().getReadGroups());
+        collector.setNumThreads(numThreads);
 
         for (final SAMRecord rec : in) {
             collector.acceptRecord(rec, null);
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StopWatch;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests ReadNameSet against HashSet, and compares their speed at counting the distinct read names of WGS pileups.
+ */
+public class ReadNameSetTest {
+    private static final Log log = Log.getInstance(ReadNameSetTest.class);
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {{1, 10}, {16, 10}, {4, 1000}, {250, 300}};
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testMatchesHashSet(final int expectedSize, final int namesPerRound) {
+        final Random random = new Random(42);
+        final ReadNameSet set = new ReadNameSet(expectedSize);
+
+        for (int round = 0; round < 20; ++round) {
+            final Set<String> expected = new HashSet<>();
+            set.clear();
+            for (int i = 0; i < namesPerRound; ++i) {
+                // A new String each time so that names are compared by value rather than identity
+                final String name = new String("read:" + random.nextInt(namesPerRound));
+                Assert.assertEquals(set.add(name), expected.add(name), name);
+                Assert.assertEquals(set.size(), expected.size());
+            }
+        }
+    }
+
+    @DataProvider(name = "depths")
+    public Object[][] depths() {
+        return new Object[][] {{30, 2000000}, {1000, 60000}};
+    }
+
+    /**
+     * Counts distinct names over pileups of the given depth, as WgsMetricsCollector.addInfo() does, with a new HashSet
+     * per pileup and with a single ReadNameSet.  Pileups slide along a list of reads, one in ten of which has an
+     * overlapping mate, so that each read name is seen at many loci.
+     */
+    @Test(dataProvider = "depths", groups = "slow")
+    public void benchmarkAgainstHashSet(final int depth, final int loci) {
+        final String[] reads = new String[loci + depth];
+        for (int i = 0; i < reads.length; ++i) {
+            reads[i] = (i % 10 == 1) ? new String(reads[i - 1]) : "H0164ALXX140820:2:1101:" + i + ":" + (i * 7);
+        }
+
+        for (int iteration = 0; iteration < 3; ++iteration) {
+            final StopWatch hashSetWatch = new StopWatch();
+            hashSetWatch.start();
+            long hashSetTotal = 0;
+            for (int locus = 0; locus < loci; ++locus) {
+                final HashSet<String> readNames = new HashSet<>(depth);
+                for (int i = locus; i < locus + depth; ++i) readNames.add(reads[i]);
+                hashSetTotal += readNames.size();
+            }
+            hashSetWatch.stop();
+
+            final StopWatch readNameSetWatch = new StopWatch();
+            readNameSetWatch.start();
+            long readNameSetTotal = 0;
+            final ReadNameSet readNames = new ReadNameSet(depth);
+            for (int locus = 0; locus < loci; ++locus) {
+                readNames.clear();
+                for (int i = locus; i < locus + depth; ++i) readNames.add(reads[i]);
+                readNameSetTotal += readNames.size();
+            }
+            readNameSetWatch.stop();
+
+            Assert.assertEquals(readNameSetTotal, hashSetTotal);
+            log.info(String.format("Depth %d, %d loci: HashSet %d ms, ReadNameSet %d ms",
+                    depth, loci, hashSetWatch.getElapsedTime(), readNameSetWatch.getElapsedTime()));
+        }
+    }
+}
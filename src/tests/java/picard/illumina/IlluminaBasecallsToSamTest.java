@@ -23,12 +23,18 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.LineReader;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TestUtil;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 
@@ -37,6 +43,8 @@ import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -82,6 +90,50 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         IOUtil.assertFilesEqual(outputBam, new File(TEST_DATA_DIR, "nonBarcoded.sam"));
     }
 
+    @DataProvider(name = "unsortedTileParameters")
+    public Object[][] unsortedTileParameters() {
+        return new Object[][]{{1, 1200000}, {3, 1200000}, {3, 1}};
+    }
+
+    /**
+     * Without sorting within tiles the output has the same reads as the sorted output, and each tile's reads are still
+     * written before any of the next tile's.
+     */
+    @Test(dataProvider = "unsortedTileParameters")
+    public void testNonBarcodedWithoutSortingWithinTiles(final int numProcessors, final int maxReadsInRamPerTile) throws Exception {
+        final File outputBam = File.createTempFile("nonBarcodedUnsorted.", ".sam");
+        outputBam.deleteOnExit();
+        final int lane = 1;
+
+        Assert.assertEquals(runPicardCommandLine(new String[]{
+                "BASECALLS_DIR=" + BASECALLS_DIR,
+                "LANE=" + lane,
+                "READ_STRUCTURE=25S8S25T",
+                "OUTPUT=" + outputBam,
+                "RUN_BARCODE=HiMom",
+                "SAMPLE_ALIAS=HiDad",
+                "LIBRARY_NAME=Hello, World",
+                "NUM_PROCESSORS=" + numProcessors,
+                "MAX_READS_IN_RAM_PER_TILE=" + maxReadsInRamPerTile,
+                "SORT_WITHIN_TILES=false"
+        }), 0);
+
+        final List<String> actual = IOUtil.slurpLines(outputBam);
+        final List<String> expected = IOUtil.slurpLines(new File(TEST_DATA_DIR, "nonBarcoded.sam"));
+        Assert.assertEquals(actual.get(0), expected.get(0).replace("SO:queryname", "SO:unsorted"));
+        Assert.assertEquals(actual.get(1), expected.get(1));
+
+        // Tiles are sorted in the expected output, so the tile of each read must match the tile at the same position
+        for (int i = 2; i < expected.size(); ++i) {
+            Assert.assertEquals(actual.get(i).split(":")[2], expected.get(i).split(":")[2], actual.get(i));
+        }
+        final List<String> actualRecords = new ArrayList<String>(actual.subList(2, actual.size()));
+        final List<String> expectedRecords = new ArrayList<String>(expected.subList(2, expected.size()));
+        Collections.sort(actualRecords);
+        Collections.sort(expectedRecords);
+        Assert.assertEquals(actualRecords, expectedRecords);
+    }
+
     @Test
     public void testNonBarcodedWithMolecularIndex() throws Exception {
         final File outputBam = File.createTempFile("nonBarcodedWithMI.", ".sam");
@@ -241,6 +293,12 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         runStandardTest(1, "multiplexedBarcode2.", "barcode.params", 1, "25T8B4M4M17T", BASECALLS_DIR, TEST_DATA_DIR_WITH_4M4M_INDEX);
     }
 
+    @Test
+    public void testMultiplexedWithSharedCompressionThreads() throws Exception {
+        runStandardTest(1, "multiplexedBarcodeBam.", "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                BamFileIoUtils.BAM_FILE_EXTENSION, "COMPRESSION_THREADS=3");
+    }
+
     //Same as testMultiplexed except we use BARCODE_1 instead of BARCODE
     @Test
     public void testMultiplexedWithAlternateBarcodeName() throws Exception {
@@ -283,6 +341,17 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
     private void runStandardTest(final int lane, final String jobName, final String libraryParamsFile,
                                  final int concatNColumnFields, final String readStructure,
                                  final File baseCallsDir, final File testDataDir) throws Exception {
+        runStandardTest(lane, jobName, libraryParamsFile, concatNColumnFields, readStructure, baseCallsDir, testDataDir, ".sam");
+    }
+
+    /**
+     * As above, but writing outputs with the given extension and passing extra arguments.  Outputs that are not SAM
+     * files are compared record by record with the expected SAM files.
+     */
+    private void runStandardTest(final int lane, final String jobName, final String libraryParamsFile,
+                                 final int concatNColumnFields, final String readStructure,
+                                 final File baseCallsDir, final File testDataDir,
+                                 final String outputExtension, final String... extraArgs) throws Exception {
         final File outputDir = File.createTempFile(jobName, ".dir");
         outputDir.delete();
         outputDir.mkdir();
@@ -301,7 +370,7 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
                 break;
             }
             final String[] fields = line.split("\t");
-            final File outputSam = new File(outputDir, StringUtil.join("", Arrays.copyOfRange(fields, 0, concatNColumnFields)) + ".sam");
+            final File outputSam = new File(outputDir, StringUtil.join("", Arrays.copyOfRange(fields, 0, concatNColumnFields)) + outputExtension);
             outputSam.deleteOnExit();
             samFiles.add(outputSam);
             writer.println(line + "\t" + outputSam);
@@ -309,17 +378,38 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         writer.close();
         reader.close();
 
-        Assert.assertEquals(runPicardCommandLine(new String[]{
+        final List<String> args = new ArrayList<String>(Arrays.asList(
                 "BASECALLS_DIR=" + baseCallsDir,
                 "LANE=" + lane,
                 "RUN_BARCODE=HiMom",
                 "READ_STRUCTURE=" + readStructure,
-                "LIBRARY_PARAMS=" + libraryParams
-        }), 0);
+                "LIBRARY_PARAMS=" + libraryParams));
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(args.toArray(new String[args.size()])), 0);
 
         for (final File outputSam : samFiles) {
-            IOUtil.assertFilesEqual(outputSam, new File(testDataDir, outputSam.getName()));
+            final File expectedSam = new File(testDataDir, outputSam.getName().replace(outputExtension, ".sam"));
+            if (outputExtension.equals(".sam")) {
+                IOUtil.assertFilesEqual(outputSam, expectedSam);
+            } else {
+                assertSameRecords(outputSam, expectedSam);
+            }
         }
         TestUtil.recursiveDelete(outputDir);
     }
+
+    private void assertSameRecords(final File actual, final File expected) {
+        final SamReader actualReader = SamReaderFactory.makeDefault().open(actual);
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(expected);
+        Assert.assertEquals(actualReader.getFileHeader().getSortOrder(), expectedReader.getFileHeader().getSortOrder());
+        Assert.assertEquals(actualReader.getFileHeader().getReadGroups(), expectedReader.getFileHeader().getReadGroups());
+        final Iterator<SAMRecord> expectedIterator = expectedReader.iterator();
+        for (final SAMRecord rec : actualReader) {
+            Assert.assertTrue(expectedIterator.hasNext(), rec.getSAMString());
+            Assert.assertEquals(rec.getSAMString(), expectedIterator.next().getSAMString());
+        }
+        Assert.assertFalse(expectedIterator.hasNext());
+        CloserUtil.close(actualReader);
+        CloserUtil.close(expectedReader);
+    }
 }
@@ -30,6 +30,7 @@ import picard.PicardException;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -137,6 +138,68 @@ public class IlluminaDataProviderTest {
                 IlluminaDataType.Barcodes));
     }
 
+    /**
+     * Releasing every cluster reuses one ClusterData throughout, across tiles, and gives the same data as a provider
+     * whose clusters are all new.
+     */
+    @Test
+    public void releasedClustersMatchNewClusters() {
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(BINARY_TD_LOCATION, 1,
+                new ReadStructure("25T8B25T"), bclQualityEvaluationStrategy, getDataTypes(new IlluminaDataType[]{IlluminaDataType.Barcodes}));
+        final IlluminaDataProvider expectedProvider = factory.makeDataProvider();
+        final IlluminaDataProvider releasingProvider = factory.makeDataProvider();
+
+        ClusterData firstCluster = null;
+        int count = 0;
+        while (expectedProvider.hasNext()) {
+            Assert.assertTrue(releasingProvider.hasNext());
+            final ClusterData expected = expectedProvider.next();
+            final ClusterData cluster = releasingProvider.next();
+            if (firstCluster == null) firstCluster = cluster;
+            Assert.assertSame(cluster, firstCluster);
+            compareReadData(cluster, expected, "cluster " + count);
+            releasingProvider.release(cluster);
+            ++count;
+        }
+        Assert.assertFalse(releasingProvider.hasNext());
+        Assert.assertEquals(count, 180);
+        expectedProvider.close();
+        releasingProvider.close();
+    }
+
+    /**
+     * Releasing clusters without their arrays still reuses one ClusterData, but the arrays of earlier clusters are
+     * left as they were, as a converter that hands them on needs.
+     */
+    @Test
+    public void releasedClustersKeepArraysWhenAsked() {
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(BINARY_TD_LOCATION, 1,
+                new ReadStructure("25T8B25T"), bclQualityEvaluationStrategy, getDataTypes(new IlluminaDataType[]{IlluminaDataType.Barcodes}));
+        final IlluminaDataProvider expectedProvider = factory.makeDataProvider();
+        final IlluminaDataProvider releasingProvider = factory.makeDataProvider();
+
+        final List<byte[]> keptBases = new ArrayList<byte[]>();
+        final List<byte[]> keptQualities = new ArrayList<byte[]>();
+        final List<ClusterData> expectedClusters = new ArrayList<ClusterData>();
+        ClusterData firstCluster = null;
+        while (expectedProvider.hasNext()) {
+            final ClusterData cluster = releasingProvider.next();
+            if (firstCluster == null) firstCluster = cluster;
+            Assert.assertSame(cluster, firstCluster);
+            keptBases.add(cluster.getRead(0).getBases());
+            keptQualities.add(cluster.getRead(0).getQualities());
+            expectedClusters.add(expectedProvider.next());
+            releasingProvider.release(cluster, false);
+        }
+        Assert.assertFalse(releasingProvider.hasNext());
+        for (int i = 0; i < expectedClusters.size(); i++) {
+            Assert.assertEquals(keptBases.get(i), expectedClusters.get(i).getRead(0).getBases(), "cluster " + i);
+            Assert.assertEquals(keptQualities.get(i), expectedClusters.get(i).getRead(0).getQualities(), "cluster " + i);
+        }
+        expectedProvider.close();
+        releasingProvider.close();
+    }
+
     @DataProvider(name = "binaryData")
     public Object[][] binaryData() {
         return new Object[][]{
@@ -1,21 +1,37 @@
 package picard.illumina.parser.readers;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StopWatch;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.PicardException;
 import picard.illumina.parser.BclData;
+import picard.illumina.parser.fakers.BclFileFaker;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 public class BclReaderTest {
+    private static final Log log = Log.getInstance(BclReaderTest.class);
 
     public static final File TestDataDir = new File("testdata/picard/illumina/readerTests");
     public static final File PASSING_BCL_FILE = new File(TestDataDir, "bcl_passing.bcl");
@@ -169,4 +185,129 @@ public class BclReaderTest {
         Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get((byte) 1), 25);
         bclQualityEvaluationStrategy.assertMinimumQualities();
     }
+
+    @DataProvider(name = "multipleCycleFiles")
+    public Object[][] multipleCycleFiles() {
+        return new Object[][]{
+                {".bcl", 0, 0L, false},
+                {".bcl", 0, 0L, true},
+                {".bcl.gz", 0, 0L, false},
+                {".bcl.gz", 4, Long.MAX_VALUE, false},
+                {".bcl.gz", 4, Long.MAX_VALUE, true},
+                {".bcl.bgzf", 3, Long.MAX_VALUE, false},
+                // Too little memory to read ahead, so the files are read serially
+                {".bcl.gz", 4, 1L, false}
+        };
+    }
+
+    /**
+     * Reads a tile of several cycles, with more clusters than fit in one block, and checks each cluster against the
+     * documented decoding of its bytes, optionally handing each cluster back to the reader to be reused.
+     */
+    @Test(dataProvider = "multipleCycleFiles")
+    public void readMultipleCyclesAcrossBlocks(final String suffix, final int readAheadThreads, final long readAheadBytes,
+                                               final boolean recycle) throws IOException {
+        final int[] outputLengths = {3, 1, 2};
+        final int cycles = 6;
+        final int numClusters = 2 * BclReader.READ_AHEAD_CLUSTERS_PER_BLOCK + 17;
+        final Random random = new Random(42);
+        final byte[][] bytes = new byte[cycles][numClusters];
+        final List<File> files = new ArrayList<File>();
+        int lowQualityCount = 0;
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            random.nextBytes(bytes[cycle]);
+            for (final byte b : bytes[cycle]) {
+                if (b != 0 && (b & 0xFF) >>> 2 < BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY) ++lowQualityCount;
+            }
+
+            final File file = File.createTempFile("BclReaderTest." + cycle + ".", suffix);
+            file.deleteOnExit();
+            final OutputStream out;
+            if (BclReader.isBlockGzipped(file)) out = new BlockCompressedOutputStream(file);
+            else if (BclReader.isGzipped(file)) out = new GZIPOutputStream(new FileOutputStream(file));
+            else out = new FileOutputStream(file);
+            out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(numClusters).array());
+            out.write(bytes[cycle]);
+            out.close();
+            files.add(file);
+        }
+
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(1);
+        final BclReadAhead readAhead = readAheadThreads > 0 ? new BclReadAhead(readAheadThreads, readAheadBytes) : null;
+        final BclReader reader = new BclReader(files, outputLengths, bclQualityEvaluationStrategy, false, readAhead);
+        int cluster = 0;
+        BclData firstData = null;
+        while (reader.hasNext()) {
+            final BclData data = reader.next();
+            if (firstData == null) firstData = data;
+            Assert.assertEquals(data == firstData, recycle || cluster == 0);
+            int cycle = 0;
+            for (int read = 0; read < outputLengths.length; ++read) {
+                for (int i = 0; i < outputLengths[read]; ++i, ++cycle) {
+                    final int readByte = bytes[cycle][cluster] & 0xFF;
+                    final byte expectedBase = readByte == 0 ? (byte) '.' : (byte) "ACGT".charAt(readByte & 0x3);
+                    final byte expectedQuality = readByte == 0 ? 2 : (byte) Math.max(readByte >>> 2, 1);
+                    Assert.assertEquals(data.bases[read][i], expectedBase, "cluster " + cluster + ", cycle " + cycle);
+                    Assert.assertEquals(data.qualities[read][i], expectedQuality, "cluster " + cluster + ", cycle " + cycle);
+                }
+            }
+            ++cluster;
+            if (recycle) reader.recycle(data);
+        }
+        reader.close();
+        if (readAhead != null) readAhead.close();
+
+        Assert.assertEquals(cluster, numClusters);
+        int loggedLowQualityCount = 0;
+        for (final Integer count : bclQualityEvaluationStrategy.getPoorQualityFrequencies().values()) loggedLowQualityCount += count;
+        Assert.assertEquals(loggedLowQualityCount, lowQualityCount);
+    }
+
+    /**
+     * Measures the bytes allocated and the time taken to read fake tiles, with a new BclData for each cluster and with
+     * each cluster handed back to the reader to be reused.
+     */
+    @Test(groups = "slow")
+    public void benchmarkRecycling() throws IOException {
+        final int[] outputLengths = {101, 8, 8, 101};
+        final int numClusters = 200000;
+        final List<File> files = new ArrayList<File>();
+        for (int cycle = 0; cycle < 218; ++cycle) {
+            final File file = File.createTempFile("BclReaderTest." + cycle + ".", ".bcl");
+            file.deleteOnExit();
+            new BclFileFaker().fakeFile(file, numClusters);
+            files.add(file);
+        }
+
+        for (int iteration = 0; iteration < 3; ++iteration) {
+            for (final boolean recycle : new boolean[]{false, true}) {
+                final long allocatedBefore = getAllocatedBytes();
+                final StopWatch watch = new StopWatch();
+                watch.start();
+                final BclReader reader = new BclReader(files, outputLengths, new BclQualityEvaluationStrategy(1), false);
+                int count = 0;
+                while (reader.hasNext()) {
+                    final BclData data = reader.next();
+                    ++count;
+                    if (recycle) reader.recycle(data);
+                }
+                reader.close();
+                watch.stop();
+
+                Assert.assertEquals(count, numClusters);
+                log.info(String.format("%s: %d clusters in %d ms, %d MB allocated",
+                        recycle ? "Recycled BclData" : "New BclData per cluster", count, watch.getElapsedTime(),
+                        (getAllocatedBytes() - allocatedBefore) >> 20));
+            }
+        }
+    }
+
+    /** @return the number of bytes allocated by this thread so far, or 0 if the JVM does not measure it */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
 }
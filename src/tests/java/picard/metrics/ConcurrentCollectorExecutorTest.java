@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.metrics;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that ConcurrentCollectorExecutor hands every record to exactly one partial, or to every partial in order when
+ * broadcasting, and propagates worker errors.
+ */
+public class ConcurrentCollectorExecutorTest {
+
+    /** Counts records and sums their alignment starts; the partial is a two element array. */
+    private static class CountingCollector implements ConcurrentCollector<long[]> {
+        long count = 0;
+        long sumOfStarts = 0;
+        int partialsMade = 0;
+
+        @Override
+        public long[] makePartial() {
+            ++partialsMade;
+            return new long[2];
+        }
+
+        @Override
+        public void acceptBatch(final long[] partial, final List<SAMRecordAndReference> batch) {
+            for (final SAMRecordAndReference recAndRef : batch) {
+                partial[0]++;
+                partial[1] += recAndRef.getSamRecord().getAlignmentStart();
+            }
+        }
+
+        @Override
+        public void mergePartial(final long[] partial) {
+            count += partial[0];
+            sumOfStarts += partial[1];
+        }
+    }
+
+    @DataProvider(name = "threadsAndBatchSizes")
+    public Object[][] threadsAndBatchSizes() {
+        return new Object[][] {{1, 1}, {1, 1000}, {3, 7}, {8, 100}};
+    }
+
+    @Test(dataProvider = "threadsAndBatchSizes")
+    public void testAllRecordsMerged(final int threads, final int batchSize) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            builder.addPair("pair" + i, 0, 1 + i, 100 + i);
+        }
+
+        long expectedSumOfStarts = 0;
+        final CountingCollector collector = new CountingCollector();
+        final ConcurrentCollectorExecutor<long[]> executor = new ConcurrentCollectorExecutor<>(collector, threads, batchSize);
+        for (final SAMRecord rec : builder.getRecords()) {
+            expectedSumOfStarts += rec.getAlignmentStart();
+            executor.acceptRecord(rec, null);
+        }
+        executor.finish();
+
+        Assert.assertEquals(collector.partialsMade, threads);
+        Assert.assertEquals(collector.count, 2000);
+        Assert.assertEquals(collector.sumOfStarts, expectedSumOfStarts);
+    }
+
+    @Test(dataProvider = "threadsAndBatchSizes")
+    public void testBroadcastInOrder(final int threads, final int batchSize) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            builder.addFrag("frag" + i, 0, 1 + i, false);
+        }
+
+        // Each partial lists the names of the records it saw
+        final List<List<String>> partials = new ArrayList<>();
+        final ConcurrentCollector<List<String>> collector = new ConcurrentCollector<List<String>>() {
+            @Override
+            public List<String> makePartial() {
+                final List<String> partial = new ArrayList<>();
+                partials.add(partial);
+                return partial;
+            }
+
+            @Override
+            public void acceptBatch(final List<String> partial, final List<SAMRecordAndReference> batch) {
+                for (final SAMRecordAndReference recAndRef : batch) partial.add(recAndRef.getSamRecord().getReadName());
+            }
+
+            @Override
+            public void mergePartial(final List<String> partial) { }
+        };
+
+        final List<String> expected = new ArrayList<>();
+        final ConcurrentCollectorExecutor<List<String>> executor = new ConcurrentCollectorExecutor<>(collector, threads, batchSize,
+                ConcurrentCollectorExecutor.Mode.BROADCAST, 2);
+        for (final SAMRecord rec : builder.getRecords()) {
+            expected.add(rec.getReadName());
+            executor.acceptRecord(rec, null);
+        }
+        executor.finish();
+
+        Assert.assertEquals(partials.size(), threads);
+        for (final List<String> partial : partials) {
+            Assert.assertEquals(partial, expected);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWorkerErrorIsRethrown() {
+        final ConcurrentCollector<Object> failing = new ConcurrentCollector<Object>() {
+            @Override
+            public Object makePartial() { return new Object(); }
+
+            @Override
+            public void acceptBatch(final Object partial, final List<SAMRecordAndReference> batch) {
+                throw new IllegalStateException("expected failure");
+            }
+
+            @Override
+            public void mergePartial(final Object partial) {
+                Assert.fail("Partials should not be merged after a failure");
+            }
+        };
+
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        builder.addFrag("frag", 0, 1, false);
+        final ConcurrentCollectorExecutor<Object> executor = new ConcurrentCollectorExecutor<>(failing, 2, 1);
+        executor.acceptRecord(builder.getRecords().iterator().next(), null);
+        executor.finish();
+    }
+}
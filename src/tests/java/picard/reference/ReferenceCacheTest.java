@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+public class ReferenceCacheTest {
+    private static final File INDEXED_REFERENCE = new File("testdata/picard/reference/test.fasta");
+    private static final File UNINDEXED_REFERENCE = new File("testdata/picard/sam/summary_alignment_stats_test.fasta");
+
+    private static List<ReferenceSequence> readAll(final File reference) {
+        final ReferenceSequenceFile file = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference, true);
+        final List<ReferenceSequence> sequences = new ArrayList<>();
+        ReferenceSequence sequence;
+        while ((sequence = file.nextSequence()) != null) sequences.add(sequence);
+        return sequences;
+    }
+
+    @DataProvider(name = "references")
+    public Object[][] references() {
+        return new Object[][] {
+                {INDEXED_REFERENCE, 0},
+                {INDEXED_REFERENCE, 250},
+                {INDEXED_REFERENCE, ReferenceCache.DEFAULT_MAX_BYTES},
+                {UNINDEXED_REFERENCE, 0},
+                {UNINDEXED_REFERENCE, ReferenceCache.DEFAULT_MAX_BYTES}
+        };
+    }
+
+    @Test(dataProvider = "references")
+    public void testRandomOrder(final File reference, final long maxBytes) {
+        final List<ReferenceSequence> expected = readAll(reference);
+        final ReferenceCache cache = new ReferenceCache(reference, maxBytes);
+        final Random random = new Random(5);
+        for (int i = 0; i < 100; ++i) {
+            final int contigIndex = random.nextInt(expected.size());
+            final ReferenceSequence actual = cache.get(contigIndex);
+            Assert.assertEquals(actual.getName(), expected.get(contigIndex).getName());
+            Assert.assertEquals(actual.getBases(), expected.get(contigIndex).getBases());
+        }
+        cache.close();
+    }
+
+    @Test(dataProvider = "references")
+    public void testConcurrentReaders(final File reference, final long maxBytes) throws Exception {
+        final List<ReferenceSequence> expected = readAll(reference);
+        final ReferenceCache cache = new ReferenceCache(reference, maxBytes);
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int reader = 0; reader < 8; ++reader) {
+            final int seed = reader;
+            futures.add(pool.submit(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < 200; ++i) {
+                    final int contigIndex = random.nextInt(expected.size());
+                    Assert.assertEquals(cache.get(contigIndex).getBases(), expected.get(contigIndex).getBases());
+                }
+            }));
+        }
+        for (final Future<?> future : futures) future.get();
+        pool.shutdown();
+        cache.close();
+    }
+
+    @Test
+    public void testContigGetter() {
+        Assert.assertEquals(ReferenceCache.getShared(INDEXED_REFERENCE) != null, ReferenceCache.getSharedCacheBytes() > 0);
+        final ReferenceSequence first = ReferenceCache.contigGetter(INDEXED_REFERENCE).apply(0);
+        Assert.assertEquals(first.getBases(), readAll(INDEXED_REFERENCE).get(0).getBases());
+    }
+
+    @Test
+    public void testSetSharedCacheBytes() {
+        final long original = ReferenceCache.getSharedCacheBytes();
+        try {
+            ReferenceCache.setSharedCacheBytes(ReferenceCache.DEFAULT_MAX_BYTES);
+            final ReferenceCache shared = ReferenceCache.getShared(INDEXED_REFERENCE);
+            Assert.assertNotNull(shared);
+            Assert.assertSame(ReferenceCache.getShared(new File(INDEXED_REFERENCE.getAbsolutePath())), shared);
+
+            final List<ReferenceSequence> expected = readAll(INDEXED_REFERENCE);
+            final IntFunction<ReferenceSequence> getter = ReferenceCache.contigGetter(INDEXED_REFERENCE);
+            for (int contigIndex = 0; contigIndex < expected.size(); ++contigIndex) {
+                Assert.assertEquals(getter.apply(contigIndex).getBases(), expected.get(contigIndex).getBases());
+                Assert.assertSame(getter.apply(contigIndex), shared.get(contigIndex));
+            }
+
+            ReferenceCache.setSharedCacheBytes(0);
+            Assert.assertNull(ReferenceCache.getShared(INDEXED_REFERENCE));
+        } finally {
+            ReferenceCache.setSharedCacheBytes(original);
+        }
+    }
+}
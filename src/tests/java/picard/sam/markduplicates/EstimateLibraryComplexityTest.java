@@ -24,6 +24,10 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -33,7 +37,9 @@ import picard.sam.DuplicationMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
 
@@ -134,4 +140,84 @@ public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 0);
         examineMetricsFile(output, 0, 0); // no read pairs examined!!!
     }
+
+    /**
+     * Writes read pairs copied, with a few differences after the first ten bases, from random templates, some of
+     * them at nearby locations on the flowcell.
+     */
+    private File writeRandomDuplicates(final int templates) throws IOException {
+        final Random random = new Random(42);
+        final byte[] bases = {'A', 'C', 'G', 'T', 'N'};
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        builder.setReadLength(50);
+        final byte[] quals = new byte[50];
+        Arrays.fill(quals, (byte) 30);
+
+        int pairs = 0;
+        for (int t = 0; t < templates; ++t) {
+            final byte[][] template = new byte[2][50];
+            for (final byte[] read : template) {
+                for (int i = 0; i < read.length; ++i) read[i] = bases[random.nextInt(4)];
+            }
+            final int x = random.nextInt(20000);
+            final int y = random.nextInt(20000);
+
+            final int copies = 1 + random.nextInt(3);
+            for (int c = 0; c < copies; ++c) {
+                final boolean nearby = random.nextBoolean();
+                final String name = "pair" + pairs++ + ":1:1101:" + (nearby ? x + c : random.nextInt(20000)) + ":" +
+                        (nearby ? y : random.nextInt(20000));
+                // The first of pair on the forward strand and the second on the reverse strand
+                final List<SAMRecord> recs = builder.addPair(name, 0, 100 + t, 300 + t, false, false, "50M", "50M", false, true, 30);
+                for (int r = 0; r < 2; ++r) {
+                    final byte[] read = template[r].clone();
+                    // Only change bases that stay after the first ten once the second read is reverse complemented
+                    for (int i = 10; i < 40; ++i) {
+                        if (random.nextInt(40) == 0) read[i] = bases[random.nextInt(5)];
+                    }
+                    recs.get(r).setReadBases(read);
+                    recs.get(r).setBaseQualities(quals);
+                }
+            }
+        }
+
+        final File input = File.createTempFile("estimateLibraryComplexity", ".bam");
+        input.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, input);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+        return input;
+    }
+
+    private DuplicationMetrics runWithArgs(final File input, final String... extraArgs) throws IOException {
+        final File output = File.createTempFile("estimateLibraryComplexity", ".els_metrics");
+        output.deleteOnExit();
+
+        final List<String> args = new ArrayList<>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("MIN_GROUP_COUNT=1");
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+
+        final List<DuplicationMetrics> metricsList = MetricsFile.readBeans(output);
+        Assert.assertEquals(metricsList.size(), 1);
+        return metricsList.get(0);
+    }
+
+    /** Comparing groups on several threads, or splitting them by the next bases, finds the same duplicates. */
+    @Test
+    public void testThreadsAndSplitGroupsMatchSerial() throws IOException {
+        final File input = writeRandomDuplicates(10000);
+        final DuplicationMetrics serial = runWithArgs(input);
+        Assert.assertTrue(serial.READ_PAIR_DUPLICATES > 0);
+        Assert.assertTrue(serial.READ_PAIR_OPTICAL_DUPLICATES > 0);
+
+        for (final String[] args : new String[][] {{"THREADS=4"}, {"THREADS=0"}, {"SPLIT_GROUP_RATIO=1"}, {"THREADS=3", "SPLIT_GROUP_RATIO=1"}}) {
+            final DuplicationMetrics metrics = runWithArgs(input, args);
+            Assert.assertEquals(metrics.READ_PAIRS_EXAMINED, serial.READ_PAIRS_EXAMINED, Arrays.toString(args));
+            Assert.assertEquals(metrics.READ_PAIR_DUPLICATES, serial.READ_PAIR_DUPLICATES, Arrays.toString(args));
+            Assert.assertEquals(metrics.READ_PAIR_OPTICAL_DUPLICATES, serial.READ_PAIR_OPTICAL_DUPLICATES, Arrays.toString(args));
+        }
+    }
 }
@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StopWatch;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.DuplicationMetrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that MarkDuplicates with SHARD_BY_REFERENCE flags the same records and writes the same metrics as a single
+ * pass over the input, and compares their speed on increasing numbers of threads.
+ */
+public class MarkDuplicatesShardedTest {
+    private static final Log log = Log.getInstance(MarkDuplicatesShardedTest.class);
+
+    /**
+     * Writes an indexed, coordinate sorted BAM of pairs on four reference sequences, a quarter of which have their mates
+     * on another reference sequence.  Starts are drawn from a small range, so there are many duplicates, and read
+     * names put the reads close enough together on a tile for some of those to be optical duplicates.
+     */
+    private static File writeInput(final File dir, final int pairs) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final Random random = new Random(42);
+        final int positions = Math.max(1, pairs / 3);
+        for (int i = 0; i < pairs; ++i) {
+            final String name = "H0164ALXX" + i + ":2:1101:" + random.nextInt(500) + ":" + random.nextInt(500);
+            final int contig1 = random.nextInt(4);
+            final int contig2 = (i % 4 == 0) ? random.nextInt(4) : contig1;
+            final int start1 = 1 + 10 * random.nextInt(positions);
+            final int start2 = (contig2 == contig1) ? start1 + 100 + 10 * random.nextInt(5) : 1 + 10 * random.nextInt(positions);
+            final boolean mateUnmapped = i % 50 == 0;
+            builder.addPair(name, contig1, contig2, start1, start2, false, mateUnmapped, "36M", "36M",
+                    random.nextBoolean(), random.nextBoolean(), false, false, 10 + random.nextInt(30));
+        }
+        for (int i = 0; i < 10; ++i) {
+            builder.addUnmappedPair("unmapped" + i);
+        }
+
+        final File input = new File(dir, "input.bam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(builder.getHeader(), true, input);
+        for (final SAMRecord rec : builder) {
+            writer.addAlignment(rec);
+        }
+        writer.close();
+        return input;
+    }
+
+    private static MarkDuplicates markDuplicates(final File input, final File output, final File metrics, final String... extraArgs) {
+        final List<String> args = new ArrayList<>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("METRICS_FILE=" + metrics.getAbsolutePath());
+        args.add("TAGGING_POLICY=All");
+        for (final String arg : extraArgs) args.add(arg);
+
+        final MarkDuplicates markDuplicates = new MarkDuplicates();
+        Assert.assertEquals(markDuplicates.instanceMain(args.toArray(new String[args.size()])), 0);
+        return markDuplicates;
+    }
+
+    /** Asserts that the records are the same, in the same order, including their flags and DT tags. */
+    private static void assertSameRecords(final File actual, final File expected) {
+        final SamReader actualReader = SamReaderFactory.makeDefault().open(actual);
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(expected);
+        final Iterator<SAMRecord> actualRecords = actualReader.iterator();
+        long duplicates = 0;
+        for (final SAMRecord expectedRecord : expectedReader) {
+            Assert.assertTrue(actualRecords.hasNext());
+            final SAMRecord actualRecord = actualRecords.next();
+            Assert.assertEquals(actualRecord.getSAMString(), expectedRecord.getSAMString());
+            if (expectedRecord.getDuplicateReadFlag()) ++duplicates;
+        }
+        Assert.assertFalse(actualRecords.hasNext());
+        Assert.assertTrue(duplicates > 0);
+        CloserUtil.close(actualReader);
+        CloserUtil.close(expectedReader);
+    }
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][] {{1, false}, {4, false}, {16, false}, {4, true}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void testMatchesSinglePass(final int threads, final boolean spillReadEnds) {
+        final File dir = IOUtil.createTempDir("MarkDuplicatesShardedTest", null);
+        try {
+            final File input = writeInput(dir, 3000);
+            final File expectedOutput = new File(dir, "expected.bam"), expectedMetrics = new File(dir, "expected.metrics");
+            final File actualOutput = new File(dir, "actual.bam"), actualMetrics = new File(dir, "actual.metrics");
+
+            Assert.assertFalse(markDuplicates(input, expectedOutput, expectedMetrics).readEndsShardedByReference());
+            // A tiny budget spills the first ends waiting for mates on other reference sequences
+            Assert.assertTrue(markDuplicates(input, actualOutput, actualMetrics,
+                    "SHARD_BY_REFERENCE=true", "THREADS=" + threads, "TMP_DIR=" + dir.getAbsolutePath(),
+                    "READ_ENDS_MAP_SIZE_RATIO=" + (spillReadEnds ? "0.0000001" : "0.25")).readEndsShardedByReference());
+
+            assertSameRecords(actualOutput, expectedOutput);
+            final List<DuplicationMetrics> expected = MetricsFile.readBeans(expectedMetrics);
+            Assert.assertEquals(MetricsFile.readBeans(actualMetrics), expected);
+            Assert.assertTrue(expected.get(0).READ_PAIR_OPTICAL_DUPLICATES > 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(dir);
+        }
+    }
+
+    @Test
+    public void testUnindexedInputIsReadInOnePass() {
+        final File dir = IOUtil.createTempDir("MarkDuplicatesShardedTest", null);
+        try {
+            final File input = writeInput(dir, 100);
+            Assert.assertTrue(new File(dir, "input.bai").delete());
+            final MarkDuplicates markDuplicates = markDuplicates(input, new File(dir, "output.bam"), new File(dir, "output.metrics"),
+                    "SHARD_BY_REFERENCE=true", "THREADS=4");
+            Assert.assertFalse(markDuplicates.readEndsShardedByReference());
+        } finally {
+            IOUtil.deleteDirectoryTree(dir);
+        }
+    }
+
+    /** Times MarkDuplicates on a single pass over the input and sharded over increasing numbers of threads. */
+    @Test(groups = "slow")
+    public void benchmarkScaling() {
+        final File dir = IOUtil.createTempDir("MarkDuplicatesShardedTest", null);
+        try {
+            final File input = writeInput(dir, 500000);
+            final File expectedOutput = new File(dir, "expected.bam"), expectedMetrics = new File(dir, "expected.metrics");
+
+            final StopWatch singlePassWatch = new StopWatch();
+            singlePassWatch.start();
+            markDuplicates(input, expectedOutput, expectedMetrics);
+            singlePassWatch.stop();
+            log.info(String.format("Single pass: %d ms", singlePassWatch.getElapsedTime()));
+
+            for (final int threads : new int[] {1, 4, 16, 32}) {
+                final File output = new File(dir, "sharded" + threads + ".bam"), metrics = new File(dir, "sharded" + threads + ".metrics");
+                final StopWatch shardedWatch = new StopWatch();
+                shardedWatch.start();
+                markDuplicates(input, output, metrics, "SHARD_BY_REFERENCE=true", "THREADS=" + threads);
+                shardedWatch.stop();
+
+                assertSameRecords(output, expectedOutput);
+                Assert.assertEquals(MetricsFile.readBeans(metrics), MetricsFile.readBeans(expectedMetrics));
+                log.info(String.format("Sharded by reference on %d threads: %d ms", threads, shardedWatch.getElapsedTime()));
+            }
+        } finally {
+            IOUtil.deleteDirectoryTree(dir);
+        }
+    }
+}
@@ -209,6 +209,44 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
         };
     }
 
+    @Test
+    public void testDuplicateSetsResolvedOnSeveralThreads() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
+        // Enough duplicate sets of pairs and of fragments to fill several batches for the workers
+        for (int set = 0; set < 3000; ++set) {
+            final int start = 1 + 20 * set;
+            for (int i = 0; i <= set % 4; ++i) {
+                final boolean isDuplicate = i > 0;
+                if (set % 3 == 0) tester.addMappedFragment(1, start, isDuplicate, isDuplicate ? 20 : 40);
+                else tester.addMappedPair(0, start, start + 200, isDuplicate, isDuplicate, isDuplicate ? 20 : 40);
+            }
+        }
+        tester.addArg("THREADS=4");
+        tester.runTest();
+    }
+
+    @DataProvider(name = "spoolThreads")
+    public Object[][] spoolThreads() {
+        return new Object[][] {{1}, {4}};
+    }
+
+    @Test(dataProvider = "spoolThreads")
+    public void testQuerySortedInputSpooled(final int threads) {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new QuerySortedMarkDuplicatesTester();
+        for (int set = 0; set < 300; ++set) {
+            final int start = 1 + 20 * set;
+            for (int i = 0; i <= set % 4; ++i) {
+                final boolean isDuplicate = i > 0;
+                if (set % 3 == 0) tester.addMappedFragment(1, start, isDuplicate, isDuplicate ? 20 : 40);
+                else tester.addMappedPair(0, start, start + 200, isDuplicate, isDuplicate, isDuplicate ? 20 : 40);
+            }
+        }
+        tester.addUnmappedPair(0, 40);
+        tester.addArg("SPOOL_QUERYNAME_INPUT=true");
+        tester.addArg("THREADS=" + threads);
+        tester.runTest();
+    }
+
     @Test
     public void testWithBarcodeFragmentDuplicate() {
         final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
@@ -104,4 +104,19 @@ public class MarkDuplicatesWithMateCigarTest extends AbstractMarkDuplicatesComma
 
         tester.runTest();
     }
+
+    @Test
+    public void testOpticalDuplicateFindingWithSpilledLocations() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
+        // Leaves room for a single location in memory, so that the locations of the duplicate set are spilled to disk
+        tester.addArg("LOCATIONS_SIZE_RATIO=0");
+        tester.setExpectedOpticalDuplicate(1);
+        tester.addMatePair("READ0:1:1:1:1", 1, 1, 100, false, false, false, false, "50M", "50M", false, true, false,
+                false, false, DEFAULT_BASE_QUALITY);
+        tester.addMatePair("READ1:1:1:1:300", 1, 1, 100, false, false, true, true, "50M", "50M", false, true, false,
+                false, false, DEFAULT_BASE_QUALITY);
+        tester.addMatePair("READ2:1:1:1:50", 1, 1, 100, false, false, true, true, "50M", "50M", false, true, false,
+                false, false, DEFAULT_BASE_QUALITY);
+        tester.runTest();
+    }
 }
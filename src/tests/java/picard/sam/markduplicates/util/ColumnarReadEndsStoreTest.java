@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that ColumnarReadEndsStore returns every read end, field for field, in the order of a plain sort, whether
+ * it all fits in memory or is spilled to one or many runs.
+ */
+public class ColumnarReadEndsStoreTest {
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][] {
+                {false, 100000, 0}, {false, 100000, 1}, {false, 100000, 50000},
+                {false, 1000, 50000}, {false, 7, 5000}, {true, 100000, 50000}, {true, 1000, 50000},
+                {false, 300000, 200000}, {true, 150000, 200000}
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testSortedLikeComparator(final boolean useBarcodes, final int maxRecordsInRam, final int numEnds) {
+        final Random random = new Random(numEnds + maxRecordsInRam);
+        final ColumnarReadEndsStore store = new ColumnarReadEndsStore(
+                useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodesCodec() : new ReadEndsForMarkDuplicatesCodec(),
+                useBarcodes, maxRecordsInRam, Collections.singletonList(new File(System.getProperty("java.io.tmpdir"))));
+
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<>();
+        for (int i = 0; i < numEnds; ++i) {
+            final ReadEndsForMarkDuplicates end = useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodes() : new ReadEndsForMarkDuplicates();
+            end.libraryId = (short) random.nextInt(2);
+            end.read1ReferenceIndex = random.nextInt(3);
+            end.read1Coordinate = random.nextInt(50) - 5;
+            end.read1IndexInFile = i;
+            end.score = (short) random.nextInt(100);
+            end.readGroup = (short) random.nextInt(3);
+            end.tile = (short) random.nextInt(5);
+            end.x = random.nextInt(30000);
+            end.y = random.nextInt(30000);
+            end.orientationForOpticalDuplicates = (byte) random.nextInt(6);
+            if (random.nextBoolean()) {
+                end.orientation = (byte) (ReadEnds.FF + random.nextInt(4));
+                end.read2ReferenceIndex = random.nextInt(3);
+                end.read2Coordinate = random.nextInt(50);
+                end.read2IndexInFile = i + random.nextInt(1000);
+            } else {
+                end.orientation = (byte) random.nextInt(2);
+            }
+            if (useBarcodes) {
+                final ReadEndsForMarkDuplicatesWithBarcodes endWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) end;
+                endWithBarcodes.barcode = random.nextInt(2);
+                endWithBarcodes.readOneBarcode = random.nextInt(2);
+                endWithBarcodes.readTwoBarcode = random.nextInt(2);
+            }
+            expected.add(end.clone());
+            store.add(end);
+        }
+        store.doneAdding();
+        Assert.assertEquals(store.getNumberOfSpilledRuns(), numEnds == 0 ? 0 : (numEnds - 1) / maxRecordsInRam);
+
+        // The order of MarkDuplicates.ReadEndsMDComparator
+        Comparator<ReadEndsForMarkDuplicates> comparator = Comparator.comparingInt(end -> end.libraryId);
+        if (useBarcodes) {
+            comparator = comparator.thenComparingInt(end -> ((ReadEndsForMarkDuplicatesWithBarcodes) end).barcode)
+                    .thenComparingInt(end -> ((ReadEndsForMarkDuplicatesWithBarcodes) end).readOneBarcode)
+                    .thenComparingInt(end -> ((ReadEndsForMarkDuplicatesWithBarcodes) end).readTwoBarcode);
+        }
+        comparator = comparator.thenComparingInt(end -> end.read1ReferenceIndex)
+                .thenComparingInt(end -> end.read1Coordinate)
+                .thenComparingInt(end -> end.orientation)
+                .thenComparingInt(end -> end.read2ReferenceIndex)
+                .thenComparingInt(end -> end.read2Coordinate)
+                .thenComparingLong(end -> end.read1IndexInFile)
+                .thenComparingLong(end -> end.read2IndexInFile);
+        Collections.sort(expected, comparator);
+
+        int i = 0;
+        for (final ReadEndsForMarkDuplicates actual : store) {
+            Assert.assertEquals(describe(actual, useBarcodes), describe(expected.get(i++), useBarcodes));
+        }
+        Assert.assertEquals(i, numEnds);
+        store.cleanup();
+    }
+
+    @Test
+    public void testMaxRecordsInRam() {
+        final long directBytes = 1000L * ColumnarReadEndsStore.DIRECT_BYTES_PER_RECORD;
+        final int directBound = ColumnarReadEndsStore.maxRecordsInRam(false, directBytes, Long.MAX_VALUE);
+        // Room is left for a column being replaced while the columns grow
+        Assert.assertTrue(directBound > 500 && directBound < 1000, "records: " + directBound);
+        Assert.assertTrue(ColumnarReadEndsStore.maxRecordsInRam(true, directBytes, Long.MAX_VALUE) < directBound);
+
+        Assert.assertEquals(ColumnarReadEndsStore.maxRecordsInRam(false, Long.MAX_VALUE, 300L * ColumnarReadEndsStore.HEAP_BYTES_PER_RECORD), 300);
+        Assert.assertEquals(ColumnarReadEndsStore.maxRecordsInRam(false, 0, 0), 1);
+        Assert.assertEquals(ColumnarReadEndsStore.maxRecordsInRam(false, Long.MAX_VALUE, Long.MAX_VALUE), ColumnarReadEndsStore.MAX_RECORDS_IN_RAM);
+        Assert.assertTrue(ColumnarReadEndsStore.maxDirectMemory() > 0);
+    }
+
+    private static String describe(final ReadEndsForMarkDuplicates end, final boolean useBarcodes) {
+        // Fragments do not round trip their (unset) read2 position through the codec
+        final boolean paired = end.orientation > ReadEnds.R;
+        String description = end.libraryId + " " + end.read1ReferenceIndex + ":" + end.read1Coordinate + " " + end.orientation +
+                " " + end.read2ReferenceIndex + ":" + (paired ? end.read2Coordinate : -1) +
+                " " + end.read1IndexInFile + "," + (paired ? end.read2IndexInFile : -1) +
+                " score=" + end.score + " rg=" + end.readGroup + " " + end.tile + ":" + (short) end.x + ":" + (short) end.y +
+                " " + end.orientationForOpticalDuplicates;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes endWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) end;
+            description += " " + endWithBarcodes.barcode + "/" + endWithBarcodes.readOneBarcode + "/" + endWithBarcodes.readTwoBarcode;
+        }
+        return description;
+    }
+}
@@ -1,6 +1,8 @@
 package picard.sam.markduplicates.util;
 
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StopWatch;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.testng.Assert;
 import picard.sam.util.PhysicalLocation;
@@ -125,11 +127,102 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    @DataProvider(name = "distances")
+    public Object[][] distances() {
+        return new Object[][] {{0}, {1}, {15}, {100}, {2500}};
+    }
+
+    /**
+     * Checks that comparing neighbouring grid cells flags exactly what comparing every pair does, over random sets
+     * that span several read groups and tiles, have negative coordinates and locations without tiles, and keepers
+     * that are in the list, missing from it or null.
+     */
+    @Test(dataProvider = "distances")
+    public void testSpatialIndexMatchesPairwise(final int distance) {
+        final OpticalDuplicateFinder pairwise = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, null);
+        pairwise.setSpatialIndexThreshold(Integer.MAX_VALUE);
+        final OpticalDuplicateFinder grid = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, null);
+        grid.setSpatialIndexThreshold(0);
+
+        final Random random = new Random(distance);
+        for (int set = 0; set < 500; ++set) {
+            final int size = 2 + random.nextInt(200);
+            final int spread = 50 + random.nextInt(3000);
+            final List<PhysicalLocation> locs = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                if (random.nextInt(50) == 0) {
+                    locs.add(new PhysicalLocationInt()); // no tile, so no location
+                } else {
+                    locs.add(loc(random.nextInt(2), 1101 + random.nextInt(3), random.nextInt(spread) - spread / 10, random.nextInt(spread)));
+                }
+            }
+
+            final PhysicalLocation keeper;
+            switch (random.nextInt(3)) {
+                case 0:  keeper = locs.get(random.nextInt(size)); break;
+                case 1:  keeper = loc(0, 1101, 5, 5); break;
+                default: keeper = null;
+            }
+            assertEquals(grid.findOpticalDuplicates(locs, keeper), pairwise.findOpticalDuplicates(locs, keeper));
+        }
+    }
+
+    @DataProvider(name = "setSizes")
+    public Object[][] setSizes() {
+        return new Object[][] {{16}, {32}, {64}, {128}, {256}, {1000}, {10000}, {30000}};
+    }
+
+    /**
+     * Times both ways of comparing a duplicate set spread over four tiles of a patterned flowcell, to show where the
+     * grid overtakes comparing every pair; see {@link OpticalDuplicateFinder#DEFAULT_SPATIAL_INDEX_THRESHOLD}.
+     */
+    @Test(dataProvider = "setSizes", groups = "slow")
+    public void benchmarkSpatialIndexAgainstPairwise(final int size) {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        final Random random = new Random(size);
+        final List<PhysicalLocation> locs = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            locs.add(loc(1101 + random.nextInt(4), random.nextInt(30000), random.nextInt(30000)));
+        }
+
+        final OpticalDuplicateFinder pairwise = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, 100, log);
+        pairwise.setSpatialIndexThreshold(Integer.MAX_VALUE);
+        pairwise.setBigDuplicateSetSize(Integer.MAX_VALUE);
+        final OpticalDuplicateFinder grid = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, 100, log);
+        grid.setSpatialIndexThreshold(0);
+        grid.setBigDuplicateSetSize(Integer.MAX_VALUE);
+
+        // Repeat small sets so that each timing covers a comparable amount of work
+        final int repeats = Math.max(1, 1000000 / size / size);
+        for (int iteration = 0; iteration < 3; ++iteration) {
+            final StopWatch pairwiseWatch = new StopWatch();
+            pairwiseWatch.start();
+            boolean[] pairwiseFlags = null;
+            for (int i = 0; i < repeats; ++i) pairwiseFlags = pairwise.findOpticalDuplicates(locs, locs.get(0));
+            pairwiseWatch.stop();
+
+            final StopWatch gridWatch = new StopWatch();
+            gridWatch.start();
+            boolean[] gridFlags = null;
+            for (int i = 0; i < repeats; ++i) gridFlags = grid.findOpticalDuplicates(locs, locs.get(0));
+            gridWatch.stop();
+
+            assertEquals(gridFlags, pairwiseFlags);
+            log.info(String.format("Set of %d, %d repeats: pairwise %d ms, grid %d ms",
+                    size, repeats, pairwiseWatch.getElapsedTime(), gridWatch.getElapsedTime()));
+        }
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
+        return loc(1, tile, x, y);
+    }
+
+    /** Helper method to create a physical location in the given read group. */
+    private PhysicalLocation loc(final int readGroup, final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
             @Override
-            public short getReadGroup() { return 1; }
+            public short getReadGroup() { return (short) readGroup; }
         };
         l.setTile((short) tile);
         l.setX(x);
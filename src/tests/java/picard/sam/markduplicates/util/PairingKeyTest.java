@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.ReservedTagConstants;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.Log;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Tests that PairingKey tells records apart by read group and read name, and measures what it saves over building
+ * a String key for each record.
+ */
+public class PairingKeyTest {
+    private static final Log log = Log.getInstance(PairingKeyTest.class);
+
+    @Test
+    public void testMatesShareKey() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        builder.addPair("pair", 0, 1, 100);
+        final Iterator<SAMRecord> records = builder.iterator();
+        final SAMRecord first = records.next();
+        final SAMRecord second = records.next();
+
+        Assert.assertEquals(PairingKey.of(first), PairingKey.of(second));
+        Assert.assertEquals(PairingKey.of(first).hashCode(), PairingKey.of(second).hashCode());
+        Assert.assertEquals(PairingKey.of(first), PairingKey.of(first.getReadGroup().getId(), "pair"));
+    }
+
+    @Test
+    public void testKeysDiffer() {
+        Assert.assertNotEquals(PairingKey.of("rg", "read1"), PairingKey.of("rg", "read2"));
+        Assert.assertNotEquals(PairingKey.of("rg1", "read"), PairingKey.of("rg2", "read"));
+        Assert.assertNotEquals(PairingKey.of(null, "read"), PairingKey.of("", "read"));
+        // The boundary between the read group and the name matters
+        Assert.assertNotEquals(PairingKey.of("rg:", "read"), PairingKey.of("rg", ":read"));
+        Assert.assertNotEquals(PairingKey.of("a", "bc"), PairingKey.of("ab", "c"));
+    }
+
+    @Test
+    public void testHashCollisionsDiffer() {
+        final PairingKey key = PairingKey.of("rg", "read1");
+        Assert.assertNotEquals(new PairingKey(key.getHigh(), key.getLow(), "rg", "read2"), key);
+        Assert.assertNotEquals(new PairingKey(key.getHigh(), key.getLow(), "rg2", "read1"), key);
+        Assert.assertNotEquals(new PairingKey(key.getHigh(), key.getLow(), null, "read1"), key);
+        Assert.assertEquals(new PairingKey(key.getHigh(), key.getLow(), "rg", "read1"), key);
+    }
+
+    @Test
+    public void testRoundTrips() throws IOException {
+        for (final PairingKey key : new PairingKey[] {PairingKey.of("rg", "H0164ALXX140820:2:1101:10003:23460"), PairingKey.of(null, "read")}) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            key.write(new DataOutputStream(bytes));
+            final PairingKey readBack = PairingKey.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            Assert.assertEquals(readBack, key);
+            Assert.assertEquals(readBack.getReadGroupId(), key.getReadGroupId());
+            Assert.assertEquals(readBack.getReadName(), key.getReadName());
+        }
+    }
+
+    @Test
+    public void testNoCollisionsInEitherHalf() {
+        final Set<Long> highs = new HashSet<>();
+        final Set<Long> lows = new HashSet<>();
+        for (int i = 0; i < 1000000; ++i) {
+            final PairingKey key = PairingKey.of("rg" + (i % 4), "H0164ALXX140820:2:" + (1101 + i % 20) + ":" + (i / 20) + ":" + (i % 997));
+            Assert.assertTrue(highs.add(key.getHigh()), key.toString());
+            Assert.assertTrue(lows.add(key.getLow()), key.toString());
+        }
+    }
+
+    /**
+     * Compares the bytes allocated per record, and the time taken, to build the String key MarkDuplicates used to
+     * build and to compute a PairingKey.  Allocation is measured with the HotSpot per-thread allocation counter and
+     * not reported where that is unavailable.
+     */
+    @Test(groups = "slow")
+    public void benchmarkAgainstStringKeys() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        for (int i = 0; i < 100000; ++i) {
+            builder.addPair("H0164ALXX140820:2:" + (1101 + i % 20) + ":" + (i / 20) + ":" + (i % 997), 0, 1 + i, 150 + i);
+        }
+        final SAMRecord[] records = builder.getRecords().toArray(new SAMRecord[0]);
+
+        for (int iteration = 0; iteration < 5; ++iteration) {
+            long stringHashes = 0;
+            final long stringStart = System.nanoTime();
+            final long stringBytes = allocatedBytes();
+            for (final SAMRecord rec : records) {
+                stringHashes += (rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName()).hashCode();
+            }
+            final long stringBytesPerRecord = (allocatedBytes() - stringBytes) / records.length;
+            final long stringNanos = System.nanoTime() - stringStart;
+
+            long keyHashes = 0;
+            final long keyStart = System.nanoTime();
+            final long keyBytes = allocatedBytes();
+            for (final SAMRecord rec : records) {
+                keyHashes += PairingKey.of(rec).hashCode();
+            }
+            final long keyBytesPerRecord = (allocatedBytes() - keyBytes) / records.length;
+            final long keyNanos = System.nanoTime() - keyStart;
+
+            log.info(String.format("%d records: String keys %d ms, %d bytes/record; PairingKey %d ms, %d bytes/record (checksums %d, %d)",
+                    records.length, stringNanos / 1000000, stringBytesPerRecord, keyNanos / 1000000, keyBytesPerRecord,
+                    stringHashes, keyHashes));
+        }
+    }
+
+    /** @return the bytes allocated by this thread so far, or 0 if the JVM cannot tell */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
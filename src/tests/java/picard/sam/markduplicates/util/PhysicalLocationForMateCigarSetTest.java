@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that PhysicalLocationForMateCigarSet keeps each physical location once, in the order first added, and honours
+ * removals, whether or not its entries have been spilled to disk.
+ */
+public class PhysicalLocationForMateCigarSetTest {
+    private final OpticalDuplicateFinder opticalDuplicateFinder = new OpticalDuplicateFinder();
+
+    /** Makes the first ends of pairs at the same position, with read names that put them at the given (tile, x, y). */
+    private List<ReadEndsForMateCigar> makeEnds(final int[][] locations) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(false, SAMFileHeader.SortOrder.coordinate);
+        final List<ReadEndsForMateCigar> ends = new ArrayList<>();
+        int ordinal = 0;
+        for (final int[] location : locations) {
+            final String name = "READ" + ordinal + ":1:" + location[0] + ":" + location[1] + ":" + location[2];
+            // A forward first of pair with a reverse mate, so that every end's orientation is FR
+            final SAMRecord first = builder.addPair(name, 0, 100, 300, false, false, "36M", "36M", false, true, 30).get(0);
+            ends.add(new ReadEndsForMateCigar(builder.getHeader(), new SamRecordWithOrdinalAndSetDuplicateReadFlag(first, ordinal++),
+                    opticalDuplicateFinder, (short) 1));
+        }
+        return ends;
+    }
+
+    private static String locationOf(final ReadEnds end) {
+        return end.getLibraryId() + ":" + end.getReadGroup() + ":" + end.getTile() + ":" + end.getX() + ":" + end.getY();
+    }
+
+    private static List<String> describe(final List<ReadEnds> ends) {
+        final List<String> descriptions = new ArrayList<>();
+        for (final ReadEnds end : ends) descriptions.add(locationOf(end) + "/" + end.orientationForOpticalDuplicates);
+        return descriptions;
+    }
+
+    private static PhysicalLocationForMateCigarSet.SpillFiles spillFiles(final File tmpDir) {
+        return new PhysicalLocationForMateCigarSet.SpillFiles(Collections.singletonList(tmpDir));
+    }
+
+    @DataProvider(name = "spillIntervals")
+    public Object[][] spillIntervals() {
+        return new Object[][] {{0}, {1}, {7}, {250}};
+    }
+
+    @Test(dataProvider = "spillIntervals")
+    public void testEachLocationKeptOnce(final int spillInterval) {
+        final Random random = new Random(42);
+        final int[][] locations = new int[1000][];
+        for (int i = 0; i < locations.length; ++i) {
+            locations[i] = (i > 0 && random.nextInt(4) == 0)
+                    ? locations[random.nextInt(i)]
+                    : new int[] {1101 + random.nextInt(3), random.nextInt(30000), random.nextInt(30000)};
+        }
+
+        final File tmpDir = IOUtil.createTempDir("PhysicalLocationForMateCigarSetTest", null);
+        try {
+            final PhysicalLocationForMateCigarSet.SpillFiles files = spillFiles(tmpDir);
+            final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+            final Set<String> expected = new LinkedHashSet<>();
+            int added = 0;
+            for (final ReadEndsForMateCigar end : makeEnds(locations)) {
+                set.add(end);
+                expected.add(locationOf(end));
+                if (spillInterval > 0 && ++added % spillInterval == 0) set.spill(files);
+            }
+            // Every spill goes to the same file
+            Assert.assertEquals(files.getFilesCreated(), spillInterval == 0 ? 0 : 1);
+            if (spillInterval == 0) Assert.assertEquals(set.size(), expected.size());
+
+            final List<String> actual = new ArrayList<>();
+            for (final ReadEnds end : set.getReadEnds()) {
+                actual.add(locationOf(end));
+                Assert.assertEquals(end.orientationForOpticalDuplicates, ReadEnds.FR);
+            }
+            Assert.assertEquals(actual, new ArrayList<>(expected));
+            files.close();
+            Assert.assertEquals(tmpDir.list().length, 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    @Test
+    public void testRemoveAndReplace() {
+        final List<ReadEndsForMateCigar> ends = makeEnds(new int[][] {{1101, 10, 20}, {1101, 30, 40}, {1102, 10, 20}});
+        final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+        for (final ReadEndsForMateCigar end : ends) set.add(end);
+
+        set.remove(ends.get(1));
+        Assert.assertEquals(set.size(), 2);
+        set.replace(ends.get(2), ends.get(1));
+        Assert.assertEquals(set.size(), 2);
+
+        final List<String> actual = new ArrayList<>();
+        for (final ReadEnds end : set.getReadEnds()) actual.add(locationOf(end));
+        Assert.assertEquals(actual, Arrays.asList(locationOf(ends.get(0)), locationOf(ends.get(1))));
+    }
+
+    @DataProvider(name = "spillAfterReplace")
+    public Object[][] spillAfterReplace() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @Test(dataProvider = "spillAfterReplace")
+    public void testRemoveAndReplaceSpilled(final boolean spillAfterReplace) {
+        // The second and third ends are mates, so share a physical location, with different orientations
+        final List<ReadEndsForMateCigar> ends = makeEnds(new int[][] {{1101, 10, 20}, {1101, 30, 40}, {1101, 30, 40}, {1102, 10, 20}});
+        ends.get(2).orientationForOpticalDuplicates = ReadEnds.RF;
+
+        final File tmpDir = IOUtil.createTempDir("PhysicalLocationForMateCigarSetTest", null);
+        try {
+            final PhysicalLocationForMateCigarSet.SpillFiles files = spillFiles(tmpDir);
+            final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+            set.add(ends.get(0));
+            set.add(ends.get(1));
+            set.add(ends.get(3));
+            Assert.assertEquals(set.spill(files), 3);
+
+            set.replace(ends.get(1), ends.get(2));
+            set.remove(ends.get(3));
+            if (spillAfterReplace) set.spill(files);
+
+            Assert.assertEquals(describe(set.getReadEnds()),
+                    Arrays.asList(locationOf(ends.get(0)) + "/" + ReadEnds.FR, locationOf(ends.get(1)) + "/" + ReadEnds.RF));
+            files.close();
+            Assert.assertEquals(tmpDir.list().length, 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    /** Adds and removes ends at random, spilling now and then, and compares with a set that is never spilled. */
+    @Test(dataProvider = "spillIntervals")
+    public void testSpilledSetMatchesUnspilled(final int spillInterval) {
+        final Random random = new Random(spillInterval);
+        final int[][] locations = new int[30][];
+        for (int i = 0; i < locations.length; ++i) {
+            locations[i] = new int[] {1101 + random.nextInt(2), random.nextInt(100), random.nextInt(100)};
+        }
+        final List<ReadEndsForMateCigar> ends = makeEnds(locations);
+
+        final File tmpDir = IOUtil.createTempDir("PhysicalLocationForMateCigarSetTest", null);
+        try {
+            final PhysicalLocationForMateCigarSet.SpillFiles files = spillFiles(tmpDir);
+            final PhysicalLocationForMateCigarSet spilled = new PhysicalLocationForMateCigarSet();
+            final PhysicalLocationForMateCigarSet inMemory = new PhysicalLocationForMateCigarSet();
+            for (int i = 1; i <= 2000; ++i) {
+                final ReadEndsForMateCigar end = ends.get(random.nextInt(ends.size()));
+                end.orientationForOpticalDuplicates = random.nextBoolean() ? ReadEnds.FR : ReadEnds.RF;
+                if (random.nextInt(3) == 0) {
+                    spilled.remove(end);
+                    inMemory.remove(end);
+                } else {
+                    spilled.add(end);
+                    inMemory.add(end);
+                }
+                if (spillInterval > 0 && i % spillInterval == 0) spilled.spill(files);
+            }
+            Assert.assertEquals(describe(spilled.getReadEnds()), describe(inMemory.getReadEnds()));
+            files.close();
+            Assert.assertEquals(tmpDir.list().length, 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    @Test
+    public void testDiscardReleasesSpilledEntries() {
+        final File tmpDir = IOUtil.createTempDir("PhysicalLocationForMateCigarSetTest", null);
+        try {
+            final PhysicalLocationForMateCigarSet.SpillFiles files = spillFiles(tmpDir);
+            final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+            final PhysicalLocationForMateCigarSet other = new PhysicalLocationForMateCigarSet();
+            for (final ReadEndsForMateCigar end : makeEnds(new int[][] {{1101, 10, 20}, {1101, 30, 40}})) {
+                set.add(end);
+                other.add(end);
+            }
+            Assert.assertEquals(set.spill(files), 2);
+            Assert.assertEquals(other.spill(files), 2);
+            Assert.assertEquals(set.getNumInRam(), 0);
+            // Both sets share one file, which stays until the queue is done with it
+            Assert.assertEquals(tmpDir.list().length, 1);
+
+            set.discard();
+            Assert.assertEquals(other.getReadEnds().size(), 2);
+            files.close();
+            Assert.assertEquals(tmpDir.list().length, 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+}
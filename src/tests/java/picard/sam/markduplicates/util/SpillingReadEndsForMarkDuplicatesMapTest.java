@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that SpillingReadEndsForMarkDuplicatesMap pairs every read end with its mate when reads are visited in
+ * coordinate order, whether or not it spills and whether or not keys share hashes, and that it cleans up after itself.
+ */
+public class SpillingReadEndsForMarkDuplicatesMapTest {
+    private static final int NUM_SEQUENCES = 25;
+
+    @DataProvider(name = "budgets")
+    public Object[][] budgets() {
+        return new Object[][] {{Long.MAX_VALUE, false}, {20000L, false}, {500000L, false}, {20000L, true}};
+    }
+
+    @Test(dataProvider = "budgets")
+    public void testMatesFound(final long maxBytesInRam, final boolean collideHashes) throws IOException {
+        final File tmpDir = Files.createTempDirectory("SpillingReadEndsForMarkDuplicatesMapTest").toFile();
+        try {
+            final SpillingReadEndsForMarkDuplicatesMap map = collideHashes ?
+                    new SpillingReadEndsForMarkDuplicatesMap(maxBytesInRam, new ReadEndsForMarkDuplicatesCodec(), Collections.singletonList(tmpDir)) {
+                        @Override
+                        long hash(final PairingKey key) { return key.getHigh() & 3; }
+                    } :
+                    new SpillingReadEndsForMarkDuplicatesMap(maxBytesInRam, new ReadEndsForMarkDuplicatesCodec(), Collections.singletonList(tmpDir));
+
+            // Each read is on a sequence and puts its read end for a mate on the same or a later sequence
+            final Random random = new Random(42);
+            final int numReads = collideHashes ? 2000 : 50000;
+            final List<List<String>> readsBySequence = new ArrayList<>();
+            final List<List<String>> matesBySequence = new ArrayList<>();
+            for (int i = 0; i < NUM_SEQUENCES; ++i) {
+                readsBySequence.add(new ArrayList<>());
+                matesBySequence.add(new ArrayList<>());
+            }
+            final List<Integer> mateSequences = new ArrayList<>();
+            for (int i = 0; i < numReads; ++i) {
+                final int sequence = random.nextInt(NUM_SEQUENCES);
+                readsBySequence.get(sequence).add("RG" + random.nextInt(3) + ":read" + i);
+                mateSequences.add(sequence + random.nextInt(NUM_SEQUENCES - sequence));
+            }
+
+            int readsPut = 0;
+            int matesFound = 0;
+            for (int sequence = 0; sequence < NUM_SEQUENCES; ++sequence) {
+                for (final String key : readsBySequence.get(sequence)) {
+                    Assert.assertNull(map.remove(sequence, pairingKey(key + "/missing")));
+
+                    final int mateSequence = mateSequences.get(Integer.parseInt(key.substring(key.indexOf("read") + 4)));
+                    final ReadEndsForMarkDuplicates end = new ReadEndsForMarkDuplicates();
+                    end.orientation = ReadEnds.F;
+                    end.read1IndexInFile = readsPut++;
+                    end.read1Coordinate = key.hashCode();
+                    map.put(mateSequence, pairingKey(key), end);
+                    matesBySequence.get(mateSequence).add(key);
+                }
+                for (final String key : matesBySequence.get(sequence)) {
+                    final ReadEndsForMarkDuplicates end = map.remove(sequence, pairingKey(key));
+                    Assert.assertNotNull(end, key);
+                    Assert.assertEquals(end.read1Coordinate, key.hashCode(), key);
+                    ++matesFound;
+                }
+                Assert.assertEquals(map.size(), readsPut - matesFound);
+                Assert.assertTrue(map.sizeInRam() <= map.size());
+            }
+
+            Assert.assertEquals(matesFound, numReads);
+            Assert.assertEquals(map.size(), 0);
+            if (maxBytesInRam == Long.MAX_VALUE) {
+                Assert.assertEquals(map.getSpillFilesWritten(), 0);
+            } else {
+                Assert.assertTrue(map.getSpillFilesWritten() > 0);
+                Assert.assertTrue(map.getTotalBytesSpilled() > 0);
+            }
+            // Every spill file has been read back, so all of them should have been deleted
+            Assert.assertEquals(tmpDir.list().length, 0);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    @Test
+    public void testKeysWithTheSameHashNotConfused() throws IOException {
+        final File tmpDir = Files.createTempDirectory("SpillingReadEndsForMarkDuplicatesMapTest").toFile();
+        try {
+            final SpillingReadEndsForMarkDuplicatesMap map =
+                    new SpillingReadEndsForMarkDuplicatesMap(1, new ReadEndsForMarkDuplicatesCodec(), Collections.singletonList(tmpDir));
+            final PairingKey key = PairingKey.of("RG0", "read");
+            final PairingKey collidingKey = new PairingKey(key.getHigh(), key.getLow(), "RG0", "otherRead");
+            final ReadEndsForMarkDuplicates end = new ReadEndsForMarkDuplicates();
+            end.read1Coordinate = 17;
+            // Both go to a later sequence, so both are spilled and read back
+            map.put(1, collidingKey, end);
+            Assert.assertTrue(map.getSpillFilesWritten() > 0);
+            Assert.assertNull(map.remove(1, key));
+            Assert.assertEquals(map.remove(1, collidingKey).read1Coordinate, 17);
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    @Test
+    public void testSpillFilesAreBgzfAtLevelOne() throws IOException {
+        final File tmpDir = Files.createTempDirectory("SpillingReadEndsForMarkDuplicatesMapTest").toFile();
+        try {
+            final SpillingReadEndsForMarkDuplicatesMap map =
+                    new SpillingReadEndsForMarkDuplicatesMap(200000L, new ReadEndsForMarkDuplicatesCodec(), Collections.singletonList(tmpDir));
+            // All mates are on later sequences, so the spill files stay on disk until those sequences are reached
+            for (int i = 0; i < 20000; ++i) {
+                final ReadEndsForMarkDuplicates end = new ReadEndsForMarkDuplicates();
+                end.read1IndexInFile = i;
+                end.read1Coordinate = i % 1000;
+                map.put(1 + i % 3, PairingKey.of("RG0", "read" + i), end);
+            }
+            final File[] spillFiles = tmpDir.listFiles();
+            Assert.assertEquals(spillFiles.length, map.getSpillFilesWritten());
+            Assert.assertTrue(spillFiles.length > 0);
+
+            long totalLength = 0;
+            for (final File spillFile : spillFiles) {
+                totalLength += spillFile.length();
+                try (final InputStream in = new BufferedInputStream(new FileInputStream(spillFile))) {
+                    Assert.assertTrue(BlockCompressedInputStream.isValidFile(in), spillFile.getName());
+                }
+
+                // Recompressing the contents at the spill level gives the same bytes
+                final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                try (final BlockCompressedInputStream in = new BlockCompressedInputStream(spillFile)) {
+                    IOUtil.copyStream(in, contents);
+                }
+                final File recompressed = new File(tmpDir.getParentFile(), spillFile.getName() + ".recompressed");
+                recompressed.deleteOnExit();
+                try (final BlockCompressedOutputStream out = new BlockCompressedOutputStream(recompressed, SpillingReadEndsForMarkDuplicatesMap.SPILL_COMPRESSION_LEVEL)) {
+                    out.write(contents.toByteArray());
+                }
+                Assert.assertEquals(Files.readAllBytes(recompressed.toPath()), Files.readAllBytes(spillFile.toPath()), spillFile.getName());
+                Assert.assertTrue(recompressed.delete());
+            }
+            Assert.assertEquals(map.getTotalBytesSpilled(), totalLength);
+
+            for (int sequence = 0; sequence <= 3; ++sequence) {
+                Assert.assertNull(map.remove(sequence, PairingKey.of("RG0", "missing")));
+            }
+            Assert.assertEquals(map.sizeInRam(), map.size());
+        } finally {
+            IOUtil.deleteDirectoryTree(tmpDir);
+        }
+    }
+
+    /** @return the key for "readGroup:readName" */
+    private static PairingKey pairingKey(final String key) {
+        final int colon = key.indexOf(':');
+        return PairingKey.of(key.substring(0, colon), key.substring(colon + 1));
+    }
+}
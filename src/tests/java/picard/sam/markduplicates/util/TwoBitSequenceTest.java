@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * Tests that TwoBitSequence counts mismatches as comparing the bases one by one would.
+ */
+public class TwoBitSequenceTest {
+    private static final byte[] BASES = StringUtil.stringToBytes("ACGT");
+
+    @Test
+    public void testCountMismatchesMatchesBaseByBase() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 10000; ++round) {
+            final int length = 1 + random.nextInt(150);
+            final byte[] lhs = new byte[length];
+            final byte[] rhs = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                lhs[i] = BASES[random.nextInt(4)];
+                rhs[i] = random.nextInt(10) == 0 ? BASES[random.nextInt(4)] : lhs[i];
+            }
+            final int start = random.nextInt(length + 1);
+            final int end = start + random.nextInt(length - start + 1);
+            final int maxMismatches = random.nextInt(20);
+
+            int expected = 0;
+            for (int i = start; i < end; ++i) {
+                if (lhs[i] != rhs[i]) ++expected;
+            }
+            final int actual = TwoBitSequence.countMismatches(TwoBitSequence.pack(lhs), TwoBitSequence.pack(rhs), start, end, maxMismatches);
+            if (expected <= maxMismatches) Assert.assertEquals(actual, expected);
+            else Assert.assertTrue(actual > maxMismatches);
+        }
+    }
+
+    @Test
+    public void testOnlyUpperCaseBasesArePacked() {
+        Assert.assertNotNull(TwoBitSequence.pack(StringUtil.stringToBytes("ACGTTGCA")));
+        Assert.assertNull(TwoBitSequence.pack(StringUtil.stringToBytes("ACGNTGCA")));
+        Assert.assertNull(TwoBitSequence.pack(StringUtil.stringToBytes("ACGtTGCA")));
+        Assert.assertEquals(TwoBitSequence.pack(new byte[0]).length, 0);
+    }
+}
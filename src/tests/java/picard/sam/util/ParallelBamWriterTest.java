@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests that ParallelBamWriter writes BAM files that htsjdk reads back record for record, and indexes them on request
+ * just as htsjdk does from the finished file.
+ */
+public class ParallelBamWriterTest {
+
+    @DataProvider(name = "threadsAndSortOrders")
+    public Object[][] threadsAndSortOrders() {
+        return new Object[][] {
+                {1, SAMFileHeader.SortOrder.coordinate}, {4, SAMFileHeader.SortOrder.coordinate}, {3, SAMFileHeader.SortOrder.queryname}
+        };
+    }
+
+    @Test(dataProvider = "threadsAndSortOrders")
+    public void testReadBack(final int threads, final SAMFileHeader.SortOrder sortOrder) throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, sortOrder);
+        // Enough records for many BGZF blocks
+        for (int i = 0; i < 20000; ++i) {
+            builder.addPair("pair" + i, i % 3, 1 + 17 * i, 150 + 17 * i);
+        }
+        // Unmapped reads placed at their mates' positions are indexed too
+        for (int i = 0; i < 100; ++i) {
+            builder.addPair("halfMapped" + i, i % 3, 1 + 301 * i, 1 + 301 * i, false, true, "36M", null, false, false, 30);
+        }
+        builder.addUnmappedFragment("unmapped");
+
+        final File output = File.createTempFile("ParallelBamWriterTest.", ".bam");
+        output.deleteOnExit();
+        final File index = new File(output.getParentFile(), IOUtil.basename(output) + BAMIndex.BAMIndexSuffix);
+        index.deleteOnExit();
+
+        final List<String> expected = new ArrayList<>();
+        final ParallelBamWriter writer = new ParallelBamWriter(builder.getHeader(), output, 5, threads, true, false);
+        for (final SAMRecord rec : builder) {
+            expected.add(rec.getSAMString());
+            writer.addAlignment(rec);
+        }
+        writer.close();
+
+        Assert.assertEquals(BlockCompressedInputStream.checkTermination(output), BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK);
+        Assert.assertEquals(index.exists(), sortOrder == SAMFileHeader.SortOrder.coordinate);
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        Assert.assertEquals(reader.getFileHeader().getSortOrder(), sortOrder);
+        Assert.assertEquals(reader.getFileHeader().getSequenceDictionary(), builder.getHeader().getSequenceDictionary());
+        final Iterator<String> expectedIterator = expected.iterator();
+        // Only one iterator may be open on a reader at a time, so close this one before querying
+        final SAMRecordIterator iterator = reader.iterator();
+        while (iterator.hasNext()) {
+            Assert.assertEquals(iterator.next().getSAMString(), expectedIterator.next());
+        }
+        iterator.close();
+        Assert.assertFalse(expectedIterator.hasNext());
+        if (reader.hasIndex()) {
+            final SAMRecordIterator query = reader.query("chr2", 1, 1000, false);
+            Assert.assertTrue(query.hasNext());
+            query.close();
+        }
+        CloserUtil.close(reader);
+
+        if (index.exists()) {
+            final File readBackIndex = File.createTempFile("ParallelBamWriterTest.", BAMIndex.BAMIndexSuffix);
+            readBackIndex.deleteOnExit();
+            final SamReader sourceReader = SamReaderFactory.makeDefault()
+                    .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                    .open(output);
+            BAMIndexer.createIndex(sourceReader, readBackIndex);
+            CloserUtil.close(sourceReader);
+            Assert.assertEquals(Files.readAllBytes(index.toPath()), Files.readAllBytes(readBackIndex.toPath()));
+        }
+    }
+}
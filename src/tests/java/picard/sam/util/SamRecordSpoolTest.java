@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.CloseableIterator;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that SamRecordSpool gives back every record in the order it was added and deletes its file when done.
+ */
+public class SamRecordSpoolTest {
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][] {{1}, {4}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void testRecordsReadBackInOrder(final int threads) throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        // Enough records for many BGZF blocks
+        for (int i = 0; i < 20000; ++i) {
+            builder.addPair("pair" + i, i % 3, 1 + 17 * i, 150 + 17 * i);
+        }
+        builder.addUnmappedFragment("unmapped");
+
+        final File tmpDir = Files.createTempDirectory("SamRecordSpoolTest").toFile();
+        tmpDir.deleteOnExit();
+        final SamRecordSpool spool = new SamRecordSpool(builder.getHeader(), tmpDir, threads);
+        final List<String> expected = new ArrayList<>();
+        for (final SAMRecord rec : builder) {
+            expected.add(rec.getSAMString());
+            spool.add(rec);
+        }
+        Assert.assertEquals(spool.getRecordsAdded(), expected.size());
+
+        final List<String> actual = new ArrayList<>();
+        final CloseableIterator<SAMRecord> iterator = spool.iterator();
+        Assert.assertTrue(spool.getBytesWritten() > 0);
+        while (iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            Assert.assertSame(rec.getHeader(), builder.getHeader());
+            actual.add(rec.getSAMString());
+        }
+        iterator.close();
+
+        Assert.assertEquals(actual, expected);
+        Assert.assertEquals(tmpDir.list().length, 0);
+        tmpDir.delete();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoAddAfterIterating() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        builder.addFrag("frag", 0, 1, false);
+        final SamRecordSpool spool = new SamRecordSpool(builder.getHeader(), new File(System.getProperty("java.io.tmpdir")), 1);
+        try {
+            spool.iterator().close();
+            spool.add(builder.iterator().next());
+        } finally {
+            spool.cleanup();
+        }
+    }
+}
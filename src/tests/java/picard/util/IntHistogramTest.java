@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import htsjdk.samtools.util.Histogram;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class IntHistogramTest {
+
+    @DataProvider(name = "denseLimits")
+    public Object[][] denseLimits() {
+        return new Object[][] {{1}, {100}, {IntHistogram.DEFAULT_DENSE_LIMIT}};
+    }
+
+    /** Keys are mostly small, with some negative and some far beyond the dense limit. */
+    private static int randomKey(final Random random) {
+        switch (random.nextInt(10)) {
+            case 0:  return -random.nextInt(1000);
+            case 1:  return random.nextInt(10000000);
+            default: return random.nextInt(500);
+        }
+    }
+
+    @Test(dataProvider = "denseLimits")
+    public void testMatchesHistogram(final int denseLimit) {
+        final Random random = new Random(7);
+        final IntHistogram intHistogram = new IntHistogram(denseLimit);
+        final Histogram<Integer> expected = new Histogram<>("key", "count");
+        for (int i = 0; i < 10000; ++i) {
+            final int key = randomKey(random);
+            intHistogram.increment(key);
+            expected.increment(key);
+        }
+
+        assertSameHistogram(intHistogram.toHistogram("key", "count"), expected);
+        Assert.assertEquals((double) intHistogram.getCount(), expected.getCount());
+        Assert.assertEquals((double) intHistogram.get(3), expected.get(3).getValue());
+        Assert.assertEquals(intHistogram.get(-1000000), 0);
+    }
+
+    @Test(dataProvider = "denseLimits")
+    public void testMerge(final int denseLimit) {
+        final Random random = new Random(11);
+        final IntHistogram first = new IntHistogram(denseLimit);
+        final IntHistogram second = new IntHistogram();
+        final Histogram<Integer> expected = new Histogram<>();
+        for (int i = 0; i < 10000; ++i) {
+            final int key = randomKey(random);
+            (i % 3 == 0 ? first : second).increment(key, 2);
+            expected.increment(key, 2);
+        }
+
+        first.merge(second);
+        assertSameHistogram(first.toHistogram(), expected);
+        Assert.assertEquals(first.getCount(), 20000);
+    }
+
+    @Test
+    public void testEmpty() {
+        final IntHistogram histogram = new IntHistogram();
+        Assert.assertTrue(histogram.isEmpty());
+        Assert.assertTrue(histogram.toHistogram().isEmpty());
+        histogram.increment(0);
+        Assert.assertFalse(histogram.isEmpty());
+    }
+
+    private static void assertSameHistogram(final Histogram<Integer> actual, final Histogram<Integer> expected) {
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        for (final Integer key : expected.keySet()) {
+            Assert.assertEquals(actual.get(key).getValue(), expected.get(key).getValue(), "key " + key);
+        }
+        Assert.assertEquals(actual.getMean(), expected.getMean());
+        Assert.assertEquals(actual.getMedian(), expected.getMedian());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Tests that JavaChartRenderer writes a PDF or PNG for the metrics and histogram sections of a metrics file.
+ */
+public class JavaChartRendererTest {
+
+    @DataProvider(name = "charts")
+    public Object[][] charts() {
+        return new Object[][] {
+                {"picard/analysis/qualityScoreDistribution.R", ".pdf"},
+                {"picard/analysis/insertSizeHistogram.R", ".png"},
+                {"picard/analysis/baseDistributionByCycle.R", ".pdf"},
+                {"picard/analysis/gcBias.R", ".png"}
+        };
+    }
+
+    @Test(dataProvider = "charts")
+    public void testRender(final String rScriptName, final String extension) throws IOException {
+        Assert.assertTrue(JavaChartRenderer.canRender(rScriptName));
+
+        final File metrics = File.createTempFile("JavaChartRendererTest.", ".metrics");
+        final File chart = File.createTempFile("JavaChartRendererTest.", extension);
+        metrics.deleteOnExit();
+        chart.deleteOnExit();
+        try (final PrintWriter out = new PrintWriter(metrics, "UTF-8")) {
+            out.println("## htsjdk.samtools.metrics.StringHeader");
+            out.println("# SomeProgram INPUT=in.bam");
+            out.println();
+            out.println("## METRICS CLASS\tpicard.analysis.SomeMetrics");
+            out.println("CYCLE\tGC\tPCT_A\tPCT_C\tPCT_G\tPCT_T\tPCT_N\tNORMALIZED_COVERAGE");
+            for (int i = 1; i <= 50; ++i) {
+                out.println(i + "\t" + i + "\t25.5\t24.5\t25\t24\t1\t" + (1 + Math.sin(i / 10.0)));
+            }
+            out.println();
+            out.println("## HISTOGRAM\tjava.lang.Integer");
+            out.println("BIN\tVALUE");
+            for (int i = 0; i < 40; ++i) {
+                out.println(i + "\t" + (i * i));
+            }
+        }
+
+        // gcBias.R takes the summary file second and the chart third
+        if (rScriptName.endsWith("gcBias.R")) {
+            JavaChartRenderer.render(rScriptName, metrics.getAbsolutePath(), "summary", chart.getAbsolutePath(), "50");
+        } else {
+            JavaChartRenderer.render(rScriptName, metrics.getAbsolutePath(), chart.getAbsolutePath(), "in.bam", "", "30");
+        }
+
+        final byte[] bytes = Files.readAllBytes(chart.toPath());
+        Assert.assertTrue(bytes.length > 100);
+        if (extension.equals(".pdf")) {
+            Assert.assertTrue(new String(bytes, StandardCharsets.US_ASCII).startsWith("%PDF-"));
+            Assert.assertTrue(new String(bytes, StandardCharsets.US_ASCII).trim().endsWith("%%EOF"));
+        } else {
+            Assert.assertEquals(Arrays.copyOf(bytes, 4), new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+        }
+    }
+
+    @Test
+    public void testRrbsQcIsLeftToR() {
+        Assert.assertFalse(JavaChartRenderer.canRender("picard/analysis/rrbsQc.R"));
+    }
+}